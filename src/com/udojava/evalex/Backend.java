@@ -0,0 +1,39 @@
+package com.udojava.evalex;
+
+/**
+ * How a compiled expression is executed, see
+ * {@link Expression#setBackend(Backend)}. All backends calculate the same
+ * results.
+ */
+public enum Backend {
+
+    /**
+     * The program of the expression is interpreted.
+     */
+    INTERPRETER,
+
+    /**
+     * A class is generated for the expression, that the JIT compiler can
+     * inline completely. Only supported by {@link DoubleEx}, the built-in
+     * operators become JVM instructions. Other expression types, or a
+     * runtime that does not allow to define classes, use the interpreter.
+     */
+    BYTECODE,
+
+    /**
+     * The expression is turned into a tree of method handles, that the JVM
+     * compiles without defining a class. Supported by {@link DoubleEx} and
+     * {@link LongEx}, other expression types use the interpreter.
+     */
+    METHOD_HANDLES,
+
+    /**
+     * The expression is evaluated by a tree of nodes, that specialize
+     * themselves on the values they see: the built-in operators calculate on
+     * longs while their operands are integers or have a small scale, and
+     * fall back to {@link java.math.BigDecimal} when that assumption breaks.
+     * Only supported by {@link BigDecimalEx}, other expression types use the
+     * interpreter.
+     */
+    SPECIALIZING
+}
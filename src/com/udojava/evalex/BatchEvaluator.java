@@ -0,0 +1,291 @@
+package com.udojava.evalex;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates a program over many rows at once, see
+ * {@link CompiledDoubleExpression#evalBatch(java.util.Map, double[])}. The
+ * rows are processed in chunks of {@link #CHUNK} rows, and every instruction
+ * is applied to all rows of a chunk before the next one: the stack holds a
+ * column of values per position, and the dispatch of an instruction is paid
+ * once per chunk instead of once per row.
+ * <br>
+ * The conditional parts of a program, the branches of an <code>IF</code> and
+ * the right operands of <code>&amp;&amp;</code> and <code>||</code>, are run
+ * for all rows as well, with a mask of the rows that take them. The built-in
+ * operators are applied to all rows, their results for the other rows are
+ * thrown away: at the end of an <code>IF</code> each row takes the value of
+ * its branch, and a <code>&amp;&amp;</code> or <code>||</code> operator
+ * ignores its right operand if the left one decides. All other operators and
+ * functions are only called for the rows of the mask, so they are called
+ * exactly as often and with the same values as if each row was evaluated on
+ * its own.
+ * <br>
+ * An evaluator holds the buffers of one evaluation and is used by one
+ * thread.
+ */
+abstract class BatchEvaluator {
+
+    /**
+     * The number of rows evaluated together. The columns of a chunk stay in
+     * the cache.
+     */
+    static final int CHUNK = 1024;
+
+    private final Program<?, ?> program;
+
+    /**
+     * The largest number of conditional parts that can be open at the same
+     * time.
+     */
+    final int maxDepth;
+
+    /**
+     * The index of the first row of the current chunk.
+     */
+    int first;
+
+    /**
+     * The number of rows of the current chunk.
+     */
+    int rows;
+
+    /**
+     * The rows the current instruction is evaluated for, <code>null</code>
+     * for all rows.
+     */
+    boolean[] active;
+
+    /**
+     * The open conditional parts, the innermost one last.
+     */
+    private final List<Region> regions = new ArrayList<>();
+    private int depth;
+
+    BatchEvaluator(Program<?, ?> program) {
+        this.program = program;
+        int regions = 0;
+        for (byte opcode : program.opcodes) {
+            if (opcode == Program.BRANCH || opcode == Program.AND || opcode == Program.OR) {
+                regions++;
+            }
+        }
+        maxDepth = regions;
+    }
+
+    /**
+     * Evaluates a range of rows.
+     *
+     * @param from
+     *            The first row.
+     * @param to
+     *            The row after the last one.
+     */
+    final void eval(int from, int to) {
+        for (first = from; first < to; first += CHUNK) {
+            rows = Math.min(CHUNK, to - first);
+            run();
+            result();
+        }
+    }
+
+    /**
+     * Runs the program for the rows of the current chunk, the result is left
+     * at stack position <code>0</code>.
+     */
+    private void run() {
+        byte[] opcodes = program.opcodes;
+        int[] operands = program.operands;
+        depth = 0;
+        active = null;
+        int sp = 0;
+        for (int pc = 0; pc <= opcodes.length; pc++) {
+            while (depth > 0 && regions.get(depth - 1).end == pc) {
+                Region region = regions.get(--depth);
+                if (!region.shortCircuit) {
+                    blend(sp - 1, depth, region.condition);
+                }
+                active = depth > 0 ? regions.get(depth - 1).mask : null;
+            }
+            if (pc == opcodes.length) {
+                break;
+            }
+            int operand = operands[pc];
+            switch (opcodes[pc]) {
+            case Program.CONST:
+                constant(operand, sp++);
+                break;
+            case Program.LOAD:
+                load(operand, sp++);
+                break;
+            case Program.OPERATOR:
+                sp--;
+                operator(operand, sp - 1);
+                break;
+            case Program.UNARY:
+                unary(operand, sp - 1);
+                break;
+            case Program.STORE:
+                store(operand, sp - 1);
+                break;
+            case Program.TEMP:
+                temp(operand, sp++);
+                break;
+            case Program.FUNCTION:
+                int argc = program.argCounts[operand];
+                sp -= argc;
+                function(operand, sp, argc);
+                sp++;
+                break;
+            case Program.FOLD:
+                if (isFolded(operand)) {
+                    constant(program.literals.length + operand, sp++);
+                    pc = program.foldEnds[operand] - 1;
+                }
+                break;
+            case Program.BRANCH:
+                // the then branch, the end is known at its jump
+                sp--;
+                open(sp, false, -1, false);
+                break;
+            case Program.JUMP:
+                // the else branch, the value of the then branch is kept
+                Region region = regions.get(depth - 1);
+                sp--;
+                save(sp, depth - 1);
+                region.end = program.jumpTargets[operand];
+                mask(region, true);
+                break;
+            default:
+                // the right operand, for the rows the left one does not
+                // decide
+                open(sp - 1, opcodes[pc] == Program.OR, program.jumpTargets[operand], true);
+            }
+        }
+    }
+
+    /**
+     * Opens a conditional part.
+     *
+     * @param position
+     *            The stack position of the condition.
+     * @param negate
+     *            <code>true</code> if the part is run for the false rows.
+     * @param end
+     *            The instruction after the part, <code>-1</code> if not yet
+     *            known.
+     * @param shortCircuit
+     *            <code>true</code> for the right operand of
+     *            <code>&amp;&amp;</code> and <code>||</code>.
+     */
+    private void open(int position, boolean negate, int end, boolean shortCircuit) {
+        if (depth == regions.size()) {
+            regions.add(new Region());
+        }
+        Region region = regions.get(depth++);
+        truth(position, region.condition);
+        region.end = end;
+        region.shortCircuit = shortCircuit;
+        mask(region, negate);
+    }
+
+    /**
+     * Sets the mask of a conditional part and makes it the active one.
+     */
+    private void mask(Region region, boolean negate) {
+        boolean[] outer = depth > 1 ? regions.get(depth - 2).mask : null;
+        boolean[] condition = region.condition;
+        boolean[] mask = region.mask;
+        for (int i = 0; i < rows; i++) {
+            mask[i] = (outer == null || outer[i]) && condition[i] != negate;
+        }
+        active = mask;
+    }
+
+    /**
+     * Tells if a row is evaluated by the current instruction.
+     */
+    final boolean isActive(int row) {
+        return active == null || active[row];
+    }
+
+    /**
+     * Pushes a value of the constant pool for all rows.
+     */
+    abstract void constant(int index, int position);
+
+    /**
+     * Pushes the values of a variable.
+     */
+    abstract void load(int slot, int position);
+
+    /**
+     * Applies an operator to the values at a position and the next one, the
+     * result replaces the first.
+     */
+    abstract void operator(int site, int position);
+
+    /**
+     * Applies a unary operator to the values at a position.
+     */
+    abstract void unary(int site, int position);
+
+    /**
+     * Calls a function with the values from a position on, the result
+     * replaces the first parameter.
+     */
+    abstract void function(int site, int position, int argc);
+
+    /**
+     * Copies the values at a position into a temporary.
+     */
+    abstract void store(int temp, int position);
+
+    /**
+     * Pushes the values of a temporary.
+     */
+    abstract void temp(int temp, int position);
+
+    /**
+     * Tells if a folded constant could be calculated.
+     */
+    abstract boolean isFolded(int fold);
+
+    /**
+     * Gets the truth values at a position.
+     */
+    abstract void truth(int position, boolean[] truth);
+
+    /**
+     * Keeps the values of a then branch for the <code>IF</code> at a
+     * nesting depth.
+     */
+    abstract void save(int position, int depth);
+
+    /**
+     * Replaces the values of the else branch at a position by the kept
+     * values of the then branch, for the rows whose condition is true.
+     */
+    abstract void blend(int position, int depth, boolean[] condition);
+
+    /**
+     * Copies the values at stack position <code>0</code> to the result.
+     */
+    abstract void result();
+
+    /**
+     * A conditional part of the program.
+     */
+    private static final class Region {
+        final boolean[] condition = new boolean[CHUNK];
+        final boolean[] mask = new boolean[CHUNK];
+
+        /**
+         * The instruction after the part.
+         */
+        int end;
+
+        boolean shortCircuit;
+    }
+}
@@ -30,7 +30,12 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.MathContext;
 import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
 
 /**
  * BigDecimal expression.
@@ -43,62 +48,57 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
     public static final BigDecimal PI = new BigDecimal(
         "3.1415926535897932384626433832795028841971693993751058209749445923078164062862089986280348253421170679");
 
-	/**
-	 * Creates a new expression instance from an expression string with a given
-	 * default match context of {@link MathContext#DECIMAL32}.
-	 * 
-	 * @param expression
-	 *            The expression. E.g. <code>"2.4*sin(3)/(2-4)"</code> or
-	 *            {@code "sin(y)>0 & max(z, 3)>3"}
-	 */
-	public BigDecimalEx(String expression) {
-		this(expression, MathContext.DECIMAL32);
-	}
+    /**
+     * The built-in operators, functions and variables, shared by all
+     * expressions of this type.
+     */
+    private static final OperatorRegistry<BigDecimal, MathContext> OPERATORS;
+    private static final FunctionRegistry<BigDecimal, MathContext> FUNCTIONS;
+    private static final Map<String, BigDecimal> VARIABLES;
 
-	/**
-	 * Creates a new expression instance from an expression string with a given
-	 * default match context.
-	 * 
-	 * @param expression
-	 *            The expression. E.g. <code>"2.4*sin(3)/(2-4)"</code> or
-	 *            {@code "sin(y)>0 & max(z, 3)>3"}
-	 * @param defaultMathContext
-	 *            The {@link MathContext} to use by default.
-	 */
-	public BigDecimalEx(String expression, MathContext defaultMathContext) {
-        super(expression, defaultMathContext);
+    /**
+     * The chains of the built-in <code>+</code> and <code>*</code>.
+     */
+    private static final DecimalChain SUM;
+    private static final DecimalChain PRODUCT;
+
+    static {
+        List<Operator<BigDecimal, MathContext>> operators = new ArrayList<>();
+        List<UnaryOperator<BigDecimal, MathContext>> unaryOperators = new ArrayList<>();
+        List<Function<BigDecimal, MathContext>> functions = new ArrayList<>();
+        Map<String, BigDecimal> variables = new HashMap<>();
 
-        addOperator(new Operator<BigDecimal, MathContext>("+", 20, true) {
+        operators.add(new DecimalOperator("+", 20, true, DecimalOperator.ADD) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.add(v2, mc);
             }
         });
-        addOperator(new Operator<BigDecimal, MathContext>("-", 20, true) {
+        operators.add(new DecimalOperator("-", 20, true, DecimalOperator.SUBTRACT) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.subtract(v2, mc);
             }
         });
-        addOperator(new Operator<BigDecimal, MathContext>("*", 30, true) {
+        operators.add(new DecimalOperator("*", 30, true, DecimalOperator.MULTIPLY) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.multiply(v2, mc);
             }
         });
-        addOperator(new Operator<BigDecimal, MathContext>("/", 30, true) {
+        operators.add(new Operator<BigDecimal, MathContext>("/", 30, true) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.divide(v2, mc);
             }
         });
-        addOperator(new Operator<BigDecimal, MathContext>("%", 30, true) {
+        operators.add(new Operator<BigDecimal, MathContext>("%", 30, true) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.remainder(v2, mc);
             }
         });
-        addOperator(new Operator<BigDecimal, MathContext>("^", 40, false) {
+        operators.add(new Operator<BigDecimal, MathContext>("^", 40, false) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
 				/*-
@@ -106,6 +106,10 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
 				 * http://stackoverflow.com/questions/3579779/how-to-do-a-fractional-power-on-bigdecimal-in-java
 				 */
                 int signOf2 = v2.signum();
+                if (signOf2 >= 0 && v2.remainder(BigDecimal.ONE).signum() == 0) {
+                    // the same as below, the fractional power is 1
+                    return v1.pow(v2.intValueExact(), mc);
+                }
                 double dn1 = v1.doubleValue();
                 v2 = v2.multiply(new BigDecimal(signOf2)); // n2 is now positive
                 BigDecimal remainderOf2 = v2.remainder(BigDecimal.ONE);
@@ -122,7 +126,7 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
                 return result;
             }
         });
-        addOperator(new Operator<BigDecimal, MathContext>("&&", 4, false) {
+        operators.add(new DecimalOperator("&&", 4, false, DecimalOperator.AND) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 boolean b1 = !v1.equals(BigDecimal.ZERO);
@@ -131,7 +135,7 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
             }
         });
 
-        addOperator(new Operator<BigDecimal, MathContext>("||", 2, false) {
+        operators.add(new DecimalOperator("||", 2, false, DecimalOperator.OR) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 boolean b1 = !v1.equals(BigDecimal.ZERO);
@@ -140,21 +144,21 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
             }
         });
 
-        addOperator(new Operator<BigDecimal, MathContext>(">", 10, false) {
+        operators.add(new DecimalOperator(">", 10, false, DecimalOperator.GREATER) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.compareTo(v2) == 1 ? BigDecimal.ONE : BigDecimal.ZERO;
             }
         });
 
-        addOperator(new Operator<BigDecimal, MathContext>(">=", 10, false) {
+        operators.add(new DecimalOperator(">=", 10, false, DecimalOperator.GREATER_EQUAL) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.compareTo(v2) >= 0 ? BigDecimal.ONE : BigDecimal.ZERO;
             }
         });
 
-        addOperator(new Operator<BigDecimal, MathContext>("<", 10, false) {
+        operators.add(new DecimalOperator("<", 10, false, DecimalOperator.LESS) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.compareTo(v2) == -1 ? BigDecimal.ONE
@@ -162,48 +166,70 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
             }
         });
 
-        addOperator(new Operator<BigDecimal, MathContext>("<=", 10, false) {
+        operators.add(new DecimalOperator("<=", 10, false, DecimalOperator.LESS_EQUAL) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.compareTo(v2) <= 0 ? BigDecimal.ONE : BigDecimal.ZERO;
             }
         });
 
-        addOperator(new Operator<BigDecimal, MathContext>("=", 7, false) {
+        operators.add(new DecimalOperator("=", 7, false, DecimalOperator.EQUAL) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.compareTo(v2) == 0 ? BigDecimal.ONE : BigDecimal.ZERO;
             }
         });
-        addOperator(new Operator<BigDecimal, MathContext>("==", 7, false) {
+        operators.add(new DecimalOperator("==", 7, false, DecimalOperator.EQUAL) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.compareTo(v2) == 0 ? BigDecimal.ONE : BigDecimal.ZERO;
             }
         });
 
-        addOperator(new Operator<BigDecimal, MathContext>("!=", 7, false) {
+        operators.add(new DecimalOperator("!=", 7, false, DecimalOperator.NOT_EQUAL) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.compareTo(v2) != 0 ? BigDecimal.ONE : BigDecimal.ZERO;
             }
         });
-        addOperator(new Operator<BigDecimal, MathContext>("<>", 7, false) {
+        operators.add(new DecimalOperator("<>", 7, false, DecimalOperator.NOT_EQUAL) {
             @Override
             public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
                 return v1.compareTo(v2) != 0 ? BigDecimal.ONE : BigDecimal.ZERO;
             }
         });
 
-        addFunction(new Function<BigDecimal, MathContext>("NOT", 1) {
+        unaryOperators.add(new UnaryOperator<BigDecimal, MathContext>("-", 60, true,
+                UnaryOperator.NEGATE) {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                boolean zero = parameters.get(0).compareTo(BigDecimal.ZERO) == 0;
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                return v.negate(mc);
+            }
+        });
+
+        unaryOperators.add(new UnaryOperator<BigDecimal, MathContext>("!", 60, true,
+                UnaryOperator.NOT) {
+            @Override
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                boolean zero = v.compareTo(BigDecimal.ZERO) == 0;
+                return zero ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+
+        functions.add(new Function1<BigDecimal, MathContext>("NOT") {
+            @Override
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                boolean zero = v.compareTo(BigDecimal.ZERO) == 0;
                 return zero ? BigDecimal.ONE : BigDecimal.ZERO;
             }
         });
 
-        addFunction(new Function<BigDecimal, MathContext>("IF", 3) {
+        functions.add(new Function<BigDecimal, MathContext>("IF", 3) {
+            @Override
+            boolean isConditional() {
+                return true;
+            }
+
             @Override
             public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
                 boolean isTrue = !parameters.get(0).equals(BigDecimal.ZERO);
@@ -211,97 +237,96 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
             }
         });
 
-        addFunction(new Function<BigDecimal, MathContext>("RANDOM", 0) {
+        functions.add(new Function<BigDecimal, MathContext>("RANDOM", 0) {
+            @Override
+            public boolean isDeterministic() {
+                return false;
+            }
+
             @Override
             public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
                 double d = Math.random();
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("SIN", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("SIN") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.sin(Math.toRadians(parameters.get(0)
-                    .doubleValue()));
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.sin(Math.toRadians(v.doubleValue()));
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("COS", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("COS") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.cos(Math.toRadians(parameters.get(0)
-                    .doubleValue()));
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.cos(Math.toRadians(v.doubleValue()));
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("TAN", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("TAN") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.tan(Math.toRadians(parameters.get(0)
-                    .doubleValue()));
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.tan(Math.toRadians(v.doubleValue()));
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("ASIN", 1) { // added by av
+        functions.add(new Function1<BigDecimal, MathContext>("ASIN") { // added by av
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.toDegrees(Math.asin(parameters.get(0)
-                    .doubleValue()));
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.toDegrees(Math.asin(v.doubleValue()));
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("ACOS", 1) { // added by av
+        functions.add(new Function1<BigDecimal, MathContext>("ACOS") { // added by av
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.toDegrees(Math.acos(parameters.get(0)
-                    .doubleValue()));
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.toDegrees(Math.acos(v.doubleValue()));
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("ATAN", 1) { // added by av
+        functions.add(new Function1<BigDecimal, MathContext>("ATAN") { // added by av
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.toDegrees(Math.atan(parameters.get(0)
-                    .doubleValue()));
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.toDegrees(Math.atan(v.doubleValue()));
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("SINH", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("SINH") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.sinh(parameters.get(0).doubleValue());
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.sinh(v.doubleValue());
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("COSH", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("COSH") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.cosh(parameters.get(0).doubleValue());
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.cosh(v.doubleValue());
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("TANH", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("TANH") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.tanh(parameters.get(0).doubleValue());
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.tanh(v.doubleValue());
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("RAD", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("RAD") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.toRadians(parameters.get(0).doubleValue());
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.toRadians(v.doubleValue());
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("DEG", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("DEG") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.toDegrees(parameters.get(0).doubleValue());
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.toDegrees(v.doubleValue());
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("MAX", -1) {
+        functions.add(new FunctionN<BigDecimal, MathContext>("MAX", -1) {
             @Override
             public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
                 if (parameters.size() == 0) {
@@ -316,7 +341,7 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
                 return max;
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("MIN", -1) {
+        functions.add(new FunctionN<BigDecimal, MathContext>("MIN", -1) {
             @Override
             public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
                 if (parameters.size() == 0) {
@@ -331,64 +356,60 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
                 return min;
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("ABS", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("ABS") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                return parameters.get(0).abs(mc);
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                return v.abs(mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("LOG", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("LOG") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.log(parameters.get(0).doubleValue());
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.log(v.doubleValue());
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("LOG10", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("LOG10") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                double d = Math.log10(parameters.get(0).doubleValue());
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                double d = Math.log10(v.doubleValue());
                 return new BigDecimal(d, mc);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("ROUND", 2) {
+        functions.add(new Function2<BigDecimal, MathContext>("ROUND") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                BigDecimal toRound = parameters.get(0);
-                int precision = parameters.get(1).intValue();
+            public BigDecimal eval(BigDecimal toRound, BigDecimal digits, MathContext mc) {
+                int precision = digits.intValue();
                 return toRound.setScale(precision, mc.getRoundingMode());
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("FLOOR", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("FLOOR") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                BigDecimal toRound = parameters.get(0);
-                return toRound.setScale(0, RoundingMode.FLOOR);
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                return v.setScale(0, RoundingMode.FLOOR);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("CEILING", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("CEILING") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
-                BigDecimal toRound = parameters.get(0);
-                return toRound.setScale(0, RoundingMode.CEILING);
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                return v.setScale(0, RoundingMode.CEILING);
             }
         });
-        addFunction(new Function<BigDecimal, MathContext>("SQRT", 1) {
+        functions.add(new Function1<BigDecimal, MathContext>("SQRT") {
             @Override
-            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
 				/*
 				 * From The Java Programmers Guide To numerical Computing
 				 * (Ronald Mak, 2003)
 				 */
-                BigDecimal x = parameters.get(0);
-                if (x.compareTo(BigDecimal.ZERO) == 0) {
+                if (v.compareTo(BigDecimal.ZERO) == 0) {
                     return BigDecimal.ZERO;
                 }
-                if (x.signum() < 0) {
+                if (v.signum() < 0) {
                     throw new ExpressionException(
                         "Argument to SQRT() function must not be negative");
                 }
-                BigInteger n = x.movePointRight(mc.getPrecision() << 1)
+                BigInteger n = v.movePointRight(mc.getPrecision() << 1)
                     .toBigInteger();
 
                 int bits = (n.bitLength() + 1) >> 1;
@@ -406,11 +427,72 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
             }
         });
 
-        setVariable("PI", PI);
-        setVariable("TRUE", BigDecimal.ONE);
-        setVariable("FALSE", BigDecimal.ZERO);
+        variables.put("PI", PI);
+        variables.put("TRUE", BigDecimal.ONE);
+        variables.put("FALSE", BigDecimal.ZERO);
+
+        OPERATORS = OperatorRegistry.of(operators, unaryOperators);
+        FUNCTIONS = FunctionRegistry.of(functions);
+        VARIABLES = Collections.unmodifiableMap(variables);
+        SUM = new DecimalChain((DecimalOperator) OPERATORS.get("+"));
+        PRODUCT = new DecimalChain((DecimalOperator) OPERATORS.get("*"));
+    }
+
+    /**
+     * <code>true</code> if chains of <code>+</code> and <code>*</code> are
+     * rounded once.
+     */
+    private boolean singleRounding;
+
+	/**
+	 * Creates a new expression instance from an expression string with a given
+	 * default match context of {@link MathContext#DECIMAL32}.
+	 * 
+	 * @param expression
+	 *            The expression. E.g. <code>"2.4*sin(3)/(2-4)"</code> or
+	 *            {@code "sin(y)>0 & max(z, 3)>3"}
+	 */
+	public BigDecimalEx(String expression) {
+		this(expression, MathContext.DECIMAL32);
+	}
+
+	/**
+	 * Creates a new expression instance from an expression string with a given
+	 * default match context.
+	 * 
+	 * @param expression
+	 *            The expression. E.g. <code>"2.4*sin(3)/(2-4)"</code> or
+	 *            {@code "sin(y)>0 & max(z, 3)>3"}
+	 * @param defaultMathContext
+	 *            The {@link MathContext} to use by default.
+	 */
+	public BigDecimalEx(String expression, MathContext defaultMathContext) {
+        super(expression, defaultMathContext, OPERATORS, FUNCTIONS, VARIABLES);
 	}
 
+    @Override
+    Predicate<BigDecimal> truth() {
+        return value -> !value.equals(BigDecimal.ZERO);
+    }
+
+    /**
+     * Only the multiplication and division of a variable by
+     * <code>1</code> and nested <code>MIN</code> and <code>MAX</code> calls:
+     * every other rewrite could change the rounding or the scale of a
+     * result. Chains of <code>+</code> and <code>*</code> only with
+     * {@link #setSingleRounding(boolean)}.
+     */
+    @Override
+    int rewrites() {
+        return Simplifier.VARIABLE_IDENTITIES | Simplifier.EXTREMA
+                | (singleRounding ? Simplifier.CHAINS : 0);
+    }
+
+    @Override
+    Function<BigDecimal, MathContext> chain(String operator) {
+        return "+".equals(operator) ? SUM : "*".equals(operator) ? PRODUCT : null;
+    }
+
     @Override
     public BigDecimal round(BigDecimal value, MathContext ctx) {
         return value.round(ctx);
@@ -418,7 +500,18 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
 
     @Override
     public BigDecimal val(String val, MathContext ctx) {
-        return new BigDecimal(val, ctx);
+        return NumberParser.parseDecimal(val, ctx);
+    }
+
+    @Override
+    CompiledExpression<BigDecimal, MathContext> newCompiledExpression(
+            Program<BigDecimal, MathContext> program, Object[] defaults) {
+        // a subclass may parse or round differently, the built-in functions
+        // do not keep the expression that compiled a cached program reachable
+        boolean builtIn = getClass() == BigDecimalEx.class;
+        return new CompiledDecimalExpression(program, getContext(), defaults,
+                builtIn ? NumberParser::parseDecimal : this::val,
+                builtIn ? BigDecimal::round : this::round, getBackend(), getTiering());
     }
 
     public BigDecimal evalStripTrailingZeros() {
@@ -438,6 +531,37 @@ public class BigDecimalEx extends Expression<BigDecimal, MathContext> {
         return this;
     }
 
+    /**
+     * Sets whether chains of <code>+</code> and <code>*</code>, like
+     * <code>a + b + c + d</code>, are rounded once. The operands of a chain
+     * are then combined exactly and only the result is rounded to the
+     * precision, instead of every partial result. This is more accurate and
+     * faster for long chains, but the results may differ from those of the
+     * binary operators in the last digit. Off by default.
+     * <br>
+     * Only chains of left operands are combined: <code>a + (b + c)</code>
+     * still rounds <code>b + c</code> first.
+     *
+     * @param singleRounding
+     *            <code>true</code> to round chains once.
+     * @return The expression, allows to chain methods.
+     */
+    public BigDecimalEx setSingleRounding(boolean singleRounding) {
+        this.singleRounding = singleRounding;
+        recompile();
+        return this;
+    }
+
+    /**
+     * Tells if chains of <code>+</code> and <code>*</code> are rounded
+     * once, see {@link #setSingleRounding(boolean)}.
+     *
+     * @return <code>true</code> if chains are rounded once.
+     */
+    public boolean isSingleRounding() {
+        return singleRounding;
+    }
+
     /**
      * Sets the rounding mode for expression evaluation.
      *
@@ -0,0 +1,80 @@
+package com.udojava.evalex;
+
+import java.util.Arrays;
+
+/**
+ * Variable values for one evaluation of a {@link CompiledExpression}. A
+ * bindings instance is cheap to create and is meant to be used by one thread
+ * at a time, while the compiled expression itself is shared.
+ */
+public final class Bindings<T extends Number> {
+
+    /**
+     * The expression these bindings belong to.
+     */
+    final CompiledExpression<T, ?> expression;
+
+    /**
+     * The variable values, indexed by slot.
+     */
+    final Object[] values;
+
+    /**
+     * Creates new bindings for an expression.
+     *
+     * @param expression
+     *            The compiled expression.
+     * @param defaults
+     *            The initial variable values, indexed by slot.
+     */
+    Bindings(CompiledExpression<T, ?> expression, Object[] defaults) {
+        this.expression = expression;
+        this.values = Arrays.copyOf(defaults, defaults.length);
+    }
+
+    /**
+     * Sets a variable value. Variables that are not used by the expression
+     * are ignored.
+     *
+     * @param variable
+     *            The variable name.
+     * @param value
+     *            The variable value.
+     * @return The bindings, allows to chain methods.
+     */
+    public Bindings<T> set(String variable, T value) {
+        int slot = expression.slotOf(variable);
+        if (slot >= 0) {
+            values[slot] = value;
+        }
+        return this;
+    }
+
+    /**
+     * Sets a variable value by its slot.
+     *
+     * @param slot
+     *            The slot of the variable, see
+     *            {@link CompiledExpression#slotOf(String)}.
+     * @param value
+     *            The variable value.
+     * @return The bindings, allows to chain methods.
+     */
+    public Bindings<T> set(int slot, T value) {
+        values[slot] = value;
+        return this;
+    }
+
+    /**
+     * Gets a variable value.
+     *
+     * @param variable
+     *            The variable name.
+     * @return The variable value or <code>null</code> if it is not set.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(String variable) {
+        int slot = expression.slotOf(variable);
+        return slot >= 0 ? (T) values[slot] : null;
+    }
+}
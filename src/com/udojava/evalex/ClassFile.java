@@ -0,0 +1,323 @@
+package com.udojava.evalex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files, just enough to generate the classes
+ * of {@link Backend#BYTECODE} expressions. The classes have version 49, so
+ * their methods need no stack map frames.
+ */
+final class ClassFile {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    /**
+     * Creates a new class.
+     *
+     * @param access
+     *            The access flags.
+     * @param name
+     *            The internal name, e.g. <code>java/lang/Object</code>.
+     * @param superName
+     *            The internal name of the super class.
+     * @param interfaceNames
+     *            The internal names of the implemented interfaces.
+     */
+    ClassFile(int access, String name, String superName, String... interfaceNames) {
+        this.access = access;
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    int utf8(String value) {
+        Integer index = entries.get("U" + value);
+        if (index == null) {
+            index = add("U" + value, 1);
+            write(() -> poolOut.writeUTF(value));
+        }
+        return index;
+    }
+
+    int classRef(String name) {
+        int utf8 = utf8(name);
+        return entry("C" + name, 7, utf8, -1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return member(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return member(10, owner, name, descriptor);
+    }
+
+    int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        Integer index = entries.get("D" + bits);
+        if (index == null) {
+            index = add("D" + bits, 6);
+            write(() -> poolOut.writeLong(bits));
+            // a double takes two entries
+            poolCount++;
+        }
+        return index;
+    }
+
+    int intConstant(int value) {
+        Integer index = entries.get("I" + value);
+        if (index == null) {
+            index = add("I" + value, 3);
+            write(() -> poolOut.writeInt(value));
+        }
+        return index;
+    }
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        write(() -> {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(0);
+        });
+        fields.add(bytes.toByteArray());
+    }
+
+    /**
+     * Adds a method.
+     *
+     * @param access
+     *            The access flags.
+     * @param name
+     *            The method name.
+     * @param descriptor
+     *            The method descriptor.
+     * @param code
+     *            The code of the method.
+     */
+    void method(int access, String name, String descriptor, Code code) {
+        byte[] instructions = code.toByteArray();
+        if (instructions.length > 0xFFFF) {
+            throw new IllegalStateException("Method too large");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeIndex = utf8("Code");
+        write(() -> {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeIndex);
+            out.writeInt(12 + instructions.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(instructions.length);
+            out.write(instructions);
+            // no exception table and no attributes
+            out.writeShort(0);
+            out.writeShort(0);
+        });
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(() -> {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolOut.flush();
+            pool.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces) {
+                out.writeShort(i);
+            }
+            writeAll(out, fields);
+            writeAll(out, methods);
+            out.writeShort(0);
+        });
+        return bytes.toByteArray();
+    }
+
+    private static void writeAll(DataOutputStream out, List<byte[]> members)
+            throws IOException {
+        out.writeShort(members.size());
+        for (byte[] member : members) {
+            out.write(member);
+        }
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        int classIndex = classRef(owner);
+        int nameAndType = entry("N" + name + ' ' + descriptor, 12, utf8(name),
+                utf8(descriptor));
+        return entry(tag + owner + '.' + name + ' ' + descriptor, tag,
+                classIndex, nameAndType);
+    }
+
+    /**
+     * Adds a pool entry that refers to one or two other entries.
+     */
+    private int entry(String key, int tag, int first, int second) {
+        Integer index = entries.get(key);
+        if (index == null) {
+            index = add(key, tag);
+            write(() -> {
+                poolOut.writeShort(first);
+                if (second >= 0) {
+                    poolOut.writeShort(second);
+                }
+            });
+        }
+        return index;
+    }
+
+    private int add(String key, int tag) {
+        if (poolCount >= 0xFFFE) {
+            throw new IllegalStateException("Constant pool too large");
+        }
+        int index = poolCount++;
+        entries.put(key, index);
+        write(() -> poolOut.writeByte(tag));
+        return index;
+    }
+
+    private interface Output {
+        void write() throws IOException;
+    }
+
+    private static void write(Output output) {
+        try {
+            output.write();
+        } catch (IOException e) {
+            // a byte array stream does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The instructions of a method. Jumps go forward and are patched when
+     * their label is placed.
+     */
+    static final class Code {
+        private byte[] code = new byte[64];
+        private int length;
+        private final List<Integer> labels = new ArrayList<>();
+        private final List<int[]> pending = new ArrayList<>();
+        int maxStack;
+        int maxLocals;
+
+        void op(int opcode) {
+            ensure(1);
+            code[length++] = (byte) opcode;
+        }
+
+        void op(int opcode, int u2) {
+            ensure(3);
+            code[length++] = (byte) opcode;
+            code[length++] = (byte) (u2 >> 8);
+            code[length++] = (byte) u2;
+        }
+
+        void opByte(int opcode, int u1) {
+            ensure(2);
+            code[length++] = (byte) opcode;
+            code[length++] = (byte) u1;
+        }
+
+        /**
+         * Emits a jump to a label.
+         *
+         * @param opcode
+         *            The jump instruction.
+         * @param label
+         *            The label, see {@link #label()}.
+         */
+        void jump(int opcode, int label) {
+            pending.add(new int[] { label, length });
+            op(opcode, 0);
+        }
+
+        /**
+         * Creates a new label.
+         *
+         * @return The label.
+         */
+        int label() {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        /**
+         * Places a label at the next instruction.
+         *
+         * @param label
+         *            The label.
+         */
+        void place(int label) {
+            labels.set(label, length);
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            for (int[] jump : pending) {
+                int offset = labels.get(jump[0]) - jump[1];
+                if (offset < 3 || offset > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Jump out of range");
+                }
+                code[jump[1] + 1] = (byte) (offset >> 8);
+                code[jump[1] + 2] = (byte) offset;
+            }
+            byte[] b = new byte[length];
+            System.arraycopy(code, 0, b, 0, length);
+            return b;
+        }
+
+        private void ensure(int count) {
+            if (length + count > code.length) {
+                byte[] b = new byte[Math.max(code.length * 2, length + count)];
+                System.arraycopy(code, 0, b, 0, length);
+                code = b;
+            }
+        }
+    }
+}
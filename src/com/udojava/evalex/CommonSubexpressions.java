@@ -0,0 +1,142 @@
+package com.udojava.evalex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates structurally equal subtrees once. The first occurrence of a
+ * repeated subtree becomes a {@link Node.Shared} node, that keeps its value
+ * in a temporary of the program, and every later occurrence a
+ * {@link Node.Reused} node, that loads it.
+ * <br>
+ * Only subtrees of deterministic operators and functions are shared, and
+ * only if they use a variable: constant subtrees are folded already. The
+ * first occurrence must be evaluated unconditionally, not in a branch of an
+ * <code>IF</code> or the right operand of <code>&amp;&amp;</code> and
+ * <code>||</code>, so that the temporary is set whenever a later
+ * occurrence is reached. Occurrences are visited in evaluation order.
+ */
+final class CommonSubexpressions<T extends Number, C> {
+
+    /**
+     * The subtrees whose value is available at the current point.
+     */
+    private final Set<Node<T, C>> evaluated = new HashSet<>();
+
+    /**
+     * The subtrees that are evaluated again later.
+     */
+    private final Set<Node<T, C>> repeated = new HashSet<>();
+
+    /**
+     * The first occurrences of the repeated subtrees rewritten so far.
+     */
+    private final Map<Node<T, C>, Node.Shared<T, C>> shared = new HashMap<>();
+
+    /**
+     * Shares the repeated subtrees of a tree.
+     *
+     * @param root
+     *            The root node of the folded tree.
+     * @return The tree with shared subtrees, the root itself if nothing is
+     *         repeated.
+     */
+    Node<T, C> share(Node<T, C> root) {
+        find(root, false);
+        if (repeated.isEmpty()) {
+            return root;
+        }
+        return rewrite(root, false);
+    }
+
+    /**
+     * Finds the repeated subtrees.
+     *
+     * @param conditional
+     *            <code>true</code> if the node is not always evaluated.
+     * @return <code>true</code> if the subtree is deterministic.
+     */
+    private boolean find(Node<T, C> node, boolean conditional) {
+        if (evaluated.contains(node)) {
+            repeated.add(node);
+            return true;
+        }
+        boolean deterministic;
+        if (node instanceof Node.Operation) {
+            Node.Operation<T, C> operation = (Node.Operation<T, C>) node;
+            deterministic = find(operation.left, conditional);
+            deterministic &= find(operation.right,
+                    conditional || operation.operator.shortCircuit() != 0);
+            deterministic &= operation.operator.isDeterministic();
+        } else if (node instanceof Node.Unary) {
+            Node.Unary<T, C> unary = (Node.Unary<T, C>) node;
+            deterministic = find(unary.operand, conditional)
+                    && unary.operator.isDeterministic();
+        } else if (node instanceof Node.Call) {
+            Node.Call<T, C> call = (Node.Call<T, C>) node;
+            deterministic = call.function.isDeterministic();
+            List<Node<T, C>> parameters = call.parameters;
+            for (int i = 0; i < parameters.size(); i++) {
+                deterministic &= find(parameters.get(i),
+                        conditional || (i > 0 && call.function.isConditional()));
+            }
+        } else {
+            // literals, variables and folded constants are not worth it
+            return true;
+        }
+        if (deterministic && !node.constant && !conditional) {
+            evaluated.add(node);
+        }
+        return deterministic;
+    }
+
+    /**
+     * Replaces the repeated subtrees, in the same order as they were found.
+     */
+    private Node<T, C> rewrite(Node<T, C> node, boolean conditional) {
+        Node.Shared<T, C> first = shared.get(node);
+        if (first != null) {
+            return new Node.Reused<>(first);
+        }
+        Node<T, C> result = node;
+        if (node instanceof Node.Operation) {
+            Node.Operation<T, C> operation = (Node.Operation<T, C>) node;
+            Node<T, C> left = rewrite(operation.left, conditional);
+            Node<T, C> right = rewrite(operation.right,
+                    conditional || operation.operator.shortCircuit() != 0);
+            if (left != operation.left || right != operation.right) {
+                result = new Node.Operation<>(operation.operator, left, right);
+            }
+        } else if (node instanceof Node.Unary) {
+            Node.Unary<T, C> unary = (Node.Unary<T, C>) node;
+            Node<T, C> operand = rewrite(unary.operand, conditional);
+            if (operand != unary.operand) {
+                result = new Node.Unary<>(unary.operator, operand);
+            }
+        } else if (node instanceof Node.Call) {
+            Node.Call<T, C> call = (Node.Call<T, C>) node;
+            List<Node<T, C>> parameters = new ArrayList<>(call.parameters.size());
+            boolean changed = false;
+            for (int i = 0; i < call.parameters.size(); i++) {
+                Node<T, C> parameter = call.parameters.get(i);
+                Node<T, C> p = rewrite(parameter,
+                        conditional || (i > 0 && call.function.isConditional()));
+                changed |= p != parameter;
+                parameters.add(p);
+            }
+            if (changed) {
+                result = new Node.Call<>(call.function, call.name, parameters);
+            }
+        }
+        if (!conditional && repeated.contains(node)) {
+            first = new Node.Shared<>(result);
+            shared.put(node, first);
+            return first;
+        }
+        return result;
+    }
+}
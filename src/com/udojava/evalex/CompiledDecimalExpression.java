@@ -0,0 +1,734 @@
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.BiFunction;
+
+/**
+ * A compiled {@link BigDecimalEx} expression. Values are held as a
+ * <code>long</code> unscaled value and a scale, the built-in addition,
+ * subtraction, multiplication, comparison and boolean operators work on
+ * these directly without creating a {@link BigDecimal}, as do the built-in
+ * negation and logical not.
+ * <br>
+ * A scaled result is only used if it is exactly what the {@link BigDecimal}
+ * operation would return: the exact result must fit into a long and must not
+ * need more digits than the precision of the {@link MathContext}, so no
+ * rounding takes place. Otherwise, and for all other operators and functions,
+ * the values are widened to {@link BigDecimal} and the regular implementation
+ * is called, with the rounding mode of the context.
+ * <br>
+ * A {@link DecimalChain} is accumulated the same way, on scaled longs until
+ * the result is rounded.
+ * <br>
+ * A batch evaluation runs the program on columns of values, see
+ * {@link BatchEvaluator}.
+ */
+final class CompiledDecimalExpression extends CompiledExpression<BigDecimal, MathContext> {
+
+    /**
+     * The powers of ten that fit into a long.
+     */
+    static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1L;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10L;
+        }
+    }
+
+    /**
+     * Returned by {@link #compare(long, int, long, int)} if the values can
+     * not be aligned to the same scale.
+     */
+    static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+    /**
+     * The kind of each operator call site, <code>0</code> if the operator
+     * has no scaled implementation.
+     */
+    private final byte[] kinds;
+
+    /**
+     * The scaled constant pool for the most recently used context.
+     */
+    private volatile ScaledConstants scaledConstants;
+
+    /**
+     * The self-specializing tree that evaluates the expression, or
+     * <code>null</code> if the program is interpreted.
+     */
+    final DecimalNode tree;
+
+    /**
+     * Builds the tree once the expression is hot, or <code>null</code> if
+     * it is built eagerly.
+     */
+    private final TieredCompilation.Tier<DecimalNode> tier;
+
+    CompiledDecimalExpression(Program<BigDecimal, MathContext> program,
+            MathContext defaultContext, Object[] defaults,
+            BiFunction<String, MathContext, BigDecimal> parse,
+            BiFunction<BigDecimal, MathContext, BigDecimal> round, Backend backend,
+            TieredCompilation tiering) {
+        super(program, defaultContext, defaults, parse, round);
+        kinds = new byte[program.operators.length];
+        for (int i = 0; i < kinds.length; i++) {
+            if (program.operators[i] instanceof DecimalOperator) {
+                kinds[i] = ((DecimalOperator) program.operators[i]).kind;
+            }
+        }
+        if (backend != Backend.SPECIALIZING) {
+            tree = null;
+            tier = null;
+        } else if (tiering != null) {
+            tree = null;
+            tier = tiering.tier(() -> DecimalNode.build(program, kinds));
+        } else {
+            tree = DecimalNode.build(program, kinds);
+            tier = null;
+        }
+    }
+
+    private CompiledDecimalExpression(CompiledDecimalExpression template,
+            MathContext defaultContext, Object[] defaults,
+            Link<BigDecimal, MathContext>[] links) {
+        super(template, defaultContext, defaults, links);
+        kinds = template.kinds;
+        scaledConstants = template.scaledConstants;
+        // the copy shares the recorded value shapes
+        tree = template.tree;
+        tier = template.tier;
+    }
+
+    @Override
+    CompiledDecimalExpression relink(MathContext defaultContext, Object[] defaults,
+            Link<BigDecimal, MathContext>[] links) {
+        return new CompiledDecimalExpression(this, defaultContext, defaults, links);
+    }
+
+    @Override
+    public Backend getBackend() {
+        return tree != null || tier != null && tier.optimized != null
+                ? Backend.SPECIALIZING : Backend.INTERPRETER;
+    }
+
+    @Override
+    BigDecimal run(Object[] values, MathContext mc) {
+        ScaledConstants c = scaledConstants(mc);
+        DecimalNode root = tier != null ? tier.get() : tree;
+        if (root != null) {
+            return root.eval(new DecimalNode.Frame(mc, c, variables(values, mc),
+                    program.maxStack, program.temps));
+        }
+        int precision = mc.getPrecision();
+        String[] variables = program.variables;
+        // the variables are followed by the temporaries and the stack
+        int base = variables.length + program.temps;
+        int size = base + program.maxStack;
+        // a value is held as unscaled[i] and scales[i], unless wide[i] is set
+        long[] unscaled = new long[size];
+        int[] scales = new int[size];
+        BigDecimal[] wide = new BigDecimal[size];
+        for (int i = 0; i < variables.length; i++) {
+            BigDecimal value = (BigDecimal) values[i];
+            if (value == null) {
+                throw new ExpressionException("Unknown operator or function: "
+                        + variables[i]);
+            }
+            store(unscaled, scales, wide, i, round(i, value, mc));
+        }
+        byte[] opcodes = program.opcodes;
+        int[] operands = program.operands;
+        int sp = base;
+        // the parameters of function calls, materialized as BigDecimal
+        Object[] arguments = null;
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            int operand = operands[pc];
+            switch (opcodes[pc]) {
+            case Program.CONST:
+                unscaled[sp] = c.unscaled[operand];
+                scales[sp] = c.scales[operand];
+                wide[sp++] = c.wide[operand];
+                break;
+            case Program.LOAD:
+                unscaled[sp] = unscaled[operand];
+                scales[sp] = scales[operand];
+                wide[sp++] = wide[operand];
+                break;
+            case Program.OPERATOR:
+                sp--;
+                int a = sp - 1;
+                if (wide[a] != null || wide[sp] != null
+                        || !apply(kinds[operand], unscaled, scales, a, sp, precision)) {
+                    store(unscaled, scales, wide, a, program.operators[operand].eval(
+                            value(unscaled, scales, wide, a),
+                            value(unscaled, scales, wide, sp), mc));
+                }
+                break;
+            case Program.UNARY:
+                UnaryOperator<BigDecimal, MathContext> unary = program.unaryOperators[operand];
+                if (wide[sp - 1] != null
+                        || !apply(unary.kind, unscaled, scales, sp - 1, precision)) {
+                    store(unscaled, scales, wide, sp - 1,
+                            unary.eval(value(unscaled, scales, wide, sp - 1), mc));
+                }
+                break;
+            case Program.STORE:
+                int temp = variables.length + operand;
+                unscaled[temp] = unscaled[sp - 1];
+                scales[temp] = scales[sp - 1];
+                wide[temp] = wide[sp - 1];
+                break;
+            case Program.TEMP:
+                temp = variables.length + operand;
+                unscaled[sp] = unscaled[temp];
+                scales[sp] = scales[temp];
+                wide[sp++] = wide[temp];
+                break;
+            case Program.FUNCTION:
+                int argc = program.argCounts[operand];
+                sp -= argc;
+                if (program.functions[operand] instanceof DecimalChain
+                        && chain(((DecimalChain) program.functions[operand]).kind,
+                                unscaled, scales, wide, sp, 1, argc, mc)) {
+                    sp++;
+                    break;
+                }
+                if (arguments == null) {
+                    arguments = new Object[program.maxStack];
+                }
+                for (int i = 0; i < argc; i++) {
+                    arguments[i] = value(unscaled, scales, wide, sp + i);
+                }
+                store(unscaled, scales, wide, sp++,
+                        program.functions[operand].call(arguments, 0, argc, mc));
+                break;
+            case Program.FOLD:
+                int index = program.literals.length + operand;
+                if (c.folded[index]) {
+                    unscaled[sp] = c.unscaled[index];
+                    scales[sp] = c.scales[index];
+                    wide[sp++] = c.wide[index];
+                    pc = program.foldEnds[operand] - 1;
+                }
+                break;
+            case Program.JUMP:
+                pc = program.jumpTargets[operand] - 1;
+                break;
+            case Program.BRANCH:
+                sp--;
+                if (!isTrue(unscaled, scales, wide, sp)) {
+                    pc = program.jumpTargets[operand] - 1;
+                }
+                break;
+            default:
+                // the left operand of && or || decides the result
+                boolean left = isTrue(unscaled, scales, wide, sp - 1);
+                if (left == (opcodes[pc] == Program.OR)) {
+                    unscaled[sp - 1] = left ? 1L : 0L;
+                    scales[sp - 1] = 0;
+                    wide[sp - 1] = null;
+                    pc = program.jumpTargets[operand] - 1;
+                }
+            }
+        }
+        return value(unscaled, scales, wide, base);
+    }
+
+    @Override
+    void runBatch(BigDecimal[][] columns, BigDecimal[] result, MathContext mc,
+            int from, int to) {
+        new Batch(columns, result, mc).eval(from, to);
+    }
+
+    /**
+     * Gets the rounded variable values.
+     */
+    private BigDecimal[] variables(Object[] values, MathContext mc) {
+        String[] variables = program.variables;
+        BigDecimal[] rounded = new BigDecimal[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            BigDecimal value = (BigDecimal) values[i];
+            if (value == null) {
+                throw new ExpressionException("Unknown operator or function: "
+                        + variables[i]);
+            }
+            rounded[i] = round(i, value, mc);
+        }
+        return rounded;
+    }
+
+    /**
+     * Applies an operator to two scaled values and stores the result in
+     * place of the first one.
+     *
+     * @return <code>false</code> if the operator has no scaled implementation
+     *         or the result is not exactly representable.
+     */
+    private static boolean apply(byte kind, long[] unscaled, int[] scales,
+            int a, int b, int precision) {
+        long u1 = unscaled[a];
+        int s1 = scales[a];
+        long u2 = unscaled[b];
+        int s2 = scales[b];
+        int cmp;
+        switch (kind) {
+        case DecimalOperator.ADD:
+            return add(unscaled, scales, a, u1, s1, u2, s2, precision);
+        case DecimalOperator.SUBTRACT:
+            return u2 != Long.MIN_VALUE
+                    && add(unscaled, scales, a, u1, s1, -u2, s2, precision);
+        case DecimalOperator.MULTIPLY:
+            return multiply(unscaled, scales, a, u1, s1, u2, s2, precision);
+        case DecimalOperator.AND:
+            return bool(unscaled, scales, a, isTrue(u1, s1) && isTrue(u2, s2));
+        case DecimalOperator.OR:
+            return bool(unscaled, scales, a, isTrue(u1, s1) || isTrue(u2, s2));
+        case DecimalOperator.GREATER:
+            cmp = compare(u1, s1, u2, s2);
+            return cmp != INCOMPARABLE && bool(unscaled, scales, a, cmp > 0);
+        case DecimalOperator.GREATER_EQUAL:
+            cmp = compare(u1, s1, u2, s2);
+            return cmp != INCOMPARABLE && bool(unscaled, scales, a, cmp >= 0);
+        case DecimalOperator.LESS:
+            cmp = compare(u1, s1, u2, s2);
+            return cmp != INCOMPARABLE && bool(unscaled, scales, a, cmp < 0);
+        case DecimalOperator.LESS_EQUAL:
+            cmp = compare(u1, s1, u2, s2);
+            return cmp != INCOMPARABLE && bool(unscaled, scales, a, cmp <= 0);
+        case DecimalOperator.EQUAL:
+            cmp = compare(u1, s1, u2, s2);
+            return cmp != INCOMPARABLE && bool(unscaled, scales, a, cmp == 0);
+        case DecimalOperator.NOT_EQUAL:
+            cmp = compare(u1, s1, u2, s2);
+            return cmp != INCOMPARABLE && bool(unscaled, scales, a, cmp != 0);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Applies a unary operator to a scaled value in place.
+     *
+     * @return <code>false</code> if the operator has no scaled implementation
+     *         or the result is not exactly representable.
+     */
+    private static boolean apply(byte kind, long[] unscaled, int[] scales,
+            int a, int precision) {
+        switch (kind) {
+        case UnaryOperator.NEGATE:
+            // BigDecimal.negate(MathContext) only rounds a value with more
+            // digits than the precision
+            if (!fits(unscaled[a], precision)) {
+                return false;
+            }
+            unscaled[a] = -unscaled[a];
+            return true;
+        case UnaryOperator.NOT:
+            return bool(unscaled, scales, a, unscaled[a] == 0L);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Applies a {@link DecimalChain} to scaled values and stores the result
+     * in place of the first one. The values are combined exactly and the
+     * result is rounded once, the same as
+     * {@link DecimalChain#eval(java.util.List, MathContext)}.
+     *
+     * @param stride
+     *            The distance between the values.
+     * @return <code>false</code> if a value or the exact result does not
+     *         fit into a scaled long.
+     */
+    private static boolean chain(byte kind, long[] unscaled, int[] scales,
+            BigDecimal[] wide, int a, int stride, int count, MathContext mc) {
+        if (wide[a] != null) {
+            return false;
+        }
+        long result = unscaled[a];
+        long scale = scales[a];
+        for (int i = a + stride; i < a + count * stride; i += stride) {
+            if (wide[i] != null) {
+                return false;
+            }
+            if (kind == DecimalOperator.ADD) {
+                result = DecimalChain.add(result, (int) scale, unscaled[i], scales[i]);
+                scale = Math.max(scale, scales[i]);
+            } else {
+                result = multiplyExact(result, unscaled[i]);
+                scale += scales[i];
+            }
+            if (result == Long.MIN_VALUE || scale != (int) scale) {
+                return false;
+            }
+        }
+        if (fits(result, mc.getPrecision())) {
+            unscaled[a] = result;
+            scales[a] = (int) scale;
+        } else {
+            store(unscaled, scales, wide, a, BigDecimal.valueOf(result, (int) scale).round(mc));
+        }
+        return true;
+    }
+
+    /**
+     * The exact sum has the larger of both scales. If it fits into the
+     * precision, <code>BigDecimal.add(BigDecimal, MathContext)</code> returns
+     * exactly this value, including the case that an operand is zero.
+     */
+    private static boolean add(long[] unscaled, int[] scales, int a,
+            long u1, int s1, long u2, int s2, int precision) {
+        long diff = (long) s1 - s2;
+        if (diff > 0) {
+            if (diff >= POWERS_OF_TEN.length
+                    || (u2 = multiplyExact(u2, POWERS_OF_TEN[(int) diff])) == Long.MIN_VALUE) {
+                return false;
+            }
+        } else if (diff < 0) {
+            if (-diff >= POWERS_OF_TEN.length
+                    || (u1 = multiplyExact(u1, POWERS_OF_TEN[(int) -diff])) == Long.MIN_VALUE) {
+                return false;
+            }
+            s1 = s2;
+        }
+        long sum = u1 + u2;
+        // overflow if both operands have the same sign and the sum has not
+        if (((u1 ^ sum) & (u2 ^ sum)) < 0 || !fits(sum, precision)) {
+            return false;
+        }
+        unscaled[a] = sum;
+        scales[a] = s1;
+        return true;
+    }
+
+    /**
+     * The exact product has the sum of both scales, like the result of
+     * <code>BigDecimal.multiply(BigDecimal, MathContext)</code> if no
+     * rounding is needed.
+     */
+    private static boolean multiply(long[] unscaled, int[] scales, int a,
+            long u1, int s1, long u2, int s2, int precision) {
+        long scale = (long) s1 + s2;
+        long product = multiplyExact(u1, u2);
+        if (scale != (int) scale || product == Long.MIN_VALUE
+                || !fits(product, precision)) {
+            return false;
+        }
+        unscaled[a] = product;
+        scales[a] = (int) scale;
+        return true;
+    }
+
+    /**
+     * Compares two scaled values.
+     *
+     * @return The signum of the difference, or {@link #INCOMPARABLE} if the
+     *         values can not be aligned to the same scale.
+     */
+    static int compare(long u1, int s1, long u2, int s2) {
+        int sign1 = Long.signum(u1);
+        int sign2 = Long.signum(u2);
+        if (sign1 != sign2) {
+            return sign1 > sign2 ? 1 : -1;
+        }
+        long diff = (long) s1 - s2;
+        if (diff > 0) {
+            if (diff >= POWERS_OF_TEN.length
+                    || (u2 = multiplyExact(u2, POWERS_OF_TEN[(int) diff])) == Long.MIN_VALUE) {
+                return INCOMPARABLE;
+            }
+        } else if (diff < 0) {
+            if (-diff >= POWERS_OF_TEN.length
+                    || (u1 = multiplyExact(u1, POWERS_OF_TEN[(int) -diff])) == Long.MIN_VALUE) {
+                return INCOMPARABLE;
+            }
+        }
+        return Long.compare(u1, u2);
+    }
+
+    /**
+     * Like the <code>BigDecimal</code> operators, any value but a zero with
+     * scale zero is true.
+     */
+    static boolean isTrue(long unscaled, int scale) {
+        return unscaled != 0L || scale != 0;
+    }
+
+    /**
+     * A wide value is never zero, it has more digits than a long.
+     */
+    private static boolean isTrue(long[] unscaled, int[] scales,
+            BigDecimal[] wide, int i) {
+        return wide[i] != null || isTrue(unscaled[i], scales[i]);
+    }
+
+    private static boolean bool(long[] unscaled, int[] scales, int a, boolean value) {
+        unscaled[a] = value ? 1L : 0L;
+        scales[a] = 0;
+        return true;
+    }
+
+    /**
+     * Multiplies two longs.
+     *
+     * @return The product or <code>Long.MIN_VALUE</code> on overflow, which is
+     *         never a valid unscaled value here as it can't be negated.
+     */
+    static long multiplyExact(long x, long y) {
+        long r = x * y;
+        long ax = Math.abs(x);
+        long ay = Math.abs(y);
+        if (((ax | ay) >>> 31 != 0)
+                && ((y != 0 && r / y != x) || (x == Long.MIN_VALUE && y == -1))) {
+            return Long.MIN_VALUE;
+        }
+        return r;
+    }
+
+    /**
+     * Checks that an unscaled value has no more digits than the precision.
+     */
+    static boolean fits(long value, int precision) {
+        if (value == Long.MIN_VALUE) {
+            return false;
+        }
+        if (precision == 0 || precision >= POWERS_OF_TEN.length) {
+            return true;
+        }
+        return Math.abs(value) < POWERS_OF_TEN[precision];
+    }
+
+    private static BigDecimal value(long[] unscaled, int[] scales,
+            BigDecimal[] wide, int i) {
+        BigDecimal value = wide[i];
+        return value != null ? value : BigDecimal.valueOf(unscaled[i], scales[i]);
+    }
+
+    private static void store(long[] unscaled, int[] scales, BigDecimal[] wide,
+            int i, BigDecimal value) {
+        if (value.precision() < POWERS_OF_TEN.length) {
+            unscaled[i] = value.unscaledValue().longValue();
+            scales[i] = value.scale();
+            wide[i] = null;
+        } else {
+            wide[i] = value;
+        }
+    }
+
+    /**
+     * Gets the scaled literal values for a context, cached like the
+     * constant pool of the expression.
+     */
+    private ScaledConstants scaledConstants(MathContext mc) {
+        ScaledConstants c = scaledConstants;
+        if (c == null || !Objects.equals(c.mc, mc)) {
+            // the constant pool is created as Number[]
+            Number[] values = constants(mc);
+            c = new ScaledConstants(mc,
+                    Arrays.copyOf(values, values.length, BigDecimal[].class));
+            for (int i = 0; i < values.length; i++) {
+                // a folded constant that could not be calculated is null
+                c.folded[i] = values[i] != null;
+                if (c.folded[i]) {
+                    store(c.unscaled, c.scales, c.wide, i, (BigDecimal) values[i]);
+                }
+            }
+            scaledConstants = c;
+        }
+        return c;
+    }
+
+    /**
+     * The scaled constant values for a context.
+     */
+    static final class ScaledConstants {
+        final MathContext mc;
+        final BigDecimal[] values;
+        final long[] unscaled;
+        final int[] scales;
+        final BigDecimal[] wide;
+        final boolean[] folded;
+
+        ScaledConstants(MathContext mc, BigDecimal[] values) {
+            int length = values.length;
+            this.mc = mc;
+            this.values = values;
+            this.unscaled = new long[length];
+            this.scales = new int[length];
+            this.wide = new BigDecimal[length];
+            this.folded = new boolean[length];
+        }
+    }
+
+    /**
+     * Evaluates the program on columns of decimals. The values of a stack
+     * position are held like those of {@link #run(Object[], MathContext)},
+     * one after the other for the rows of a chunk.
+     */
+    private final class Batch extends BatchEvaluator {
+        private final BigDecimal[][] columns;
+        private final BigDecimal[] result;
+        private final MathContext mc;
+        private final ScaledConstants c;
+
+        /**
+         * The values of the stack positions, followed by the temporaries and
+         * the kept values of the then branches.
+         */
+        private final long[] unscaled;
+        private final int[] scales;
+        private final BigDecimal[] wide;
+        private final int temps;
+        private final int saved;
+
+        /**
+         * The parameters of a function call for one row.
+         */
+        private final Object[] arguments;
+
+        Batch(BigDecimal[][] columns, BigDecimal[] result, MathContext mc) {
+            super(program);
+            this.columns = columns;
+            this.result = result;
+            this.mc = mc;
+            c = scaledConstants(mc);
+            temps = program.maxStack;
+            saved = temps + program.temps;
+            int size = (saved + maxDepth) * CHUNK;
+            unscaled = new long[size];
+            scales = new int[size];
+            wide = new BigDecimal[size];
+            arguments = new Object[program.maxStack];
+        }
+
+        @Override
+        void constant(int index, int position) {
+            int a = position * CHUNK;
+            Arrays.fill(unscaled, a, a + rows, c.unscaled[index]);
+            Arrays.fill(scales, a, a + rows, c.scales[index]);
+            Arrays.fill(wide, a, a + rows, c.wide[index]);
+        }
+
+        @Override
+        void load(int slot, int position) {
+            BigDecimal[] column = columns[slot];
+            int a = position * CHUNK;
+            for (int i = 0; i < rows; i++) {
+                BigDecimal value = column != null ? column[first + i]
+                        : (BigDecimal) defaultValue(slot);
+                if (value == null) {
+                    throw new ExpressionException("Unknown operator or function: "
+                            + program.variables[slot]);
+                }
+                CompiledDecimalExpression.store(unscaled, scales, wide, a + i,
+                        round(slot, value, mc));
+            }
+        }
+
+        @Override
+        void operator(int site, int position) {
+            byte kind = kinds[site];
+            Operator<BigDecimal, MathContext> operator = program.operators[site];
+            int precision = mc.getPrecision();
+            for (int a = position * CHUNK, b = a + CHUNK, end = a + rows; a < end; a++, b++) {
+                // the built-in operators can be applied to any row
+                if (kind == 0 ? isActive(a - position * CHUNK)
+                        : wide[a] != null || wide[b] != null
+                                || !apply(kind, unscaled, scales, a, b, precision)) {
+                    CompiledDecimalExpression.store(unscaled, scales, wide, a, operator.eval(
+                            value(unscaled, scales, wide, a),
+                            value(unscaled, scales, wide, b), mc));
+                }
+            }
+        }
+
+        @Override
+        void unary(int site, int position) {
+            UnaryOperator<BigDecimal, MathContext> unary = program.unaryOperators[site];
+            int precision = mc.getPrecision();
+            for (int i = 0, a = position * CHUNK; i < rows; i++, a++) {
+                if (unary.kind == 0 ? isActive(i)
+                        : wide[a] != null || !apply(unary.kind, unscaled, scales, a, precision)) {
+                    CompiledDecimalExpression.store(unscaled, scales, wide, a,
+                            unary.eval(value(unscaled, scales, wide, a), mc));
+                }
+            }
+        }
+
+        @Override
+        void function(int site, int position, int argc) {
+            Function<BigDecimal, MathContext> function = program.functions[site];
+            for (int i = 0, a = position * CHUNK; i < rows; i++, a++) {
+                if (!isActive(i) || function instanceof DecimalChain
+                        && chain(((DecimalChain) function).kind, unscaled, scales, wide,
+                                a, CHUNK, argc, mc)) {
+                    continue;
+                }
+                for (int p = 0; p < argc; p++) {
+                    arguments[p] = value(unscaled, scales, wide, a + p * CHUNK);
+                }
+                CompiledDecimalExpression.store(unscaled, scales, wide, a,
+                        function.call(arguments, 0, argc, mc));
+            }
+        }
+
+        @Override
+        void store(int temp, int position) {
+            copy(position, temps + temp);
+        }
+
+        @Override
+        void temp(int temp, int position) {
+            copy(temps + temp, position);
+        }
+
+        private void copy(int from, int to) {
+            System.arraycopy(unscaled, from * CHUNK, unscaled, to * CHUNK, rows);
+            System.arraycopy(scales, from * CHUNK, scales, to * CHUNK, rows);
+            System.arraycopy(wide, from * CHUNK, wide, to * CHUNK, rows);
+        }
+
+        @Override
+        boolean isFolded(int fold) {
+            return c.folded[program.literals.length + fold];
+        }
+
+        @Override
+        void truth(int position, boolean[] truth) {
+            for (int i = 0, a = position * CHUNK; i < rows; i++, a++) {
+                truth[i] = isTrue(unscaled, scales, wide, a);
+            }
+        }
+
+        @Override
+        void save(int position, int depth) {
+            copy(position, saved + depth);
+        }
+
+        @Override
+        void blend(int position, int depth, boolean[] condition) {
+            int a = position * CHUNK;
+            int then = (saved + depth) * CHUNK;
+            for (int i = 0; i < rows; i++) {
+                if (condition[i]) {
+                    unscaled[a + i] = unscaled[then + i];
+                    scales[a + i] = scales[then + i];
+                    wide[a + i] = wide[then + i];
+                }
+            }
+        }
+
+        @Override
+        void result() {
+            for (int i = 0; i < rows; i++) {
+                result[first + i] = value(unscaled, scales, wide, i);
+            }
+        }
+    }
+}
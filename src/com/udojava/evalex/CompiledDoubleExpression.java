@@ -0,0 +1,549 @@
+package com.udojava.evalex;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A compiled {@link DoubleEx} expression. It runs the program on a primitive
+ * <code>double</code> stack and calls {@link DoubleOperator} and
+ * {@link DoubleFunction} implementations directly, so intermediate values are
+ * never boxed. Operators and functions that only implement the generic
+ * interface are adapted, they still work but box their operands.
+ * <br>
+ * {@link #evalBatch(Map, double[])} evaluates the expression for many rows
+ * at once, on columns of values.
+ */
+public final class CompiledDoubleExpression extends CompiledExpression<Double, Void> {
+
+    /**
+     * The constant pool.
+     */
+    private final double[] constants;
+
+    /**
+     * The instruction following each folded constant, <code>-1</code> if
+     * the constant could not be calculated.
+     */
+    private final int[] foldEnds;
+
+    /**
+     * The operators, indexed by call site.
+     */
+    private final DoubleOperator[] operators;
+
+    /**
+     * The functions, indexed by call site.
+     */
+    private final DoubleFunction[] functions;
+
+    /**
+     * The generated class or method handles that run the program, or
+     * <code>null</code> if the program is interpreted.
+     */
+    private final ToDoubleFunction<double[]> generated;
+
+    /**
+     * Creates the generated form once the expression is hot, or
+     * <code>null</code> if it is created eagerly.
+     */
+    private final TieredCompilation.Tier<ToDoubleFunction<double[]>> tier;
+
+    /**
+     * The backend that runs the program.
+     */
+    private final Backend backend;
+
+    CompiledDoubleExpression(Program<Double, Void> program, Object[] defaults,
+            BiFunction<String, Void, Double> parse,
+            BiFunction<Double, Void, Double> round, Backend backend,
+            TieredCompilation tiering) {
+        super(program, null, defaults, parse, round);
+        Number[] pool = constants(null);
+        constants = new double[pool.length];
+        foldEnds = new int[program.foldEnds.length];
+        for (int i = 0; i < constants.length; i++) {
+            if (pool[i] != null) {
+                constants[i] = pool[i].doubleValue();
+            }
+        }
+        for (int i = 0; i < foldEnds.length; i++) {
+            foldEnds[i] = pool[program.literals.length + i] != null
+                    ? program.foldEnds[i] : -1;
+        }
+        operators = new DoubleOperator[program.operators.length];
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = primitive(program.operators[i]);
+        }
+        functions = new DoubleFunction[program.functions.length];
+        for (int i = 0; i < functions.length; i++) {
+            functions[i] = primitive(program.functions[i]);
+        }
+        if (tiering != null && (backend == Backend.BYTECODE
+                || backend == Backend.METHOD_HANDLES)) {
+            generated = null;
+            tier = tiering.tier(() -> generate(backend));
+            this.backend = backend;
+        } else {
+            generated = backend == Backend.INTERPRETER ? null : generate(backend);
+            tier = null;
+            this.backend = generated == null ? Backend.INTERPRETER : backend;
+        }
+    }
+
+    private CompiledDoubleExpression(CompiledDoubleExpression template,
+            Object[] defaults, Link<Double, Void>[] links) {
+        super(template, null, defaults, links);
+        constants = template.constants;
+        foldEnds = template.foldEnds;
+        operators = template.operators;
+        functions = template.functions;
+        generated = template.generated;
+        tier = template.tier;
+        backend = template.backend;
+    }
+
+    @Override
+    CompiledDoubleExpression relink(Void defaultContext, Object[] defaults,
+            Link<Double, Void>[] links) {
+        return new CompiledDoubleExpression(this, defaults, links);
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param values
+     *            The variable values, indexed by slot.
+     * @return The result of the expression.
+     */
+    public double eval(double[] values) {
+        checkSlotCount(values.length);
+        return execute(link(values));
+    }
+
+    /**
+     * Evaluates the expression for many rows at once. Each instruction of
+     * the program is applied to a chunk of rows before the next one, in
+     * simple loops over arrays, so the interpretation overhead is paid per
+     * chunk instead of per row. The results are the same as those of
+     * {@link #eval(double[])} for each row, the backend of the expression is
+     * not used.
+     *
+     * @param columns
+     *            The variable values by variable name, an array with one
+     *            value per row. A variable without a column has the value it
+     *            had when the expression was compiled for all rows.
+     * @param result
+     *            The array for the results, one per row.
+     */
+    public void evalBatch(Map<String, double[]> columns, double[] result) {
+        evalBatch(bySlot(columns), result);
+    }
+
+    /**
+     * Evaluates the expression for many rows at once, see
+     * {@link #evalBatch(Map, double[])}.
+     *
+     * @param columns
+     *            The variable values, indexed by slot, an array with one
+     *            value per row or <code>null</code> for the value the
+     *            variable had when the expression was compiled.
+     * @param result
+     *            The array for the results, one per row.
+     */
+    public void evalBatch(double[][] columns, double[] result) {
+        checkColumns(columns, result.length);
+        new Batch(link(columns, result.length, null), result).eval(0, result.length);
+    }
+
+    /**
+     * Evaluates the expression for many rows at once on all available
+     * processors, see {@link #evalBatchParallel(double[][], double[], Executor)}.
+     *
+     * @param columns
+     *            The variable values by variable name, an array with one
+     *            value per row. A variable without a column has the value it
+     *            had when the expression was compiled for all rows.
+     * @param result
+     *            The array for the results, one per row.
+     */
+    public void evalBatchParallel(Map<String, double[]> columns, double[] result) {
+        evalBatchParallel(bySlot(columns), result, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluates the expression for many rows at once on all available
+     * processors. The rows are split into ranges that are evaluated like
+     * {@link #evalBatch(double[][], double[])} by the calling thread and
+     * helpers run by the executor, each with buffers of its own, see
+     * {@link CompiledExpression#evalBatchParallel(Number[][], Number[], Object, Executor)}.
+     *
+     * @param columns
+     *            The variable values, indexed by slot, an array with one
+     *            value per row or <code>null</code> for the value the
+     *            variable had when the expression was compiled.
+     * @param result
+     *            The array for the results, one per row.
+     * @param executor
+     *            Runs the helper threads, e.g. a <code>ForkJoinPool</code>.
+     */
+    public void evalBatchParallel(double[][] columns, double[] result, Executor executor) {
+        checkColumns(columns, result.length);
+        double[][] linked = link(columns, result.length, executor);
+        ParallelBatch.run(result.length, executor,
+                (from, to) -> new Batch(linked, result).eval(from, to));
+    }
+
+    /**
+     * Calculates the values of the linked subexpressions, see
+     * {@link CompiledExpression#link(Object[], Object)}.
+     */
+    private double[] link(double[] values) {
+        if (!isLinked()) {
+            return values;
+        }
+        double[] linked = values.clone();
+        for (Link<Double, Void> link : links) {
+            double[] arguments = new double[link.arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = linked[link.arguments[i]];
+            }
+            linked[link.slot] = ((CompiledDoubleExpression) link.target).execute(arguments);
+        }
+        return linked;
+    }
+
+    /**
+     * Calculates the columns of the linked subexpressions for a batch.
+     */
+    private double[][] link(double[][] columns, int rows, Executor executor) {
+        if (!isLinked()) {
+            return columns;
+        }
+        double[][] linked = columns.clone();
+        for (Link<Double, Void> link : links) {
+            double[][] arguments = new double[link.arguments.length][];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = linked[link.arguments[i]];
+            }
+            double[] column = new double[rows];
+            CompiledDoubleExpression target = (CompiledDoubleExpression) link.target;
+            if (executor == null) {
+                target.evalBatch(arguments, column);
+            } else {
+                target.evalBatchParallel(arguments, column, executor);
+            }
+            linked[link.slot] = column;
+        }
+        return linked;
+    }
+
+    private double[][] bySlot(Map<String, double[]> columns) {
+        double[][] bySlot = new double[program.variables.length][];
+        for (int i = 0; i < bySlot.length; i++) {
+            bySlot[i] = columns.get(program.variables[i]);
+        }
+        return bySlot;
+    }
+
+    @Override
+    Double run(Object[] values, Void ctx) {
+        double[] v = new double[values.length];
+        for (int i = 0; i < v.length; i++) {
+            if (values[i] == null) {
+                throw new ExpressionException("Unknown operator or function: "
+                        + program.variables[i]);
+            }
+            v[i] = (Double) values[i];
+        }
+        return execute(v);
+    }
+
+    @Override
+    public Backend getBackend() {
+        return tier != null && tier.optimized == null ? Backend.INTERPRETER : backend;
+    }
+
+    /**
+     * Generates the class or the method handles for the program.
+     *
+     * @param backend
+     *            The backend.
+     * @return The generated form, or <code>null</code> if the backend is not
+     *         supported, the runtime does not allow to create it or the
+     *         program is too large.
+     */
+    private ToDoubleFunction<double[]> generate(Backend backend) {
+        try {
+            if (backend == Backend.METHOD_HANDLES) {
+                return HandleCompiler.compile(program, constants, foldEnds,
+                        operators, functions);
+            }
+            if (backend == Backend.BYTECODE) {
+                return DoubleClassGenerator.generate(program, constants, foldEnds,
+                        operators, functions);
+            }
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private double execute(double[] values) {
+        ToDoubleFunction<double[]> g = tier != null ? tier.get() : generated;
+        return g != null ? g.applyAsDouble(values) : interpret(values);
+    }
+
+    private double interpret(double[] values) {
+        byte[] opcodes = program.opcodes;
+        int[] operands = program.operands;
+        // the temporaries follow the stack
+        double[] stack = new double[program.maxStack + program.temps];
+        int sp = 0;
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            int operand = operands[pc];
+            switch (opcodes[pc]) {
+            case Program.CONST:
+                stack[sp++] = constants[operand];
+                break;
+            case Program.LOAD:
+                stack[sp++] = values[operand];
+                break;
+            case Program.OPERATOR:
+                sp--;
+                stack[sp - 1] = operators[operand].applyAsDouble(stack[sp - 1],
+                        stack[sp]);
+                break;
+            case Program.UNARY:
+                stack[sp - 1] = apply(program.unaryOperators[operand], stack[sp - 1]);
+                break;
+            case Program.STORE:
+                stack[program.maxStack + operand] = stack[sp - 1];
+                break;
+            case Program.TEMP:
+                stack[sp++] = stack[program.maxStack + operand];
+                break;
+            case Program.FUNCTION:
+                int argc = program.argCounts[operand];
+                sp -= argc;
+                stack[sp] = functions[operand].applyAsDouble(stack, sp, argc);
+                sp++;
+                break;
+            case Program.FOLD:
+                if (foldEnds[operand] >= 0) {
+                    stack[sp++] = constants[program.literals.length + operand];
+                    pc = foldEnds[operand] - 1;
+                }
+                break;
+            case Program.JUMP:
+                pc = program.jumpTargets[operand] - 1;
+                break;
+            case Program.BRANCH:
+                if (!DoubleEx.isTrue(stack[--sp])) {
+                    pc = program.jumpTargets[operand] - 1;
+                }
+                break;
+            case Program.AND:
+                if (!DoubleEx.isTrue(stack[sp - 1])) {
+                    stack[sp - 1] = 0D;
+                    pc = program.jumpTargets[operand] - 1;
+                }
+                break;
+            default:
+                if (DoubleEx.isTrue(stack[sp - 1])) {
+                    stack[sp - 1] = 1D;
+                    pc = program.jumpTargets[operand] - 1;
+                }
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Applies a unary operator, the built-in ones without boxing.
+     *
+     * @param operator
+     *            The operator.
+     * @param value
+     *            The operand.
+     * @return The result of the operation.
+     */
+    static double apply(UnaryOperator<Double, Void> operator, double value) {
+        switch (operator.kind) {
+        case UnaryOperator.NEGATE:
+            return -value;
+        case UnaryOperator.NOT:
+            return DoubleEx.isTrue(value) ? 0D : 1D;
+        default:
+            return operator.eval(value, null);
+        }
+    }
+
+    private static DoubleOperator primitive(final Operator<Double, Void> operator) {
+        if (operator instanceof DoubleOperator) {
+            return (DoubleOperator) operator;
+        }
+        return new DoubleOperator(operator.getOper(), operator.getPrecedence(),
+                operator.isLeftAssoc()) {
+            @Override
+            public double applyAsDouble(double v1, double v2) {
+                return operator.eval(v1, v2, null);
+            }
+        };
+    }
+
+    private static DoubleFunction primitive(final Function<Double, Void> function) {
+        if (function instanceof DoubleFunction) {
+            return (DoubleFunction) function;
+        }
+        return new DoubleFunction(function.getName(), function.getNumParams()) {
+            @Override
+            public double applyAsDouble(double[] parameters, int offset, int count) {
+                Object[] boxed = new Object[count];
+                for (int i = 0; i < count; i++) {
+                    boxed[i] = parameters[offset + i];
+                }
+                return function.call(boxed, 0, count, null);
+            }
+        };
+    }
+
+    /**
+     * Evaluates the program on columns of doubles.
+     */
+    private final class Batch extends BatchEvaluator {
+        private final double[][] columns;
+        private final double[] result;
+        private final DoubleKernels kernels = DoubleKernels.INSTANCE;
+
+        /**
+         * The values of the stack positions, followed by the temporaries and
+         * the kept values of the then branches.
+         */
+        private final double[][] values;
+        private final int temps;
+        private final int saved;
+
+        /**
+         * The parameters of a function call for one row.
+         */
+        private final double[] arguments;
+
+        Batch(double[][] columns, double[] result) {
+            super(program);
+            this.columns = columns;
+            this.result = result;
+            temps = program.maxStack;
+            saved = temps + program.temps;
+            values = new double[saved + maxDepth][CHUNK];
+            int maxArgs = 0;
+            for (int argc : program.argCounts) {
+                maxArgs = Math.max(maxArgs, argc);
+            }
+            arguments = new double[maxArgs];
+        }
+
+        @Override
+        void constant(int index, int position) {
+            Arrays.fill(values[position], 0, rows, constants[index]);
+        }
+
+        @Override
+        void load(int slot, int position) {
+            double[] column = columns[slot];
+            if (column == null) {
+                Arrays.fill(values[position], 0, rows, (Double) defaultValue(slot));
+            } else {
+                System.arraycopy(column, first, values[position], 0, rows);
+            }
+        }
+
+        @Override
+        void operator(int site, int position) {
+            double[] a = values[position];
+            double[] b = values[position + 1];
+            DoubleOperator operator = operators[site];
+            if (!kernels.apply(operator.kind, a, b, 0, rows)) {
+                for (int i = 0; i < rows; i++) {
+                    if (isActive(i)) {
+                        a[i] = operator.applyAsDouble(a[i], b[i]);
+                    }
+                }
+            }
+        }
+
+        @Override
+        void unary(int site, int position) {
+            double[] a = values[position];
+            UnaryOperator<Double, Void> operator = program.unaryOperators[site];
+            if (operator.kind == UnaryOperator.NEGATE) {
+                kernels.negate(a, 0, rows);
+            } else {
+                for (int i = 0; i < rows; i++) {
+                    if (operator.kind != 0 || isActive(i)) {
+                        a[i] = apply(operator, a[i]);
+                    }
+                }
+            }
+        }
+
+        @Override
+        void function(int site, int position, int argc) {
+            double[] a = values[position];
+            DoubleFunction function = functions[site];
+            if (function instanceof DoubleChain) {
+                byte kind = ((DoubleChain) function).operator.kind;
+                for (int p = 1; p < argc; p++) {
+                    kernels.apply(kind, a, values[position + p], 0, rows);
+                }
+                return;
+            }
+            for (int i = 0; i < rows; i++) {
+                if (isActive(i)) {
+                    for (int p = 0; p < argc; p++) {
+                        arguments[p] = values[position + p][i];
+                    }
+                    a[i] = function.applyAsDouble(arguments, 0, argc);
+                }
+            }
+        }
+
+        @Override
+        void store(int temp, int position) {
+            System.arraycopy(values[position], 0, values[temps + temp], 0, rows);
+        }
+
+        @Override
+        void temp(int temp, int position) {
+            System.arraycopy(values[temps + temp], 0, values[position], 0, rows);
+        }
+
+        @Override
+        boolean isFolded(int fold) {
+            return foldEnds[fold] >= 0;
+        }
+
+        @Override
+        void truth(int position, boolean[] truth) {
+            kernels.truth(values[position], truth, 0, rows);
+        }
+
+        @Override
+        void save(int position, int depth) {
+            System.arraycopy(values[position], 0, values[saved + depth], 0, rows);
+        }
+
+        @Override
+        void blend(int position, int depth, boolean[] condition) {
+            kernels.blend(values[position], values[saved + depth], condition, 0, rows);
+        }
+
+        @Override
+        void result() {
+            System.arraycopy(values[0], 0, result, first, rows);
+        }
+    }
+}
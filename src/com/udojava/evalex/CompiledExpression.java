@@ -0,0 +1,755 @@
+package com.udojava.evalex;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+
+/**
+ * An immutable, compiled expression. It is created once by
+ * {@link Expression#compile()} and can then be evaluated by many threads at
+ * the same time, each passing its own {@link Bindings} and context.
+ * <br>
+ * Every variable is assigned a slot at compile time. Values can be bound by
+ * slot or passed as a flat array indexed by slot, so binding and evaluation
+ * need no lookup by name.
+ * <br>
+ * A subexpression bound to a variable, see
+ * {@link Expression#setVariable(String, String)}, is compiled on its own and
+ * linked to the slot of the variable: it is evaluated before the program,
+ * with the values of the slots it uses, and its result takes the place of
+ * the value of the variable. The slots of the variables only used by
+ * subexpressions follow those of the program.
+ */
+public class CompiledExpression<T extends Number, C> {
+
+    /**
+     * The compiled program.
+     */
+    final Program<T, C> program;
+
+    /**
+     * The default context of the expression.
+     */
+    private final C defaultContext;
+
+    /**
+     * The variable values of the expression at compile time, indexed by slot.
+     */
+    private final Object[] defaults;
+
+    /**
+     * The slot of each variable name.
+     */
+    private final Map<String, Integer> slots;
+
+    /**
+     * Converts a literal to a value.
+     */
+    private final BiFunction<String, C, T> parse;
+
+    /**
+     * Rounds a variable value.
+     */
+    private final BiFunction<T, C, T> round;
+
+    /**
+     * The constant pool for the most recently used context.
+     */
+    private volatile Constants<T, C> constants;
+
+    /**
+     * The subexpressions linked to slots, in the order they are evaluated,
+     * or <code>null</code> if the subexpressions refer to each other and
+     * were inlined into the program.
+     */
+    final Link<T, C>[] links;
+
+    /**
+     * Flags the slots that get the values of linked subexpressions, they
+     * are not rounded like variable values. <code>null</code> if there are
+     * none.
+     */
+    private final boolean[] linked;
+
+    CompiledExpression(Program<T, C> program, C defaultContext, Object[] defaults,
+            BiFunction<String, C, T> parse, BiFunction<T, C, T> round) {
+        this.program = program;
+        this.defaultContext = defaultContext;
+        this.defaults = defaults;
+        this.parse = parse;
+        this.round = round;
+        Map<String, Integer> s = new HashMap<>();
+        for (int i = 0; i < program.variables.length; i++) {
+            s.put(program.variables[i], i);
+        }
+        this.slots = s;
+        this.links = Link.none();
+        this.linked = null;
+    }
+
+    /**
+     * Creates a copy of a compiled expression with another default context
+     * and other default variable values. The copy shares the program and the
+     * constant pool.
+     *
+     * @param template
+     *            The compiled expression to copy.
+     * @param defaultContext
+     *            The default context.
+     * @param defaults
+     *            The default variable values, indexed by slot.
+     * @param links
+     *            The linked subexpressions.
+     */
+    CompiledExpression(CompiledExpression<T, C> template, C defaultContext,
+            Object[] defaults, Link<T, C>[] links) {
+        this.program = template.program;
+        this.defaultContext = defaultContext;
+        this.defaults = defaults;
+        this.parse = template.parse;
+        this.round = template.round;
+        this.slots = template.slots;
+        this.constants = template.constants;
+        this.links = links;
+        this.linked = Link.slots(links, program.variables.length);
+    }
+
+    /**
+     * Creates a copy of this compiled expression for another expression
+     * with the same text, see {@link ExpressionCache}.
+     *
+     * @param defaultContext
+     *            The default context.
+     * @param defaults
+     *            The default variable values, indexed by slot.
+     * @return The copy.
+     */
+    CompiledExpression<T, C> rebind(C defaultContext, Object[] defaults) {
+        return relink(defaultContext, defaults, Link.rebind(links, defaultContext, defaults));
+    }
+
+    /**
+     * Creates a copy of this compiled expression with other linked
+     * subexpressions. The copy shares the program, so binding another
+     * subexpression to a variable does not compile the expression again.
+     *
+     * @param defaultContext
+     *            The default context.
+     * @param defaults
+     *            The default variable values, indexed by slot.
+     * @param links
+     *            The linked subexpressions, in the order they are evaluated.
+     * @return The copy.
+     */
+    CompiledExpression<T, C> relink(C defaultContext, Object[] defaults, Link<T, C>[] links) {
+        return new CompiledExpression<>(this, defaultContext, defaults, links);
+    }
+
+    /**
+     * Creates new bindings for this expression, initialized with the
+     * variable values the expression had when it was compiled.
+     *
+     * @return The new bindings.
+     */
+    public Bindings<T> bindings() {
+        return new Bindings<>(this, defaults);
+    }
+
+    /**
+     * Evaluates the expression with the variable values it had when it was
+     * compiled and its default context.
+     *
+     * @return The result of the expression.
+     */
+    public T eval() {
+        return run(link(defaults, defaultContext), defaultContext);
+    }
+
+    /**
+     * Evaluates the expression with the default context.
+     *
+     * @param values
+     *            The variable values, indexed by slot.
+     * @return The result of the expression.
+     */
+    public T eval(Object[] values) {
+        return eval(values, defaultContext);
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param values
+     *            The variable values, indexed by slot.
+     * @param ctx
+     *            The context to use.
+     * @return The result of the expression.
+     */
+    public T eval(Object[] values, C ctx) {
+        checkSlotCount(values.length);
+        return run(link(values, ctx), ctx);
+    }
+
+    /**
+     * Evaluates the expression with the default context.
+     *
+     * @param bindings
+     *            The variable values.
+     * @return The result of the expression.
+     */
+    public T eval(Bindings<T> bindings) {
+        return eval(bindings, defaultContext);
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param bindings
+     *            The variable values.
+     * @param ctx
+     *            The context to use.
+     * @return The result of the expression.
+     */
+    public T eval(Bindings<T> bindings, C ctx) {
+        if (bindings.expression != this) {
+            throw new ExpressionException(
+                    "Bindings were created for another expression");
+        }
+        return run(link(bindings.values, ctx), ctx);
+    }
+
+    /**
+     * Evaluates the expression for many rows at once with the default
+     * context, see {@link #evalBatch(Number[][], Number[], Object)}.
+     *
+     * @param columns
+     *            The variable values by variable name, an array with one
+     *            value per row. A variable without a column has the value it
+     *            had when the expression was compiled for all rows.
+     * @param result
+     *            The array for the results, one per row.
+     */
+    public void evalBatch(Map<String, T[]> columns, T[] result) {
+        evalBatch(columns, result, defaultContext);
+    }
+
+    /**
+     * Evaluates the expression for many rows at once, see
+     * {@link #evalBatch(Number[][], Number[], Object)}.
+     *
+     * @param columns
+     *            The variable values by variable name, an array with one
+     *            value per row. A variable without a column has the value it
+     *            had when the expression was compiled for all rows.
+     * @param result
+     *            The array for the results, one per row.
+     * @param ctx
+     *            The context to use.
+     */
+    public void evalBatch(Map<String, T[]> columns, T[] result, C ctx) {
+        evalBatch(bySlot(columns, result), result, ctx);
+    }
+
+    /**
+     * Evaluates the expression for many rows at once. The results are the
+     * same as those of {@link #eval(Object[], Object)} for each row. A
+     * compiled <code>BigDecimalEx</code> applies each instruction of the
+     * program to a chunk of rows before the next one, so the interpretation
+     * overhead is paid per chunk instead of per row, see
+     * {@link CompiledDoubleExpression#evalBatch(double[][], double[])} for
+     * primitive columns of a <code>DoubleEx</code>.
+     *
+     * @param columns
+     *            The variable values, indexed by slot, an array with one
+     *            value per row or <code>null</code> for the value the
+     *            variable had when the expression was compiled.
+     * @param result
+     *            The array for the results, one per row.
+     * @param ctx
+     *            The context to use.
+     */
+    public void evalBatch(T[][] columns, T[] result, C ctx) {
+        checkColumns(columns, result.length);
+        runBatch(link(columns, result, ctx, null), result, ctx, 0, result.length);
+    }
+
+    /**
+     * Evaluates the expression for many rows at once on all available
+     * processors, with the default context, see
+     * {@link #evalBatchParallel(Number[][], Number[], Object, Executor)}.
+     *
+     * @param columns
+     *            The variable values by variable name, an array with one
+     *            value per row. A variable without a column has the value it
+     *            had when the expression was compiled for all rows.
+     * @param result
+     *            The array for the results, one per row.
+     */
+    public void evalBatchParallel(Map<String, T[]> columns, T[] result) {
+        evalBatchParallel(bySlot(columns, result), result, defaultContext,
+                ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluates the expression for many rows at once on all available
+     * processors, see
+     * {@link #evalBatchParallel(Number[][], Number[], Object, Executor)}.
+     *
+     * @param columns
+     *            The variable values by variable name, an array with one
+     *            value per row. A variable without a column has the value it
+     *            had when the expression was compiled for all rows.
+     * @param result
+     *            The array for the results, one per row.
+     * @param ctx
+     *            The context to use.
+     * @param executor
+     *            Runs the helper threads, e.g. a <code>ForkJoinPool</code>.
+     */
+    public void evalBatchParallel(Map<String, T[]> columns, T[] result, C ctx,
+            Executor executor) {
+        evalBatchParallel(bySlot(columns, result), result, ctx, executor);
+    }
+
+    /**
+     * Evaluates the expression for many rows at once on all available
+     * processors. The rows are split into ranges that are evaluated like
+     * {@link #evalBatch(Number[][], Number[], Object)} by the calling thread
+     * and helpers run by the executor, each with buffers of its own. The
+     * number of threads is limited by
+     * <code>Runtime.availableProcessors()</code>, which respects the CPU
+     * quota of a container. The results are the same as those of a
+     * sequential evaluation and are stored at the index of their row.
+     * Custom operators and functions are called from several threads at the
+     * same time.
+     *
+     * @param columns
+     *            The variable values, indexed by slot, an array with one
+     *            value per row or <code>null</code> for the value the
+     *            variable had when the expression was compiled.
+     * @param result
+     *            The array for the results, one per row.
+     * @param ctx
+     *            The context to use.
+     * @param executor
+     *            Runs the helper threads, e.g. a <code>ForkJoinPool</code>.
+     */
+    public void evalBatchParallel(T[][] columns, T[] result, C ctx, Executor executor) {
+        checkColumns(columns, result.length);
+        T[][] linked = link(columns, result, ctx, executor);
+        ParallelBatch.run(result.length, executor,
+                (from, to) -> runBatch(linked, result, ctx, from, to));
+    }
+
+    private T[][] bySlot(Map<String, T[]> columns, T[] result) {
+        @SuppressWarnings("unchecked")
+        T[][] bySlot = (T[][]) Array.newInstance(result.getClass(), program.variables.length);
+        for (int i = 0; i < bySlot.length; i++) {
+            bySlot[i] = columns.get(program.variables[i]);
+        }
+        return bySlot;
+    }
+
+    /**
+     * Evaluates a range of rows of a batch, the columns of the linked
+     * subexpressions were calculated before.
+     */
+    void runBatch(T[][] columns, T[] result, C ctx, int from, int to) {
+        Object[] values = new Object[columns.length];
+        for (int row = from; row < to; row++) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = columns[i] != null ? columns[i][row] : defaults[i];
+            }
+            result[row] = run(values, ctx);
+        }
+    }
+
+    /**
+     * Gets the default context of the expression.
+     *
+     * @return The context.
+     */
+    public C getContext() {
+        return defaultContext;
+    }
+
+    /**
+     * Gets the backend that executes the expression. It differs from the
+     * backend set for the expression if that is not supported.
+     *
+     * @return The backend.
+     */
+    public Backend getBackend() {
+        return Backend.INTERPRETER;
+    }
+
+    /**
+     * Gets the names of the variables used by the expression, the position
+     * in the list is the slot of the variable.
+     *
+     * @return The variable names.
+     */
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(Arrays.asList(program.variables));
+    }
+
+    /**
+     * Gets the slot of a variable.
+     *
+     * @param variable
+     *            The variable name.
+     * @return The slot or <code>-1</code> if the expression does not use the
+     *         variable.
+     */
+    public int slotOf(String variable) {
+        Integer slot = slots.get(variable);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Gets the number of variable slots.
+     *
+     * @return The number of slots.
+     */
+    public int getSlotCount() {
+        return program.variables.length;
+    }
+
+    void checkSlotCount(int count) {
+        if (count != program.variables.length) {
+            throw new ExpressionException("Expected "
+                    + program.variables.length + " variable values, got "
+                    + count);
+        }
+    }
+
+    /**
+     * Checks the columns of a batch evaluation. Every column must have a
+     * value for each row, a variable without a column must have had a value
+     * when the expression was compiled.
+     *
+     * @param columns
+     *            The arrays of variable values, indexed by slot.
+     * @param rows
+     *            The number of rows.
+     */
+    void checkColumns(Object[] columns, int rows) {
+        checkSlotCount(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == null) {
+                if (defaults[i] == null && !isLinked(i)) {
+                    throw new ExpressionException("Unknown operator or function: "
+                            + program.variables[i]);
+                }
+            } else if (Array.getLength(columns[i]) != rows) {
+                throw new ExpressionException("Expected " + rows + " values of "
+                        + program.variables[i] + ", got " + Array.getLength(columns[i]));
+            }
+        }
+    }
+
+    /**
+     * Gets the value a variable had when the expression was compiled.
+     *
+     * @param slot
+     *            The slot of the variable.
+     * @return The value, <code>null</code> if it had none.
+     */
+    Object defaultValue(int slot) {
+        return defaults[slot];
+    }
+
+    /**
+     * Checks if subexpressions are linked to slots.
+     *
+     * @return <code>true</code> if there are linked subexpressions.
+     */
+    boolean isLinked() {
+        return links != null && links.length != 0;
+    }
+
+    /**
+     * Checks if a subexpression is linked to a slot.
+     *
+     * @param slot
+     *            The slot.
+     * @return <code>true</code> if the slot gets the value of a
+     *         subexpression.
+     */
+    boolean isLinked(int slot) {
+        return linked != null && linked[slot];
+    }
+
+    /**
+     * Rounds the value of a slot, unless it is the value of a linked
+     * subexpression: that was already calculated with the context.
+     *
+     * @param slot
+     *            The slot.
+     * @param value
+     *            The value.
+     * @param ctx
+     *            The context to use.
+     * @return The rounded value.
+     */
+    T round(int slot, T value, C ctx) {
+        return isLinked(slot) ? value : round.apply(value, ctx);
+    }
+
+    /**
+     * Calculates the values of the linked subexpressions.
+     *
+     * @param values
+     *            The variable values, indexed by slot.
+     * @param ctx
+     *            The context to use.
+     * @return The values with those of the linked subexpressions, a copy if
+     *         there are any.
+     */
+    Object[] link(Object[] values, C ctx) {
+        if (!isLinked()) {
+            return values;
+        }
+        Object[] linked = values.clone();
+        for (Link<T, C> link : links) {
+            Object[] arguments = new Object[link.arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = linked[link.arguments[i]];
+            }
+            linked[link.slot] = link.target.run(arguments, ctx);
+        }
+        return linked;
+    }
+
+    /**
+     * Calculates the columns of the linked subexpressions for a batch.
+     *
+     * @param columns
+     *            The arrays of variable values, indexed by slot.
+     * @param result
+     *            The array for the results.
+     * @param ctx
+     *            The context to use.
+     * @param executor
+     *            Runs the helper threads, or <code>null</code> to evaluate
+     *            the subexpressions on the calling thread.
+     * @return The columns with those of the linked subexpressions, a copy if
+     *         there are any.
+     */
+    @SuppressWarnings("unchecked")
+    private T[][] link(T[][] columns, T[] result, C ctx, Executor executor) {
+        if (!isLinked()) {
+            return columns;
+        }
+        T[][] linked = columns.clone();
+        for (Link<T, C> link : links) {
+            T[][] arguments = (T[][]) Array.newInstance(result.getClass(), link.arguments.length);
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = linked[link.arguments[i]];
+            }
+            T[] column = (T[]) Array.newInstance(result.getClass().getComponentType(), result.length);
+            if (executor == null) {
+                link.target.evalBatch(arguments, column, ctx);
+            } else {
+                link.target.evalBatchParallel(arguments, column, ctx, executor);
+            }
+            linked[link.slot] = column;
+        }
+        return linked;
+    }
+
+    /**
+     * Runs the program, the values of the linked subexpressions were
+     * calculated before.
+     */
+    T run(Object[] values, C ctx) {
+        return program.eval(constants(ctx), values, ctx, round, linked);
+    }
+
+    /**
+     * Gets the constant pool for a context: the literal values parsed with
+     * the context, followed by the values of the folded constants. A folded
+     * constant that can not be calculated, e.g. because of a division by
+     * zero, is <code>null</code>. The values for the last used context are
+     * cached, so the constants are calculated only once as long as the
+     * context does not change.
+     *
+     * @param ctx
+     *            The context to use.
+     * @return The constant values.
+     */
+    @SuppressWarnings("unchecked")
+    T[] constants(C ctx) {
+        Constants<T, C> c = constants;
+        if (c == null || !Objects.equals(c.ctx, ctx)) {
+            String[] literals = program.literals;
+            T[] values = (T[]) new Number[program.constantCount()];
+            for (int i = 0; i < literals.length; i++) {
+                values[i] = parse.apply(literals[i], ctx);
+            }
+            for (int i = 0; i < program.foldStarts.length; i++) {
+                try {
+                    values[literals.length + i] = program.fold(values, i, ctx);
+                } catch (RuntimeException e) {
+                    // the subtree is evaluated and fails at run time
+                }
+            }
+            c = new Constants<>(ctx, values);
+            constants = c;
+        }
+        return c.values;
+    }
+
+    /**
+     * A subexpression linked to a slot. It is compiled on its own, without
+     * links, and gets the values of the slots it uses as its variables.
+     */
+    static final class Link<T extends Number, C> {
+
+        @SuppressWarnings("rawtypes")
+        private static final Link[] NONE = new Link[0];
+
+        /**
+         * The slot of the variable the subexpression is bound to.
+         */
+        final int slot;
+
+        /**
+         * The compiled subexpression.
+         */
+        final CompiledExpression<T, C> target;
+
+        /**
+         * The slot of the linking expression for each slot of the
+         * subexpression.
+         */
+        final int[] arguments;
+
+        Link(int slot, CompiledExpression<T, C> target, int[] arguments) {
+            this.slot = slot;
+            this.target = target;
+            this.arguments = arguments;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <T extends Number, C> Link<T, C>[] none() {
+            return NONE;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        static <T extends Number, C> Link<T, C>[] array(int length) {
+            return new Link[length];
+        }
+
+        /**
+         * Flags the slots the subexpressions are linked to.
+         *
+         * @param links
+         *            The links.
+         * @param slots
+         *            The number of slots.
+         * @return The flags by slot, or <code>null</code> if there are no
+         *         links.
+         */
+        static <T extends Number, C> boolean[] slots(Link<T, C>[] links, int slots) {
+            if (links == null || links.length == 0) {
+                return null;
+            }
+            boolean[] linked = new boolean[slots];
+            for (Link<T, C> link : links) {
+                linked[link.slot] = true;
+            }
+            return linked;
+        }
+
+        /**
+         * Rebinds the compiled subexpressions to other default values.
+         *
+         * @param links
+         *            The links.
+         * @param defaultContext
+         *            The default context.
+         * @param defaults
+         *            The default variable values of the linking expression.
+         * @return The rebound links.
+         */
+        static <T extends Number, C> Link<T, C>[] rebind(Link<T, C>[] links,
+                C defaultContext, Object[] defaults) {
+            if (links == null || links.length == 0) {
+                return links;
+            }
+            Link<T, C>[] rebound = array(links.length);
+            for (int i = 0; i < links.length; i++) {
+                Link<T, C> link = links[i];
+                Object[] values = new Object[link.arguments.length];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = defaults[link.arguments[j]];
+                }
+                rebound[i] = new Link<>(link.slot,
+                        link.target.rebind(defaultContext, values), link.arguments);
+            }
+            return rebound;
+        }
+
+        /**
+         * Orders links so that each subexpression is evaluated after those
+         * it uses. A subexpression that uses its own variable gets the value
+         * of the variable.
+         *
+         * @param links
+         *            The links.
+         * @return The ordered links, or <code>null</code> if subexpressions
+         *         refer to each other.
+         */
+        static <T extends Number, C> Link<T, C>[] order(List<Link<T, C>> links) {
+            Link<T, C>[] ordered = array(links.size());
+            int count = 0;
+            boolean[] done = new boolean[links.size()];
+            while (count < ordered.length) {
+                int before = count;
+                for (int i = 0; i < done.length; i++) {
+                    if (!done[i] && ready(links.get(i), links, done)) {
+                        done[i] = true;
+                        ordered[count++] = links.get(i);
+                    }
+                }
+                if (count == before) {
+                    return null;
+                }
+            }
+            return ordered;
+        }
+
+        private static <T extends Number, C> boolean ready(Link<T, C> link,
+                List<Link<T, C>> links, boolean[] done) {
+            for (int argument : link.arguments) {
+                for (int i = 0; i < done.length; i++) {
+                    if (!done[i] && argument == links.get(i).slot && argument != link.slot) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The constant values for a context.
+     */
+    private static final class Constants<T, C> {
+        final C ctx;
+        final T[] values;
+
+        Constants(C ctx, T[] values) {
+            this.ctx = ctx;
+            this.values = values;
+        }
+    }
+}
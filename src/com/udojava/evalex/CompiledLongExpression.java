@@ -0,0 +1,470 @@
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * A compiled {@link LongEx} expression. It runs the program on a primitive
+ * <code>long</code> stack. When an operator or function throws an
+ * {@link ArithmeticException}, because a value does not fit into a long, the
+ * same program is run again on exact {@link BigDecimal} values, using the
+ * exact implementations of the operators and functions.
+ */
+public final class CompiledLongExpression extends CompiledExpression<Long, Void> {
+
+    /**
+     * The constant pool.
+     */
+    private final long[] constants;
+
+    /**
+     * The instruction following each folded constant, <code>-1</code> if
+     * the constant could not be calculated.
+     */
+    private final int[] foldEnds;
+
+    /**
+     * The literal values for the exact evaluation.
+     */
+    private final BigDecimal[] exactConstants;
+
+    /**
+     * <code>true</code> if a literal does not fit into a long, the program
+     * then always runs exactly.
+     */
+    private final boolean exactOnly;
+
+    /**
+     * The operators, indexed by call site.
+     */
+    private final LongOperator[] operators;
+
+    /**
+     * The functions, indexed by call site.
+     */
+    private final LongFunction[] functions;
+
+    /**
+     * The program for the exact evaluation.
+     */
+    private final Program<BigDecimal, MathContext> exact;
+
+    /**
+     * The method handles that run the program, or <code>null</code> if the
+     * program is interpreted.
+     */
+    private final ToLongFunction<long[]> generated;
+
+    /**
+     * Creates the method handles once the expression is hot, or
+     * <code>null</code> if they are created eagerly.
+     */
+    private final TieredCompilation.Tier<ToLongFunction<long[]>> tier;
+
+    /**
+     * The backend that runs the program.
+     */
+    private final Backend backend;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    CompiledLongExpression(Program<Long, Void> program, Object[] defaults,
+            BiFunction<String, Void, Long> parse,
+            BiFunction<Long, Void, Long> round, Backend backend,
+            TieredCompilation tiering) {
+        super(program, null, defaults, parse, round);
+        String[] literals = program.literals;
+        constants = new long[program.constantCount()];
+        // the exact program runs the subtrees of the folded constants
+        exactConstants = new BigDecimal[program.constantCount()];
+        boolean overflow = false;
+        for (int i = 0; i < literals.length; i++) {
+            try {
+                constants[i] = parse.apply(literals[i], null);
+                exactConstants[i] = BigDecimal.valueOf(constants[i]);
+            } catch (NumberFormatException e) {
+                try {
+                    exactConstants[i] = new BigDecimal(
+                            new BigDecimal(literals[i]).toBigIntegerExact());
+                } catch (ArithmeticException notIntegral) {
+                    throw e;
+                }
+                overflow = true;
+            }
+        }
+        exactOnly = overflow;
+        foldEnds = new int[program.foldEnds.length];
+        Number[] pool = exactOnly ? null : constants(null);
+        for (int i = 0; i < foldEnds.length; i++) {
+            int index = literals.length + i;
+            if (pool != null && pool[index] != null) {
+                constants[index] = pool[index].longValue();
+                foldEnds[i] = program.foldEnds[i];
+            } else {
+                foldEnds[i] = -1;
+            }
+        }
+        operators = new LongOperator[program.operators.length];
+        Operator<BigDecimal, MathContext>[] exactOperators = new Operator[operators.length];
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = primitive(program.operators[i]);
+            exactOperators[i] = exact(operators[i]);
+        }
+        functions = new LongFunction[program.functions.length];
+        Function<BigDecimal, MathContext>[] exactFunctions = new Function[functions.length];
+        for (int i = 0; i < functions.length; i++) {
+            functions[i] = primitive(program.functions[i]);
+            exactFunctions[i] = exact(functions[i]);
+        }
+        UnaryOperator<BigDecimal, MathContext>[] exactUnaryOperators =
+                new UnaryOperator[program.unaryOperators.length];
+        for (int i = 0; i < exactUnaryOperators.length; i++) {
+            exactUnaryOperators[i] = exact(program.unaryOperators[i]);
+        }
+        exact = program.withImplementations(exactOperators, exactUnaryOperators,
+                exactFunctions, value -> value.signum() != 0);
+        if (backend != Backend.METHOD_HANDLES || exactOnly) {
+            generated = null;
+            tier = null;
+            this.backend = Backend.INTERPRETER;
+        } else if (tiering != null) {
+            generated = null;
+            tier = tiering.tier(this::generate);
+            this.backend = backend;
+        } else {
+            generated = generate();
+            tier = null;
+            this.backend = generated == null ? Backend.INTERPRETER : backend;
+        }
+    }
+
+    private CompiledLongExpression(CompiledLongExpression template,
+            Object[] defaults, Link<Long, Void>[] links) {
+        super(template, null, defaults, links);
+        constants = template.constants;
+        foldEnds = template.foldEnds;
+        exactConstants = template.exactConstants;
+        exactOnly = template.exactOnly;
+        operators = template.operators;
+        functions = template.functions;
+        exact = template.exact;
+        generated = template.generated;
+        tier = template.tier;
+        backend = template.backend;
+    }
+
+    @Override
+    CompiledLongExpression relink(Void defaultContext, Object[] defaults,
+            Link<Long, Void>[] links) {
+        return new CompiledLongExpression(this, defaults, links);
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param values
+     *            The variable values, indexed by slot.
+     * @return The result of the expression.
+     * @throws ArithmeticException
+     *             If the exact result does not fit into a long.
+     */
+    public long eval(long[] values) {
+        checkSlotCount(values.length);
+        return evaluate(link(values));
+    }
+
+    private long evaluate(long[] values) {
+        if (!exactOnly) {
+            try {
+                return execute(values);
+            } catch (ArithmeticException e) {
+                try {
+                    return executeExact(values).longValueExact();
+                } catch (UnsupportedOperationException unsupported) {
+                    throw e;
+                }
+            }
+        }
+        return executeExact(values).longValueExact();
+    }
+
+    /**
+     * Evaluates the expression exactly.
+     *
+     * @param values
+     *            The variable values, indexed by slot.
+     * @return The result of the expression, even if it does not fit into a
+     *         long.
+     * @throws ArithmeticException
+     *             If the result of a linked subexpression does not fit into
+     *             a long.
+     */
+    public BigDecimal evalExact(long[] values) {
+        checkSlotCount(values.length);
+        return evaluateExact(link(values));
+    }
+
+    private BigDecimal evaluateExact(long[] values) {
+        if (!exactOnly) {
+            try {
+                return BigDecimal.valueOf(execute(values));
+            } catch (ArithmeticException e) {
+                try {
+                    return executeExact(values);
+                } catch (UnsupportedOperationException unsupported) {
+                    throw e;
+                }
+            }
+        }
+        return executeExact(values);
+    }
+
+    /**
+     * Evaluates the expression exactly.
+     *
+     * @param bindings
+     *            The variable values.
+     * @return The result of the expression, even if it does not fit into a
+     *         long.
+     * @throws ArithmeticException
+     *             If the result of a linked subexpression does not fit into
+     *             a long.
+     */
+    public BigDecimal evalExact(Bindings<Long> bindings) {
+        if (bindings.expression != this) {
+            throw new ExpressionException(
+                    "Bindings were created for another expression");
+        }
+        return evaluateExact(unbox(link(bindings.values, null)));
+    }
+
+    @Override
+    Long run(Object[] values, Void ctx) {
+        return evaluate(unbox(values));
+    }
+
+    /**
+     * Calculates the values of the linked subexpressions, see
+     * {@link CompiledExpression#link(Object[], Object)}.
+     */
+    private long[] link(long[] values) {
+        if (!isLinked()) {
+            return values;
+        }
+        long[] linked = values.clone();
+        for (Link<Long, Void> link : links) {
+            long[] arguments = new long[link.arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = linked[link.arguments[i]];
+            }
+            linked[link.slot] = ((CompiledLongExpression) link.target).evaluate(arguments);
+        }
+        return linked;
+    }
+
+    private long[] unbox(Object[] values) {
+        long[] v = new long[values.length];
+        for (int i = 0; i < v.length; i++) {
+            if (values[i] == null) {
+                throw new ExpressionException("Unknown operator or function: "
+                        + program.variables[i]);
+            }
+            v[i] = (Long) values[i];
+        }
+        return v;
+    }
+
+    @Override
+    public Backend getBackend() {
+        return tier != null && tier.optimized == null ? Backend.INTERPRETER : backend;
+    }
+
+    /**
+     * Creates the method handles for the program.
+     *
+     * @return The method handles, or <code>null</code> if they can not be
+     *         created.
+     */
+    private ToLongFunction<long[]> generate() {
+        try {
+            return HandleCompiler.compile(program, constants, foldEnds,
+                    operators, functions);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private long execute(long[] values) {
+        ToLongFunction<long[]> g = tier != null ? tier.get() : generated;
+        return g != null ? g.applyAsLong(values) : interpret(values);
+    }
+
+    private long interpret(long[] values) {
+        byte[] opcodes = program.opcodes;
+        int[] operands = program.operands;
+        // the temporaries follow the stack
+        long[] stack = new long[program.maxStack + program.temps];
+        int sp = 0;
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            int operand = operands[pc];
+            switch (opcodes[pc]) {
+            case Program.CONST:
+                stack[sp++] = constants[operand];
+                break;
+            case Program.LOAD:
+                stack[sp++] = values[operand];
+                break;
+            case Program.OPERATOR:
+                sp--;
+                stack[sp - 1] = operators[operand].applyAsLong(stack[sp - 1],
+                        stack[sp]);
+                break;
+            case Program.UNARY:
+                stack[sp - 1] = apply(program.unaryOperators[operand], stack[sp - 1]);
+                break;
+            case Program.STORE:
+                stack[program.maxStack + operand] = stack[sp - 1];
+                break;
+            case Program.TEMP:
+                stack[sp++] = stack[program.maxStack + operand];
+                break;
+            case Program.FUNCTION:
+                int argc = program.argCounts[operand];
+                sp -= argc;
+                stack[sp] = functions[operand].applyAsLong(stack, sp, argc);
+                sp++;
+                break;
+            case Program.FOLD:
+                if (foldEnds[operand] >= 0) {
+                    stack[sp++] = constants[program.literals.length + operand];
+                    pc = foldEnds[operand] - 1;
+                }
+                break;
+            case Program.JUMP:
+                pc = program.jumpTargets[operand] - 1;
+                break;
+            case Program.BRANCH:
+                if (stack[--sp] == 0) {
+                    pc = program.jumpTargets[operand] - 1;
+                }
+                break;
+            case Program.AND:
+                if (stack[sp - 1] == 0) {
+                    pc = program.jumpTargets[operand] - 1;
+                }
+                break;
+            default:
+                if (stack[sp - 1] != 0) {
+                    stack[sp - 1] = 1;
+                    pc = program.jumpTargets[operand] - 1;
+                }
+            }
+        }
+        return stack[0];
+    }
+
+    private BigDecimal executeExact(long[] values) {
+        Object[] v = new Object[values.length];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = BigDecimal.valueOf(values[i]);
+        }
+        return exact.eval(exactConstants, v, MathContext.UNLIMITED,
+                (value, mc) -> value, null);
+    }
+
+    /**
+     * Applies a unary operator, the built-in ones without boxing.
+     *
+     * @param operator
+     *            The operator.
+     * @param value
+     *            The operand.
+     * @return The result of the operation.
+     * @throws ArithmeticException
+     *             If the result does not fit into a long.
+     */
+    static long apply(UnaryOperator<Long, Void> operator, long value) {
+        switch (operator.kind) {
+        case UnaryOperator.NEGATE:
+            return Math.negateExact(value);
+        case UnaryOperator.NOT:
+            return value == 0 ? 1 : 0;
+        default:
+            return operator.eval(value, null);
+        }
+    }
+
+    private static LongOperator primitive(final Operator<Long, Void> operator) {
+        if (operator instanceof LongOperator) {
+            return (LongOperator) operator;
+        }
+        return new LongOperator(operator.getOper(), operator.getPrecedence(),
+                operator.isLeftAssoc()) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return operator.eval(v1, v2, null);
+            }
+        };
+    }
+
+    private static LongFunction primitive(final Function<Long, Void> function) {
+        if (function instanceof LongFunction) {
+            return (LongFunction) function;
+        }
+        return new LongFunction(function.getName(), function.getNumParams()) {
+            @Override
+            public long applyAsLong(long[] parameters, int offset, int count) {
+                Object[] boxed = new Object[count];
+                for (int i = 0; i < count; i++) {
+                    boxed[i] = parameters[offset + i];
+                }
+                return function.call(boxed, 0, count, null);
+            }
+        };
+    }
+
+    private static Operator<BigDecimal, MathContext> exact(final LongOperator operator) {
+        return new Operator<BigDecimal, MathContext>(operator.getOper(),
+                operator.getPrecedence(), operator.isLeftAssoc()) {
+            @Override
+            public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
+                return operator.applyExact(v1, v2);
+            }
+        };
+    }
+
+    /**
+     * The built-in unary operators are exact, other ones have no exact
+     * implementation.
+     */
+    private static UnaryOperator<BigDecimal, MathContext> exact(
+            final UnaryOperator<Long, Void> operator) {
+        return new UnaryOperator<BigDecimal, MathContext>(operator.getOper(),
+                operator.getPrecedence(), operator.isPrefix()) {
+            @Override
+            public BigDecimal eval(BigDecimal v, MathContext mc) {
+                switch (operator.kind) {
+                case UnaryOperator.NEGATE:
+                    return v.negate();
+                case UnaryOperator.NOT:
+                    return v.signum() == 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+                default:
+                    throw new UnsupportedOperationException("Operator "
+                            + operator.getOper() + " has no exact implementation");
+                }
+            }
+        };
+    }
+
+    private static Function<BigDecimal, MathContext> exact(final LongFunction function) {
+        return new Function<BigDecimal, MathContext>(function.getName(),
+                function.getNumParams()) {
+            @Override
+            public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+                return function.applyExact(parameters);
+            }
+        };
+    }
+}
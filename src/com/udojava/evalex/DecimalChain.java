@@ -0,0 +1,79 @@
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+
+/**
+ * A chain of additions or multiplications of a {@link BigDecimalEx}, like
+ * <code>a + b + c + d</code>, as one call, see
+ * {@link BigDecimalEx#setSingleRounding(boolean)}. The values are combined
+ * exactly and only the result is rounded, instead of every partial result.
+ * <br>
+ * The compiled forms accumulate values that fit into a scaled long without
+ * creating a {@link BigDecimal}, see {@link #add(long, int, long, int)}.
+ * {@link #eval(List, MathContext)} stays the reference implementation and is
+ * used whenever a value or the exact result does not fit.
+ */
+final class DecimalChain extends FunctionN<BigDecimal, MathContext> {
+
+    /**
+     * The kind of operation, {@link DecimalOperator#ADD} or
+     * {@link DecimalOperator#MULTIPLY}.
+     */
+    final byte kind;
+
+    /**
+     * Creates a chain.
+     *
+     * @param operator
+     *            The built-in <code>+</code> or <code>*</code> operator.
+     */
+    DecimalChain(DecimalOperator operator) {
+        super(operator.getOper(), -1);
+        this.kind = operator.kind;
+    }
+
+    @Override
+    public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+        BigDecimal result = parameters.get(0);
+        for (int i = 1; i < parameters.size(); i++) {
+            result = apply(result, parameters.get(i));
+        }
+        return result.round(mc);
+    }
+
+    /**
+     * Combines a partial result exactly with the next value.
+     */
+    BigDecimal apply(BigDecimal result, BigDecimal value) {
+        return kind == DecimalOperator.ADD ? result.add(value) : result.multiply(value);
+    }
+
+    /**
+     * Adds two scaled values exactly. The sum has the larger of both
+     * scales.
+     *
+     * @return The unscaled sum, or <code>Long.MIN_VALUE</code> if it does
+     *         not fit into a long.
+     */
+    static long add(long u1, int s1, long u2, int s2) {
+        long diff = (long) s1 - s2;
+        if (diff > 0) {
+            u2 = diff < CompiledDecimalExpression.POWERS_OF_TEN.length
+                    ? CompiledDecimalExpression.multiplyExact(u2,
+                            CompiledDecimalExpression.POWERS_OF_TEN[(int) diff])
+                    : Long.MIN_VALUE;
+        } else if (diff < 0) {
+            u1 = -diff < CompiledDecimalExpression.POWERS_OF_TEN.length
+                    ? CompiledDecimalExpression.multiplyExact(u1,
+                            CompiledDecimalExpression.POWERS_OF_TEN[(int) -diff])
+                    : Long.MIN_VALUE;
+        }
+        long sum = u1 + u2;
+        if (u1 == Long.MIN_VALUE || u2 == Long.MIN_VALUE || ((u1 ^ sum) & (u2 ^ sum)) < 0) {
+            return Long.MIN_VALUE;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,903 @@
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A node of the self-specializing evaluation tree of a {@link BigDecimalEx}
+ * expression, see {@link Backend#SPECIALIZING}. The tree is built from the
+ * program of the expression.
+ * <br>
+ * A node that applies a built-in operator records the shape of the values it
+ * sees: integers that fit into a long, or long unscaled values with a scale
+ * up to {@link #MAX_SCALE}. Once specialized, it asks its operands for their
+ * value in that shape and calculates on longs. When an assumption breaks,
+ * because an operand does not have the shape or the result is not exactly
+ * representable, the node deoptimizes: it calculates the value with the
+ * {@link BigDecimal} operator and stays generic from then on. Results are
+ * the same as those of the operators, including the scale.
+ * <br>
+ * The state of a node is shared by all threads evaluating the expression.
+ * It is not synchronized: a state only moves towards generic and every
+ * state calculates the same results, so a stale state is harmless.
+ */
+abstract class DecimalNode {
+
+    /**
+     * The largest scale of a specialized value.
+     */
+    static final int MAX_SCALE = 4;
+
+    /**
+     * The node has not been evaluated yet.
+     */
+    static final byte UNINITIALIZED = 0;
+
+    /**
+     * The values are integers that fit into a long.
+     */
+    static final byte INTEGER = 1;
+
+    /**
+     * The values are longs with a scale of at most {@link #MAX_SCALE}.
+     */
+    static final byte SCALED = 2;
+
+    /**
+     * The values are calculated as {@link BigDecimal}.
+     */
+    static final byte GENERIC = 3;
+
+    /**
+     * Evaluates the node.
+     *
+     * @param f
+     *            The frame of the evaluation.
+     * @return The value.
+     */
+    abstract BigDecimal eval(Frame f);
+
+    /**
+     * Evaluates the node to a specialized value, its scale is stored in
+     * {@link Frame#scale}.
+     *
+     * @param f
+     *            The frame of the evaluation.
+     * @return The unscaled value.
+     * @throws UnexpectedResult
+     *             If the value is not an exact long with a scale between
+     *             <code>0</code> and {@link #MAX_SCALE}.
+     */
+    long evalScaled(Frame f) throws UnexpectedResult {
+        return scaled(f, eval(f));
+    }
+
+    /**
+     * Evaluates the node as a condition.
+     *
+     * @param f
+     *            The frame of the evaluation.
+     * @return The truth value, see {@link BigDecimalEx}.
+     */
+    boolean isTrue(Frame f) {
+        return !eval(f).equals(BigDecimal.ZERO);
+    }
+
+    /**
+     * Converts a value to the specialized form.
+     */
+    static long scaled(Frame f, BigDecimal value) throws UnexpectedResult {
+        int scale = value.scale();
+        if (scale < 0 || scale > MAX_SCALE
+                || value.precision() >= CompiledDecimalExpression.POWERS_OF_TEN.length) {
+            throw new UnexpectedResult(value);
+        }
+        f.scale = scale;
+        return value.unscaledValue().longValue();
+    }
+
+    /**
+     * The most specific state for a value.
+     */
+    static byte shape(BigDecimal value) {
+        int scale = value.scale();
+        if (scale < 0 || scale > MAX_SCALE
+                || value.precision() >= CompiledDecimalExpression.POWERS_OF_TEN.length) {
+            return GENERIC;
+        }
+        return scale == 0 ? INTEGER : SCALED;
+    }
+
+    /**
+     * Builds the tree of a program, by running it on a stack of nodes.
+     *
+     * @param program
+     *            The program.
+     * @param kinds
+     *            The kind of each operator call site, see
+     *            {@link DecimalOperator}.
+     * @return The root node.
+     */
+    static DecimalNode build(Program<BigDecimal, MathContext> program, byte[] kinds) {
+        byte[] opcodes = program.opcodes;
+        int[] operands = program.operands;
+        List<DecimalNode> stack = new ArrayList<>();
+        // the pending IF calls and folded constants, the innermost one ends
+        // first
+        List<Pending> pending = new ArrayList<>();
+        // the call sites of pending && and || operators
+        List<Integer> sites = new ArrayList<>();
+        for (int pc = 0; pc <= opcodes.length; pc++) {
+            while (!pending.isEmpty() && pending.get(pending.size() - 1).end == pc) {
+                Pending p = pending.remove(pending.size() - 1);
+                DecimalNode node = pop(stack);
+                stack.add(p.condition != null ? new If(p.condition, p.then, node)
+                        : new Folded(p.index, node));
+            }
+            if (pc == opcodes.length) {
+                break;
+            }
+            int operand = operands[pc];
+            switch (opcodes[pc]) {
+            case Program.CONST:
+                stack.add(new Constant(operand));
+                break;
+            case Program.LOAD:
+                stack.add(new Load(operand));
+                break;
+            case Program.OPERATOR:
+                DecimalNode right = pop(stack);
+                DecimalNode left = pop(stack);
+                Operator<BigDecimal, MathContext> operator = program.operators[operand];
+                if (!sites.isEmpty() && sites.get(sites.size() - 1) == operand) {
+                    sites.remove(sites.size() - 1);
+                    stack.add(new ShortCircuit(operator, kinds[operand], left, right));
+                } else if (kinds[operand] != 0) {
+                    stack.add(new Specializing(operator, kinds[operand], left, right));
+                } else {
+                    stack.add(new Operation(operator, left, right));
+                }
+                break;
+            case Program.UNARY:
+                stack.add(new Unary(program.unaryOperators[operand], pop(stack)));
+                break;
+            case Program.STORE:
+                stack.add(new Store(operand, pop(stack)));
+                break;
+            case Program.TEMP:
+                stack.add(new Temp(operand));
+                break;
+            case Program.FUNCTION:
+                DecimalNode[] parameters = new DecimalNode[program.argCounts[operand]];
+                for (int i = parameters.length - 1; i >= 0; i--) {
+                    parameters[i] = pop(stack);
+                }
+                Function<BigDecimal, MathContext> function = program.functions[operand];
+                stack.add(function instanceof DecimalChain
+                        ? new Chain((DecimalChain) function, parameters)
+                        : new Call(function, parameters));
+                break;
+            case Program.FOLD:
+                pending.add(new Pending(program.foldEnds[operand], null,
+                        program.literals.length + operand));
+                break;
+            case Program.JUMP:
+                Pending p = pending.get(pending.size() - 1);
+                p.then = pop(stack);
+                p.end = program.jumpTargets[operand];
+                break;
+            case Program.BRANCH:
+                pending.add(new Pending(-1, pop(stack), -1));
+                break;
+            default:
+                sites.add(program.jumpSites[operand]);
+            }
+        }
+        return pop(stack);
+    }
+
+    private static DecimalNode pop(List<DecimalNode> stack) {
+        return stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * An IF call or folded constant whose node is not complete yet.
+     */
+    private static final class Pending {
+        int end;
+        final DecimalNode condition;
+        DecimalNode then;
+        final int index;
+
+        Pending(int end, DecimalNode condition, int index) {
+            this.end = end;
+            this.condition = condition;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Thrown if a value does not have the specialized form, it carries the
+     * value.
+     */
+    static final class UnexpectedResult extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final transient BigDecimal value;
+
+        UnexpectedResult(BigDecimal value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    /**
+     * The values of one evaluation.
+     */
+    static final class Frame {
+        final MathContext mc;
+        final int precision;
+        final CompiledDecimalExpression.ScaledConstants constants;
+
+        /**
+         * The rounded variable values.
+         */
+        final BigDecimal[] values;
+
+        /**
+         * The unscaled variable values, valid if the value is specialized.
+         */
+        final long[] unscaled;
+
+        /**
+         * The variable scales, <code>-1</code> if the value is not
+         * specialized.
+         */
+        final int[] scales;
+
+        /**
+         * The scale of the last specialized value.
+         */
+        int scale;
+
+        /**
+         * The parameters of the function calls being evaluated, nested calls
+         * use the slots above those of the enclosing call.
+         */
+        final Object[] arguments;
+
+        /**
+         * The first free slot of {@link #arguments}.
+         */
+        int top;
+
+        /**
+         * The values of the shared subtrees, <code>null</code> if the value
+         * is only stored specialized.
+         */
+        final BigDecimal[] temps;
+
+        /**
+         * The unscaled values of the shared subtrees.
+         */
+        final long[] tempUnscaled;
+
+        /**
+         * The scales of the shared subtrees, <code>-1</code> if the value is
+         * not specialized.
+         */
+        final int[] tempScales;
+
+        Frame(MathContext mc, CompiledDecimalExpression.ScaledConstants constants,
+                BigDecimal[] values, int maxStack, int temps) {
+            this.mc = mc;
+            this.precision = mc.getPrecision();
+            this.constants = constants;
+            this.values = values;
+            arguments = new Object[maxStack];
+            this.temps = new BigDecimal[temps];
+            tempUnscaled = new long[temps];
+            tempScales = new int[temps];
+            unscaled = new long[values.length];
+            scales = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                if (shape(values[i]) == GENERIC) {
+                    scales[i] = -1;
+                } else {
+                    unscaled[i] = values[i].unscaledValue().longValue();
+                    scales[i] = values[i].scale();
+                }
+            }
+        }
+    }
+
+    /**
+     * A literal.
+     */
+    static final class Constant extends DecimalNode {
+        final int index;
+
+        Constant(int index) {
+            this.index = index;
+        }
+
+        @Override
+        BigDecimal eval(Frame f) {
+            return f.constants.values[index];
+        }
+
+        @Override
+        long evalScaled(Frame f) throws UnexpectedResult {
+            CompiledDecimalExpression.ScaledConstants c = f.constants;
+            int scale = c.scales[index];
+            if (c.wide[index] != null || scale < 0 || scale > MAX_SCALE) {
+                throw new UnexpectedResult(c.values[index]);
+            }
+            f.scale = scale;
+            return c.unscaled[index];
+        }
+    }
+
+    /**
+     * A folded constant, the subtree is evaluated if the constant could not
+     * be calculated for the context.
+     */
+    static final class Folded extends DecimalNode {
+        final int index;
+        final DecimalNode subtree;
+        final Constant constant;
+
+        Folded(int index, DecimalNode subtree) {
+            this.index = index;
+            this.subtree = subtree;
+            this.constant = new Constant(index);
+        }
+
+        @Override
+        BigDecimal eval(Frame f) {
+            return f.constants.folded[index] ? constant.eval(f) : subtree.eval(f);
+        }
+
+        @Override
+        long evalScaled(Frame f) throws UnexpectedResult {
+            return f.constants.folded[index] ? constant.evalScaled(f)
+                    : subtree.evalScaled(f);
+        }
+    }
+
+    /**
+     * A variable.
+     */
+    static final class Load extends DecimalNode {
+        final int slot;
+
+        Load(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        BigDecimal eval(Frame f) {
+            return f.values[slot];
+        }
+
+        @Override
+        long evalScaled(Frame f) throws UnexpectedResult {
+            int scale = f.scales[slot];
+            if (scale < 0) {
+                throw new UnexpectedResult(f.values[slot]);
+            }
+            f.scale = scale;
+            return f.unscaled[slot];
+        }
+    }
+
+    /**
+     * The first occurrence of a shared subtree, it stores the value in the
+     * frame, specialized if the subtree calculated it specialized.
+     */
+    static final class Store extends DecimalNode {
+        final int temp;
+        final DecimalNode subtree;
+
+        Store(int temp, DecimalNode subtree) {
+            this.temp = temp;
+            this.subtree = subtree;
+        }
+
+        @Override
+        BigDecimal eval(Frame f) {
+            BigDecimal value = subtree.eval(f);
+            f.temps[temp] = value;
+            f.tempScales[temp] = -1;
+            return value;
+        }
+
+        @Override
+        long evalScaled(Frame f) throws UnexpectedResult {
+            long value;
+            try {
+                value = subtree.evalScaled(f);
+            } catch (UnexpectedResult e) {
+                f.temps[temp] = e.value;
+                f.tempScales[temp] = -1;
+                throw e;
+            }
+            f.temps[temp] = null;
+            f.tempUnscaled[temp] = value;
+            f.tempScales[temp] = f.scale;
+            return value;
+        }
+    }
+
+    /**
+     * A later occurrence of a shared subtree.
+     */
+    static final class Temp extends DecimalNode {
+        final int temp;
+
+        Temp(int temp) {
+            this.temp = temp;
+        }
+
+        @Override
+        BigDecimal eval(Frame f) {
+            BigDecimal value = f.temps[temp];
+            if (value == null) {
+                value = BigDecimal.valueOf(f.tempUnscaled[temp], f.tempScales[temp]);
+                f.temps[temp] = value;
+            }
+            return value;
+        }
+
+        @Override
+        long evalScaled(Frame f) throws UnexpectedResult {
+            int scale = f.tempScales[temp];
+            if (scale < 0) {
+                return scaled(f, f.temps[temp]);
+            }
+            f.scale = scale;
+            return f.tempUnscaled[temp];
+        }
+    }
+
+    /**
+     * An operator without a specialized implementation.
+     */
+    static final class Operation extends DecimalNode {
+        final Operator<BigDecimal, MathContext> operator;
+        final DecimalNode left;
+        final DecimalNode right;
+
+        Operation(Operator<BigDecimal, MathContext> operator, DecimalNode left,
+                DecimalNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        BigDecimal eval(Frame f) {
+            return operator.eval(left.eval(f), right.eval(f), f.mc);
+        }
+    }
+
+    /**
+     * A unary operator. The built-in negation and logical not keep a
+     * specialized operand specialized.
+     */
+    static final class Unary extends DecimalNode {
+        final UnaryOperator<BigDecimal, MathContext> operator;
+        final DecimalNode operand;
+
+        Unary(UnaryOperator<BigDecimal, MathContext> operator, DecimalNode operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        BigDecimal eval(Frame f) {
+            return operator.eval(operand.eval(f), f.mc);
+        }
+
+        @Override
+        long evalScaled(Frame f) throws UnexpectedResult {
+            if (operator.kind == 0) {
+                return scaled(f, eval(f));
+            }
+            long value;
+            try {
+                value = operand.evalScaled(f);
+            } catch (UnexpectedResult e) {
+                return scaled(f, operator.eval(e.value, f.mc));
+            }
+            if (operator.kind == UnaryOperator.NOT) {
+                f.scale = 0;
+                return value == 0L ? 1L : 0L;
+            }
+            if (!CompiledDecimalExpression.fits(value, f.precision)) {
+                return scaled(f, operator.eval(BigDecimal.valueOf(value, f.scale), f.mc));
+            }
+            return -value;
+        }
+    }
+
+    /**
+     * A function call.
+     */
+    static final class Call extends DecimalNode {
+        final Function<BigDecimal, MathContext> function;
+        final DecimalNode[] parameters;
+
+        Call(Function<BigDecimal, MathContext> function, DecimalNode[] parameters) {
+            this.function = function;
+            this.parameters = parameters;
+        }
+
+        @Override
+        BigDecimal eval(Frame f) {
+            int base = f.top;
+            for (DecimalNode parameter : parameters) {
+                BigDecimal value = parameter.eval(f);
+                f.arguments[f.top++] = value;
+            }
+            f.top = base;
+            return function.call(f.arguments, base, parameters.length, f.mc);
+        }
+    }
+
+    /**
+     * A {@link DecimalChain}. The specialized values of the operands are
+     * combined exactly on longs, a value that is not specialized or an
+     * exact result that does not fit continues the chain with
+     * {@link BigDecimal}. The result is rounded once.
+     */
+    static final class Chain extends DecimalNode {
+        final DecimalChain function;
+        final DecimalNode[] parameters;
+
+        Chain(DecimalChain function, DecimalNode[] parameters) {
+            this.function = function;
+            this.parameters = parameters;
+        }
+
+        @Override
+        BigDecimal eval(Frame f) {
+            try {
+                long value = evalScaled(f);
+                return BigDecimal.valueOf(value, f.scale);
+            } catch (UnexpectedResult e) {
+                return e.value;
+            }
+        }
+
+        @Override
+        long evalScaled(Frame f) throws UnexpectedResult {
+            long result = 0L;
+            long scale = 0L;
+            for (int i = 0; i < parameters.length; i++) {
+                long u;
+                try {
+                    u = parameters[i].evalScaled(f);
+                } catch (UnexpectedResult e) {
+                    return generic(f, i == 0 ? null : BigDecimal.valueOf(result, (int) scale),
+                            e.value, i);
+                }
+                int s = f.scale;
+                if (i == 0) {
+                    result = u;
+                    scale = s;
+                    continue;
+                }
+                long r;
+                long rs;
+                if (function.kind == DecimalOperator.ADD) {
+                    r = DecimalChain.add(result, (int) scale, u, s);
+                    rs = Math.max(scale, s);
+                } else {
+                    r = CompiledDecimalExpression.multiplyExact(result, u);
+                    rs = scale + s;
+                }
+                if (r == Long.MIN_VALUE || rs != (int) rs) {
+                    return generic(f, BigDecimal.valueOf(result, (int) scale),
+                            BigDecimal.valueOf(u, s), i);
+                }
+                result = r;
+                scale = rs;
+            }
+            if (scale < 0 || scale > MAX_SCALE
+                    || !CompiledDecimalExpression.fits(result, f.precision)) {
+                return scaled(f, BigDecimal.valueOf(result, (int) scale).round(f.mc));
+            }
+            f.scale = (int) scale;
+            return result;
+        }
+
+        /**
+         * Continues the chain with {@link BigDecimal}.
+         *
+         * @param result
+         *            The exact result of the operands before, or
+         *            <code>null</code> if there are none.
+         * @param value
+         *            The value of the operand at the index.
+         */
+        private long generic(Frame f, BigDecimal result, BigDecimal value, int index)
+                throws UnexpectedResult {
+            result = result == null ? value : function.apply(result, value);
+            for (int i = index + 1; i < parameters.length; i++) {
+                result = function.apply(result, parameters[i].eval(f));
+            }
+            return scaled(f, result.round(f.mc));
+        }
+    }
+
+    /**
+     * An IF call, only the chosen branch is evaluated.
+     */
+    static final class If extends DecimalNode {
+        final DecimalNode condition;
+        final DecimalNode then;
+        final DecimalNode otherwise;
+
+        If(DecimalNode condition, DecimalNode then, DecimalNode otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        BigDecimal eval(Frame f) {
+            return condition.isTrue(f) ? then.eval(f) : otherwise.eval(f);
+        }
+
+        @Override
+        long evalScaled(Frame f) throws UnexpectedResult {
+            return condition.isTrue(f) ? then.evalScaled(f) : otherwise.evalScaled(f);
+        }
+    }
+
+    /**
+     * A built-in operator, that specializes on the values it sees.
+     */
+    static class Specializing extends DecimalNode {
+        final Operator<BigDecimal, MathContext> operator;
+        final byte kind;
+        final DecimalNode left;
+        final DecimalNode right;
+
+        /**
+         * The specialization state.
+         */
+        byte state;
+
+        Specializing(Operator<BigDecimal, MathContext> operator, byte kind,
+                DecimalNode left, DecimalNode right) {
+            this.operator = operator;
+            this.kind = kind;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        final BigDecimal eval(Frame f) {
+            switch (state) {
+            case UNINITIALIZED:
+                return initialize(f);
+            case GENERIC:
+                return generic(left.eval(f), f);
+            default:
+                try {
+                    long value = evalScaled(f);
+                    return BigDecimal.valueOf(value, f.scale);
+                } catch (UnexpectedResult e) {
+                    return e.value;
+                }
+            }
+        }
+
+        @Override
+        final long evalScaled(Frame f) throws UnexpectedResult {
+            if (state == UNINITIALIZED || state == GENERIC) {
+                return scaled(f, eval(f));
+            }
+            long u1;
+            try {
+                u1 = left.evalScaled(f);
+            } catch (UnexpectedResult e) {
+                return deoptimize(f, e.value);
+            }
+            int s1 = f.scale;
+            if (decided(u1, s1)) {
+                return bool(f, kind == DecimalOperator.OR);
+            }
+            long u2;
+            try {
+                u2 = right.evalScaled(f);
+            } catch (UnexpectedResult e) {
+                state = GENERIC;
+                return scaled(f, operator.eval(BigDecimal.valueOf(u1, s1), e.value, f.mc));
+            }
+            int s2 = f.scale;
+            if (state == INTEGER && (s1 | s2) != 0) {
+                state = SCALED;
+            }
+            long value = apply(f, u1, s1, u2, s2);
+            if (value == Long.MIN_VALUE) {
+                state = GENERIC;
+                return scaled(f, operator.eval(BigDecimal.valueOf(u1, s1),
+                        BigDecimal.valueOf(u2, s2), f.mc));
+            }
+            return value;
+        }
+
+        @Override
+        final boolean isTrue(Frame f) {
+            if (state == INTEGER || state == SCALED) {
+                try {
+                    return CompiledDecimalExpression.isTrue(evalScaled(f), f.scale);
+                } catch (UnexpectedResult e) {
+                    return !e.value.equals(BigDecimal.ZERO);
+                }
+            }
+            return super.isTrue(f);
+        }
+
+        /**
+         * Evaluates the node generically for the first time and records the
+         * shape of the operands and the result.
+         */
+        private BigDecimal initialize(Frame f) {
+            BigDecimal l = left.eval(f);
+            byte shape = shape(l);
+            BigDecimal result;
+            if (decided(l)) {
+                result = operator.eval(l, l, f.mc);
+            } else {
+                BigDecimal r = right.eval(f);
+                shape = (byte) Math.max(shape, shape(r));
+                result = operator.eval(l, r, f.mc);
+            }
+            state = (byte) Math.max(shape, shape(result));
+            return result;
+        }
+
+        /**
+         * Evaluates the right operand if needed and applies the operator.
+         */
+        private BigDecimal generic(BigDecimal l, Frame f) {
+            // if the left operand decides, the result is the same as with
+            // any right operand
+            return operator.eval(l, decided(l) ? l : right.eval(f), f.mc);
+        }
+
+        /**
+         * Tells if the left operand decides the result, only for
+         * <code>&amp;&amp;</code> and <code>||</code>.
+         */
+        boolean decided(BigDecimal l) {
+            return false;
+        }
+
+        /**
+         * Tells if the specialized left operand decides the result.
+         */
+        boolean decided(long u1, int s1) {
+            return false;
+        }
+
+        /**
+         * Continues generically after the left operand was not specialized.
+         */
+        long deoptimize(Frame f, BigDecimal l) throws UnexpectedResult {
+            state = GENERIC;
+            return scaled(f, generic(l, f));
+        }
+
+        /**
+         * Applies the operator to specialized values.
+         *
+         * @return The unscaled result, its scale is stored in the frame, or
+         *         <code>Long.MIN_VALUE</code> if the result is not exactly
+         *         representable.
+         */
+        private long apply(Frame f, long u1, int s1, long u2, int s2) {
+            int cmp;
+            switch (kind) {
+            case DecimalOperator.ADD:
+                return add(f, u1, s1, u2, s2);
+            case DecimalOperator.SUBTRACT:
+                return u2 == Long.MIN_VALUE ? Long.MIN_VALUE : add(f, u1, s1, -u2, s2);
+            case DecimalOperator.MULTIPLY:
+                int scale = s1 + s2;
+                long product = CompiledDecimalExpression.multiplyExact(u1, u2);
+                if (scale > MAX_SCALE || !CompiledDecimalExpression.fits(product, f.precision)) {
+                    return Long.MIN_VALUE;
+                }
+                f.scale = scale;
+                return product;
+            case DecimalOperator.AND:
+                return bool(f, CompiledDecimalExpression.isTrue(u1, s1)
+                        && CompiledDecimalExpression.isTrue(u2, s2));
+            case DecimalOperator.OR:
+                return bool(f, CompiledDecimalExpression.isTrue(u1, s1)
+                        || CompiledDecimalExpression.isTrue(u2, s2));
+            default:
+                cmp = CompiledDecimalExpression.compare(u1, s1, u2, s2);
+                if (cmp == CompiledDecimalExpression.INCOMPARABLE) {
+                    return Long.MIN_VALUE;
+                }
+                return bool(f, compared(cmp));
+            }
+        }
+
+        private boolean compared(int cmp) {
+            switch (kind) {
+            case DecimalOperator.GREATER:
+                return cmp > 0;
+            case DecimalOperator.GREATER_EQUAL:
+                return cmp >= 0;
+            case DecimalOperator.LESS:
+                return cmp < 0;
+            case DecimalOperator.LESS_EQUAL:
+                return cmp <= 0;
+            case DecimalOperator.EQUAL:
+                return cmp == 0;
+            default:
+                return cmp != 0;
+            }
+        }
+
+        /**
+         * The exact sum has the larger scale, like the result of
+         * <code>BigDecimal.add(BigDecimal, MathContext)</code> if it fits
+         * into the precision.
+         */
+        private static long add(Frame f, long u1, int s1, long u2, int s2) {
+            if (s1 < s2) {
+                u1 = CompiledDecimalExpression.multiplyExact(u1,
+                        CompiledDecimalExpression.POWERS_OF_TEN[s2 - s1]);
+                s1 = s2;
+            } else if (s1 > s2) {
+                u2 = CompiledDecimalExpression.multiplyExact(u2,
+                        CompiledDecimalExpression.POWERS_OF_TEN[s1 - s2]);
+            }
+            long sum = u1 + u2;
+            if (u1 == Long.MIN_VALUE || u2 == Long.MIN_VALUE
+                    || ((u1 ^ sum) & (u2 ^ sum)) < 0
+                    || !CompiledDecimalExpression.fits(sum, f.precision)) {
+                return Long.MIN_VALUE;
+            }
+            f.scale = s1;
+            return sum;
+        }
+
+        private static long bool(Frame f, boolean value) {
+            f.scale = 0;
+            return value ? 1L : 0L;
+        }
+    }
+
+    /**
+     * A <code>&amp;&amp;</code> or <code>||</code> operator, the right
+     * operand is only evaluated if the left one does not decide the result.
+     */
+    static final class ShortCircuit extends Specializing {
+
+        ShortCircuit(Operator<BigDecimal, MathContext> operator, byte kind,
+                DecimalNode left, DecimalNode right) {
+            super(operator, kind, left, right);
+        }
+
+        @Override
+        boolean decided(BigDecimal l) {
+            return !l.equals(BigDecimal.ZERO) == (kind == DecimalOperator.OR);
+        }
+
+        @Override
+        boolean decided(long u1, int s1) {
+            return CompiledDecimalExpression.isTrue(u1, s1) == (kind == DecimalOperator.OR);
+        }
+    }
+}
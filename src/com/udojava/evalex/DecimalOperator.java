@@ -0,0 +1,54 @@
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * A built-in {@link BigDecimalEx} operator the compiled form can apply to
+ * scaled long values, see {@link CompiledDecimalExpression}. The kind tells
+ * which operation it is, {@link #eval(BigDecimal, BigDecimal, MathContext)}
+ * stays the reference implementation and is used whenever a value does not
+ * fit into a scaled long.
+ */
+abstract class DecimalOperator extends Operator<BigDecimal, MathContext> {
+
+    static final byte ADD = 1;
+    static final byte SUBTRACT = 2;
+    static final byte MULTIPLY = 3;
+    static final byte AND = 4;
+    static final byte OR = 5;
+    static final byte GREATER = 6;
+    static final byte GREATER_EQUAL = 7;
+    static final byte LESS = 8;
+    static final byte LESS_EQUAL = 9;
+    static final byte EQUAL = 10;
+    static final byte NOT_EQUAL = 11;
+
+    /**
+     * The kind of operation.
+     */
+    final byte kind;
+
+    /**
+     * Creates a new operator.
+     *
+     * @param oper
+     *            The operator name (pattern).
+     * @param precedence
+     *            The operators precedence.
+     * @param leftAssoc
+     *            <code>true</code> if the operator is left associative,
+     *            else <code>false</code>.
+     * @param kind
+     *            The kind of operation.
+     */
+    DecimalOperator(String oper, int precedence, boolean leftAssoc, byte kind) {
+        super(oper, precedence, leftAssoc);
+        this.kind = kind;
+    }
+
+    @Override
+    byte shortCircuit() {
+        return kind == AND ? Program.AND : kind == OR ? Program.OR : 0;
+    }
+}
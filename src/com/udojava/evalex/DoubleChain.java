@@ -0,0 +1,45 @@
+package com.udojava.evalex;
+
+/**
+ * A chain of additions or multiplications of a {@link DoubleEx}, like
+ * <code>a + b + c + d</code>, as one call, see {@link Simplifier#CHAINS}.
+ * The values are combined from left to right, in the same order as the
+ * binary operators would, so the result is exactly the same. The
+ * interpreter passes its operand stack and the chain is a loop over it, the
+ * generated code of a {@link Backend#BYTECODE} expression inlines the
+ * operations.
+ */
+final class DoubleChain extends DoubleFunction {
+
+    /**
+     * The built-in operator of the chain.
+     */
+    final DoubleOperator operator;
+
+    /**
+     * Creates a chain.
+     *
+     * @param operator
+     *            The built-in <code>+</code> or <code>*</code> operator.
+     */
+    DoubleChain(DoubleOperator operator) {
+        super(operator.getOper(), -1);
+        this.operator = operator;
+    }
+
+    @Override
+    public double applyAsDouble(double[] p, int offset, int count) {
+        double result = p[offset];
+        int end = offset + count;
+        if (operator.kind == DoubleOperator.ADD) {
+            for (int i = offset + 1; i < end; i++) {
+                result += p[i];
+            }
+        } else {
+            for (int i = offset + 1; i < end; i++) {
+                result *= p[i];
+            }
+        }
+        return result;
+    }
+}
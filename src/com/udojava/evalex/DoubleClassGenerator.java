@@ -0,0 +1,476 @@
+package com.udojava.evalex;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Generates a class for a {@link DoubleEx} program, see
+ * {@link Backend#BYTECODE}. The values stay on the operand stack of the JVM,
+ * the built-in arithmetic, comparison and unary operators become JVM
+ * instructions, all other operators and functions are called through final fields of the
+ * generated class. As every expression has its own class, these calls are
+ * monomorphic and the JIT compiler can inline the whole expression.
+ * <br>
+ * The class is defined as a hidden class where the runtime supports it,
+ * otherwise by a class loader of its own. Either way it can be unloaded with
+ * the expression.
+ */
+final class DoubleClassGenerator {
+
+    private static final String NAME = "com/udojava/evalex/GeneratedDoubleExpression";
+    private static final String OPERATOR = "com/udojava/evalex/DoubleOperator";
+    private static final String FUNCTION = "com/udojava/evalex/DoubleFunction";
+    private static final String UNARY = "com/udojava/evalex/UnaryOperator";
+
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int LCONST_0 = 0x09;
+    private static final int DCONST_0 = 0x0E;
+    private static final int DCONST_1 = 0x0F;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_1 = 0x2B;
+    private static final int ALOAD_2 = 0x2C;
+    private static final int ALOAD_3 = 0x2D;
+    private static final int DALOAD = 0x31;
+    private static final int AALOAD = 0x32;
+    private static final int DSTORE = 0x39;
+    private static final int ASTORE_2 = 0x4D;
+    private static final int DASTORE = 0x52;
+    private static final int POP = 0x57;
+    private static final int POP2 = 0x58;
+    private static final int DUP = 0x59;
+    private static final int DUP_X2 = 0x5B;
+    private static final int DUP2 = 0x5C;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6B;
+    private static final int DDIV = 0x6F;
+    private static final int DREM = 0x73;
+    private static final int DNEG = 0x77;
+    private static final int IAND = 0x7E;
+    private static final int IOR = 0x80;
+    private static final int LCMP = 0x94;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9A;
+    private static final int IFLT = 0x9B;
+    private static final int IFGE = 0x9C;
+    private static final int IFGT = 0x9D;
+    private static final int IFLE = 0x9E;
+    private static final int GOTO = 0xA7;
+    private static final int DRETURN = 0xAF;
+    private static final int RETURN = 0xB1;
+    private static final int GETFIELD = 0xB4;
+    private static final int PUTFIELD = 0xB5;
+    private static final int INVOKEVIRTUAL = 0xB6;
+    private static final int INVOKESPECIAL = 0xB7;
+    private static final int INVOKESTATIC = 0xB8;
+    private static final int NEWARRAY = 0xBC;
+    private static final int CHECKCAST = 0xC0;
+    private static final int WIDE = 0xC4;
+    private static final int T_DOUBLE = 7;
+
+    /**
+     * The first local variable for spilled operands.
+     */
+    private static final int TEMP = 3;
+
+    /**
+     * <code>Lookup.defineHiddenClass</code>, <code>null</code> if the
+     * runtime has no hidden classes.
+     */
+    private static final Method DEFINE_HIDDEN;
+    private static final Object NO_OPTIONS;
+
+    static {
+        Method define = null;
+        Object options = null;
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(option, 0);
+            define = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, options.getClass());
+        } catch (ReflectiveOperationException e) {
+            // before Java 15, a class loader is used
+        }
+        DEFINE_HIDDEN = define;
+        NO_OPTIONS = options;
+    }
+
+    private final Program<Double, Void> program;
+    private final double[] constants;
+    private final int[] foldEnds;
+    private final DoubleOperator[] operators;
+
+    /**
+     * The first local variable for the temporaries of shared subtrees.
+     */
+    private int temps;
+    private final ClassFile cf = new ClassFile(
+            ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL | ClassFile.ACC_SUPER,
+            NAME, "java/lang/Object", "java/util/function/ToDoubleFunction");
+    private final ClassFile.Code code = new ClassFile.Code();
+
+    private DoubleClassGenerator(Program<Double, Void> program, double[] constants,
+            int[] foldEnds, DoubleOperator[] operators) {
+        this.program = program;
+        this.constants = constants;
+        this.foldEnds = foldEnds;
+        this.operators = operators;
+    }
+
+    /**
+     * Generates and instantiates the class for a program.
+     *
+     * @param program
+     *            The program.
+     * @param constants
+     *            The constant pool.
+     * @param foldEnds
+     *            The instruction following each folded constant,
+     *            <code>-1</code> if the constant could not be calculated.
+     * @param operators
+     *            The operators, indexed by call site.
+     * @param functions
+     *            The functions, indexed by call site.
+     * @return The generated expression, it takes the variable values
+     *         indexed by slot.
+     * @throws ReflectiveOperationException
+     *             If the class could not be defined.
+     */
+    @SuppressWarnings("unchecked")
+    static ToDoubleFunction<double[]> generate(Program<Double, Void> program,
+            double[] constants, int[] foldEnds, DoubleOperator[] operators,
+            DoubleFunction[] functions) throws ReflectiveOperationException {
+        DoubleClassGenerator generator = new DoubleClassGenerator(program,
+                constants, foldEnds, operators);
+        Class<?> c = define(generator.generate());
+        return (ToDoubleFunction<double[]>) c.getConstructor(DoubleOperator[].class,
+                DoubleFunction[].class, UnaryOperator[].class).newInstance(operators,
+                        functions, program.unaryOperators);
+    }
+
+    private static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+        if (DEFINE_HIDDEN != null) {
+            return ((MethodHandles.Lookup) DEFINE_HIDDEN.invoke(MethodHandles.lookup(),
+                    bytes, false, NO_OPTIONS)).lookupClass();
+        }
+        return new Loader(DoubleClassGenerator.class.getClassLoader()).define(bytes);
+    }
+
+    private byte[] generate() {
+        String operatorType = "L" + OPERATOR + ";";
+        String functionType = "L" + FUNCTION + ";";
+        String unaryType = "L" + UNARY + ";";
+        ClassFile.Code init = new ClassFile.Code();
+        init.op(ALOAD_0);
+        init.op(INVOKESPECIAL, cf.methodRef("java/lang/Object", "<init>", "()V"));
+        for (int i = 0; i < operators.length; i++) {
+            if (operators[i].kind == 0) {
+                cf.field(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "o" + i, operatorType);
+                init.op(ALOAD_0);
+                init.op(ALOAD_1);
+                push(init, i);
+                init.op(AALOAD);
+                init.op(PUTFIELD, cf.fieldRef(NAME, "o" + i, operatorType));
+            }
+        }
+        for (int i = 0; i < program.functions.length; i++) {
+            cf.field(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "f" + i, functionType);
+            init.op(ALOAD_0);
+            init.op(ALOAD_2);
+            push(init, i);
+            init.op(AALOAD);
+            init.op(PUTFIELD, cf.fieldRef(NAME, "f" + i, functionType));
+        }
+        for (int i = 0; i < program.unaryOperators.length; i++) {
+            if (program.unaryOperators[i].kind == 0) {
+                cf.field(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "u" + i, unaryType);
+                init.op(ALOAD_0);
+                init.op(ALOAD_3);
+                push(init, i);
+                init.op(AALOAD);
+                init.op(PUTFIELD, cf.fieldRef(NAME, "u" + i, unaryType));
+            }
+        }
+        init.op(RETURN);
+        init.maxStack = 3;
+        init.maxLocals = 4;
+        cf.method(ClassFile.ACC_PUBLIC, "<init>",
+                "([" + operatorType + "[" + functionType + "[" + unaryType + ")V", init);
+
+        int maxArgs = 2;
+        for (int argc : program.argCounts) {
+            maxArgs = Math.max(maxArgs, argc);
+        }
+        code.maxStack = 2 * program.maxStack + 8;
+        temps = TEMP + 2 * maxArgs;
+        code.maxLocals = temps + 2 * program.temps;
+        code.op(ALOAD_1);
+        code.op(CHECKCAST, cf.classRef("[D"));
+        code.op(ASTORE_2);
+        body();
+        code.op(DRETURN);
+        cf.method(ClassFile.ACC_PUBLIC, "applyAsDouble", "(Ljava/lang/Object;)D", code);
+        return cf.toByteArray();
+    }
+
+    /**
+     * Emits the instructions of the program.
+     */
+    private void body() {
+        byte[] opcodes = program.opcodes;
+        int[] operands = program.operands;
+        int[] labels = new int[opcodes.length + 1];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = code.label();
+        }
+        for (int pc = 0; pc < opcodes.length; pc++) {
+            code.place(labels[pc]);
+            int operand = operands[pc];
+            switch (opcodes[pc]) {
+            case Program.CONST:
+                constant(constants[operand]);
+                break;
+            case Program.LOAD:
+                code.op(ALOAD_2);
+                push(code, operand);
+                code.op(DALOAD);
+                break;
+            case Program.OPERATOR:
+                operator(operand);
+                break;
+            case Program.UNARY:
+                unary(operand);
+                break;
+            case Program.FUNCTION:
+                function(operand);
+                break;
+            case Program.STORE:
+                code.op(DUP2);
+                local(DSTORE, temps + 2 * operand);
+                break;
+            case Program.TEMP:
+                local(DLOAD, temps + 2 * operand);
+                break;
+            case Program.FOLD:
+                if (foldEnds[operand] >= 0) {
+                    // the subtree of the constant is not needed
+                    constant(constants[program.literals.length + operand]);
+                    pc = foldEnds[operand] - 1;
+                }
+                break;
+            case Program.JUMP:
+                code.jump(GOTO, labels[program.jumpTargets[operand]]);
+                break;
+            case Program.BRANCH:
+                truth();
+                code.jump(IFEQ, labels[program.jumpTargets[operand]]);
+                break;
+            default:
+                boolean and = opcodes[pc] == Program.AND;
+                int next = code.label();
+                code.op(DUP2);
+                truth();
+                code.jump(and ? IFNE : IFEQ, next);
+                code.op(POP2);
+                code.op(and ? DCONST_0 : DCONST_1);
+                code.jump(GOTO, labels[program.jumpTargets[operand]]);
+                code.place(next);
+            }
+        }
+        code.place(labels[opcodes.length]);
+    }
+
+    private void operator(int site) {
+        DoubleOperator operator = operators[site];
+        switch (operator.kind) {
+        case DoubleOperator.ADD:
+            code.op(DADD);
+            break;
+        case DoubleOperator.SUBTRACT:
+            code.op(DSUB);
+            break;
+        case DoubleOperator.MULTIPLY:
+            code.op(DMUL);
+            break;
+        case DoubleOperator.DIVIDE:
+            code.op(DDIV);
+            break;
+        case DoubleOperator.REMAINDER:
+            code.op(DREM);
+            break;
+        case DoubleOperator.AND:
+        case DoubleOperator.OR:
+            truth();
+            code.op(DUP_X2);
+            code.op(POP);
+            truth();
+            code.op(operator.kind == DoubleOperator.AND ? IAND : IOR);
+            bool(IFNE);
+            break;
+        case DoubleOperator.GREATER:
+            compare(IFGT);
+            break;
+        case DoubleOperator.GREATER_EQUAL:
+            compare(IFGE);
+            break;
+        case DoubleOperator.LESS:
+            compare(IFLT);
+            break;
+        case DoubleOperator.LESS_EQUAL:
+            compare(IFLE);
+            break;
+        case DoubleOperator.EQUAL:
+            compare(IFEQ);
+            break;
+        case DoubleOperator.NOT_EQUAL:
+            compare(IFNE);
+            break;
+        default:
+            local(DSTORE, TEMP + 2);
+            local(DSTORE, TEMP);
+            code.op(ALOAD_0);
+            code.op(GETFIELD, cf.fieldRef(NAME, "o" + site, "L" + OPERATOR + ";"));
+            local(DLOAD, TEMP);
+            local(DLOAD, TEMP + 2);
+            code.op(INVOKEVIRTUAL, cf.methodRef(OPERATOR, "applyAsDouble", "(DD)D"));
+        }
+    }
+
+    private void unary(int site) {
+        switch (program.unaryOperators[site].kind) {
+        case UnaryOperator.NEGATE:
+            code.op(DNEG);
+            break;
+        case UnaryOperator.NOT:
+            truth();
+            bool(IFEQ);
+            break;
+        default:
+            // custom unary operators box their operand
+            local(DSTORE, TEMP);
+            code.op(ALOAD_0);
+            code.op(GETFIELD, cf.fieldRef(NAME, "u" + site, "L" + UNARY + ";"));
+            local(DLOAD, TEMP);
+            code.op(INVOKESTATIC, cf.methodRef("java/lang/Double", "valueOf",
+                    "(D)Ljava/lang/Double;"));
+            code.op(ACONST_NULL);
+            code.op(INVOKEVIRTUAL, cf.methodRef(UNARY, "eval",
+                    "(Ljava/lang/Number;Ljava/lang/Object;)Ljava/lang/Number;"));
+            code.op(INVOKEVIRTUAL, cf.methodRef("java/lang/Number", "doubleValue", "()D"));
+        }
+    }
+
+    private void function(int site) {
+        int argc = program.argCounts[site];
+        for (int i = argc - 1; i >= 0; i--) {
+            local(DSTORE, TEMP + 2 * i);
+        }
+        if (program.functions[site] instanceof DoubleChain) {
+            // the operations from left to right, no array is created
+            int kind = ((DoubleChain) program.functions[site]).operator.kind;
+            local(DLOAD, TEMP);
+            for (int i = 1; i < argc; i++) {
+                local(DLOAD, TEMP + 2 * i);
+                code.op(kind == DoubleOperator.ADD ? DADD : DMUL);
+            }
+            return;
+        }
+        code.op(ALOAD_0);
+        code.op(GETFIELD, cf.fieldRef(NAME, "f" + site, "L" + FUNCTION + ";"));
+        push(code, argc);
+        code.opByte(NEWARRAY, T_DOUBLE);
+        for (int i = 0; i < argc; i++) {
+            code.op(DUP);
+            push(code, i);
+            local(DLOAD, TEMP + 2 * i);
+            code.op(DASTORE);
+        }
+        code.op(ICONST_0);
+        push(code, argc);
+        code.op(INVOKEVIRTUAL, cf.methodRef(FUNCTION, "applyAsDouble", "([DII)D"));
+    }
+
+    /**
+     * Replaces the double on top of the stack by an int, that is not zero
+     * if the double is true, like {@link DoubleEx#isTrue(double)}.
+     */
+    private void truth() {
+        code.op(INVOKESTATIC, cf.methodRef("java/lang/Double", "doubleToLongBits", "(D)J"));
+        code.op(LCONST_0);
+        code.op(LCMP);
+    }
+
+    private void compare(int condition) {
+        code.op(INVOKESTATIC, cf.methodRef("java/lang/Double", "compare", "(DD)I"));
+        bool(condition);
+    }
+
+    /**
+     * Replaces the int on top of the stack by <code>1</code> or
+     * <code>0</code>, depending on a condition.
+     */
+    private void bool(int condition) {
+        int yes = code.label();
+        int end = code.label();
+        code.jump(condition, yes);
+        code.op(DCONST_0);
+        code.jump(GOTO, end);
+        code.place(yes);
+        code.op(DCONST_1);
+        code.place(end);
+    }
+
+    private void constant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        if (bits == 0L) {
+            code.op(DCONST_0);
+        } else if (value == 1D) {
+            code.op(DCONST_1);
+        } else {
+            code.op(LDC2_W, cf.doubleConstant(value));
+        }
+    }
+
+    private void push(ClassFile.Code code, int value) {
+        if (value >= -1 && value <= 5) {
+            code.op(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.opByte(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.op(SIPUSH, value);
+        } else {
+            code.op(LDC_W, cf.intConstant(value));
+        }
+    }
+
+    private void local(int opcode, int index) {
+        if (index > 0xFF) {
+            code.op(WIDE);
+            code.op(opcode, index);
+        } else {
+            code.opByte(opcode, index);
+        }
+    }
+
+    /**
+     * Defines the generated classes on runtimes without hidden classes.
+     */
+    private static final class Loader extends ClassLoader {
+
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(byte[] bytes) {
+            return defineClass(null, bytes, 0, bytes.length);
+        }
+    }
+}
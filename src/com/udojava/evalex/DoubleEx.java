@@ -26,309 +26,415 @@
  */
 package com.udojava.evalex;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
 
 /**
  * Double expression.
  */
 public class DoubleEx extends Expression<Double,Void> {
 
-	/**
-	 * Creates a new expression instance from an expression string with a given
-	 * default match context.
-	 *
-	 * @param expression
-	 *            The expression. E.g. <code>"2.4*sin(3)/(2-4)"</code> or
-	 *            {@code "sin(y)>0 & max(z, 3)>3"}
-	 */
-	public DoubleEx(String expression) {
-        super(expression, null);
+    /**
+     * The built-in operators, functions and variables, shared by all
+     * expressions of this type.
+     */
+    private static final OperatorRegistry<Double, Void> OPERATORS;
+    private static final FunctionRegistry<Double, Void> FUNCTIONS;
+    private static final Map<String, Double> VARIABLES;
+
+    /**
+     * The chains of the built-in <code>+</code> and <code>*</code>.
+     */
+    private static final DoubleChain SUM;
+    private static final DoubleChain PRODUCT;
+
+    /**
+     * Parses and rounds the values of compiled expressions. Unlike
+     * <code>this::val</code>, they do not keep the expression that compiled
+     * a cached program reachable.
+     */
+    private static final BiFunction<String, Void, Double> PARSE =
+            (text, ctx) -> NumberParser.parseDouble(text);
+    private static final BiFunction<Double, Void, Double> ROUND = (value, ctx) -> value;
 
-        addOperator(new PureOperator<Double>("+", 20, true) {
+    static {
+        List<Operator<Double, Void>> operators = new ArrayList<>();
+        List<UnaryOperator<Double, Void>> unaryOperators = new ArrayList<>();
+        List<Function<Double, Void>> functions = new ArrayList<>();
+        Map<String, Double> variables = new HashMap<>();
+
+        operators.add(new DoubleOperator("+", 20, true, DoubleOperator.ADD) {
             @Override
-            public Double eval(Double v1, Double v2) {
+            public double applyAsDouble(double v1, double v2) {
                 return v1 + v2;
             }
         });
-        addOperator(new PureOperator<Double>("-", 20, true) {
+        operators.add(new DoubleOperator("-", 20, true, DoubleOperator.SUBTRACT) {
             @Override
-            public Double eval(Double v1, Double v2) {
+            public double applyAsDouble(double v1, double v2) {
                 return v1 - v2;
             }
         });
-        addOperator(new PureOperator<Double>("*", 30, true) {
+        operators.add(new DoubleOperator("*", 30, true, DoubleOperator.MULTIPLY) {
             @Override
-            public Double eval(Double v1, Double v2) {
+            public double applyAsDouble(double v1, double v2) {
                 return v1 * v2;
             }
         });
-        addOperator(new PureOperator<Double>("/", 30, true) {
+        operators.add(new DoubleOperator("/", 30, true, DoubleOperator.DIVIDE) {
             @Override
-            public Double eval(Double v1, Double v2) {
+            public double applyAsDouble(double v1, double v2) {
                 return v1 / v2;
             }
         });
-        addOperator(new PureOperator<Double>("%", 30, true) {
+        operators.add(new DoubleOperator("%", 30, true, DoubleOperator.REMAINDER) {
             @Override
-            public Double eval(Double v1, Double v2) {
+            public double applyAsDouble(double v1, double v2) {
                 return v1 % v2;
             }
         });
-        addOperator(new PureOperator<Double>("^", 40, false) {
+        operators.add(new DoubleOperator("^", 40, false) {
             @Override
-            public Double eval(Double v1, Double v2) {
+            public double applyAsDouble(double v1, double v2) {
                 return Double.longBitsToDouble(
                     Double.doubleToRawLongBits(v1) ^ Double.doubleToRawLongBits(v2));
             }
         });
-        addOperator(new PureOperator<Double>("&&", 4, false) {
+        operators.add(new DoubleOperator("&&", 4, false, DoubleOperator.AND) {
             @Override
-            public Double eval(Double v1, Double v2) {
-                boolean b1 = !v1.equals(0D);
-                boolean b2 = !v2.equals(0D);
+            public double applyAsDouble(double v1, double v2) {
+                boolean b1 = isTrue(v1);
+                boolean b2 = isTrue(v2);
                 return b1 && b2 ? 1D : 0D;
             }
         });
 
-        addOperator(new PureOperator<Double>("||", 2, false) {
+        operators.add(new DoubleOperator("||", 2, false, DoubleOperator.OR) {
             @Override
-            public Double eval(Double v1, Double v2) {
-                boolean b1 = !v1.equals(0D);
-                boolean b2 = !v2.equals(0D);
+            public double applyAsDouble(double v1, double v2) {
+                boolean b1 = isTrue(v1);
+                boolean b2 = isTrue(v2);
                 return b1 || b2 ? 1D : 0D;
             }
         });
 
-        addOperator(new PureOperator<Double>(">", 10, false) {
+        operators.add(new DoubleOperator(">", 10, false, DoubleOperator.GREATER) {
             @Override
-            public Double eval(Double v1, Double v2) {
-                return v1.compareTo(v2) == 1 ? 1D : 0D;
+            public double applyAsDouble(double v1, double v2) {
+                return Double.compare(v1, v2) > 0 ? 1D : 0D;
             }
         });
 
-        addOperator(new PureOperator<Double>(">=", 10, false) {
+        operators.add(new DoubleOperator(">=", 10, false, DoubleOperator.GREATER_EQUAL) {
             @Override
-            public Double eval(Double v1, Double v2) {
-                return v1.compareTo(v2) >= 0 ? 1D : 0D;
+            public double applyAsDouble(double v1, double v2) {
+                return Double.compare(v1, v2) >= 0 ? 1D : 0D;
             }
         });
 
-        addOperator(new PureOperator<Double>("<", 10, false) {
+        operators.add(new DoubleOperator("<", 10, false, DoubleOperator.LESS) {
             @Override
-            public Double eval(Double v1, Double v2) {
-                return v1.compareTo(v2) == -1 ? 1D
+            public double applyAsDouble(double v1, double v2) {
+                return Double.compare(v1, v2) < 0 ? 1D
                     : 0D;
             }
         });
 
-        addOperator(new PureOperator<Double>("<=", 10, false) {
+        operators.add(new DoubleOperator("<=", 10, false, DoubleOperator.LESS_EQUAL) {
+            @Override
+            public double applyAsDouble(double v1, double v2) {
+                return Double.compare(v1, v2) <= 0 ? 1D : 0D;
+            }
+        });
+
+        operators.add(new DoubleOperator("=", 7, false, DoubleOperator.EQUAL) {
             @Override
-            public Double eval(Double v1, Double v2) {
-                return v1.compareTo(v2) <= 0 ? 1D : 0D;
+            public double applyAsDouble(double v1, double v2) {
+                return Double.compare(v1, v2) == 0 ? 1D : 0D;
+            }
+        });
+        operators.add(new DoubleOperator("==", 7, false, DoubleOperator.EQUAL) {
+            @Override
+            public double applyAsDouble(double v1, double v2) {
+                return Double.compare(v1, v2) == 0 ? 1D : 0D;
             }
         });
 
-        addOperator(new PureOperator<Double>("=", 7, false) {
+        operators.add(new DoubleOperator("!=", 7, false, DoubleOperator.NOT_EQUAL) {
             @Override
-            public Double eval(Double v1, Double v2) {
-                return v1.compareTo(v2) == 0 ? 1D : 0D;
+            public double applyAsDouble(double v1, double v2) {
+                return Double.compare(v1, v2) != 0 ? 1D : 0D;
             }
         });
-        addOperator(new PureOperator<Double>("==", 7, false) {
+        operators.add(new DoubleOperator("<>", 7, false, DoubleOperator.NOT_EQUAL) {
             @Override
-            public Double eval(Double v1, Double v2) {
-                return v1.compareTo(v2) == 0 ? 1D : 0D;
+            public double applyAsDouble(double v1, double v2) {
+                return Double.compare(v1, v2) != 0 ? 1D : 0D;
             }
         });
 
-        addOperator(new PureOperator<Double>("!=", 7, false) {
+        unaryOperators.add(new UnaryOperator<Double, Void>("-", 60, true,
+                UnaryOperator.NEGATE) {
             @Override
-            public Double eval(Double v1, Double v2) {
-                return v1.compareTo(v2) != 0 ? 1D : 0D;
+            public Double eval(Double v, Void ctx) {
+                return -v;
             }
         });
-        addOperator(new PureOperator<Double>("<>", 7, false) {
+
+        unaryOperators.add(new UnaryOperator<Double, Void>("!", 60, true,
+                UnaryOperator.NOT) {
             @Override
-            public Double eval(Double v1, Double v2) {
-                return v1.compareTo(v2) != 0 ? 1D : 0D;
+            public Double eval(Double v, Void ctx) {
+                return isTrue(v.doubleValue()) ? 0D : 1D;
             }
         });
 
-        addFunction(new PureFunction<Double>("NOT", 1) {
+        functions.add(new DoubleFunction("NOT", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                boolean zero = parameters.get(0).compareTo(0D) == 0;
+            public double applyAsDouble(double[] p, int offset, int count) {
+                boolean zero = Double.compare(p[offset], 0D) == 0;
                 return zero ? 1D : 0D;
             }
         });
 
-        addFunction(new PureFunction<Double>("IF", 3) {
+        functions.add(new DoubleFunction("IF", 3) {
+            @Override
+            boolean isConditional() {
+                return true;
+            }
+
             @Override
-            public Double eval(List<Double> parameters) {
-                boolean isTrue = !parameters.get(0).equals(0D);
-                return isTrue ? parameters.get(1) : parameters.get(2);
+            public double applyAsDouble(double[] p, int offset, int count) {
+                boolean isTrue = isTrue(p[offset]);
+                return isTrue ? p[offset + 1] : p[offset + 2];
             }
         });
 
-        addFunction(new PureFunction<Double>("RANDOM", 0) {
+        functions.add(new DoubleFunction("RANDOM", 0) {
             @Override
-            public Double eval(List<Double> parameters) {
+            public boolean isDeterministic() {
+                return false;
+            }
+
+            @Override
+            public double applyAsDouble(double[] p, int offset, int count) {
                 return Math.random();
             }
         });
-        addFunction(new PureFunction<Double>("SIN", 1) {
+        functions.add(new DoubleFunction("SIN", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.sin(Math.toRadians(parameters.get(0)));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.sin(Math.toRadians(p[offset]));
             }
         });
-        addFunction(new PureFunction<Double>("COS", 1) {
+        functions.add(new DoubleFunction("COS", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.cos(Math.toRadians(parameters.get(0)));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.cos(Math.toRadians(p[offset]));
             }
         });
-        addFunction(new PureFunction<Double>("TAN", 1) {
+        functions.add(new DoubleFunction("TAN", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.tan(Math.toRadians(parameters.get(0)));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.tan(Math.toRadians(p[offset]));
             }
         });
-        addFunction(new PureFunction<Double>("ASIN", 1) { // added by av
+        functions.add(new DoubleFunction("ASIN", 1) { // added by av
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.toDegrees(Math.asin(parameters.get(0)));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.toDegrees(Math.asin(p[offset]));
             }
         });
-        addFunction(new PureFunction<Double>("ACOS", 1) { // added by av
+        functions.add(new DoubleFunction("ACOS", 1) { // added by av
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.toDegrees(Math.acos(parameters.get(0)));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.toDegrees(Math.acos(p[offset]));
             }
         });
-        addFunction(new PureFunction<Double>("ATAN", 1) { // added by av
+        functions.add(new DoubleFunction("ATAN", 1) { // added by av
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.toDegrees(Math.atan(parameters.get(0)));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.toDegrees(Math.atan(p[offset]));
             }
         });
-        addFunction(new PureFunction<Double>("SINH", 1) {
+        functions.add(new DoubleFunction("SINH", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.sinh(parameters.get(0));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.sinh(p[offset]);
             }
         });
-        addFunction(new PureFunction<Double>("COSH", 1) {
+        functions.add(new DoubleFunction("COSH", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.cosh(parameters.get(0));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.cosh(p[offset]);
             }
         });
-        addFunction(new PureFunction<Double>("TANH", 1) {
+        functions.add(new DoubleFunction("TANH", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.tanh(parameters.get(0));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.tanh(p[offset]);
             }
         });
-        addFunction(new PureFunction<Double>("RAD", 1) {
+        functions.add(new DoubleFunction("RAD", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.toRadians(parameters.get(0));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.toRadians(p[offset]);
             }
         });
-        addFunction(new PureFunction<Double>("DEG", 1) {
+        functions.add(new DoubleFunction("DEG", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.toDegrees(parameters.get(0));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.toDegrees(p[offset]);
             }
         });
-        addFunction(new PureFunction<Double>("MAX", -1) {
+        functions.add(new DoubleFunction("MAX", -1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                if (parameters.size() == 0) {
+            public double applyAsDouble(double[] p, int offset, int count) {
+                if (count == 0) {
                     throw new ExpressionException("MAX requires at least one parameter");
                 }
-                Double max = null;
-                for (Double parameter : parameters) {
-                    if (max == null || parameter.compareTo(max) > 0) {
-                        max = parameter;
+                double max = p[offset];
+                for (int i = offset + 1; i < offset + count; i++) {
+                    if (Double.compare(p[i], max) > 0) {
+                        max = p[i];
                     }
                 }
                 return max;
             }
         });
-        addFunction(new PureFunction<Double>("MIN", -1) {
+        functions.add(new DoubleFunction("MIN", -1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                if (parameters.size() == 0) {
+            public double applyAsDouble(double[] p, int offset, int count) {
+                if (count == 0) {
                     throw new ExpressionException("MIN requires at least one parameter");
                 }
-                Double min = null;
-                for (Double parameter : parameters) {
-                    if (min == null || parameter.compareTo(min) < 0) {
-                        min = parameter;
+                double min = p[offset];
+                for (int i = offset + 1; i < offset + count; i++) {
+                    if (Double.compare(p[i], min) < 0) {
+                        min = p[i];
                     }
                 }
                 return min;
             }
         });
-        addFunction(new PureFunction<Double>("ABS", 1) {
+        functions.add(new DoubleFunction("ABS", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.abs(parameters.get(0));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.abs(p[offset]);
             }
         });
-        addFunction(new PureFunction<Double>("LOG", 1) {
+        functions.add(new DoubleFunction("LOG", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.log(parameters.get(0));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.log(p[offset]);
             }
         });
-        addFunction(new PureFunction<Double>("LOG10", 1) {
+        functions.add(new DoubleFunction("LOG10", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.log10(parameters.get(0));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.log10(p[offset]);
             }
         });
-        addFunction(new PureFunction<Double>("ROUND", 2) {
+        functions.add(new DoubleFunction("ROUND", 2) {
             @Override
-            public Double eval(List<Double> parameters) {
-                Double toRound = parameters.get(0);
-                int precision = parameters.get(1).intValue();
+            public double applyAsDouble(double[] p, int offset, int count) {
+                double toRound = p[offset];
+                int precision = (int) p[offset + 1];
                 return round(toRound, precision);
             }
         });
-        addFunction(new PureFunction<Double>("FLOOR", 1) {
+        functions.add(new DoubleFunction("FLOOR", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                Double toRound = parameters.get(0);
+            public double applyAsDouble(double[] p, int offset, int count) {
+                double toRound = p[offset];
                 return Math.floor(toRound);
             }
         });
-        addFunction(new PureFunction<Double>("CEILING", 1) {
+        functions.add(new DoubleFunction("CEILING", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                Double toRound = parameters.get(0);
+            public double applyAsDouble(double[] p, int offset, int count) {
+                double toRound = p[offset];
                 return Math.ceil(toRound);
             }
         });
-        addFunction(new PureFunction<Double>("SQRT", 1) {
+        functions.add(new DoubleFunction("SQRT", 1) {
             @Override
-            public Double eval(List<Double> parameters) {
-                return Math.sqrt(parameters.get(0));
+            public double applyAsDouble(double[] p, int offset, int count) {
+                return Math.sqrt(p[offset]);
             }
         });
 
-        setVariable("PI", Math.PI);
-        setVariable("TRUE", 1D);
-        setVariable("FALSE", 0D);
+        variables.put("PI", Math.PI);
+        variables.put("TRUE", 1D);
+        variables.put("FALSE", 0D);
+
+        OPERATORS = OperatorRegistry.of(operators, unaryOperators);
+        FUNCTIONS = FunctionRegistry.of(functions);
+        VARIABLES = Collections.unmodifiableMap(variables);
+        SUM = new DoubleChain((DoubleOperator) OPERATORS.get("+"));
+        PRODUCT = new DoubleChain((DoubleOperator) OPERATORS.get("*"));
+    }
+
+	/**
+	 * Creates a new expression instance from an expression string with a given
+	 * default match context.
+	 *
+	 * @param expression
+	 *            The expression. E.g. <code>"2.4*sin(3)/(2-4)"</code> or
+	 *            {@code "sin(y)>0 & max(z, 3)>3"}
+	 */
+	public DoubleEx(String expression) {
+        super(expression, null, OPERATORS, FUNCTIONS, VARIABLES);
 	}
 
+    /**
+     * Boolean value of a double, any value but (positive) zero is true.
+     *
+     * @param value
+     *            The value.
+     * @return <code>true</code> if the value is not zero.
+     */
+    static boolean isTrue(double value) {
+        return Double.doubleToLongBits(value) != 0L;
+    }
+
     private static double round(double value, int precision) {
         int scale = (int) Math.pow(10, precision);
         return (double) Math.round(value * scale) / scale;
     }
 
+    @Override
+    Predicate<Double> truth() {
+        return value -> isTrue(value.doubleValue());
+    }
+
+    /**
+     * The identities, the division by a power of two as a multiplication
+     * with its reciprocal, the Horner form of polynomials, nested
+     * <code>MIN</code> and <code>MAX</code> calls and chains of
+     * <code>+</code> and <code>*</code>. <code>^</code> is no power here, so
+     * powers stay as they are.
+     */
+    @Override
+    int rewrites() {
+        return Simplifier.IDENTITIES | Simplifier.RECIPROCALS | Simplifier.HORNER
+                | Simplifier.EXTREMA | Simplifier.CHAINS;
+    }
+
+    /**
+     * A chain is evaluated from left to right like the operators, the
+     * results are the same.
+     */
+    @Override
+    Function<Double, Void> chain(String operator) {
+        return "+".equals(operator) ? SUM : "*".equals(operator) ? PRODUCT : null;
+    }
+
     @Override
     public Double round(Double value, Void ctx) {
         return value;
@@ -336,7 +442,22 @@ public class DoubleEx extends Expression<Double,Void> {
 
     @Override
     public Double val(String val, Void ctx) {
-        return new Double(val);
+        return NumberParser.parseDouble(val);
+    }
+
+    @Override
+    public CompiledDoubleExpression compile() {
+        return (CompiledDoubleExpression) super.compile();
+    }
+
+    @Override
+    CompiledExpression<Double, Void> newCompiledExpression(
+            Program<Double, Void> program, Object[] defaults) {
+        // a subclass may parse or round differently
+        boolean builtIn = getClass() == DoubleEx.class;
+        return new CompiledDoubleExpression(program, defaults,
+                builtIn ? PARSE : this::val, builtIn ? ROUND : this::round,
+                getBackend(), getTiering());
     }
 
 }
@@ -0,0 +1,46 @@
+package com.udojava.evalex;
+
+import java.util.List;
+
+/**
+ * Abstract definition of a function working on primitive doubles. The
+ * compiled form of a {@link DoubleEx} passes the parameters as a range of its
+ * operand stack, so no list is created and no value is boxed.
+ */
+public abstract class DoubleFunction extends PureFunction<Double> {
+
+    /**
+     * Creates a new function with given name and parameter count.
+     *
+     * @param name
+     *            The name of the function.
+     * @param numParams
+     *            The number of parameters for this function.
+     *            <code>-1</code> denotes a variable number of parameters.
+     */
+    public DoubleFunction(String name, int numParams) {
+        super(name, numParams);
+    }
+
+    @Override
+    public Double eval(List<Double> parameters) {
+        double[] p = new double[parameters.size()];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = parameters.get(i);
+        }
+        return applyAsDouble(p, 0, p.length);
+    }
+
+    /**
+     * Implementation for this function.
+     *
+     * @param parameters
+     *            The array holding the parameters. It must not be modified.
+     * @param offset
+     *            The index of the first parameter.
+     * @param count
+     *            The number of parameters.
+     * @return The result of the function.
+     */
+    public abstract double applyAsDouble(double[] parameters, int offset, int count);
+}
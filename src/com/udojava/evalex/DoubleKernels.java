@@ -0,0 +1,150 @@
+package com.udojava.evalex;
+
+/**
+ * The loops of a {@link DoubleEx} batch evaluation over the rows of a chunk,
+ * see {@link CompiledDoubleExpression#evalBatch(java.util.Map, double[])}.
+ * This class is the scalar implementation that runs on every Java version.
+ * <br>
+ * On Java 17 and later the multi-release jar contains
+ * <code>VectorDoubleKernels</code>, that processes several rows per
+ * instruction with the incubating Vector API. It is used if the JVM was
+ * started with <code>--add-modules jdk.incubator.vector</code>, and gives
+ * exactly the same results.
+ */
+class DoubleKernels {
+
+    /**
+     * The kernels used by batch evaluations.
+     */
+    static final DoubleKernels INSTANCE = load();
+
+    private static DoubleKernels load() {
+        try {
+            return (DoubleKernels) Class.forName("com.udojava.evalex.VectorDoubleKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // before Java 17, or the vector module is not available
+            return new DoubleKernels();
+        }
+    }
+
+    /**
+     * Applies a built-in operator to two columns, the result replaces the
+     * first. The results are those of
+     * {@link DoubleOperator#applyAsDouble(double, double)}.
+     *
+     * @param kind
+     *            The kind of the operator.
+     * @param a
+     *            The left operands.
+     * @param b
+     *            The right operands.
+     * @param from
+     *            The first row.
+     * @param to
+     *            The row after the last one.
+     * @return <code>false</code> if the operator is not a built-in one.
+     */
+    boolean apply(byte kind, double[] a, double[] b, int from, int to) {
+        switch (kind) {
+        case DoubleOperator.ADD:
+            for (int i = from; i < to; i++) {
+                a[i] += b[i];
+            }
+            return true;
+        case DoubleOperator.SUBTRACT:
+            for (int i = from; i < to; i++) {
+                a[i] -= b[i];
+            }
+            return true;
+        case DoubleOperator.MULTIPLY:
+            for (int i = from; i < to; i++) {
+                a[i] *= b[i];
+            }
+            return true;
+        case DoubleOperator.DIVIDE:
+            for (int i = from; i < to; i++) {
+                a[i] /= b[i];
+            }
+            return true;
+        case DoubleOperator.REMAINDER:
+            // the Vector API has no exact lane operation for it
+            for (int i = from; i < to; i++) {
+                a[i] %= b[i];
+            }
+            return true;
+        case DoubleOperator.AND:
+            for (int i = from; i < to; i++) {
+                a[i] = DoubleEx.isTrue(a[i]) && DoubleEx.isTrue(b[i]) ? 1D : 0D;
+            }
+            return true;
+        case DoubleOperator.OR:
+            for (int i = from; i < to; i++) {
+                a[i] = DoubleEx.isTrue(a[i]) || DoubleEx.isTrue(b[i]) ? 1D : 0D;
+            }
+            return true;
+        case DoubleOperator.GREATER:
+            for (int i = from; i < to; i++) {
+                a[i] = Double.compare(a[i], b[i]) > 0 ? 1D : 0D;
+            }
+            return true;
+        case DoubleOperator.GREATER_EQUAL:
+            for (int i = from; i < to; i++) {
+                a[i] = Double.compare(a[i], b[i]) >= 0 ? 1D : 0D;
+            }
+            return true;
+        case DoubleOperator.LESS:
+            for (int i = from; i < to; i++) {
+                a[i] = Double.compare(a[i], b[i]) < 0 ? 1D : 0D;
+            }
+            return true;
+        case DoubleOperator.LESS_EQUAL:
+            for (int i = from; i < to; i++) {
+                a[i] = Double.compare(a[i], b[i]) <= 0 ? 1D : 0D;
+            }
+            return true;
+        case DoubleOperator.EQUAL:
+            for (int i = from; i < to; i++) {
+                a[i] = Double.compare(a[i], b[i]) == 0 ? 1D : 0D;
+            }
+            return true;
+        case DoubleOperator.NOT_EQUAL:
+            for (int i = from; i < to; i++) {
+                a[i] = Double.compare(a[i], b[i]) != 0 ? 1D : 0D;
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Negates a column in place.
+     */
+    void negate(double[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            a[i] = -a[i];
+        }
+    }
+
+    /**
+     * Gets the truth values of a column, see {@link DoubleEx#isTrue(double)}.
+     */
+    void truth(double[] a, boolean[] truth, int from, int to) {
+        for (int i = from; i < to; i++) {
+            truth[i] = DoubleEx.isTrue(a[i]);
+        }
+    }
+
+    /**
+     * Replaces the values of a column by those of another column, for the
+     * rows whose condition is true.
+     */
+    void blend(double[] a, double[] then, boolean[] condition, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (condition[i]) {
+                a[i] = then[i];
+            }
+        }
+    }
+}
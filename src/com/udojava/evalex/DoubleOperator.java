@@ -0,0 +1,71 @@
+package com.udojava.evalex;
+
+/**
+ * Abstract definition of an operator working on primitive doubles. The
+ * compiled form of a {@link DoubleEx} calls {@link #applyAsDouble(double, double)}
+ * directly, so operands and results are never boxed.
+ */
+public abstract class DoubleOperator extends PureOperator<Double> {
+
+    static final byte ADD = 1;
+    static final byte SUBTRACT = 2;
+    static final byte MULTIPLY = 3;
+    static final byte DIVIDE = 4;
+    static final byte REMAINDER = 5;
+    static final byte AND = 6;
+    static final byte OR = 7;
+    static final byte GREATER = 8;
+    static final byte GREATER_EQUAL = 9;
+    static final byte LESS = 10;
+    static final byte LESS_EQUAL = 11;
+    static final byte EQUAL = 12;
+    static final byte NOT_EQUAL = 13;
+
+    /**
+     * The kind of a built-in operation the generated code of a
+     * {@link Backend#BYTECODE} expression inlines, <code>0</code> for other
+     * operators.
+     */
+    final byte kind;
+
+    /**
+     * Creates a new operator.
+     *
+     * @param oper
+     *            The operator name (pattern).
+     * @param precedence
+     *            The operators precedence.
+     * @param leftAssoc
+     *            <code>true</code> if the operator is left associative,
+     *            else <code>false</code>.
+     */
+    public DoubleOperator(String oper, int precedence, boolean leftAssoc) {
+        this(oper, precedence, leftAssoc, (byte) 0);
+    }
+
+    DoubleOperator(String oper, int precedence, boolean leftAssoc, byte kind) {
+        super(oper, precedence, leftAssoc);
+        this.kind = kind;
+    }
+
+    @Override
+    byte shortCircuit() {
+        return kind == AND ? Program.AND : kind == OR ? Program.OR : 0;
+    }
+
+    @Override
+    public Double eval(Double v1, Double v2) {
+        return applyAsDouble(v1, v2);
+    }
+
+    /**
+     * Implementation for this operator.
+     *
+     * @param v1
+     *            Operand 1.
+     * @param v2
+     *            Operand 2.
+     * @return The result of the operation.
+     */
+    public abstract double applyAsDouble(double v1, double v2);
+}
@@ -27,12 +27,16 @@
 package com.udojava.evalex;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * <h1>EvalEx - Java Expression Evaluator</h1>
@@ -108,6 +112,10 @@ import java.util.Stack;
  * <td>^</td>
  * <td>Power operator</td>
  * </tr>
+ * <tr>
+ * <td>-<i>x</i></td>
+ * <td>Negation</td>
+ * </tr>
  * </table>
  * <br>
  * <table>
@@ -156,10 +164,13 @@ import java.util.Stack;
  * <td>||</td>
  * <td>Boolean or</td>
  * </tr>
+ * <tr>
+ * <td>!<i>x</i></td>
+ * <td>Boolean not</td>
+ * </tr>
  * </table>
  * *Boolean operators result always in a BigDecimal value of 1 or 0 (zero). Any
- * non-zero value is treated as a _true_ value. Boolean _not_ is implemented by
- * a function. <br>
+ * non-zero value is treated as a _true_ value. <br>
  * <h2>Supported Functions</h2>
  * <table>
  * <caption>Functions</caption>
@@ -363,30 +374,78 @@ public abstract class Expression<T extends Number, C> {
 	private String expression = null;
 
 	/**
-	 * The cached RPN (Reverse Polish Notation) of the expression.
+	 * The cached expression tree.
 	 */
-	private List<String> rpn = null;
+	private Node<T,C> tree = null;
+
+	/**
+	 * The cached compiled form of the expression.
+	 */
+	private CompiledExpression<T,C> compiled = null;
+
+	/**
+	 * The variable values for the compiled expression.
+	 */
+	private Bindings<T> bindings = null;
 
 	/**
      * All defined operators with name and implementation.
      */
-	private Map<String, Operator<T,C>> operators = new HashMap<>();
+	private OperatorRegistry<T,C> operators;
+
+	/**
+	 * The predefined operators of the expression type, the ones the
+	 * simplifier may rewrite.
+	 */
+	private final OperatorRegistry<T,C> builtInOperators;
 
 	/**
 	 * All defined functions with name and implementation.
 	 */
-	private Map<String, Function<T,C>> functions = new HashMap<>();
+	private FunctionRegistry<T,C> functions;
+
+	/**
+	 * The predefined functions of the expression type, the ones the
+	 * simplifier may rewrite.
+	 */
+	private final FunctionRegistry<T,C> builtInFunctions;
 
 	/**
 	 * All defined variables with name and value.
 	 */
-	private Map<String, T> variables = new HashMap<>();
+	private Map<String, T> variables;
 
-    /**
-	 * The BigDecimal representation of the left parenthesis,
-	 * used for parsing varying numbers of function parameters.
+	/**
+	 * <code>true</code> while the variables map is shared with other
+	 * expressions, it is copied before the first change.
+	 */
+	private boolean sharedVariables;
+
+	/**
+	 * The subexpressions bound to variables, by variable name, or
+	 * <code>null</code>.
+	 */
+	private Map<String, String> subexpressions = null;
+
+	/**
+	 * The parsed subexpressions, by variable name.
+	 */
+	private Map<String, Node<T,C>> subtrees = null;
+
+	/**
+	 * The cache for the compiled form, or <code>null</code>.
+	 */
+	private ExpressionCache<T,C> cache;
+
+	/**
+	 * The backend for the compiled form.
 	 */
-	private final T PARAMS_START = null;
+	private Backend backend = Backend.INTERPRETER;
+
+	/**
+	 * The tiered execution of the compiled form, or <code>null</code>.
+	 */
+	private TieredCompilation tiering;
 
 	/**
 	 * Creates a new expression instance from an expression string with a given
@@ -397,8 +456,38 @@ public abstract class Expression<T extends Number, C> {
 	 * @param ctx The context to use.
      */
 	public Expression(String expression, C ctx) {
+		this(expression, ctx, OperatorRegistry.<T,C>of(new ArrayList<Operator<T,C>>()),
+				FunctionRegistry.<T,C>of(new ArrayList<Function<T,C>>()),
+				new HashMap<String, T>());
+	}
+
+	/**
+	 * Creates a new expression instance with predefined operators, functions
+	 * and variables. The registries and the variables map are shared, they
+	 * are not changed: adding an operator or function creates a new registry
+	 * for this expression and the variables are copied before the first
+	 * change.
+	 *
+	 * @param expression
+	 *            The expression.
+	 * @param ctx The context to use.
+	 * @param operators
+	 *            The predefined operators.
+	 * @param functions
+	 *            The predefined functions.
+	 * @param variables
+	 *            The predefined variables.
+	 */
+	protected Expression(String expression, C ctx, OperatorRegistry<T,C> operators,
+			FunctionRegistry<T,C> functions, Map<String, T> variables) {
 		this.ctx = ctx;
 		this.expression = expression;
+		this.operators = operators;
+		this.builtInOperators = operators;
+		this.functions = functions;
+		this.builtInFunctions = functions;
+		this.variables = variables;
+		this.sharedVariables = true;
 	}
 
 	/**
@@ -421,98 +510,6 @@ public abstract class Expression<T extends Number, C> {
 		return true;
 	}
 
-	/**
-	 * Implementation of the <i>Shunting Yard</i> algorithm to transform an
-	 * infix expression to a RPN expression.
-	 * 
-	 * @param expression
-	 *            The input expression in infx.
-	 * @return A RPN representation of the expression, with each token as a list
-	 *         member.
-	 */
-	private List<String> shuntingYard(String expression) {
-		List<String> outputQueue = new ArrayList<>();
-		Stack<String> stack = new Stack<>();
-
-		Tokenizer<T,C> tokenizer = new Tokenizer<>(expression, operators);
-
-		String lastFunction = null;
-		String previousToken = null;
-		while (tokenizer.hasNext()) {
-			String token = tokenizer.next();
-			if (isNumber(token)) {
-				outputQueue.add(token);
-			} else if (variables.containsKey(token)) {
-				outputQueue.add(token);
-			} else if (functions.containsKey(token.toUpperCase(Locale.ROOT))) {
-				stack.push(token);
-				lastFunction = token;
-			} else if (Character.isLetter(token.charAt(0))) {
-				stack.push(token);
-			} else if (",".equals(token)) {
-				while (!stack.isEmpty() && !"(".equals(stack.peek())) {
-					outputQueue.add(stack.pop());
-				}
-				if (stack.isEmpty()) {
-					throw new ExpressionException("Parse error for function '"
-							+ lastFunction + "'");
-				}
-			} else if (operators.containsKey(token)) {
-				Operator o1 = operators.get(token);
-				String token2 = stack.isEmpty() ? null : stack.peek();
-				while (operators.containsKey(token2)
-						&& ((o1.isLeftAssoc() && o1.getPrecedence() <= operators
-								.get(token2).getPrecedence()) || (o1
-								.getPrecedence() < operators.get(token2)
-								.getPrecedence()))) {
-					outputQueue.add(stack.pop());
-					token2 = stack.isEmpty() ? null : stack.peek();
-				}
-				stack.push(token);
-			} else if ("(".equals(token)) {
-				if (previousToken != null) {
-					if (isNumber(previousToken)) {
-						throw new ExpressionException(
-								"Missing operator at character position "
-										+ tokenizer.getPos());
-					}
-					// if the ( is preceded by a valid function, then it
-					// denotes the start of a parameter list
-					if (functions.containsKey(previousToken.toUpperCase(Locale.ROOT))) {
-						outputQueue.add(token);
-					}
-				}
-				stack.push(token);
-			} else if (")".equals(token)) {
-				while (!stack.isEmpty() && !"(".equals(stack.peek())) {
-					outputQueue.add(stack.pop());
-				}
-				if (stack.isEmpty()) {
-					throw new RuntimeException("Mismatched parentheses");
-				}
-				stack.pop();
-				if (!stack.isEmpty()
-						&& functions.containsKey(stack.peek().toUpperCase(
-								Locale.ROOT))) {
-					outputQueue.add(stack.pop());
-				}
-			}
-			previousToken = token;
-		}
-		while (!stack.isEmpty()) {
-			String element = stack.pop();
-			if ("(".equals(element) || ")".equals(element)) {
-				throw new RuntimeException("Mismatched parentheses");
-			}
-			if (!operators.containsKey(element)) {
-				throw new RuntimeException("Unknown operator or function: "
-						+ element);
-			}
-			outputQueue.add(element);
-		}
-		return outputQueue;
-	}
-
     /**
      * Round a value using context. Default is no round.
      *
@@ -524,6 +521,49 @@ public abstract class Expression<T extends Number, C> {
         return value;
     }
 
+    /**
+     * Gets the truth value of values, as the built-in logical operators and
+     * the <code>IF</code> function see it. Used to evaluate these with short
+     * circuit. The predicate is kept by the program, so it must not refer
+     * to the expression: a cached program is shared by other expressions.
+     *
+     * @return the truth value of a value
+     */
+    Predicate<T> truth() {
+        return value -> value.doubleValue() != 0;
+    }
+
+    /**
+     * Gets the algebraic rewrites the optimizer may apply to the built-in
+     * operators of this expression type, see {@link Simplifier}. Only the
+     * rewrites that keep the results of the type are enabled.
+     *
+     * @return the rewrites, <code>0</code> for none
+     */
+    int rewrites() {
+        return 0;
+    }
+
+    /**
+     * Gets the n-ary function that evaluates a chain of a built-in
+     * operator, see {@link Simplifier#CHAINS}.
+     *
+     * @param operator the operator, <code>+</code> or <code>*</code>
+     * @return the function, <code>null</code> if the chains of the operator
+     *         stay binary
+     */
+    Function<T,C> chain(String operator) {
+        return null;
+    }
+
+    /**
+     * Drops the compiled form, after a setting of a subclass changed, that
+     * the program depends on.
+     */
+    void recompile() {
+        compiled = null;
+    }
+
     /**
      * Convert a string to a value.
      *
@@ -539,40 +579,8 @@ public abstract class Expression<T extends Number, C> {
 	 * @return The result of the expression.
 	 */
 	public T eval() {
-
-		Stack<T> stack = new Stack<>();
-
-		for (String token : getRPN()) {
-			if (operators.containsKey(token)) {
-				T v1 = stack.pop();
-				T v2 = stack.pop();
-				stack.push(operators.get(token).eval(v2, v1, ctx));
-			} else if (variables.containsKey(token)) {
-				stack.push(round(variables.get(token), ctx));
-			} else if (functions.containsKey(token.toUpperCase(Locale.ROOT))) {
-				Function<T,C> f = functions.get(token.toUpperCase(Locale.ROOT));
-				List<T> p = new ArrayList<>(
-						!f.numParamsVaries() ? f.getNumParams() : 0);
-				// pop parameters off the stack until we hit the start of 
-				// this function's parameter list
-				while (!stack.isEmpty() && stack.peek() != PARAMS_START) {
-					p.add(0, stack.pop());
-				}
-				if (stack.peek() == PARAMS_START) {
-					stack.pop();
-				}
-				if (!f.numParamsVaries() && p.size() != f.getNumParams()) {
-					throw new ExpressionException("Function " + token + " expected " + f.getNumParams() + " parameters, got " + p.size());
-				}
-				T fResult = f.eval(p, ctx);
-				stack.push(fResult);
-			} else if ("(".equals(token)) {
-				stack.push(PARAMS_START);
-			} else {
-				stack.push(val(token, ctx));
-			}
-		}
-		return stack.pop();
+		CompiledExpression<T,C> c = compile();
+		return c.eval(bindings, ctx);
 	}
 
     /**
@@ -603,7 +611,30 @@ public abstract class Expression<T extends Number, C> {
 	 *         there was none.
 	 */
 	public Operator<T,C> addOperator(Operator<T,C> operator) {
-		return operators.put(operator.getOper(), operator);
+		tree = null;
+		subtrees = null;
+		compiled = null;
+		Operator<T,C> previous = operators.get(operator.getOper());
+		operators = operators.with(operator);
+		return previous;
+	}
+
+	/**
+	 * Adds a prefix or postfix operator to the list of supported operators.
+	 * 
+	 * @param operator
+	 *            The operator to add.
+	 * @return The previous operator of the same kind with that name, or
+	 *         <code>null</code> if there was none.
+	 */
+	public UnaryOperator<T,C> addOperator(UnaryOperator<T,C> operator) {
+		tree = null;
+		subtrees = null;
+		compiled = null;
+		UnaryOperator<T,C> previous = operator.isPrefix() ? operators.getPrefix(operator.getOper())
+				: operators.getPostfix(operator.getOper());
+		operators = operators.with(operator);
+		return previous;
 	}
 
 	/**
@@ -615,11 +646,17 @@ public abstract class Expression<T extends Number, C> {
 	 *         there was none.
 	 */
 	public Function<T,C> addFunction(Function<T,C> function) {
-		return functions.put(function.getName(), function);
+		tree = null;
+		subtrees = null;
+		compiled = null;
+		Function<T,C> previous = functions.get(function.getName());
+		functions = functions.with(function);
+		return previous;
 	}
 
 	/**
-	 * Sets a variable value.
+	 * Sets a variable value. A subexpression bound to the variable is
+	 * replaced by the value.
 	 * 
 	 * @param variable
 	 *            The variable name.
@@ -628,12 +665,32 @@ public abstract class Expression<T extends Number, C> {
 	 * @return The expression, allows to chain methods.
 	 */
 	public Expression<T,C> setVariable(String variable, T value) {
+		if (subexpressions != null && subexpressions.remove(variable) != null) {
+			if (subtrees != null) {
+				subtrees.remove(variable);
+			}
+			compiled = null;
+		}
+		if (sharedVariables) {
+			variables = new HashMap<>(variables);
+			sharedVariables = false;
+		}
 		variables.put(variable, value);
+		if (bindings != null) {
+			bindings.set(variable, value);
+		}
 		return this;
 	}
 
 	/**
-	 * Sets a variable value.
+	 * Sets a variable value. If the value is not a number, it is a
+	 * subexpression: it is parsed and compiled on its own, and linked to the
+	 * slot of the variable in the compiled expression. Subexpressions may
+	 * use other subexpressions, a variable used in its own subexpression
+	 * keeps its value. Binding another subexpression to the variable only
+	 * compiles the new one and swaps the link, the program of the
+	 * expression is kept. Subexpressions that refer to each other are
+	 * inlined instead, binding one of them compiles the expression again.
 	 * 
 	 * @param variable
 	 *            The variable to set.
@@ -643,11 +700,21 @@ public abstract class Expression<T extends Number, C> {
 	 */
 	public Expression<T,C> setVariable(String variable, String value) {
 		if (isNumber(value))
-			variables.put(variable, val(value, ctx));
+			setVariable(variable, val(value, ctx));
 		else {
-			expression = expression.replaceAll("\\b" + variable + "\\b", "("
-					+ value + ")");
-			rpn = null;
+			if (subexpressions == null) {
+				subexpressions = new HashMap<>();
+			}
+			if (!value.equals(subexpressions.put(variable, value))) {
+				if (subtrees != null) {
+					subtrees.remove(variable);
+				}
+				CompiledExpression<T,C> c = relink(variable);
+				if (c != compiled) {
+					compiled = c;
+					bindings = c == null ? null : c.bindings();
+				}
+			}
 		}
 		return this;
 	}
@@ -715,67 +782,386 @@ public abstract class Expression<T extends Number, C> {
 	}
 
 	/**
-	 * Cached access to the RPN notation of this expression, ensures only one
-	 * calculation of the RPN per expression instance. If no cached instance
-	 * exists, a new one will be created and put to the cache.
+	 * Cached access to the expression tree, ensures the expression is only
+	 * parsed once per expression instance.
 	 * 
-	 * @return The cached RPN instance.
+	 * @return The cached tree.
 	 */
-	private List<String> getRPN() {
-		if (rpn == null) {
-			rpn = shuntingYard(this.expression);
-			validate(rpn);
+	private Node<T,C> getTree() {
+		if (tree == null) {
+			tree = new Parser<>(expression, operators, functions, variables).parse();
 		}
-		return rpn;
+		return tree;
 	}
 
 	/**
-	 * Check that the expression have enough numbers and variables to fit the 
-	 * requirements of the operators and functions, also check 
-	 * for only 1 result stored at the end of the evaluation.  
-	 *
+	 * Links the subexpressions bound to variables into the expression tree.
+	 * Subexpressions are parsed on first use.
+	 * 
+	 * @param root
+	 *            The root node of the tree.
+	 * @return The linked tree.
 	 */
-	private void validate(List<String> rpn) {
-		/*- 
-		* Thanks to Norman Ramsey:
-		* http://http://stackoverflow.com/questions/789847/postfix-notation-validation
-		*/
-		int counter = 0;
-		Stack<Integer> params = new Stack<>();
-		for (String token : rpn) {
-			if ("(".equals(token)) {
-				// is this a nested function call?
-				if (!params.isEmpty()) {
-					// increment the current function's param count
-					// (the return of the nested function call
-					// will be a parameter for the current function)
-					params.set(params.size() - 1, params.peek() + 1);
+	private Node<T,C> link(Node<T,C> root) {
+		if (subexpressions == null || subexpressions.isEmpty()) {
+			return root;
+		}
+		return root.link(subtrees(), new HashSet<String>());
+	}
+
+	/**
+	 * Gets the trees of the subexpressions, they are parsed on first use.
+	 * 
+	 * @return The trees by variable name.
+	 */
+	private Map<String, Node<T,C>> subtrees() {
+		if (subtrees == null) {
+			subtrees = new HashMap<>();
+		}
+		for (Map.Entry<String, String> e : subexpressions.entrySet()) {
+			if (!subtrees.containsKey(e.getKey())) {
+				subtrees.put(e.getKey(),
+						new Parser<>(e.getValue(), operators, functions, variables).parse());
+			}
+		}
+		return subtrees;
+	}
+
+	/**
+	 * Links the subexpression bound to a variable into the compiled
+	 * expression, in place of the previous one. The program of the
+	 * expression is kept.
+	 * 
+	 * @param variable
+	 *            The variable.
+	 * @return The relinked compiled expression, <code>null</code> if the
+	 *         expression has to be compiled again: it was not compiled yet,
+	 *         its subexpressions were inlined, the variable is used in a
+	 *         conditionally evaluated operand, the new subexpression uses a
+	 *         variable without a slot or refers to a subexpression that
+	 *         refers to it.
+	 */
+	private CompiledExpression<T,C> relink(String variable) {
+		CompiledExpression<T,C> c = compiled;
+		if (c == null || c.links == null) {
+			return null;
+		}
+		Map<String, Node<T,C>> trees = subtrees();
+		if (inlined(trees).contains(variable)) {
+			return null;
+		}
+		int slot = c.slotOf(variable);
+		if (slot < 0) {
+			// neither the expression nor its subexpressions use the variable
+			return c;
+		}
+		Program<T,C> target = program(trees.get(variable).linkBranches(trees,
+				new HashSet<>(Collections.singleton(variable))));
+		List<String> names = c.getVariables();
+		if (!names.containsAll(Arrays.asList(target.variables))) {
+			return null;
+		}
+		List<CompiledExpression.Link<T,C>> links = new ArrayList<>();
+		for (CompiledExpression.Link<T,C> link : c.links) {
+			if (link.slot != slot) {
+				links.add(link);
+			}
+		}
+		links.add(newLink(slot, target, names));
+		CompiledExpression.Link<T,C>[] ordered = CompiledExpression.Link.order(links);
+		if (ordered == null) {
+			return null;
+		}
+		Object[] defaults = defaults(c.program.variables);
+		return c.relink(ctx, defaults, CompiledExpression.Link.rebind(ordered, ctx, defaults));
+	}
+
+	/**
+	 * Gets the variables whose subexpressions are inlined into conditionally
+	 * evaluated operands, directly or through other subexpressions.
+	 * 
+	 * @param trees
+	 *            The trees of the subexpressions by variable name.
+	 * @return The variable names.
+	 */
+	private Set<String> inlined(Map<String, Node<T,C>> trees) {
+		Set<String> names = new HashSet<>();
+		getTree().branchVariables(names);
+		for (Node<T,C> tree : trees.values()) {
+			tree.branchVariables(names);
+		}
+		List<String> pending = new ArrayList<>(names);
+		while (!pending.isEmpty()) {
+			Node<T,C> tree = trees.get(pending.remove(pending.size() - 1));
+			if (tree != null) {
+				Set<String> used = new HashSet<>();
+				tree.variables(used);
+				for (String name : used) {
+					if (names.add(name)) {
+						pending.add(name);
+					}
 				}
-				// start a new parameter count
-				params.push(0);
-			} else if (!params.isEmpty()) {
-				if (functions.containsKey(token.toUpperCase(Locale.ROOT))) {
-					// remove the parameters and the ( from the counter
-					counter -= params.pop() + 1;
-				} else {
-					// increment the current function's param count
-					params.set(params.size() - 1, params.peek() + 1);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Compiles the expression into an immutable form, that can be shared and
+	 * evaluated by many threads at once. The compiled expression is cached,
+	 * it uses the current context and variable values as its defaults.
+	 * 
+	 * @return The compiled expression.
+	 */
+	public CompiledExpression<T,C> compile() {
+		if (compiled == null) {
+			CompiledExpression<T,C> c = cache == null ? build() : cache.compile(this);
+			bindings = c.bindings();
+			compiled = c;
+		}
+		return compiled;
+	}
+
+	/**
+	 * Sets a cache for the compiled form of this expression. If an
+	 * expression with the same text, type, operators and functions was
+	 * compiled with the cache before, {@link #compile()} does not parse the
+	 * expression again.
+	 * 
+	 * @param cache
+	 *            The cache, or <code>null</code>.
+	 * @return The expression, allows to chain methods.
+	 */
+	public Expression<T,C> setCache(ExpressionCache<T,C> cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/**
+	 * Sets the backend that executes the compiled form of this expression.
+	 * 
+	 * @param backend
+	 *            The backend.
+	 * @return The expression, allows to chain methods.
+	 */
+	public Expression<T,C> setBackend(Backend backend) {
+		this.backend = backend;
+		compiled = null;
+		return this;
+	}
+
+	/**
+	 * Gets the backend that executes the compiled form of this expression.
+	 * 
+	 * @return The backend.
+	 */
+	public Backend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Sets the tiered execution of the compiled form. The compiled
+	 * expression is then interpreted until it was evaluated as often as the
+	 * threshold of the tiering, and only then the form of its backend is
+	 * created, in the background.
+	 * 
+	 * @param tiering
+	 *            The tiering, or <code>null</code> to create the form of the
+	 *            backend when the expression is compiled.
+	 * @return The expression, allows to chain methods.
+	 */
+	public Expression<T,C> setTiering(TieredCompilation tiering) {
+		this.tiering = tiering;
+		compiled = null;
+		return this;
+	}
+
+	/**
+	 * Gets the tiered execution of the compiled form.
+	 * 
+	 * @return The tiering, or <code>null</code>.
+	 */
+	public TieredCompilation getTiering() {
+		return tiering;
+	}
+
+	/**
+	 * Parses and compiles the expression.
+	 * 
+	 * @return The compiled expression.
+	 */
+	CompiledExpression<T,C> build() {
+		if (subexpressions == null || subexpressions.isEmpty()) {
+			Program<T,C> p = program(getTree());
+			return newCompiledExpression(p, defaults(p.variables));
+		}
+		CompiledExpression<T,C> linked = buildLinked();
+		if (linked != null) {
+			return linked;
+		}
+		// the subexpressions refer to each other
+		Program<T,C> p = program(link(getTree()));
+		Object[] defaults = defaults(p.variables);
+		return newCompiledExpression(p, defaults).relink(ctx, defaults, null);
+	}
+
+	/**
+	 * Compiles the expression and each subexpression it uses, directly or
+	 * through other subexpressions, on its own. The subexpressions are
+	 * linked to the slots of their variables, the variables only used by
+	 * subexpressions get slots after those of the expression. Linked
+	 * subexpressions are evaluated before the expression, so those used in
+	 * a conditionally evaluated operand are inlined instead, see
+	 * {@link Node#linkBranches(Map, Set)}.
+	 * 
+	 * @return The compiled expression, or <code>null</code> if
+	 *         subexpressions refer to each other.
+	 */
+	private CompiledExpression<T,C> buildLinked() {
+		Map<String, Node<T,C>> trees = subtrees();
+		Program<T,C> p = program(getTree().linkBranches(trees, new HashSet<String>()));
+		List<String> names = new ArrayList<>(Arrays.asList(p.variables));
+		Map<String, Program<T,C>> targets = new HashMap<>();
+		for (int i = 0; i < names.size(); i++) {
+			Node<T,C> tree = trees.get(names.get(i));
+			if (tree != null) {
+				Program<T,C> target = program(tree.linkBranches(trees,
+						new HashSet<>(Collections.singleton(names.get(i)))));
+				targets.put(names.get(i), target);
+				for (String name : target.variables) {
+					if (!names.contains(name)) {
+						names.add(name);
+					}
 				}
-			} else if (operators.containsKey(token)) {
-				//we only have binary operators
-				counter -= 2;
 			}
-			if (counter < 0) {
-				throw new ExpressionException("Too many operators or functions at: "
-					+ token);
+		}
+		List<CompiledExpression.Link<T,C>> links = new ArrayList<>();
+		for (Map.Entry<String, Program<T,C>> e : targets.entrySet()) {
+			links.add(newLink(names.indexOf(e.getKey()), e.getValue(), names));
+		}
+		CompiledExpression.Link<T,C>[] ordered = CompiledExpression.Link.order(links);
+		if (ordered == null) {
+			return null;
+		}
+		if (names.size() > p.variables.length) {
+			p = p.withVariables(names.toArray(new String[names.size()]));
+		}
+		Object[] defaults = defaults(p.variables);
+		return newCompiledExpression(p, defaults).relink(ctx, defaults, ordered);
+	}
+
+	/**
+	 * Compiles a subexpression and links it to a slot.
+	 * 
+	 * @param slot
+	 *            The slot of the variable the subexpression is bound to.
+	 * @param target
+	 *            The program of the subexpression.
+	 * @param names
+	 *            The variable names of the linking expression, by slot.
+	 * @return The link.
+	 */
+	private CompiledExpression.Link<T,C> newLink(int slot, Program<T,C> target,
+			List<String> names) {
+		int[] arguments = new int[target.variables.length];
+		for (int i = 0; i < arguments.length; i++) {
+			arguments[i] = names.indexOf(target.variables[i]);
+		}
+		return new CompiledExpression.Link<>(slot,
+				newCompiledExpression(target, defaults(target.variables)), arguments);
+	}
+
+	/**
+	 * Optimizes and compiles an expression tree.
+	 * 
+	 * @param root
+	 *            The root node of the tree.
+	 * @return The program.
+	 */
+	private Program<T,C> program(Node<T,C> root) {
+		return new ProgramBuilder<T,C>(truth()).build(optimize(root));
+	}
+
+	/**
+	 * Gets the current values of variables.
+	 * 
+	 * @param names
+	 *            The variable names.
+	 * @return The values, <code>null</code> for an unknown variable.
+	 */
+	Object[] defaults(String[] names) {
+		Object[] defaults = new Object[names.length];
+		for (int i = 0; i < defaults.length; i++) {
+			defaults[i] = variables.get(names[i]);
+		}
+		return defaults;
+	}
+
+	/**
+	 * Gets the key of the compiled form in an {@link ExpressionCache}.
+	 * 
+	 * @return The cache key.
+	 */
+	ExpressionCache.Key cacheKey() {
+		List<String> shadowing = null;
+		for (String variable : variables.keySet()) {
+			if (functions.contains(variable.toUpperCase(Locale.ROOT))) {
+				if (shadowing == null) {
+					shadowing = new ArrayList<>();
+				}
+				shadowing.add(variable);
 			}
-			counter++;
 		}
-		if (counter > 1) {
-			throw new ExpressionException("Too many numbers or variables");
-		} else if (counter < 1) {
-			throw new ExpressionException("Empty expression");
+		if (shadowing != null) {
+			Collections.sort(shadowing);
 		}
+		return new ExpressionCache.Key(getClass(), expression,
+				subexpressions == null || subexpressions.isEmpty() ? null
+						: new HashMap<>(subexpressions),
+				backend, tiering, operators, functions, shadowing, rewrites());
+	}
+
+	/**
+	 * Gets the variable values used by {@link #eval()}.
+	 * 
+	 * @return The bindings of the compiled expression.
+	 */
+	Bindings<T> bindings() {
+		compile();
+		return bindings;
+	}
+
+	/**
+	 * Creates the compiled form for a program, subclasses may return a
+	 * specialized implementation.
+	 * 
+	 * @param program
+	 *            The compiled program.
+	 * @param defaults
+	 *            The variable values at compile time, indexed by slot.
+	 * @return The compiled expression.
+	 */
+	CompiledExpression<T,C> newCompiledExpression(Program<T,C> program, Object[] defaults) {
+		// val() is abstract, so the compiled form refers to the expression,
+		// the built-in types pass functions that do not
+		return new CompiledExpression<>(program, ctx, defaults, this::val, this::round);
+	}
+
+	/**
+	 * Optimizes an expression tree. The tree is simplified algebraically,
+	 * see {@link #rewrites()}, then constant subtrees are folded, their
+	 * values are calculated once for each context the expression is
+	 * evaluated with. Finally repeated subtrees are shared, they are
+	 * evaluated once for each evaluation.
+	 * 
+	 * @param root
+	 *            The root node of the tree.
+	 * @return The optimized tree.
+	 */
+	private Node<T,C> optimize(Node<T,C> root) {
+		Node<T,C> folded = new Simplifier<>(rewrites(), operators, builtInOperators,
+				functions, builtInFunctions, chain("+"), chain("*")).simplify(root).fold();
+		return new CommonSubexpressions<T,C>().share(folded);
 	}
 
 	/**
@@ -785,8 +1171,30 @@ public abstract class Expression<T extends Number, C> {
 	 * @return A string with the RPN representation for this expression.
 	 */
 	public String toRPN() {
+		List<String> tokens = new ArrayList<>();
+		link(getTree()).rpn(tokens);
+		StringBuilder result = new StringBuilder();
+		for (String st : tokens) {
+			if (result.length() != 0)
+				result.append(" ");
+			result.append(st);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Get a string representation of the optimized RPN, as it is evaluated.
+	 * Folded constant subexpressions are shown with their value for the
+	 * current context. A subexpression bound to a variable is linked to its
+	 * slot and shown as the variable.
+	 * 
+	 * @return A string with the optimized RPN representation for this
+	 *         expression.
+	 */
+	public String toOptimizedRPN() {
+		CompiledExpression<T,C> c = compile();
 		StringBuilder result = new StringBuilder();
-		for (String st : getRPN()) {
+		for (String st : c.program.toRPN(c.constants(ctx))) {
 			if (result.length() != 0)
 				result.append(" ");
 			result.append(st);
@@ -0,0 +1,297 @@
+package com.udojava.evalex;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * A cache of compiled expressions, that can be shared by all threads of a
+ * process. An expression that uses the cache, see
+ * {@link Expression#setCache(ExpressionCache)}, is only parsed and compiled
+ * if no expression with the same text, the same type and the same operators
+ * and functions was compiled before. Otherwise {@link Expression#compile()}
+ * returns a copy of the cached compiled expression, that only differs in its
+ * default context and variable values.
+ * <br>
+ * Lookups do not lock. The cache is bounded: when the total weight of its
+ * entries exceeds the maximum weight, the least recently used entries are
+ * evicted. Entries can also expire a fixed time after they were added.
+ */
+public class ExpressionCache<T extends Number, C> {
+
+    /**
+     * The cache entries, for the lookup.
+     */
+    private final Map<Key, Cached<T, C>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The cache entries from the least to the most recently used, guarded by
+     * the lock.
+     */
+    private final LinkedHashMap<Key, Cached<T, C>> recency = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final long maximumWeight;
+
+    private final ToIntFunction<String> weigher;
+
+    /**
+     * The time to live in nanoseconds, <code>0</code> if entries do not
+     * expire.
+     */
+    private final long timeToLive;
+
+    /**
+     * The total weight of the entries, guarded by the lock.
+     */
+    private long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a new cache for a maximum number of expressions.
+     *
+     * @param maximumSize
+     *            The maximum number of cached expressions.
+     */
+    public ExpressionCache(int maximumSize) {
+        this(maximumSize, text -> 1, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maximumWeight
+     *            The maximum total weight of the cached expressions.
+     * @param weigher
+     *            The weight of an expression, by its text. E.g.
+     *            <code>String::length</code>.
+     * @param timeToLive
+     *            The time after which an entry expires, <code>0</code> if
+     *            entries do not expire.
+     * @param unit
+     *            The unit of the time to live.
+     */
+    public ExpressionCache(long maximumWeight, ToIntFunction<String> weigher,
+            long timeToLive, TimeUnit unit) {
+        if (maximumWeight < 0 || timeToLive < 0) {
+            throw new IllegalArgumentException("Negative maximum weight or time to live");
+        }
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.timeToLive = unit.toNanos(timeToLive);
+    }
+
+    /**
+     * Gets the compiled form of an expression from the cache, or compiles
+     * and caches it.
+     *
+     * @param expression
+     *            The expression.
+     * @return The compiled expression, with the context and the variable
+     *         values of the expression as its defaults.
+     */
+    CompiledExpression<T, C> compile(Expression<T, C> expression) {
+        Key key = expression.cacheKey();
+        Cached<T, C> entry = entries.get(key);
+        if (entry != null && (timeToLive == 0 || System.nanoTime() - entry.expires < 0)) {
+            hits.increment();
+            // the recency is only updated if no other thread holds the lock
+            if (lock.tryLock()) {
+                try {
+                    recency.get(key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            CompiledExpression<T, C> compiled = entry.compiled;
+            return compiled.rebind(expression.getContext(),
+                    expression.defaults(compiled.program.variables));
+        }
+        misses.increment();
+        CompiledExpression<T, C> compiled = expression.build();
+        add(key, new Cached<>(compiled, weigher.applyAsInt(key.text),
+                System.nanoTime() + timeToLive));
+        return compiled;
+    }
+
+    private void add(Key key, Cached<T, C> entry) {
+        lock.lock();
+        try {
+            Cached<T, C> previous = recency.put(key, entry);
+            entries.put(key, entry);
+            weight += entry.weight;
+            if (previous != null) {
+                // replaces an expired entry, or one another thread added
+                weight -= previous.weight;
+            }
+            Iterator<Map.Entry<Key, Cached<T, C>>> eldest = recency.entrySet().iterator();
+            while (weight > maximumWeight && eldest.hasNext()) {
+                Map.Entry<Key, Cached<T, C>> evicted = eldest.next();
+                eldest.remove();
+                entries.remove(evicted.getKey());
+                weight -= evicted.getValue().weight;
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all entries. The statistics are not reset.
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            recency.clear();
+            entries.clear();
+            weight = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of cached expressions, including expired ones that
+     * were not evicted yet.
+     *
+     * @return The number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the total weight of the cached expressions.
+     *
+     * @return The weight.
+     */
+    public long getWeight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of lookups that found a compiled expression.
+     *
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of lookups that had to compile the expression.
+     *
+     * @return The miss count.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the number of entries that were evicted to keep the cache within
+     * its maximum weight.
+     *
+     * @return The eviction count.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * A cached compiled expression.
+     */
+    private static final class Cached<T extends Number, C> {
+        final CompiledExpression<T, C> compiled;
+        final int weight;
+        final long expires;
+
+        Cached(CompiledExpression<T, C> compiled, int weight, long expires) {
+            this.compiled = compiled;
+            this.weight = weight;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Everything the compiled form of an expression depends on: its type,
+     * text, the subexpressions bound to its variables, backend and tiering,
+     * its operators and functions and the variables that hide functions of
+     * the same name.
+     */
+    static final class Key {
+        final Class<?> type;
+        final String text;
+        final Map<String, String> subexpressions;
+        final Backend backend;
+        final TieredCompilation tiering;
+        final OperatorRegistry<?, ?> operators;
+        final FunctionRegistry<?, ?> functions;
+        final List<String> shadowing;
+
+        /**
+         * The rewrites of the simplifier, they depend on settings of the
+         * expression.
+         */
+        final int rewrites;
+        private final int hash;
+
+        Key(Class<?> type, String text, Map<String, String> subexpressions,
+                Backend backend, TieredCompilation tiering,
+                OperatorRegistry<?, ?> operators, FunctionRegistry<?, ?> functions,
+                List<String> shadowing, int rewrites) {
+            this.type = type;
+            this.text = text;
+            this.subexpressions = subexpressions;
+            this.backend = backend;
+            this.tiering = tiering;
+            this.operators = operators;
+            this.functions = functions;
+            this.shadowing = shadowing;
+            this.rewrites = rewrites;
+            this.hash = Objects.hash(type, text, subexpressions, backend, tiering, operators, functions, shadowing,
+                    rewrites);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && type == other.type
+                    && text.equals(other.text)
+                    && Objects.equals(subexpressions, other.subexpressions)
+                    && backend == other.backend
+                    && tiering == other.tiering
+                    && operators.equals(other.operators)
+                    && functions.equals(other.functions)
+                    && Objects.equals(shadowing, other.shadowing)
+                    && rewrites == other.rewrites;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
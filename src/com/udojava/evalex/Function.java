@@ -1,5 +1,6 @@
 package com.udojava.evalex;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -7,6 +8,10 @@ import java.util.Locale;
  * Abstract definition of a supported expression function. A function is
  * defined by a name, the number of parameters and the actual processing
  * implementation.
+ * <br>
+ * The parameters are copied into a new list for every call. Functions
+ * extending {@link Function1}, {@link Function2} or {@link Function3} get
+ * them directly and {@link FunctionN} gets a view of the operand stack.
  */
 public abstract class Function<T extends Number, C> {
     /**
@@ -45,6 +50,30 @@ public abstract class Function<T extends Number, C> {
         return numParams < 0;
     }
 
+    /**
+     * Tells if the function always returns the same result for the same parameters
+     * and context. Calls of a deterministic function with constant parameters are
+     * folded: the result is calculated once and reused by every evaluation.
+     * Override and return <code>false</code> for functions like
+     * <code>RANDOM</code> or ones with side effects.
+     *
+     * @return <code>true</code> if the function is deterministic.
+     */
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    /**
+     * Tells if this is the built-in <code>IF</code> function, of which only
+     * the branch chosen by the condition is evaluated. Custom functions
+     * always get all their parameters.
+     *
+     * @return <code>true</code> for the built-in <code>IF</code>.
+     */
+    boolean isConditional() {
+        return false;
+    }
+
     /**
      * Implementation for this function.
      *
@@ -57,4 +86,26 @@ public abstract class Function<T extends Number, C> {
      */
     public abstract T eval(List<T> parameters, C ctx);
 
+    /**
+     * Calls this function with parameters from an operand stack.
+     *
+     * @param stack
+     *            The stack holding the parameters, it is not modified.
+     * @param offset
+     *            The index of the first parameter.
+     * @param count
+     *            The number of parameters.
+     * @param ctx
+     *            The context to use.
+     * @return The result of the function.
+     */
+    @SuppressWarnings("unchecked")
+    T call(Object[] stack, int offset, int count, C ctx) {
+        List<T> p = new ArrayList<>(count);
+        for (int i = offset; i < offset + count; i++) {
+            p.add((T) stack[i]);
+        }
+        return eval(p, ctx);
+    }
+
 }
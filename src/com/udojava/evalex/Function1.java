@@ -0,0 +1,42 @@
+package com.udojava.evalex;
+
+import java.util.List;
+
+/**
+ * Abstract definition of a function with one parameter. The parameter is
+ * passed directly, the evaluation creates no list for the call.
+ */
+public abstract class Function1<T extends Number, C> extends Function<T, C> {
+
+    /**
+     * Creates a new function with one parameter.
+     *
+     * @param name
+     *            The name of the function.
+     */
+    public Function1(String name) {
+        super(name, 1);
+    }
+
+    @Override
+    public final T eval(List<T> parameters, C ctx) {
+        return eval(parameters.get(0), ctx);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    final T call(Object[] stack, int offset, int count, C ctx) {
+        return eval((T) stack[offset], ctx);
+    }
+
+    /**
+     * Implementation for this function.
+     *
+     * @param v
+     *            The parameter.
+     * @param ctx
+     *            Context
+     * @return The result of the function.
+     */
+    public abstract T eval(T v, C ctx);
+}
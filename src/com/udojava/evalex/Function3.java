@@ -0,0 +1,46 @@
+package com.udojava.evalex;
+
+import java.util.List;
+
+/**
+ * Abstract definition of a function with three parameters. The parameters
+ * are passed directly, the evaluation creates no list for the call.
+ */
+public abstract class Function3<T extends Number, C> extends Function<T, C> {
+
+    /**
+     * Creates a new function with three parameters.
+     *
+     * @param name
+     *            The name of the function.
+     */
+    public Function3(String name) {
+        super(name, 3);
+    }
+
+    @Override
+    public final T eval(List<T> parameters, C ctx) {
+        return eval(parameters.get(0), parameters.get(1), parameters.get(2), ctx);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    final T call(Object[] stack, int offset, int count, C ctx) {
+        return eval((T) stack[offset], (T) stack[offset + 1], (T) stack[offset + 2], ctx);
+    }
+
+    /**
+     * Implementation for this function.
+     *
+     * @param v1
+     *            The first parameter.
+     * @param v2
+     *            The second parameter.
+     * @param v3
+     *            The third parameter.
+     * @param ctx
+     *            Context
+     * @return The result of the function.
+     */
+    public abstract T eval(T v1, T v2, T v3, C ctx);
+}
@@ -0,0 +1,30 @@
+package com.udojava.evalex;
+
+import java.util.List;
+
+/**
+ * Abstract definition of a function that reads its parameters from a view
+ * of the operand stack instead of a copy. The list passed to
+ * {@link #eval(List, Object)} is read-only and only valid during the call:
+ * the function must neither modify nor keep it.
+ */
+public abstract class FunctionN<T extends Number, C> extends Function<T, C> {
+
+    /**
+     * Creates a new function with given name and parameter count.
+     *
+     * @param name
+     *            The name of the function.
+     * @param numParams
+     *            The number of parameters for this function.
+     *            <code>-1</code> denotes a variable number of parameters.
+     */
+    public FunctionN(String name, int numParams) {
+        super(name, numParams);
+    }
+
+    @Override
+    final T call(Object[] stack, int offset, int count, C ctx) {
+        return eval(new StackSlice<T>(stack, offset, count), ctx);
+    }
+}
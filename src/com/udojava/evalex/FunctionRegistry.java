@@ -0,0 +1,110 @@
+package com.udojava.evalex;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An immutable set of functions, looked up by their name. The built-in
+ * functions of a numeric type are registered once and shared by all its
+ * expressions. Adding a function to an expression creates a new registry
+ * that keeps the shared functions and copies only the added ones.
+ */
+public final class FunctionRegistry<T extends Number, C> {
+
+    /**
+     * The shared functions.
+     */
+    private final Map<String, Function<T, C>> base;
+
+    /**
+     * The added functions, they hide shared ones with the same name.
+     */
+    private final Map<String, Function<T, C>> overlay;
+
+    private FunctionRegistry(Map<String, Function<T, C>> base,
+            Map<String, Function<T, C>> overlay) {
+        this.base = base;
+        this.overlay = overlay;
+    }
+
+    /**
+     * Creates a registry.
+     *
+     * @param functions
+     *            The functions, a later one replaces an earlier one with the
+     *            same name.
+     * @return The registry.
+     */
+    public static <T extends Number, C> FunctionRegistry<T, C> of(
+            Iterable<? extends Function<T, C>> functions) {
+        Map<String, Function<T, C>> base = new HashMap<>();
+        for (Function<T, C> function : functions) {
+            base.put(function.getName(), function);
+        }
+        return new FunctionRegistry<>(base, null);
+    }
+
+    /**
+     * Gets a function.
+     *
+     * @param name
+     *            The function name, in upper case.
+     * @return The function, or <code>null</code> if there is none.
+     */
+    public Function<T, C> get(String name) {
+        if (overlay != null) {
+            Function<T, C> function = overlay.get(name);
+            if (function != null) {
+                return function;
+            }
+        }
+        return base.get(name);
+    }
+
+    /**
+     * Tells if there is a function.
+     *
+     * @param name
+     *            The function name, in upper case.
+     * @return <code>true</code> if there is a function with that name.
+     */
+    public boolean contains(String name) {
+        return (overlay != null && overlay.containsKey(name)) || base.containsKey(name);
+    }
+
+    /**
+     * Creates a registry with an additional function. This registry is not
+     * changed.
+     *
+     * @param function
+     *            The function, it replaces one with the same name.
+     * @return The new registry.
+     */
+    public FunctionRegistry<T, C> with(Function<T, C> function) {
+        Map<String, Function<T, C>> added = overlay == null
+                ? new HashMap<String, Function<T, C>>(4) : new HashMap<>(overlay);
+        added.put(function.getName(), function);
+        return new FunctionRegistry<>(base, added);
+    }
+
+    /**
+     * Two registries are equal if they hold the same functions.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FunctionRegistry)) {
+            return false;
+        }
+        FunctionRegistry<?, ?> other = (FunctionRegistry<?, ?>) o;
+        return (Object) base == other.base && Objects.equals(overlay, other.overlay);
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(base) * 31 + Objects.hashCode(overlay);
+    }
+}
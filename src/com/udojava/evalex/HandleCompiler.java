@@ -0,0 +1,308 @@
+package com.udojava.evalex;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Turns a program on primitive values into a tree of method handles, see
+ * {@link Backend#METHOD_HANDLES}. Every node of the expression becomes a
+ * handle that takes the variable values and returns the value of the node:
+ * literals and folded constants are constant handles, variables are array
+ * element getters, operators, unary operators and functions are bound to
+ * their implementation and the conditional jumps of <code>IF</code>,
+ * <code>&amp;&amp;</code> and <code>||</code> become
+ * {@link MethodHandles#guardWithTest(MethodHandle, MethodHandle, MethodHandle)}.
+ * No class is defined, the JVM compiles the handles itself. The handles
+ * have no place to keep values, a shared subtree is evaluated at each of its
+ * occurrences.
+ */
+final class HandleCompiler {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final Program<?, ?> program;
+
+    /**
+     * The primitive value type, <code>double</code> or <code>long</code>.
+     */
+    private final Class<?> type;
+
+    /**
+     * The type of the variable values, an array of the value type.
+     */
+    private final Class<?> values;
+
+    private final Object constants;
+    private final int[] foldEnds;
+    private final Object[] operators;
+    private final Object[] functions;
+    private final MethodHandle operator;
+    private final MethodHandle unary;
+    private final MethodHandle function;
+
+    /**
+     * Tells if a value is true.
+     */
+    private final MethodHandle truth;
+
+    private HandleCompiler(Program<?, ?> program, Class<?> type, Object constants,
+            int[] foldEnds, Object[] operators, Object[] functions,
+            MethodHandle operator, MethodHandle unary, MethodHandle function,
+            MethodHandle truth) {
+        this.program = program;
+        this.type = type;
+        this.values = Array.newInstance(type, 0).getClass();
+        this.constants = constants;
+        this.foldEnds = foldEnds;
+        this.operators = operators;
+        this.functions = functions;
+        this.operator = operator;
+        this.unary = unary;
+        this.function = function;
+        this.truth = truth;
+    }
+
+    /**
+     * Compiles a {@link DoubleEx} program.
+     *
+     * @param program
+     *            The program.
+     * @param constants
+     *            The constant pool.
+     * @param foldEnds
+     *            The instruction following each folded constant,
+     *            <code>-1</code> if the constant could not be calculated.
+     * @param operators
+     *            The operators, indexed by call site.
+     * @param functions
+     *            The functions, indexed by call site.
+     * @return The compiled expression, it takes the variable values indexed
+     *         by slot.
+     * @throws ReflectiveOperationException
+     *             If a handle can not be created.
+     */
+    static ToDoubleFunction<double[]> compile(Program<Double, Void> program,
+            double[] constants, int[] foldEnds, DoubleOperator[] operators,
+            DoubleFunction[] functions) throws ReflectiveOperationException {
+        MethodHandle handle = new HandleCompiler(program, double.class, constants,
+                foldEnds, operators, functions,
+                LOOKUP.findVirtual(DoubleOperator.class, "applyAsDouble",
+                        MethodType.methodType(double.class, double.class, double.class)),
+                LOOKUP.findStatic(CompiledDoubleExpression.class, "apply",
+                        MethodType.methodType(double.class, UnaryOperator.class, double.class)),
+                LOOKUP.findVirtual(DoubleFunction.class, "applyAsDouble",
+                        MethodType.methodType(double.class, double[].class, int.class, int.class)),
+                LOOKUP.findStatic(DoubleEx.class, "isTrue",
+                        MethodType.methodType(boolean.class, double.class))).compile();
+        return values -> {
+            try {
+                return (double) handle.invokeExact(values);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    /**
+     * Compiles a {@link LongEx} program.
+     *
+     * @param program
+     *            The program.
+     * @param constants
+     *            The constant pool.
+     * @param foldEnds
+     *            The instruction following each folded constant,
+     *            <code>-1</code> if the constant could not be calculated.
+     * @param operators
+     *            The operators, indexed by call site.
+     * @param functions
+     *            The functions, indexed by call site.
+     * @return The compiled expression, it takes the variable values indexed
+     *         by slot.
+     * @throws ReflectiveOperationException
+     *             If a handle can not be created.
+     */
+    static ToLongFunction<long[]> compile(Program<Long, Void> program,
+            long[] constants, int[] foldEnds, LongOperator[] operators,
+            LongFunction[] functions) throws ReflectiveOperationException {
+        MethodHandle handle = new HandleCompiler(program, long.class, constants,
+                foldEnds, operators, functions,
+                LOOKUP.findVirtual(LongOperator.class, "applyAsLong",
+                        MethodType.methodType(long.class, long.class, long.class)),
+                LOOKUP.findStatic(CompiledLongExpression.class, "apply",
+                        MethodType.methodType(long.class, UnaryOperator.class, long.class)),
+                LOOKUP.findVirtual(LongFunction.class, "applyAsLong",
+                        MethodType.methodType(long.class, long[].class, int.class, int.class)),
+                LOOKUP.findStatic(HandleCompiler.class, "isTrue",
+                        MethodType.methodType(boolean.class, long.class))).compile();
+        return values -> {
+            try {
+                return (long) handle.invokeExact(values);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    private static boolean isTrue(long value) {
+        return value != 0;
+    }
+
+    /**
+     * Builds the handle tree by running the program on a stack of handles.
+     */
+    private MethodHandle compile() {
+        byte[] opcodes = program.opcodes;
+        int[] operands = program.operands;
+        List<MethodHandle> stack = new ArrayList<>();
+        // the pending IF calls as condition, then branch and end instruction,
+        // the innermost one ends first
+        List<Object[]> pendingIfs = new ArrayList<>();
+        // the call sites of pending && and || operators, with the opcode
+        List<int[]> pendingJumps = new ArrayList<>();
+        // the handles of the shared subtrees, a handle tree has no place
+        // for their values, so they are evaluated again
+        List<MethodHandle> temps = new ArrayList<>();
+        for (int pc = 0; pc <= opcodes.length; pc++) {
+            while (!pendingIfs.isEmpty()
+                    && pendingIfs.get(pendingIfs.size() - 1)[2].equals(pc)) {
+                Object[] pending = pendingIfs.remove(pendingIfs.size() - 1);
+                MethodHandle otherwise = pop(stack);
+                stack.add(MethodHandles.guardWithTest(
+                        MethodHandles.filterReturnValue((MethodHandle) pending[0], truth),
+                        (MethodHandle) pending[1], otherwise));
+            }
+            if (pc == opcodes.length) {
+                break;
+            }
+            int operand = operands[pc];
+            switch (opcodes[pc]) {
+            case Program.CONST:
+                stack.add(constant(operand));
+                break;
+            case Program.LOAD:
+                stack.add(MethodHandles.insertArguments(
+                        MethodHandles.arrayElementGetter(values), 1, operand));
+                break;
+            case Program.OPERATOR:
+                MethodHandle right = pop(stack);
+                MethodHandle left = pop(stack);
+                int[] jump = pendingJumps.isEmpty() ? null
+                        : pendingJumps.get(pendingJumps.size() - 1);
+                if (jump != null && jump[0] == operand) {
+                    pendingJumps.remove(pendingJumps.size() - 1);
+                    stack.add(shortCircuit(jump[1] == Program.AND, operand, left, right));
+                } else {
+                    stack.add(operator(operand, left, right));
+                }
+                break;
+            case Program.UNARY:
+                stack.add(MethodHandles.filterReturnValue(pop(stack),
+                        unary.bindTo(program.unaryOperators[operand])));
+                break;
+            case Program.STORE:
+                temps.add(stack.get(stack.size() - 1));
+                break;
+            case Program.TEMP:
+                stack.add(temps.get(operand));
+                break;
+            case Program.FUNCTION:
+                int argc = program.argCounts[operand];
+                MethodHandle[] parameters = new MethodHandle[argc];
+                for (int i = argc - 1; i >= 0; i--) {
+                    parameters[i] = pop(stack);
+                }
+                stack.add(function(operand, parameters));
+                break;
+            case Program.FOLD:
+                if (foldEnds[operand] >= 0) {
+                    stack.add(constant(program.literals.length + operand));
+                    pc = foldEnds[operand] - 1;
+                }
+                break;
+            case Program.JUMP:
+                pendingIfs.get(pendingIfs.size() - 1)[1] = pop(stack);
+                pendingIfs.get(pendingIfs.size() - 1)[2] = program.jumpTargets[operand];
+                break;
+            case Program.BRANCH:
+                pendingIfs.add(new Object[] { pop(stack), null, -1 });
+                break;
+            default:
+                pendingJumps.add(new int[] { program.jumpSites[operand], opcodes[pc] });
+            }
+        }
+        return pop(stack);
+    }
+
+    private static MethodHandle pop(List<MethodHandle> stack) {
+        return stack.remove(stack.size() - 1);
+    }
+
+    private MethodHandle constant(int index) {
+        return MethodHandles.dropArguments(
+                MethodHandles.constant(type, Array.get(constants, index)), 0, values);
+    }
+
+    private MethodHandle operator(int site, MethodHandle left, MethodHandle right) {
+        MethodHandle apply = operator.bindTo(operators[site]);
+        return MethodHandles.permuteArguments(
+                MethodHandles.filterArguments(apply, 0, left, right),
+                MethodType.methodType(type, values), 0, 0);
+    }
+
+    /**
+     * The right operand and the operator are only called, if the left
+     * operand does not decide the result of the <code>&amp;&amp;</code> or
+     * <code>||</code>.
+     */
+    private MethodHandle shortCircuit(boolean and, int site, MethodHandle left,
+            MethodHandle right) {
+        // (left value, values) -> operator(left value, right(values))
+        MethodHandle apply = MethodHandles.filterArguments(
+                operator.bindTo(operators[site]), 1, right);
+        // the result is 0 for a false left operand of &&, 1 for a true one of ||
+        int result = and ? 0 : 1;
+        MethodHandle decided = MethodHandles.dropArguments(MethodHandles.constant(type,
+                type == double.class ? (Object) (double) result : (Object) (long) result),
+                0, type, values);
+        MethodHandle test = MethodHandles.dropArguments(truth, 1, values);
+        MethodHandle choice = and ? MethodHandles.guardWithTest(test, apply, decided)
+                : MethodHandles.guardWithTest(test, decided, apply);
+        return MethodHandles.foldArguments(choice, left);
+    }
+
+    private MethodHandle function(int site, MethodHandle[] parameters) {
+        int argc = parameters.length;
+        if (functions[site] instanceof DoubleChain) {
+            // the operators of the chain from left to right, without an
+            // array for the parameters
+            MethodHandle apply = operator.bindTo(((DoubleChain) functions[site]).operator);
+            MethodHandle chain = parameters[0];
+            for (int i = 1; i < argc; i++) {
+                chain = MethodHandles.permuteArguments(
+                        MethodHandles.filterArguments(apply, 0, chain, parameters[i]),
+                        MethodType.methodType(type, values), 0, 0);
+            }
+            return chain;
+        }
+        MethodHandle apply = MethodHandles.insertArguments(
+                function.bindTo(functions[site]), 1, 0, argc)
+                .asCollector(values, argc);
+        if (argc == 0) {
+            return MethodHandles.dropArguments(apply, 0, values);
+        }
+        return MethodHandles.permuteArguments(
+                MethodHandles.filterArguments(apply, 0, parameters),
+                MethodType.methodType(type, values), new int[argc]);
+    }
+}
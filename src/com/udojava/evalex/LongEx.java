@@ -0,0 +1,555 @@
+/*
+ * Copyright 2012 Udo Klimaschewski
+ * 
+ * http://UdoJava.com/
+ * http://about.me/udo.klimaschewski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Long expression. All values are integers, calculations are exact: whenever
+ * a result does not fit into a long, the expression is evaluated again with
+ * {@link BigDecimal} values. Besides the arithmetic and boolean operators,
+ * the bitwise operators <code>&amp;</code>, <code>|</code> and the shift
+ * operators <code>&lt;&lt;</code>, <code>&gt;&gt;</code>,
+ * <code>&gt;&gt;&gt;</code> are supported. The division truncates towards
+ * zero, like the Java long division.
+ */
+public class LongEx extends Expression<Long,Void> {
+
+    /**
+     * The built-in operators, functions and variables, shared by all
+     * expressions of this type.
+     */
+    private static final OperatorRegistry<Long, Void> OPERATORS;
+    private static final FunctionRegistry<Long, Void> FUNCTIONS;
+    private static final Map<String, Long> VARIABLES;
+
+    /**
+     * Parses and rounds the values of compiled expressions. Unlike
+     * <code>this::val</code>, they do not keep the expression that compiled
+     * a cached program reachable.
+     */
+    private static final BiFunction<String, Void, Long> PARSE = (text, ctx) -> Long.valueOf(text);
+    private static final BiFunction<Long, Void, Long> ROUND = (value, ctx) -> value;
+
+    static {
+        List<Operator<Long, Void>> operators = new ArrayList<>();
+        List<UnaryOperator<Long, Void>> unaryOperators = new ArrayList<>();
+        List<Function<Long, Void>> functions = new ArrayList<>();
+        Map<String, Long> variables = new HashMap<>();
+
+        operators.add(new LongOperator("+", 20, true) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return Math.addExact(v1, v2);
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.add(v2);
+            }
+        });
+        operators.add(new LongOperator("-", 20, true) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return Math.subtractExact(v1, v2);
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.subtract(v2);
+            }
+        });
+        operators.add(new LongOperator("*", 30, true) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return Math.multiplyExact(v1, v2);
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.multiply(v2);
+            }
+        });
+        operators.add(new LongOperator("/", 30, true) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                if (v1 == Long.MIN_VALUE && v2 == -1) {
+                    throw new ArithmeticException("long overflow");
+                }
+                return v1 / v2;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return exact(big(v1).divide(big(v2)));
+            }
+        });
+        operators.add(new LongOperator("%", 30, true) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 % v2;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return exact(big(v1).remainder(big(v2)));
+            }
+        });
+        operators.add(new LongOperator("^", 40, false) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                if (v2 < 0) {
+                    return reciprocal(v1, v2 % 2 != 0);
+                }
+                long result = 1;
+                while (v2 > 0) {
+                    if ((v2 & 1) != 0) {
+                        result = Math.multiplyExact(result, v1);
+                    }
+                    v2 >>= 1;
+                    if (v2 > 0) {
+                        v1 = Math.multiplyExact(v1, v1);
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                if (v2.signum() < 0) {
+                    return BigDecimal.valueOf(reciprocal(v1.longValueExact(),
+                            big(v2).testBit(0)));
+                }
+                return v1.pow(v2.intValueExact());
+            }
+        });
+        operators.add(new LongOperator("&", 8, true) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 & v2;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return exact(big(v1).and(big(v2)));
+            }
+        });
+        operators.add(new LongOperator("|", 6, true) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 | v2;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return exact(big(v1).or(big(v2)));
+            }
+        });
+        operators.add(new LongOperator("<<", 15, true) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                checkShift(v2);
+                long result = v1 << v2;
+                if (v2 > 63 || result >> v2 != v1) {
+                    throw new ArithmeticException("long overflow");
+                }
+                return result;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                checkShift(v2.longValueExact());
+                return exact(big(v1).shiftLeft(v2.intValueExact()));
+            }
+        });
+        operators.add(new LongOperator(">>", 15, true) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                checkShift(v2);
+                return v1 >> Math.min(v2, 63);
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                checkShift(v2.longValueExact());
+                int shift = v2.min(BigDecimal.valueOf(Integer.MAX_VALUE)).intValue();
+                return exact(big(v1).shiftRight(shift));
+            }
+        });
+        operators.add(new LongOperator(">>>", 15, true) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                checkShift(v2);
+                return v2 > 63 ? 0 : v1 >>> v2;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                // only defined for 64 bit values
+                return BigDecimal.valueOf(applyAsLong(v1.longValueExact(),
+                        v2.longValueExact()));
+            }
+        });
+        operators.add(new LongOperator("&&", 4, false) {
+            @Override
+            byte shortCircuit() {
+                return Program.AND;
+            }
+
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 != 0 && v2 != 0 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.signum() != 0 && v2.signum() != 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+
+        operators.add(new LongOperator("||", 2, false) {
+            @Override
+            byte shortCircuit() {
+                return Program.OR;
+            }
+
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 != 0 || v2 != 0 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.signum() != 0 || v2.signum() != 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+
+        operators.add(new LongOperator(">", 10, false) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 > v2 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.compareTo(v2) > 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+
+        operators.add(new LongOperator(">=", 10, false) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 >= v2 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.compareTo(v2) >= 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+
+        operators.add(new LongOperator("<", 10, false) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 < v2 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.compareTo(v2) < 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+
+        operators.add(new LongOperator("<=", 10, false) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 <= v2 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.compareTo(v2) <= 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+
+        operators.add(new LongOperator("=", 7, false) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 == v2 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.compareTo(v2) == 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+        operators.add(new LongOperator("==", 7, false) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 == v2 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.compareTo(v2) == 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+
+        operators.add(new LongOperator("!=", 7, false) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 != v2 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.compareTo(v2) != 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+        operators.add(new LongOperator("<>", 7, false) {
+            @Override
+            public long applyAsLong(long v1, long v2) {
+                return v1 != v2 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+                return v1.compareTo(v2) != 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+
+        unaryOperators.add(new UnaryOperator<Long, Void>("-", 60, true,
+                UnaryOperator.NEGATE) {
+            @Override
+            public Long eval(Long v, Void ctx) {
+                return Math.negateExact(v);
+            }
+        });
+
+        unaryOperators.add(new UnaryOperator<Long, Void>("!", 60, true,
+                UnaryOperator.NOT) {
+            @Override
+            public Long eval(Long v, Void ctx) {
+                return v == 0 ? 1L : 0L;
+            }
+        });
+
+        functions.add(new LongFunction("NOT", 1) {
+            @Override
+            public long applyAsLong(long[] p, int offset, int count) {
+                return p[offset] == 0 ? 1 : 0;
+            }
+
+            @Override
+            public BigDecimal applyExact(List<BigDecimal> parameters) {
+                return parameters.get(0).signum() == 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            }
+        });
+
+        functions.add(new LongFunction("IF", 3) {
+            @Override
+            boolean isConditional() {
+                return true;
+            }
+
+            @Override
+            public long applyAsLong(long[] p, int offset, int count) {
+                return p[offset] != 0 ? p[offset + 1] : p[offset + 2];
+            }
+
+            @Override
+            public BigDecimal applyExact(List<BigDecimal> parameters) {
+                boolean isTrue = parameters.get(0).signum() != 0;
+                return isTrue ? parameters.get(1) : parameters.get(2);
+            }
+        });
+        functions.add(new LongFunction("MAX", -1) {
+            @Override
+            public long applyAsLong(long[] p, int offset, int count) {
+                if (count == 0) {
+                    throw new ExpressionException("MAX requires at least one parameter");
+                }
+                long max = p[offset];
+                for (int i = offset + 1; i < offset + count; i++) {
+                    max = Math.max(max, p[i]);
+                }
+                return max;
+            }
+
+            @Override
+            public BigDecimal applyExact(List<BigDecimal> parameters) {
+                BigDecimal max = parameters.get(0);
+                for (BigDecimal parameter : parameters) {
+                    max = max.max(parameter);
+                }
+                return max;
+            }
+        });
+        functions.add(new LongFunction("MIN", -1) {
+            @Override
+            public long applyAsLong(long[] p, int offset, int count) {
+                if (count == 0) {
+                    throw new ExpressionException("MIN requires at least one parameter");
+                }
+                long min = p[offset];
+                for (int i = offset + 1; i < offset + count; i++) {
+                    min = Math.min(min, p[i]);
+                }
+                return min;
+            }
+
+            @Override
+            public BigDecimal applyExact(List<BigDecimal> parameters) {
+                BigDecimal min = parameters.get(0);
+                for (BigDecimal parameter : parameters) {
+                    min = min.min(parameter);
+                }
+                return min;
+            }
+        });
+        functions.add(new LongFunction("ABS", 1) {
+            @Override
+            public long applyAsLong(long[] p, int offset, int count) {
+                if (p[offset] == Long.MIN_VALUE) {
+                    throw new ArithmeticException("long overflow");
+                }
+                return Math.abs(p[offset]);
+            }
+
+            @Override
+            public BigDecimal applyExact(List<BigDecimal> parameters) {
+                return parameters.get(0).abs();
+            }
+        });
+
+        variables.put("TRUE", 1L);
+        variables.put("FALSE", 0L);
+
+        OPERATORS = OperatorRegistry.of(operators, unaryOperators);
+        FUNCTIONS = FunctionRegistry.of(functions);
+        VARIABLES = Collections.unmodifiableMap(variables);
+    }
+
+	/**
+	 * Creates a new expression instance from an expression string.
+	 *
+	 * @param expression
+	 *            The expression. E.g. <code>"(a + 7) / 2"</code> or
+	 *            {@code "flags & 4 != 0"}
+	 */
+	public LongEx(String expression) {
+        super(expression, null, OPERATORS, FUNCTIONS, VARIABLES);
+	}
+
+    /**
+     * Integer result of <code>1 / base^n</code> for a negative exponent.
+     */
+    private static long reciprocal(long base, boolean oddExponent) {
+        if (base == 0) {
+            throw new ExpressionException("Division by zero");
+        }
+        if (base == 1) {
+            return 1;
+        }
+        if (base == -1) {
+            return oddExponent ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private static void checkShift(long shift) {
+        if (shift < 0) {
+            throw new ExpressionException("Negative shift distance: " + shift);
+        }
+    }
+
+    private static BigInteger big(BigDecimal value) {
+        return value.toBigIntegerExact();
+    }
+
+    private static BigDecimal exact(BigInteger value) {
+        return new BigDecimal(value);
+    }
+
+    @Override
+    Predicate<Long> truth() {
+        return value -> value != 0;
+    }
+
+    /**
+     * The identities, small powers, the Horner form of polynomials and
+     * nested <code>MIN</code> and <code>MAX</code> calls, which are exact
+     * for integers: an overflow in the rewritten expression is evaluated
+     * exactly as well. Chains of <code>+</code> and <code>*</code> stay
+     * binary, the operators already check each partial result for an
+     * overflow.
+     */
+    @Override
+    int rewrites() {
+        return Simplifier.IDENTITIES | Simplifier.ADDITIVE_IDENTITIES | Simplifier.POWERS
+                | Simplifier.HORNER | Simplifier.EXTREMA;
+    }
+
+    @Override
+    public Long val(String val, Void ctx) {
+        return Long.valueOf(val);
+    }
+
+    /**
+     * Evaluates the expression exactly.
+     *
+     * @return The result of the expression, even if it does not fit into a
+     *         long.
+     */
+    public BigDecimal evalExact() {
+        return compile().evalExact(bindings());
+    }
+
+    @Override
+    public CompiledLongExpression compile() {
+        return (CompiledLongExpression) super.compile();
+    }
+
+    @Override
+    CompiledExpression<Long, Void> newCompiledExpression(
+            Program<Long, Void> program, Object[] defaults) {
+        // a subclass may parse or round differently
+        boolean builtIn = getClass() == LongEx.class;
+        return new CompiledLongExpression(program, defaults,
+                builtIn ? PARSE : this::val, builtIn ? ROUND : this::round,
+                getBackend(), getTiering());
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * Abstract definition of a function working on primitive longs. The compiled
+ * form of a {@link LongEx} passes the parameters as a range of its operand
+ * stack. If the function throws an {@link ArithmeticException}, the
+ * expression is evaluated again with {@link #applyExact(List)}.
+ */
+public abstract class LongFunction extends PureFunction<Long> {
+
+    /**
+     * Creates a new function with given name and parameter count.
+     *
+     * @param name
+     *            The name of the function.
+     * @param numParams
+     *            The number of parameters for this function.
+     *            <code>-1</code> denotes a variable number of parameters.
+     */
+    public LongFunction(String name, int numParams) {
+        super(name, numParams);
+    }
+
+    @Override
+    public Long eval(List<Long> parameters) {
+        long[] p = new long[parameters.size()];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = parameters.get(i);
+        }
+        return applyAsLong(p, 0, p.length);
+    }
+
+    /**
+     * Implementation for this function.
+     *
+     * @param parameters
+     *            The array holding the parameters. It must not be modified.
+     * @param offset
+     *            The index of the first parameter.
+     * @param count
+     *            The number of parameters.
+     * @return The result of the function.
+     * @throws ArithmeticException
+     *             If the result does not fit into a long.
+     */
+    public abstract long applyAsLong(long[] parameters, int offset, int count);
+
+    /**
+     * Exact implementation for this function, used when the long
+     * implementation overflows. The default implementation does not support
+     * exact evaluation.
+     *
+     * @param parameters
+     *            The parameters, integral values.
+     * @return The result of the function, an integral value.
+     */
+    public BigDecimal applyExact(List<BigDecimal> parameters) {
+        throw new UnsupportedOperationException("Function " + getName()
+                + " has no exact implementation");
+    }
+}
@@ -0,0 +1,62 @@
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+
+/**
+ * Abstract definition of an operator working on primitive longs. The
+ * compiled form of a {@link LongEx} calls {@link #applyAsLong(long, long)}
+ * directly. If it throws an {@link ArithmeticException}, e.g. from one of the
+ * <code>Math.*Exact</code> methods, the expression is evaluated again with
+ * {@link #applyExact(BigDecimal, BigDecimal)}.
+ */
+public abstract class LongOperator extends PureOperator<Long> {
+
+    /**
+     * Creates a new operator.
+     *
+     * @param oper
+     *            The operator name (pattern).
+     * @param precedence
+     *            The operators precedence.
+     * @param leftAssoc
+     *            <code>true</code> if the operator is left associative,
+     *            else <code>false</code>.
+     */
+    public LongOperator(String oper, int precedence, boolean leftAssoc) {
+        super(oper, precedence, leftAssoc);
+    }
+
+    @Override
+    public Long eval(Long v1, Long v2) {
+        return applyAsLong(v1, v2);
+    }
+
+    /**
+     * Implementation for this operator.
+     *
+     * @param v1
+     *            Operand 1.
+     * @param v2
+     *            Operand 2.
+     * @return The result of the operation.
+     * @throws ArithmeticException
+     *             If the result does not fit into a long.
+     */
+    public abstract long applyAsLong(long v1, long v2);
+
+    /**
+     * Exact implementation for this operator, used when the long
+     * implementation overflows. The default implementation does not support
+     * exact evaluation.
+     *
+     * @param v1
+     *            Operand 1, an integral value.
+     * @param v2
+     *            Operand 2, an integral value.
+     * @return The result of the operation, an integral value.
+     */
+    public BigDecimal applyExact(BigDecimal v1, BigDecimal v2) {
+        throw new UnsupportedOperationException("Operator " + getOper()
+                + " has no exact implementation");
+    }
+}
@@ -0,0 +1,619 @@
+package com.udojava.evalex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A node of the expression tree. The {@link Parser} turns an expression into
+ * a tree of nodes, the tree is optimized and then compiled into a
+ * {@link Program} by a {@link ProgramBuilder}.
+ * <br>
+ * Nodes are equal if their trees are structurally equal: the same literals
+ * and variables, combined by the same operators and functions.
+ */
+abstract class Node<T extends Number, C> {
+
+    /**
+     * <code>true</code> if the value of the node only depends on literals and
+     * deterministic operators and functions.
+     */
+    final boolean constant;
+
+    Node(boolean constant) {
+        this.constant = constant;
+    }
+
+    /**
+     * Replaces the constant subtrees of this node by {@link Folded} nodes,
+     * their values are then calculated once for each context.
+     *
+     * @return The folded node.
+     */
+    Node<T, C> fold() {
+        return this;
+    }
+
+    /**
+     * Applies the algebraic rewrites of a simplifier to this node and its
+     * operands.
+     *
+     * @param simplifier
+     *            The simplifier.
+     * @return The simplified node.
+     */
+    Node<T, C> simplify(Simplifier<T, C> simplifier) {
+        return this;
+    }
+
+    /**
+     * Replaces the variables that are bound to subexpressions by the trees
+     * of the subexpressions. Subexpressions may use other subexpressions, a
+     * variable inside its own subexpression stays a variable.
+     *
+     * @param subexpressions
+     *            The trees of the subexpressions by variable name.
+     * @param linking
+     *            The variables whose subexpressions are being linked.
+     * @return The linked node, this node if it uses no subexpression.
+     */
+    Node<T, C> link(Map<String, Node<T, C>> subexpressions, Set<String> linking) {
+        return this;
+    }
+
+    /**
+     * Replaces the variables bound to subexpressions like
+     * {@link #link(Map, Set)}, but only in the operands that are evaluated
+     * conditionally: the branches of a conditional function and the right
+     * operand of a short circuit operator. The other variables stay, their
+     * subexpressions are compiled on their own and evaluated before the
+     * expression, see {@link CompiledExpression.Link}.
+     *
+     * @param subexpressions
+     *            The trees of the subexpressions by variable name.
+     * @param linking
+     *            The variables whose subexpressions are being linked.
+     * @return The linked node, this node if no conditional operand uses a
+     *         subexpression.
+     */
+    Node<T, C> linkBranches(Map<String, Node<T, C>> subexpressions, Set<String> linking) {
+        return this;
+    }
+
+    /**
+     * Adds the names of the variables this node uses.
+     *
+     * @param names
+     *            The variable names.
+     */
+    void variables(Set<String> names) {
+    }
+
+    /**
+     * Adds the names of the variables the conditionally evaluated operands
+     * of this node use, see {@link #linkBranches(Map, Set)}.
+     *
+     * @param names
+     *            The variable names.
+     */
+    void branchVariables(Set<String> names) {
+    }
+
+    /**
+     * Emits the instructions of this node.
+     *
+     * @param builder
+     *            The program builder.
+     */
+    abstract void compile(ProgramBuilder<T, C> builder);
+
+    /**
+     * Appends the RPN tokens of this node.
+     *
+     * @param tokens
+     *            The tokens.
+     */
+    abstract void rpn(List<String> tokens);
+
+    /**
+     * A numeric literal.
+     */
+    static final class Literal<T extends Number, C> extends Node<T, C> {
+        final String text;
+
+        Literal(String text) {
+            super(true);
+            this.text = text;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Literal && text.equals(((Literal<?, ?>) obj).text);
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode();
+        }
+
+        @Override
+        void compile(ProgramBuilder<T, C> builder) {
+            builder.literal(text);
+        }
+
+        @Override
+        void rpn(List<String> tokens) {
+            tokens.add(text);
+        }
+    }
+
+    /**
+     * A variable, its value is bound at evaluation time.
+     */
+    static final class Variable<T extends Number, C> extends Node<T, C> {
+        final String name;
+
+        Variable(String name) {
+            super(false);
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Variable && name.equals(((Variable<?, ?>) obj).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 + name.hashCode();
+        }
+
+        @Override
+        Node<T, C> link(Map<String, Node<T, C>> subexpressions, Set<String> linking) {
+            Node<T, C> subexpression = subexpressions.get(name);
+            if (subexpression == null || !linking.add(name)) {
+                return this;
+            }
+            Node<T, C> linked = subexpression.link(subexpressions, linking);
+            linking.remove(name);
+            return linked;
+        }
+
+        @Override
+        void variables(Set<String> names) {
+            names.add(name);
+        }
+
+        @Override
+        void compile(ProgramBuilder<T, C> builder) {
+            builder.load(name);
+        }
+
+        @Override
+        void rpn(List<String> tokens) {
+            tokens.add(name);
+        }
+    }
+
+    /**
+     * A binary operator applied to two operands.
+     */
+    static final class Operation<T extends Number, C> extends Node<T, C> {
+        final Operator<T, C> operator;
+        final Node<T, C> left;
+        final Node<T, C> right;
+        private final int hash;
+
+        Operation(Operator<T, C> operator, Node<T, C> left, Node<T, C> right) {
+            super(operator.isDeterministic() && left.constant && right.constant);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            hash = (31 * System.identityHashCode(operator) + left.hashCode()) * 31
+                    + right.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Operation)) {
+                return false;
+            }
+            Operation<?, ?> other = (Operation<?, ?>) obj;
+            return hash == other.hash && operator == other.operator
+                    && left.equals(other.left) && right.equals(other.right);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        Node<T, C> fold() {
+            if (constant) {
+                return new Folded<>(this);
+            }
+            return new Operation<>(operator, left.fold(), right.fold());
+        }
+
+        @Override
+        Node<T, C> simplify(Simplifier<T, C> simplifier) {
+            return simplifier.operation(operator, left.simplify(simplifier),
+                    right.simplify(simplifier));
+        }
+
+        @Override
+        Node<T, C> link(Map<String, Node<T, C>> subexpressions, Set<String> linking) {
+            Node<T, C> l = left.link(subexpressions, linking);
+            Node<T, C> r = right.link(subexpressions, linking);
+            return l == left && r == right ? this : new Operation<>(operator, l, r);
+        }
+
+        @Override
+        Node<T, C> linkBranches(Map<String, Node<T, C>> subexpressions, Set<String> linking) {
+            Node<T, C> l = left.linkBranches(subexpressions, linking);
+            Node<T, C> r = operator.shortCircuit() != 0 ? right.link(subexpressions, linking)
+                    : right.linkBranches(subexpressions, linking);
+            return l == left && r == right ? this : new Operation<>(operator, l, r);
+        }
+
+        @Override
+        void variables(Set<String> names) {
+            left.variables(names);
+            right.variables(names);
+        }
+
+        @Override
+        void branchVariables(Set<String> names) {
+            left.branchVariables(names);
+            if (operator.shortCircuit() != 0) {
+                right.variables(names);
+            } else {
+                right.branchVariables(names);
+            }
+        }
+
+        @Override
+        void compile(ProgramBuilder<T, C> builder) {
+            byte shortCircuit = operator.shortCircuit();
+            left.compile(builder);
+            if (shortCircuit == 0) {
+                right.compile(builder);
+                builder.operator(operator);
+            } else {
+                // the jump skips the right operand and the operator
+                int site = builder.site(operator);
+                int jump = builder.jump(shortCircuit, site);
+                right.compile(builder);
+                builder.operator(site);
+                builder.land(jump);
+            }
+        }
+
+        @Override
+        void rpn(List<String> tokens) {
+            left.rpn(tokens);
+            right.rpn(tokens);
+            tokens.add(operator.getOper());
+        }
+    }
+
+    /**
+     * A prefix or postfix operator applied to its operand.
+     */
+    static final class Unary<T extends Number, C> extends Node<T, C> {
+        final UnaryOperator<T, C> operator;
+        final Node<T, C> operand;
+        private final int hash;
+
+        Unary(UnaryOperator<T, C> operator, Node<T, C> operand) {
+            super(operator.isDeterministic() && operand.constant);
+            this.operator = operator;
+            this.operand = operand;
+            hash = 31 * System.identityHashCode(operator) + operand.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Unary)) {
+                return false;
+            }
+            Unary<?, ?> other = (Unary<?, ?>) obj;
+            return hash == other.hash && operator == other.operator
+                    && operand.equals(other.operand);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        Node<T, C> fold() {
+            if (constant) {
+                return new Folded<>(this);
+            }
+            return new Unary<>(operator, operand.fold());
+        }
+
+        @Override
+        Node<T, C> simplify(Simplifier<T, C> simplifier) {
+            Node<T, C> o = operand.simplify(simplifier);
+            return o == operand ? this : new Unary<>(operator, o);
+        }
+
+        @Override
+        Node<T, C> link(Map<String, Node<T, C>> subexpressions, Set<String> linking) {
+            Node<T, C> o = operand.link(subexpressions, linking);
+            return o == operand ? this : new Unary<>(operator, o);
+        }
+
+        @Override
+        Node<T, C> linkBranches(Map<String, Node<T, C>> subexpressions, Set<String> linking) {
+            Node<T, C> o = operand.linkBranches(subexpressions, linking);
+            return o == operand ? this : new Unary<>(operator, o);
+        }
+
+        @Override
+        void variables(Set<String> names) {
+            operand.variables(names);
+        }
+
+        @Override
+        void branchVariables(Set<String> names) {
+            operand.branchVariables(names);
+        }
+
+        @Override
+        void compile(ProgramBuilder<T, C> builder) {
+            operand.compile(builder);
+            builder.unary(operator);
+        }
+
+        @Override
+        void rpn(List<String> tokens) {
+            operand.rpn(tokens);
+            tokens.add(operator.getOper());
+        }
+    }
+
+    /**
+     * A function call.
+     */
+    static final class Call<T extends Number, C> extends Node<T, C> {
+        final Function<T, C> function;
+
+        /**
+         * The name of the function as written in the expression.
+         */
+        final String name;
+        final List<Node<T, C>> parameters;
+        private final int hash;
+
+        Call(Function<T, C> function, String name, List<Node<T, C>> parameters) {
+            super(function.isDeterministic() && allConstant(parameters));
+            this.function = function;
+            this.name = name;
+            this.parameters = parameters;
+            hash = 31 * System.identityHashCode(function) + parameters.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Call)) {
+                return false;
+            }
+            Call<?, ?> other = (Call<?, ?>) obj;
+            return hash == other.hash && function == other.function
+                    && parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private static boolean allConstant(List<? extends Node<?, ?>> nodes) {
+            for (Node<?, ?> node : nodes) {
+                if (!node.constant) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        Node<T, C> fold() {
+            if (constant) {
+                return new Folded<>(this);
+            }
+            List<Node<T, C>> p = new ArrayList<>(parameters.size());
+            for (Node<T, C> parameter : parameters) {
+                p.add(parameter.fold());
+            }
+            return new Call<>(function, name, p);
+        }
+
+        @Override
+        Node<T, C> simplify(Simplifier<T, C> simplifier) {
+            List<Node<T, C>> p = new ArrayList<>(parameters.size());
+            boolean changed = false;
+            for (Node<T, C> parameter : parameters) {
+                Node<T, C> simplified = parameter.simplify(simplifier);
+                changed |= simplified != parameter;
+                p.add(simplified);
+            }
+            return changed ? new Call<>(function, name, p) : this;
+        }
+
+        @Override
+        Node<T, C> link(Map<String, Node<T, C>> subexpressions, Set<String> linking) {
+            List<Node<T, C>> p = new ArrayList<>(parameters.size());
+            boolean changed = false;
+            for (Node<T, C> parameter : parameters) {
+                Node<T, C> linked = parameter.link(subexpressions, linking);
+                changed |= linked != parameter;
+                p.add(linked);
+            }
+            return changed ? new Call<>(function, name, p) : this;
+        }
+
+        @Override
+        Node<T, C> linkBranches(Map<String, Node<T, C>> subexpressions, Set<String> linking) {
+            List<Node<T, C>> p = new ArrayList<>(parameters.size());
+            boolean changed = false;
+            for (int i = 0; i < parameters.size(); i++) {
+                Node<T, C> parameter = parameters.get(i);
+                // only the condition of a conditional function is always evaluated
+                Node<T, C> linked = function.isConditional() && i > 0
+                        ? parameter.link(subexpressions, linking)
+                        : parameter.linkBranches(subexpressions, linking);
+                changed |= linked != parameter;
+                p.add(linked);
+            }
+            return changed ? new Call<>(function, name, p) : this;
+        }
+
+        @Override
+        void variables(Set<String> names) {
+            for (Node<T, C> parameter : parameters) {
+                parameter.variables(names);
+            }
+        }
+
+        @Override
+        void branchVariables(Set<String> names) {
+            for (int i = 0; i < parameters.size(); i++) {
+                if (function.isConditional() && i > 0) {
+                    parameters.get(i).variables(names);
+                } else {
+                    parameters.get(i).branchVariables(names);
+                }
+            }
+        }
+
+        @Override
+        void compile(ProgramBuilder<T, C> builder) {
+            if (function.isConditional()) {
+                // only the branch chosen by the condition is run
+                int site = builder.site(function, parameters.size());
+                parameters.get(0).compile(builder);
+                int otherwise = builder.jump(Program.BRANCH, site);
+                parameters.get(1).compile(builder);
+                int end = builder.jump(Program.JUMP, site);
+                builder.land(otherwise);
+                builder.drop();
+                parameters.get(2).compile(builder);
+                builder.land(end);
+                return;
+            }
+            for (Node<T, C> parameter : parameters) {
+                parameter.compile(builder);
+            }
+            builder.function(function, parameters.size());
+        }
+
+        @Override
+        void rpn(List<String> tokens) {
+            tokens.add("(");
+            for (Node<T, C> parameter : parameters) {
+                parameter.rpn(tokens);
+            }
+            tokens.add(name);
+        }
+    }
+
+    /**
+     * A constant subtree. Its value is calculated when the constant pool for
+     * a context is created. If that fails, the subtree is evaluated like any
+     * other, so an exception is thrown exactly where it would have been
+     * without folding.
+     */
+    static final class Folded<T extends Number, C> extends Node<T, C> {
+        final Node<T, C> expression;
+
+        Folded(Node<T, C> expression) {
+            super(true);
+            this.expression = expression;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Folded && expression.equals(((Folded<?, ?>) obj).expression);
+        }
+
+        @Override
+        public int hashCode() {
+            return ~expression.hashCode();
+        }
+
+        @Override
+        void compile(ProgramBuilder<T, C> builder) {
+            int fold = builder.beginFold();
+            expression.compile(builder);
+            builder.endFold(fold);
+        }
+
+        @Override
+        void rpn(List<String> tokens) {
+            expression.rpn(tokens);
+        }
+    }
+
+    /**
+     * The first evaluation of a subtree that occurs more than once, see
+     * {@link CommonSubexpressions}. Its value is kept in a temporary.
+     */
+    static final class Shared<T extends Number, C> extends Node<T, C> {
+        final Node<T, C> expression;
+
+        Shared(Node<T, C> expression) {
+            super(expression.constant);
+            this.expression = expression;
+        }
+
+        @Override
+        void compile(ProgramBuilder<T, C> builder) {
+            expression.compile(builder);
+            builder.store(this);
+        }
+
+        @Override
+        void rpn(List<String> tokens) {
+            expression.rpn(tokens);
+        }
+    }
+
+    /**
+     * A later occurrence of a shared subtree, it pushes the value of the
+     * temporary.
+     */
+    static final class Reused<T extends Number, C> extends Node<T, C> {
+        final Shared<T, C> shared;
+
+        Reused(Shared<T, C> shared) {
+            super(shared.constant);
+            this.shared = shared;
+        }
+
+        @Override
+        void compile(ProgramBuilder<T, C> builder) {
+            builder.temp(shared);
+        }
+
+        @Override
+        void rpn(List<String> tokens) {
+            shared.rpn(tokens);
+        }
+    }
+}
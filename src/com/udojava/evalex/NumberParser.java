@@ -0,0 +1,270 @@
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * Parses numeric literals and numeric variable values. Decimal numbers of
+ * up to 19 significant digits are read into a long and an exponent, all
+ * other strings are left to the JDK.
+ * <br>
+ * A double is calculated from the long and the exponent with the algorithm
+ * of Clinger if both are small, and with the algorithm of Eisel and Lemire
+ * otherwise: the digits are multiplied with a 128 bit approximation of the
+ * power of ten, which determines the correctly rounded result for every
+ * decimal number of up to 19 digits. The results are the same as
+ * {@link Double#parseDouble(String)}.
+ * <br>
+ * A {@link BigDecimal} of up to 18 digits is created from the long and the
+ * scale, without the parsing and the {@link BigInteger} of the string
+ * constructor.
+ */
+final class NumberParser {
+
+    private static final int MIN_EXPONENT = -342;
+    private static final int MAX_EXPONENT = 308;
+
+    /**
+     * The powers of ten that are exact as doubles.
+     */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    /**
+     * The powers of five from <code>5^-342</code> to <code>5^308</code>,
+     * normalized to 128 bits: the high and the low 64 bits.
+     */
+    private static final long[] HIGH = new long[MAX_EXPONENT - MIN_EXPONENT + 1];
+    private static final long[] LOW = new long[HIGH.length];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        BigInteger five = BigInteger.valueOf(5);
+        for (int q = MIN_EXPONENT; q <= MAX_EXPONENT; q++) {
+            BigInteger c;
+            if (q < 0) {
+                // the reciprocal, rounded up
+                BigInteger power = five.pow(-q);
+                int z = power.bitLength();
+                int b = q >= -27 ? z + 127 : 2 * z + 128;
+                c = BigInteger.ONE.shiftLeft(b).divide(power).add(BigInteger.ONE);
+            } else {
+                c = five.pow(q);
+            }
+            int shift = c.bitLength() - 128;
+            c = shift > 0 ? c.shiftRight(shift) : c.shiftLeft(q < 0 ? 0 : -shift);
+            HIGH[q - MIN_EXPONENT] = c.shiftRight(64).longValue();
+            LOW[q - MIN_EXPONENT] = c.longValue();
+        }
+    }
+
+    private NumberParser() {
+    }
+
+    /**
+     * Parses a double.
+     *
+     * @param s
+     *            The string.
+     * @return The correctly rounded value.
+     * @throws NumberFormatException
+     *             If the string is not a number.
+     */
+    static double parseDouble(String s) {
+        Decimal d = Decimal.scan(s, 19);
+        if (d == null) {
+            return Double.parseDouble(s);
+        }
+        double value = toDouble(d.digits, d.exponent);
+        if (Double.isNaN(value)) {
+            return Double.parseDouble(s);
+        }
+        return d.negative ? -value : value;
+    }
+
+    /**
+     * Parses a {@link BigDecimal}, the same as
+     * {@link BigDecimal#BigDecimal(String, MathContext)}.
+     *
+     * @param s
+     *            The string.
+     * @param mc
+     *            The precision and rounding of the result.
+     * @return The value.
+     * @throws NumberFormatException
+     *             If the string is not a number.
+     */
+    static BigDecimal parseDecimal(String s, MathContext mc) {
+        Decimal d = Decimal.scan(s, 18);
+        if (d == null) {
+            return new BigDecimal(s, mc);
+        }
+        BigDecimal value = BigDecimal.valueOf(d.negative ? -d.digits : d.digits, -d.exponent);
+        return mc.getPrecision() > 0 && d.count > mc.getPrecision() ? value.round(mc) : value;
+    }
+
+    /**
+     * Calculates <code>digits * 10^exponent</code>.
+     *
+     * @return The correctly rounded value, or <code>NaN</code> if it can not
+     *         be determined.
+     */
+    static double toDouble(long digits, int exponent) {
+        if (digits == 0 || exponent < MIN_EXPONENT) {
+            return 0D;
+        }
+        if (exponent > MAX_EXPONENT) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (exponent >= -22 && exponent <= 22 && digits >= 0 && digits <= 1L << 53) {
+            // both are exact doubles, the operation rounds once
+            return exponent < 0 ? digits / POWERS_OF_TEN[-exponent]
+                    : digits * POWERS_OF_TEN[exponent];
+        }
+        int index = exponent - MIN_EXPONENT;
+        int lz = Long.numberOfLeadingZeros(digits);
+        long w = digits << lz;
+        long high = multiplyHigh(w, HIGH[index]);
+        long low = w * HIGH[index];
+        if ((high & 0x1FF) == 0x1FF) {
+            // the bits below the mantissa may carry, use the low bits of the
+            // power as well
+            long carry = multiplyHigh(w, LOW[index]);
+            low += carry;
+            if (Long.compareUnsigned(carry, low) > 0) {
+                high++;
+            }
+        }
+        if (low == -1L && (exponent < -27 || exponent > 55)) {
+            // the approximation may be too small to decide
+            return Double.NaN;
+        }
+        int upperBit = (int) (high >>> 63);
+        int shift = upperBit + 9;
+        long mantissa = high >>> shift;
+        int power2 = (((152170 + 65536) * exponent) >> 16) + 63 + upperBit - lz + 1023;
+        if (power2 <= 0) {
+            // subnormal
+            if (-power2 + 1 >= 64) {
+                return 0D;
+            }
+            mantissa >>>= -power2 + 1;
+            mantissa += mantissa & 1;
+            mantissa >>>= 1;
+            power2 = mantissa < 1L << 52 ? 0 : 1;
+            return Double.longBitsToDouble(mantissa & ((1L << 52) - 1) | (long) power2 << 52);
+        }
+        if (Long.compareUnsigned(low, 1) <= 0 && exponent >= -4 && exponent <= 23
+                && (mantissa & 3) == 1 && mantissa << shift == high) {
+            // exactly halfway, round to even
+            mantissa &= ~1L;
+        }
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        if (mantissa >= 2L << 52) {
+            mantissa = 1L << 52;
+            power2++;
+        }
+        if (power2 >= 0x7FF) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Double.longBitsToDouble(mantissa & ((1L << 52) - 1) | (long) power2 << 52);
+    }
+
+    /**
+     * The high 64 bits of the unsigned product of two longs.
+     */
+    private static long multiplyHigh(long x, long y) {
+        long x0 = x & 0xFFFFFFFFL;
+        long x1 = x >>> 32;
+        long y0 = y & 0xFFFFFFFFL;
+        long y1 = y >>> 32;
+        long p01 = x0 * y1;
+        long middle = x1 * y0 + ((x0 * y0) >>> 32) + (p01 & 0xFFFFFFFFL);
+        return x1 * y1 + (middle >>> 32) + (p01 >>> 32);
+    }
+
+    /**
+     * A decimal number as significant digits and a power of ten.
+     */
+    private static final class Decimal {
+        boolean negative;
+        long digits;
+        int exponent;
+
+        /**
+         * The number of significant digits, from the first non-zero digit
+         * on.
+         */
+        int count;
+
+        /**
+         * Scans a plain decimal number with an optional sign, decimal point
+         * and exponent.
+         *
+         * @param s
+         *            The string.
+         * @param maxDigits
+         *            The maximum number of significant digits.
+         * @return The number, or <code>null</code> if the string is no plain
+         *         decimal number or has more digits.
+         */
+        static Decimal scan(String s, int maxDigits) {
+            int end = s.length();
+            int i = 0;
+            Decimal d = new Decimal();
+            if (i < end && (s.charAt(i) == Constant.minusSign || s.charAt(i) == '+')) {
+                d.negative = s.charAt(i++) == Constant.minusSign;
+            }
+            boolean any = false;
+            boolean fraction = false;
+            for (; i < end; i++) {
+                char ch = s.charAt(i);
+                if (ch >= '0' && ch <= '9') {
+                    any = true;
+                    if (d.count == 0 && ch == '0') {
+                        // leading zero
+                    } else if (d.count < maxDigits) {
+                        d.digits = d.digits * 10 + (ch - '0');
+                        d.count++;
+                    } else {
+                        return null;
+                    }
+                    if (fraction) {
+                        d.exponent--;
+                    }
+                } else if (ch == Constant.decimalSeparator && !fraction) {
+                    fraction = true;
+                } else {
+                    break;
+                }
+            }
+            if (!any) {
+                return null;
+            }
+            if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+                i++;
+                boolean negative = false;
+                if (i < end && (s.charAt(i) == Constant.minusSign || s.charAt(i) == '+')) {
+                    negative = s.charAt(i++) == Constant.minusSign;
+                }
+                int start = i;
+                int exponent = 0;
+                for (; i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++) {
+                    exponent = exponent * 10 + (s.charAt(i) - '0');
+                    if (exponent > 99999) {
+                        return null;
+                    }
+                }
+                if (i == start) {
+                    return null;
+                }
+                d.exponent += negative ? -exponent : exponent;
+            }
+            return i == end ? d : null;
+        }
+    }
+}
@@ -47,6 +47,31 @@ public abstract class Operator<T extends Number, C> {
         return leftAssoc;
     }
 
+    /**
+     * Tells if the operator always returns the same result for the same operands
+     * and context. Calls of a deterministic operator with constant operands are
+     * folded: the result is calculated once and reused by every evaluation.
+     * Override and return <code>false</code> for operators like
+     * <code>RANDOM</code> or ones with side effects.
+     *
+     * @return <code>true</code> if the operator is deterministic.
+     */
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    /**
+     * Tells if this is a built-in logical operator, whose right operand is
+     * not evaluated if the left one decides the result. Custom operators
+     * always get both operands.
+     *
+     * @return {@link Program#AND}, {@link Program#OR} or <code>0</code> if
+     *         both operands are needed.
+     */
+    byte shortCircuit() {
+        return 0;
+    }
+
     /**
      * Implementation for this operator.
      *
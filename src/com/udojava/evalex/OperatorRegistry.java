@@ -0,0 +1,240 @@
+package com.udojava.evalex;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * An immutable set of operators, looked up by their name. The built-in
+ * operators of a numeric type are registered once and shared by all its
+ * expressions. Adding an operator to an expression creates a new registry
+ * that keeps the shared operators and copies only the added ones.
+ * <br>
+ * Binary, prefix and postfix operators have names of their own, the same
+ * name can be used by one operator of each kind.
+ */
+public final class OperatorRegistry<T extends Number, C> {
+
+    /**
+     * The shared operators.
+     */
+    private final Map<String, Operator<T, C>> base;
+
+    /**
+     * The added operators, they hide shared ones with the same name.
+     */
+    private final Map<String, Operator<T, C>> overlay;
+
+    /**
+     * The prefix operators, there are only a few of them.
+     */
+    private final Map<String, UnaryOperator<T, C>> prefixes;
+
+    /**
+     * The postfix operators.
+     */
+    private final Map<String, UnaryOperator<T, C>> postfixes;
+
+    /**
+     * The names of all operators, for lookups without a {@link String}.
+     */
+    private final String[] names;
+
+    private OperatorRegistry(Map<String, Operator<T, C>> base,
+            Map<String, Operator<T, C>> overlay,
+            Map<String, UnaryOperator<T, C>> prefixes,
+            Map<String, UnaryOperator<T, C>> postfixes) {
+        this.base = base;
+        this.overlay = overlay;
+        this.prefixes = prefixes;
+        this.postfixes = postfixes;
+        Set<String> all = new HashSet<>(base.keySet());
+        if (overlay != null) {
+            all.addAll(overlay.keySet());
+        }
+        all.addAll(prefixes.keySet());
+        all.addAll(postfixes.keySet());
+        names = all.toArray(new String[0]);
+    }
+
+    /**
+     * Creates a registry.
+     *
+     * @param operators
+     *            The operators, a later one replaces an earlier one with the
+     *            same name.
+     * @return The registry.
+     */
+    public static <T extends Number, C> OperatorRegistry<T, C> of(
+            Iterable<? extends Operator<T, C>> operators) {
+        return of(operators, Collections.<UnaryOperator<T, C>>emptyList());
+    }
+
+    /**
+     * Creates a registry with unary operators.
+     *
+     * @param operators
+     *            The binary operators, a later one replaces an earlier one
+     *            with the same name.
+     * @param unaryOperators
+     *            The prefix and postfix operators.
+     * @return The registry.
+     */
+    public static <T extends Number, C> OperatorRegistry<T, C> of(
+            Iterable<? extends Operator<T, C>> operators,
+            Iterable<? extends UnaryOperator<T, C>> unaryOperators) {
+        Map<String, Operator<T, C>> base = new HashMap<>();
+        for (Operator<T, C> operator : operators) {
+            base.put(operator.getOper(), operator);
+        }
+        Map<String, UnaryOperator<T, C>> prefixes = new HashMap<>(4);
+        Map<String, UnaryOperator<T, C>> postfixes = new HashMap<>(4);
+        for (UnaryOperator<T, C> operator : unaryOperators) {
+            (operator.isPrefix() ? prefixes : postfixes).put(operator.getOper(), operator);
+        }
+        return new OperatorRegistry<>(base, null, prefixes, postfixes);
+    }
+
+    /**
+     * Gets an operator.
+     *
+     * @param oper
+     *            The operator name.
+     * @return The operator, or <code>null</code> if there is none.
+     */
+    public Operator<T, C> get(String oper) {
+        if (overlay != null) {
+            Operator<T, C> operator = overlay.get(oper);
+            if (operator != null) {
+                return operator;
+            }
+        }
+        return base.get(oper);
+    }
+
+    /**
+     * Tells if there is an operator.
+     *
+     * @param oper
+     *            The operator name.
+     * @return <code>true</code> if there is an operator with that name.
+     */
+    public boolean contains(String oper) {
+        return (overlay != null && overlay.containsKey(oper)) || base.containsKey(oper);
+    }
+
+    /**
+     * Gets a prefix operator.
+     *
+     * @param oper
+     *            The operator name.
+     * @return The operator, or <code>null</code> if there is none.
+     */
+    public UnaryOperator<T, C> getPrefix(String oper) {
+        return prefixes.get(oper);
+    }
+
+    /**
+     * Gets a postfix operator.
+     *
+     * @param oper
+     *            The operator name.
+     * @return The operator, or <code>null</code> if there is none.
+     */
+    public UnaryOperator<T, C> getPostfix(String oper) {
+        return postfixes.get(oper);
+    }
+
+    /**
+     * Tells if there is an operator of any kind, without creating a
+     * {@link String} for its name.
+     *
+     * @param text
+     *            The text that contains the name.
+     * @param start
+     *            The index of the first character of the name.
+     * @param end
+     *            The index after the last character of the name.
+     * @return <code>true</code> if there is an operator with that name.
+     */
+    boolean contains(CharSequence text, int start, int end) {
+        int length = end - start;
+        for (String name : names) {
+            if (name.length() == length && matches(name, text, start)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(String name, CharSequence text, int start) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a registry with an additional operator. This registry is not
+     * changed.
+     *
+     * @param operator
+     *            The operator, it replaces one with the same name.
+     * @return The new registry.
+     */
+    public OperatorRegistry<T, C> with(Operator<T, C> operator) {
+        Map<String, Operator<T, C>> added = overlay == null
+                ? new HashMap<String, Operator<T, C>>(4) : new HashMap<>(overlay);
+        added.put(operator.getOper(), operator);
+        return new OperatorRegistry<>(base, added, prefixes, postfixes);
+    }
+
+    /**
+     * Creates a registry with an additional unary operator. This registry is
+     * not changed.
+     *
+     * @param operator
+     *            The operator, it replaces one of the same kind with the same
+     *            name.
+     * @return The new registry.
+     */
+    public OperatorRegistry<T, C> with(UnaryOperator<T, C> operator) {
+        Map<String, UnaryOperator<T, C>> prefixes = this.prefixes;
+        Map<String, UnaryOperator<T, C>> postfixes = this.postfixes;
+        if (operator.isPrefix()) {
+            prefixes = new HashMap<>(prefixes);
+            prefixes.put(operator.getOper(), operator);
+        } else {
+            postfixes = new HashMap<>(postfixes);
+            postfixes.put(operator.getOper(), operator);
+        }
+        return new OperatorRegistry<>(base, overlay, prefixes, postfixes);
+    }
+
+    /**
+     * Two registries are equal if they hold the same operators.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof OperatorRegistry)) {
+            return false;
+        }
+        OperatorRegistry<?, ?> other = (OperatorRegistry<?, ?>) o;
+        return (Object) base == other.base && Objects.equals(overlay, other.overlay)
+                && prefixes.equals(other.prefixes) && postfixes.equals(other.postfixes);
+    }
+
+    @Override
+    public int hashCode() {
+        return (System.identityHashCode(base) * 31 + Objects.hashCode(overlay)) * 31
+                + prefixes.hashCode() * 7 + postfixes.hashCode();
+    }
+}
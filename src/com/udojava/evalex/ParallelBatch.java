@@ -0,0 +1,141 @@
+package com.udojava.evalex;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates the rows of a batch on several threads, see
+ * {@link CompiledExpression#evalBatchParallel(Number[][], Number[], Object, Executor)}.
+ * <br>
+ * The rows are split into ranges of whole chunks of
+ * {@link BatchEvaluator#CHUNK} rows, so two threads never write the same
+ * part of the result array. There are a few more ranges than threads, and
+ * every thread takes the next free range until none is left, so a slow
+ * thread does not hold up the others. The calling thread works on the
+ * ranges as well: the batch completes even if the executor is busy or
+ * rejects the helpers.
+ * <br>
+ * Each row is calculated independently, so the result does not depend on
+ * the number of threads or the order in which the ranges are evaluated. The
+ * ranges after a failed range are skipped, the exception of the first
+ * failed range is thrown like the exception of a sequential evaluation.
+ */
+final class ParallelBatch {
+
+    /**
+     * The number of ranges per thread.
+     */
+    private static final int RANGES_PER_THREAD = 4;
+
+    /**
+     * Evaluates a range of rows with buffers of its own.
+     */
+    interface Range {
+        void eval(int from, int to);
+    }
+
+    private final int rows;
+    private final int rangeSize;
+    private final int ranges;
+    private final Range range;
+    private final AtomicInteger next = new AtomicInteger();
+    private final CountDownLatch done;
+    private final RuntimeException[] failures;
+    private final Error[] errors;
+
+    /**
+     * The first range that failed, the ranges after it are skipped.
+     */
+    private final AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+
+    private ParallelBatch(int rows, int threads, Range range) {
+        int chunks = (rows + BatchEvaluator.CHUNK - 1) / BatchEvaluator.CHUNK;
+        int count = Math.max(1, Math.min(chunks, threads * RANGES_PER_THREAD));
+        this.rows = rows;
+        this.rangeSize = (chunks + count - 1) / count * BatchEvaluator.CHUNK;
+        this.ranges = Math.max(1, (rows + rangeSize - 1) / rangeSize);
+        this.range = range;
+        done = new CountDownLatch(ranges);
+        failures = new RuntimeException[ranges];
+        errors = new Error[ranges];
+    }
+
+    /**
+     * Evaluates all rows.
+     *
+     * @param rows
+     *            The number of rows.
+     * @param executor
+     *            Runs the helper threads.
+     * @param range
+     *            Evaluates a range of rows.
+     */
+    static void run(int rows, Executor executor, Range range) {
+        // the processors available to the JVM, limited by the CPU quota of a
+        // container
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (rows <= BatchEvaluator.CHUNK || threads == 1) {
+            range.eval(0, rows);
+            return;
+        }
+        new ParallelBatch(rows, threads, range).run(executor, threads);
+    }
+
+    private void run(Executor executor, int threads) {
+        int helpers = Math.min(threads, ranges) - 1;
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(this::work);
+            } catch (RejectedExecutionException e) {
+                // the remaining ranges are evaluated by this thread
+                break;
+            }
+        }
+        work();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // the helpers are still writing to the result
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < ranges; i++) {
+            if (errors[i] != null) {
+                throw errors[i];
+            }
+            if (failures[i] != null) {
+                throw failures[i];
+            }
+        }
+    }
+
+    /**
+     * Evaluates free ranges until none is left.
+     */
+    private void work() {
+        for (int i = next.getAndIncrement(); i < ranges; i = next.getAndIncrement()) {
+            try {
+                if (i < firstFailure.get()) {
+                    int from = i * rangeSize;
+                    range.eval(from, Math.min(rows, from + rangeSize));
+                }
+            } catch (RuntimeException e) {
+                failures[i] = e;
+                firstFailure.accumulateAndGet(i, Math::min);
+            } catch (Error e) {
+                errors[i] = e;
+                firstFailure.accumulateAndGet(i, Math::min);
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
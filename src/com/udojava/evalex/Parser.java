@@ -0,0 +1,270 @@
+package com.udojava.evalex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses an expression into an expression tree in a single pass over its
+ * tokens. Operands are parsed by precedence climbing (a Pratt parser): an
+ * operand may start with prefix operators and is followed by the postfix and
+ * binary operators that bind tighter than the operator it belongs to.
+ * Operators and functions are resolved once, free identifiers become
+ * variables and the parameter counts of function calls are checked while
+ * parsing.
+ * <br>
+ * Binary operators associate like in the <i>Shunting Yard</i> algorithm:
+ * an operator ends the operand of a preceding one with a higher
+ * precedence, or the same precedence if it is left associative.
+ */
+final class Parser<T extends Number, C> {
+
+    private final String expression;
+    private final Tokenizer<T, C> tokenizer;
+    private final OperatorRegistry<T, C> operators;
+    private final FunctionRegistry<T, C> functions;
+    private final Map<String, T> variables;
+
+    /**
+     * The kind of the current token, <code>0</code> at the end of the
+     * expression.
+     */
+    private byte kind;
+
+    /**
+     * The kind of the token before the current one.
+     */
+    private byte previous;
+
+    /**
+     * Creates a parser for an expression.
+     *
+     * @param expression
+     *            The expression.
+     * @param operators
+     *            The operators of the expression.
+     * @param functions
+     *            The functions of the expression.
+     * @param variables
+     *            The variables known at parse time, they hide functions of
+     *            the same name.
+     */
+    Parser(String expression, OperatorRegistry<T, C> operators,
+            FunctionRegistry<T, C> functions, Map<String, T> variables) {
+        this.expression = expression;
+        this.tokenizer = new Tokenizer<>(expression, operators);
+        this.operators = operators;
+        this.functions = functions;
+        this.variables = variables;
+    }
+
+    /**
+     * Parses the expression.
+     *
+     * @return The root node of the tree.
+     * @throws ExpressionException
+     *             If the expression is not valid.
+     */
+    Node<T, C> parse() {
+        try {
+            next();
+            Node<T, C> root = operand(Integer.MIN_VALUE, null);
+            if (kind == Tokenizer.CLOSE) {
+                throw new ExpressionException("Mismatched parentheses");
+            }
+            if (kind != 0) {
+                throw new ExpressionException("Too many numbers or variables");
+            }
+            return root;
+        } catch (ExpressionException e) {
+            // unbalanced parentheses are reported before any other error
+            if (!balanced()) {
+                throw new ExpressionException("Mismatched parentheses");
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Checks if every closing parenthesis of the expression matches an
+     * opening one before it, and every opening parenthesis is closed.
+     */
+    private boolean balanced() {
+        Tokenizer<T, C> tokens = new Tokenizer<>(expression, operators);
+        int depth = 0;
+        while (tokens.advance()) {
+            if (tokens.kind() == Tokenizer.OPEN) {
+                depth++;
+            } else if (tokens.kind() == Tokenizer.CLOSE && --depth < 0) {
+                return false;
+            }
+        }
+        return depth == 0;
+    }
+
+    private void next() {
+        previous = kind;
+        tokenizer.advance();
+        kind = tokenizer.kind();
+    }
+
+    /**
+     * Parses an operand and the operators that bind tighter than the
+     * operator it belongs to.
+     *
+     * @param precedence
+     *            The precedence of the operator the operand belongs to.
+     * @param owner
+     *            The operator or function the operand belongs to, named in
+     *            the error if it is missing, or <code>null</code>.
+     * @return The operand.
+     */
+    private Node<T, C> operand(int precedence, String owner) {
+        Node<T, C> left = primary(owner);
+        while (true) {
+            switch (kind) {
+            case 0:
+            case Tokenizer.CLOSE:
+            case Tokenizer.COMMA:
+                return left;
+            case Tokenizer.OPEN:
+                if (previous == Tokenizer.NUMBER) {
+                    throw new ExpressionException("Missing operator at character position "
+                            + tokenizer.getPos());
+                }
+                throw new ExpressionException("Too many numbers or variables");
+            case Tokenizer.NUMBER:
+                throw new ExpressionException("Too many numbers or variables");
+            default:
+                String token = tokenizer.text();
+                Operator<T, C> operator = operators.get(token);
+                if (operator != null) {
+                    int p = operator.getPrecedence();
+                    if (p < precedence || (p == precedence && operator.isLeftAssoc())) {
+                        return left;
+                    }
+                    next();
+                    left = new Node.Operation<>(operator, left, operand(p, token));
+                    break;
+                }
+                UnaryOperator<T, C> postfix = operators.getPostfix(token);
+                if (postfix != null) {
+                    if (postfix.getPrecedence() <= precedence) {
+                        return left;
+                    }
+                    next();
+                    left = new Node.Unary<>(postfix, left);
+                    break;
+                }
+                if (kind == Tokenizer.IDENTIFIER) {
+                    throw new ExpressionException("Too many numbers or variables");
+                }
+                throw new ExpressionException("Missing operator at character position "
+                        + (tokenizer.getPos() - tokenizer.length() + 1));
+            }
+        }
+    }
+
+    /**
+     * Parses a literal, variable, function call, parenthesized operand or a
+     * prefix operator and its operand.
+     */
+    private Node<T, C> primary(String owner) {
+        switch (kind) {
+        case Tokenizer.NUMBER:
+            Node<T, C> literal = new Node.Literal<>(tokenizer.text());
+            next();
+            return literal;
+        case Tokenizer.OPEN:
+            next();
+            Node<T, C> inner = operand(Integer.MIN_VALUE, owner);
+            close();
+            return inner;
+        case Tokenizer.IDENTIFIER:
+            String name = tokenizer.text();
+            if (variables.containsKey(name)) {
+                next();
+                return new Node.Variable<>(name);
+            }
+            Function<T, C> function = functions.get(name.toUpperCase(Locale.ROOT));
+            if (function != null) {
+                return call(function, name);
+            }
+            UnaryOperator<T, C> prefix = operators.getPrefix(name);
+            if (prefix != null) {
+                return prefix(prefix, name);
+            }
+            next();
+            if (kind == Tokenizer.OPEN) {
+                throw new ExpressionException("Unknown operator or function: " + name);
+            }
+            // not bound yet, the value is provided at evaluation time
+            return new Node.Variable<>(name);
+        case Tokenizer.OPERATOR:
+            String token = tokenizer.text();
+            prefix = operators.getPrefix(token);
+            if (prefix != null) {
+                return prefix(prefix, token);
+            }
+            throw missing(owner != null ? owner : token);
+        default:
+            throw missing(owner);
+        }
+    }
+
+    private Node<T, C> prefix(UnaryOperator<T, C> operator, String token) {
+        next();
+        return new Node.Unary<>(operator, operand(operator.getPrecedence(), token));
+    }
+
+    /**
+     * Parses the parameter list of a function call and checks the number of
+     * parameters.
+     */
+    private Node<T, C> call(Function<T, C> function, String name) {
+        next();
+        if (kind != Tokenizer.OPEN) {
+            throw new ExpressionException("Unknown operator or function: " + name);
+        }
+        next();
+        List<Node<T, C>> parameters = new ArrayList<>();
+        if (kind != Tokenizer.CLOSE) {
+            parameters.add(operand(Integer.MIN_VALUE, name));
+            while (kind == Tokenizer.COMMA) {
+                next();
+                parameters.add(operand(Integer.MIN_VALUE, name));
+            }
+        }
+        close();
+        if (!function.numParamsVaries() && parameters.size() != function.getNumParams()) {
+            throw new ExpressionException("Function " + name + " expected "
+                    + function.getNumParams() + " parameters, got " + parameters.size());
+        }
+        return new Node.Call<>(function, name, parameters);
+    }
+
+    private void close() {
+        if (kind == Tokenizer.COMMA) {
+            throw new ExpressionException("Too many numbers or variables");
+        }
+        if (kind != Tokenizer.CLOSE) {
+            throw new ExpressionException("Mismatched parentheses");
+        }
+        next();
+    }
+
+    /**
+     * The error for a missing operand.
+     *
+     * @param owner
+     *            The operator or function that misses the operand, or
+     *            <code>null</code> if the expression is empty.
+     */
+    private static ExpressionException missing(String owner) {
+        if (owner == null) {
+            return new ExpressionException("Empty expression");
+        }
+        return new ExpressionException("Too many operators or functions at: " + owner);
+    }
+}
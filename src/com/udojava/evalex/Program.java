@@ -0,0 +1,405 @@
+package com.udojava.evalex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Compiled form of an expression. The expression tree is turned once into a
+ * flat instruction array: operators and functions are referenced directly,
+ * numeric literals are collected into a constant pool and variables are
+ * addressed by their slot index. Evaluation then runs over a plain array
+ * stack without any map lookups or string handling. A subtree that occurs
+ * more than once is evaluated once into a temporary, see
+ * {@link CommonSubexpressions}.
+ * <br>
+ * A program is immutable and does not depend on a context, the literals are
+ * parsed into constant values by the {@link CompiledExpression} for each
+ * context it is evaluated with.
+ */
+final class Program<T extends Number, C> {
+
+    /**
+     * Push a constant from the constant pool.
+     */
+    static final byte CONST = 0;
+    /**
+     * Push the value of a variable slot.
+     */
+    static final byte LOAD = 1;
+    /**
+     * Apply a binary operator to the two topmost stack values.
+     */
+    static final byte OPERATOR = 2;
+    /**
+     * Call a function with the topmost stack values as parameters.
+     */
+    static final byte FUNCTION = 3;
+    /**
+     * Push a folded constant and jump over the instructions of its subtree.
+     * If the constant could not be calculated, the subtree is run instead.
+     */
+    static final byte FOLD = 4;
+    /**
+     * Jump to the target of the jump.
+     */
+    static final byte JUMP = 5;
+    /**
+     * Pop the topmost stack value and jump if it is false, the condition of
+     * an <code>IF</code>.
+     */
+    static final byte BRANCH = 6;
+    /**
+     * Jump over the right operand and the operator if the left operand of a
+     * logical and is false, the result is then false.
+     */
+    static final byte AND = 7;
+    /**
+     * Jump over the right operand and the operator if the left operand of a
+     * logical or is true, the result is then true.
+     */
+    static final byte OR = 8;
+    /**
+     * Apply a unary operator to the topmost stack value.
+     */
+    static final byte UNARY = 9;
+    /**
+     * Store the topmost stack value into a temporary, it stays on the stack.
+     */
+    static final byte STORE = 10;
+    /**
+     * Push the value of a temporary.
+     */
+    static final byte TEMP = 11;
+
+    /**
+     * The instruction codes.
+     */
+    final byte[] opcodes;
+    /**
+     * The instruction operands, an index into the table of the instruction.
+     */
+    final int[] operands;
+    /**
+     * The numeric literals, indexed by constant.
+     */
+    final String[] literals;
+    /**
+     * The variable names, indexed by slot.
+     */
+    final String[] variables;
+    /**
+     * The operators, indexed by call site.
+     */
+    final Operator<T, C>[] operators;
+    /**
+     * The unary operators, indexed by call site.
+     */
+    final UnaryOperator<T, C>[] unaryOperators;
+    /**
+     * The functions, indexed by call site.
+     */
+    final Function<T, C>[] functions;
+    /**
+     * The number of parameters passed to each function call site.
+     */
+    final int[] argCounts;
+    /**
+     * The first instruction of the subtree of each folded constant.
+     */
+    final int[] foldStarts;
+    /**
+     * The instruction following the subtree of each folded constant.
+     */
+    final int[] foldEnds;
+    /**
+     * The target instruction of each jump.
+     */
+    final int[] jumpTargets;
+    /**
+     * The call site of the operator or function each jump belongs to.
+     */
+    final int[] jumpSites;
+    /**
+     * The truth value of a value, used by the conditional jumps.
+     */
+    final Predicate<? super T> truth;
+    /**
+     * The maximum stack depth needed to run this program.
+     */
+    final int maxStack;
+    /**
+     * The number of temporaries for shared subtrees.
+     */
+    final int temps;
+
+    Program(byte[] opcodes, int[] operands, String[] literals, String[] variables,
+            Operator<T, C>[] operators, UnaryOperator<T, C>[] unaryOperators,
+            Function<T, C>[] functions, int[] argCounts, int[] foldStarts,
+            int[] foldEnds, int[] jumpTargets, int[] jumpSites,
+            Predicate<? super T> truth, int maxStack, int temps) {
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.literals = literals;
+        this.variables = variables;
+        this.operators = operators;
+        this.unaryOperators = unaryOperators;
+        this.functions = functions;
+        this.argCounts = argCounts;
+        this.foldStarts = foldStarts;
+        this.foldEnds = foldEnds;
+        this.jumpTargets = jumpTargets;
+        this.jumpSites = jumpSites;
+        this.truth = truth;
+        this.maxStack = maxStack;
+        this.temps = temps;
+    }
+
+    /**
+     * Creates a program with the same instructions, that uses other
+     * implementations for its operators and functions.
+     *
+     * @param operators
+     *            The operators, indexed by call site.
+     * @param unaryOperators
+     *            The unary operators, indexed by call site.
+     * @param functions
+     *            The functions, indexed by call site.
+     * @param truth
+     *            The truth value of a value.
+     * @return The new program.
+     */
+    <U extends Number, D> Program<U, D> withImplementations(
+            Operator<U, D>[] operators, UnaryOperator<U, D>[] unaryOperators,
+            Function<U, D>[] functions, Predicate<? super U> truth) {
+        return new Program<>(opcodes, operands, literals, variables,
+                operators, unaryOperators, functions, argCounts, foldStarts,
+                foldEnds, jumpTargets, jumpSites, truth, maxStack, temps);
+    }
+
+    /**
+     * Creates a program with the same instructions and more variable slots.
+     * The slots that follow those of this program are not loaded by it, see
+     * {@link CompiledExpression.Link}.
+     *
+     * @param variables
+     *            The variable names, starting with those of this program.
+     * @return The new program.
+     */
+    Program<T, C> withVariables(String[] variables) {
+        return new Program<>(opcodes, operands, literals, variables,
+                operators, unaryOperators, functions, argCounts, foldStarts,
+                foldEnds, jumpTargets, jumpSites, truth, maxStack, temps);
+    }
+
+    /**
+     * Gets the size of the constant pool, the literals followed by the
+     * folded constants.
+     *
+     * @return The number of constants.
+     */
+    int constantCount() {
+        return literals.length + foldStarts.length;
+    }
+
+    /**
+     * Runs the program.
+     *
+     * @param constants
+     *            The constant pool for the context, a folded constant is
+     *            <code>null</code> if it could not be calculated.
+     * @param values
+     *            The variable values, indexed by slot.
+     * @param ctx
+     *            The context to use.
+     * @param round
+     *            The rounding applied to variable values.
+     * @param exact
+     *            Flags the slots whose values are not rounded, or
+     *            <code>null</code>.
+     * @return The result of the expression.
+     */
+    @SuppressWarnings("unchecked")
+    T eval(T[] constants, Object[] values, C ctx, BiFunction<T, C, T> round,
+            boolean[] exact) {
+        // the variables are rounded once into the bottom of the stack, the
+        // temporaries follow and the operands are pushed above them
+        int base = variables.length + temps;
+        Object[] stack = new Object[base + maxStack];
+        for (int i = 0; i < variables.length; i++) {
+            T value = (T) values[i];
+            if (value == null) {
+                throw new ExpressionException(
+                        "Unknown operator or function: " + variables[i]);
+            }
+            stack[i] = exact != null && exact[i] ? value : round.apply(value, ctx);
+        }
+        execute(constants, stack, base, 0, opcodes.length, ctx);
+        return (T) stack[base];
+    }
+
+    /**
+     * Calculates the value of a folded constant.
+     *
+     * @param constants
+     *            The literal values parsed with the context.
+     * @param fold
+     *            The index of the folded constant.
+     * @param ctx
+     *            The context to use.
+     * @return The value of the constant subtree.
+     */
+    @SuppressWarnings("unchecked")
+    T fold(T[] constants, int fold, C ctx) {
+        Object[] stack = new Object[maxStack];
+        execute(constants, stack, 0, foldStarts[fold], foldEnds[fold], ctx);
+        return (T) stack[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private void execute(T[] constants, Object[] stack, int sp, int from, int to,
+            C ctx) {
+        for (int pc = from; pc < to; pc++) {
+            int operand = operands[pc];
+            switch (opcodes[pc]) {
+            case CONST:
+                stack[sp++] = constants[operand];
+                break;
+            case LOAD:
+                stack[sp++] = stack[operand];
+                break;
+            case OPERATOR:
+                sp--;
+                stack[sp - 1] = operators[operand].eval((T) stack[sp - 1],
+                        (T) stack[sp], ctx);
+                break;
+            case UNARY:
+                stack[sp - 1] = unaryOperators[operand].eval((T) stack[sp - 1], ctx);
+                break;
+            case STORE:
+                stack[variables.length + operand] = stack[sp - 1];
+                break;
+            case TEMP:
+                stack[sp++] = stack[variables.length + operand];
+                break;
+            case FUNCTION:
+                int argc = argCounts[operand];
+                sp -= argc;
+                stack[sp] = functions[operand].call(stack, sp, argc, ctx);
+                sp++;
+                break;
+            case FOLD:
+                T value = constants[literals.length + operand];
+                if (value != null) {
+                    stack[sp++] = value;
+                    pc = foldEnds[operand] - 1;
+                }
+                break;
+            case JUMP:
+                pc = jumpTargets[operand] - 1;
+                break;
+            case BRANCH:
+                if (!truth.test((T) stack[--sp])) {
+                    pc = jumpTargets[operand] - 1;
+                }
+                break;
+            default:
+                // the left operand decides, the result is the same as
+                // with any right operand
+                T left = (T) stack[sp - 1];
+                if (truth.test(left) == (opcodes[pc] == OR)) {
+                    stack[sp - 1] = operators[jumpSites[operand]].eval(left,
+                            left, ctx);
+                    pc = jumpTargets[operand] - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the RPN of the program, folded constants are shown with their
+     * value.
+     *
+     * @param constants
+     *            The constant pool for a context.
+     * @return The RPN tokens.
+     */
+    List<String> toRPN(T[] constants) {
+        List<List<String>> stack = new ArrayList<>();
+        // the pending IF calls as pairs of jump and end instruction,
+        // the innermost one ends first
+        List<Integer> pendingIfs = new ArrayList<>();
+        List<List<String>> stored = new ArrayList<>();
+        for (int pc = 0; pc <= opcodes.length; pc++) {
+            while (!pendingIfs.isEmpty() && pendingIfs.get(pendingIfs.size() - 1) == pc) {
+                pendingIfs.remove(pendingIfs.size() - 1);
+                int site = jumpSites[pendingIfs.remove(pendingIfs.size() - 1)];
+                List<String> tokens = new ArrayList<>();
+                tokens.add("(");
+                for (List<String> parameter : stack.subList(stack.size() - 3, stack.size())) {
+                    tokens.addAll(parameter);
+                }
+                stack.subList(stack.size() - 3, stack.size()).clear();
+                tokens.add(functions[site].getName());
+                stack.add(tokens);
+            }
+            if (pc == opcodes.length) {
+                break;
+            }
+            int operand = operands[pc];
+            List<String> tokens = new ArrayList<>();
+            switch (opcodes[pc]) {
+            case CONST:
+                tokens.add(literals[operand]);
+                break;
+            case LOAD:
+                tokens.add(variables[operand]);
+                break;
+            case OPERATOR:
+                List<String> right = stack.remove(stack.size() - 1);
+                tokens = stack.remove(stack.size() - 1);
+                tokens.addAll(right);
+                tokens.add(operators[operand].getOper());
+                break;
+            case UNARY:
+                tokens = stack.remove(stack.size() - 1);
+                tokens.add(unaryOperators[operand].getOper());
+                break;
+            case FUNCTION:
+                tokens.add("(");
+                int argc = argCounts[operand];
+                for (List<String> parameter : stack.subList(stack.size() - argc, stack.size())) {
+                    tokens.addAll(parameter);
+                }
+                stack.subList(stack.size() - argc, stack.size()).clear();
+                tokens.add(functions[operand].getName());
+                break;
+            case FOLD:
+                T value = constants[literals.length + operand];
+                if (value == null) {
+                    continue;
+                }
+                tokens.add(value.toString());
+                pc = foldEnds[operand] - 1;
+                break;
+            case STORE:
+                stored.add(new ArrayList<>(stack.get(stack.size() - 1)));
+                continue;
+            case TEMP:
+                // the shared subtree is shown at every occurrence
+                tokens.addAll(stored.get(operand));
+                break;
+            case JUMP:
+                pendingIfs.add(operand);
+                pendingIfs.add(jumpTargets[operand]);
+                continue;
+            default:
+                // the condition, branches and operands stay on the stack
+                continue;
+            }
+            stack.add(tokens);
+        }
+        return stack.get(0);
+    }
+}
@@ -0,0 +1,240 @@
+package com.udojava.evalex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Emits the instructions for an expression tree and collects the tables of
+ * the {@link Program}: literals, variable slots, operator and function call
+ * sites, folded constants, jumps and temporaries. It also keeps track of
+ * the stack depth to size the evaluation stack.
+ */
+final class ProgramBuilder<T extends Number, C> {
+
+    private final Predicate<? super T> truth;
+
+    private byte[] opcodes = new byte[16];
+    private int[] operands = new int[16];
+    private int pc;
+    private final List<String> literals = new ArrayList<>();
+    private final List<String> slots = new ArrayList<>();
+    private final List<Operator<T, C>> operators = new ArrayList<>();
+    private final List<UnaryOperator<T, C>> unaryOperators = new ArrayList<>();
+    private final List<Function<T, C>> functions = new ArrayList<>();
+    private final List<Integer> argCounts = new ArrayList<>();
+    private final List<Integer> foldStarts = new ArrayList<>();
+    private final List<Integer> foldEnds = new ArrayList<>();
+    private final List<Integer> jumpTargets = new ArrayList<>();
+    private final List<Integer> jumpSites = new ArrayList<>();
+    private final Map<Node<T, C>, Integer> temps = new IdentityHashMap<>();
+    private int depth;
+    private int maxDepth;
+
+    /**
+     * Creates a new builder.
+     *
+     * @param truth
+     *            The truth value of a value, used by conditional jumps.
+     */
+    ProgramBuilder(Predicate<? super T> truth) {
+        this.truth = truth;
+    }
+
+    /**
+     * Compiles an expression tree.
+     *
+     * @param root
+     *            The root node of the tree.
+     * @return The program.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    Program<T, C> build(Node<T, C> root) {
+        root.compile(this);
+        return new Program<>(Arrays.copyOf(opcodes, pc),
+                Arrays.copyOf(operands, pc),
+                literals.toArray(new String[literals.size()]),
+                slots.toArray(new String[slots.size()]),
+                operators.toArray(new Operator[operators.size()]),
+                unaryOperators.toArray(new UnaryOperator[unaryOperators.size()]),
+                functions.toArray(new Function[functions.size()]),
+                toArray(argCounts), toArray(foldStarts), toArray(foldEnds),
+                toArray(jumpTargets), toArray(jumpSites), truth, maxDepth,
+                temps.size());
+    }
+
+    void literal(String text) {
+        emit(Program.CONST, literals.size());
+        literals.add(text);
+        push(1);
+    }
+
+    void load(String name) {
+        int slot = slots.indexOf(name);
+        if (slot < 0) {
+            slot = slots.size();
+            slots.add(name);
+        }
+        emit(Program.LOAD, slot);
+        push(1);
+    }
+
+    void operator(Operator<T, C> operator) {
+        operator(site(operator));
+    }
+
+    /**
+     * Applies the operator of a call site, that was added before its
+     * operands.
+     *
+     * @param site
+     *            The call site.
+     */
+    void operator(int site) {
+        emit(Program.OPERATOR, site);
+        push(-1);
+    }
+
+    /**
+     * Adds an operator call site.
+     *
+     * @return The call site.
+     */
+    int site(Operator<T, C> operator) {
+        operators.add(operator);
+        return operators.size() - 1;
+    }
+
+    void unary(UnaryOperator<T, C> operator) {
+        emit(Program.UNARY, unaryOperators.size());
+        unaryOperators.add(operator);
+    }
+
+    void function(Function<T, C> function, int argc) {
+        emit(Program.FUNCTION, site(function, argc));
+        push(1 - argc);
+    }
+
+    /**
+     * Adds a function call site without calling the function.
+     *
+     * @return The call site.
+     */
+    int site(Function<T, C> function, int argc) {
+        functions.add(function);
+        argCounts.add(argc);
+        return functions.size() - 1;
+    }
+
+    /**
+     * Emits a jump, its target is set by {@link #land(int)}. A
+     * {@link Program#BRANCH} pops its condition.
+     *
+     * @param opcode
+     *            The jump instruction.
+     * @param site
+     *            The operator or function call site the jump belongs to.
+     * @return The index of the jump.
+     */
+    int jump(byte opcode, int site) {
+        int jump = jumpTargets.size();
+        emit(opcode, jump);
+        jumpTargets.add(pc);
+        jumpSites.add(site);
+        if (opcode == Program.BRANCH) {
+            push(-1);
+        }
+        return jump;
+    }
+
+    /**
+     * Sets the target of a jump to the next instruction.
+     *
+     * @param jump
+     *            The index of the jump.
+     */
+    void land(int jump) {
+        jumpTargets.set(jump, pc);
+    }
+
+    /**
+     * Drops a value from the tracked stack depth, for a branch that starts
+     * without the value of the branch before.
+     */
+    void drop() {
+        depth--;
+    }
+
+    /**
+     * Stores the value of a shared subtree into a new temporary, the value
+     * stays on the stack.
+     *
+     * @param shared
+     *            The shared subtree.
+     */
+    void store(Node<T, C> shared) {
+        int temp = temps.size();
+        temps.put(shared, temp);
+        emit(Program.STORE, temp);
+    }
+
+    /**
+     * Pushes the value of a shared subtree, that was stored before.
+     *
+     * @param shared
+     *            The shared subtree.
+     */
+    void temp(Node<T, C> shared) {
+        emit(Program.TEMP, temps.get(shared));
+        push(1);
+    }
+
+    /**
+     * Starts a folded constant, the instructions of the constant subtree
+     * follow.
+     *
+     * @return The index of the folded constant.
+     */
+    int beginFold() {
+        int fold = foldStarts.size();
+        emit(Program.FOLD, fold);
+        foldStarts.add(pc);
+        foldEnds.add(pc);
+        return fold;
+    }
+
+    /**
+     * Ends a folded constant after the instructions of its subtree.
+     *
+     * @param fold
+     *            The index of the folded constant.
+     */
+    void endFold(int fold) {
+        foldEnds.set(fold, pc);
+    }
+
+    private void emit(byte opcode, int operand) {
+        if (pc == opcodes.length) {
+            opcodes = Arrays.copyOf(opcodes, pc * 2);
+            operands = Arrays.copyOf(operands, pc * 2);
+        }
+        opcodes[pc] = opcode;
+        operands[pc++] = operand;
+    }
+
+    private void push(int count) {
+        depth += count;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] a = new int[list.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = list.get(i);
+        }
+        return a;
+    }
+}
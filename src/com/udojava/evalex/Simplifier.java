@@ -0,0 +1,564 @@
+package com.udojava.evalex;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rewrites an expression tree into a cheaper one, see
+ * {@link Expression#rewrites()}. Each expression type enables only the
+ * rewrites that keep its results, so the rewrites of a type are a subset
+ * of:
+ * <ul>
+ * <li>{@link #IDENTITIES}: <code>x*1</code>, <code>1*x</code>,
+ * <code>x/1</code> and <code>x-0</code> become <code>x</code>.</li>
+ * <li>{@link #ADDITIVE_IDENTITIES}: <code>x+0</code> and <code>0+x</code>
+ * become <code>x</code>. Not for doubles: <code>-0.0 + 0</code> is
+ * <code>0.0</code>.</li>
+ * <li>{@link #VARIABLE_IDENTITIES}: the same for the multiplication and
+ * division of a variable, whose value is already rounded, by
+ * <code>1</code>.</li>
+ * <li>{@link #POWERS}: <code>x^1</code> to <code>x^4</code> of a variable
+ * become multiplications.</li>
+ * <li>{@link #RECIPROCALS}: the division of a variable operand by a
+ * power of two becomes the multiplication with its reciprocal, which is
+ * exact. Constant divisions are folded as they are.</li>
+ * <li>{@link #HORNER}: a polynomial in one variable, like
+ * <code>a*x^3 + b*x^2 + c*x + d</code>, becomes
+ * <code>((a*x + b)*x + c)*x + d</code>.</li>
+ * <li>{@link #EXTREMA}: nested calls of the built-in <code>MIN</code> or
+ * <code>MAX</code>, like <code>MAX(a, MAX(b, c))</code>, become one call
+ * <code>MAX(a, b, c)</code>.</li>
+ * <li>{@link #CHAINS}: a chain of at least three operands of
+ * <code>+</code> or <code>*</code>, like <code>a + b + c + d</code>, becomes
+ * one call of the n-ary function of the type, see
+ * {@link Expression#chain(String)}. Only the left operands are followed,
+ * <code>a + (b + c)</code> stays as it is.</li>
+ * </ul>
+ * Only the built-in operators and functions are rewritten, one replaced by
+ * {@link Expression#addOperator(Operator)} or
+ * {@link Expression#addFunction(Function)} is left alone.
+ */
+final class Simplifier<T extends Number, C> {
+
+    static final int IDENTITIES = 1;
+    static final int VARIABLE_IDENTITIES = 2;
+    static final int POWERS = 4;
+    static final int RECIPROCALS = 8;
+    static final int HORNER = 16;
+    static final int EXTREMA = 32;
+    static final int CHAINS = 64;
+    static final int ADDITIVE_IDENTITIES = 128;
+
+    private static final int MAX_POWER = 4;
+
+    private final int rewrites;
+
+    /**
+     * The built-in operators, <code>null</code> if the expression replaced
+     * them.
+     */
+    private final Operator<T, C> add;
+    private final Operator<T, C> subtract;
+    private final Operator<T, C> multiply;
+    private final Operator<T, C> divide;
+    private final Operator<T, C> power;
+
+    /**
+     * The built-in functions, <code>null</code> if the expression replaced
+     * them.
+     */
+    private final Function<T, C> min;
+    private final Function<T, C> max;
+
+    /**
+     * The n-ary functions for the chains of <code>+</code> and
+     * <code>*</code>, <code>null</code> if the chains stay binary.
+     */
+    private final Function<T, C> sum;
+    private final Function<T, C> product;
+
+    /**
+     * Creates a simplifier.
+     *
+     * @param rewrites
+     *            The enabled rewrites.
+     * @param operators
+     *            The operators of the expression.
+     * @param builtIns
+     *            The built-in operators of the expression type.
+     * @param functions
+     *            The functions of the expression.
+     * @param builtInFunctions
+     *            The built-in functions of the expression type.
+     * @param sum
+     *            The n-ary function for a chain of <code>+</code>.
+     * @param product
+     *            The n-ary function for a chain of <code>*</code>.
+     */
+    Simplifier(int rewrites, OperatorRegistry<T, C> operators,
+            OperatorRegistry<T, C> builtIns, FunctionRegistry<T, C> functions,
+            FunctionRegistry<T, C> builtInFunctions, Function<T, C> sum,
+            Function<T, C> product) {
+        this.rewrites = rewrites;
+        add = builtIn("+", operators, builtIns);
+        subtract = builtIn("-", operators, builtIns);
+        multiply = builtIn("*", operators, builtIns);
+        divide = builtIn("/", operators, builtIns);
+        power = (rewrites & POWERS) != 0 ? builtIn("^", operators, builtIns) : null;
+        boolean extrema = (rewrites & EXTREMA) != 0;
+        min = extrema ? builtIn("MIN", functions, builtInFunctions) : null;
+        max = extrema ? builtIn("MAX", functions, builtInFunctions) : null;
+        boolean chains = (rewrites & CHAINS) != 0;
+        this.sum = chains && add != null ? sum : null;
+        this.product = chains && multiply != null ? product : null;
+    }
+
+    private static <T extends Number, C> Operator<T, C> builtIn(String oper,
+            OperatorRegistry<T, C> operators, OperatorRegistry<T, C> builtIns) {
+        Operator<T, C> operator = operators.get(oper);
+        return operator != null && operator == builtIns.get(oper) ? operator : null;
+    }
+
+    private static <T extends Number, C> Function<T, C> builtIn(String name,
+            FunctionRegistry<T, C> functions, FunctionRegistry<T, C> builtIns) {
+        Function<T, C> function = functions.get(name);
+        return function != null && function == builtIns.get(name) ? function : null;
+    }
+
+    /**
+     * Simplifies an expression tree.
+     *
+     * @param root
+     *            The root node of the tree.
+     * @return The simplified tree.
+     */
+    Node<T, C> simplify(Node<T, C> root) {
+        if (rewrites == 0) {
+            return root;
+        }
+        Node<T, C> simplified = root.simplify(this);
+        if ((rewrites & HORNER) != 0 && add != null && subtract != null && multiply != null) {
+            simplified = polynomials(simplified);
+        }
+        if (min != null || max != null || sum != null || product != null) {
+            simplified = chains(simplified);
+        }
+        return simplified;
+    }
+
+    /**
+     * Simplifies the application of a binary operator to simplified
+     * operands.
+     *
+     * @return The simplified node.
+     */
+    Node<T, C> operation(Operator<T, C> operator, Node<T, C> left, Node<T, C> right) {
+        if (operator == multiply) {
+            if (isIdentity(right, left, 1)) {
+                return left;
+            }
+            if (isIdentity(left, right, 1)) {
+                return right;
+            }
+        } else if (operator == divide) {
+            if (isIdentity(right, left, 1)) {
+                return left;
+            }
+            Node<T, C> reciprocal = left.constant ? null : reciprocal(right);
+            if (reciprocal != null && multiply != null) {
+                return new Node.Operation<>(multiply, left, reciprocal);
+            }
+        } else if (operator == add && (rewrites & ADDITIVE_IDENTITIES) != 0) {
+            if (isZero(right)) {
+                return left;
+            }
+            if (isZero(left)) {
+                return right;
+            }
+        } else if (operator == subtract && (rewrites & IDENTITIES) != 0 && isZero(right)) {
+            return left;
+        } else if (operator == power) {
+            Node<T, C> chain = chain(left, right);
+            if (chain != null) {
+                return chain;
+            }
+        }
+        return new Node.Operation<>(operator, left, right);
+    }
+
+    /**
+     * Rewrites the polynomials of a tree into the Horner form, starting
+     * with the outermost sums.
+     */
+    private Node<T, C> polynomials(Node<T, C> node) {
+        if (node instanceof Node.Operation) {
+            Node.Operation<T, C> operation = (Node.Operation<T, C>) node;
+            if (operation.operator == add || operation.operator == subtract) {
+                Node<T, C> horner = horner(node);
+                if (horner != null) {
+                    return horner;
+                }
+            }
+            Node<T, C> left = polynomials(operation.left);
+            Node<T, C> right = polynomials(operation.right);
+            return left == operation.left && right == operation.right ? node
+                    : new Node.Operation<>(operation.operator, left, right);
+        }
+        if (node instanceof Node.Unary) {
+            Node.Unary<T, C> unary = (Node.Unary<T, C>) node;
+            Node<T, C> operand = polynomials(unary.operand);
+            return operand == unary.operand ? node : new Node.Unary<>(unary.operator, operand);
+        }
+        if (node instanceof Node.Call) {
+            Node.Call<T, C> call = (Node.Call<T, C>) node;
+            List<Node<T, C>> parameters = new ArrayList<>(call.parameters.size());
+            boolean changed = false;
+            for (Node<T, C> parameter : call.parameters) {
+                Node<T, C> p = polynomials(parameter);
+                changed |= p != parameter;
+                parameters.add(p);
+            }
+            return changed ? new Node.Call<>(call.function, call.name, parameters) : node;
+        }
+        return node;
+    }
+
+    /**
+     * Rewrites the chains of operators and the nested <code>MIN</code> and
+     * <code>MAX</code> calls of a tree. Constant subtrees are left for
+     * folding.
+     */
+    private Node<T, C> chains(Node<T, C> node) {
+        if (node.constant) {
+            return node;
+        }
+        if (node instanceof Node.Operation) {
+            Node.Operation<T, C> operation = (Node.Operation<T, C>) node;
+            Function<T, C> chain = operation.operator == add ? sum
+                    : operation.operator == multiply ? product : null;
+            if (chain != null && operation.left instanceof Node.Operation
+                    && ((Node.Operation<T, C>) operation.left).operator == operation.operator
+                    && !operation.left.constant) {
+                List<Node<T, C>> operands = new ArrayList<>();
+                operands(operation, operands);
+                return new Node.Call<>(chain, chain.getName(), operands);
+            }
+            Node<T, C> left = chains(operation.left);
+            Node<T, C> right = chains(operation.right);
+            return left == operation.left && right == operation.right ? node
+                    : new Node.Operation<>(operation.operator, left, right);
+        }
+        if (node instanceof Node.Unary) {
+            Node.Unary<T, C> unary = (Node.Unary<T, C>) node;
+            Node<T, C> operand = chains(unary.operand);
+            return operand == unary.operand ? node : new Node.Unary<>(unary.operator, operand);
+        }
+        if (node instanceof Node.Call) {
+            Node.Call<T, C> call = (Node.Call<T, C>) node;
+            boolean extremum = call.function == min || call.function == max;
+            List<Node<T, C>> parameters = new ArrayList<>(call.parameters.size());
+            boolean changed = false;
+            for (Node<T, C> parameter : call.parameters) {
+                Node<T, C> p = chains(parameter);
+                if (extremum && p instanceof Node.Call && !p.constant
+                        && ((Node.Call<T, C>) p).function == call.function) {
+                    // the first of equal values wins either way
+                    parameters.addAll(((Node.Call<T, C>) p).parameters);
+                    changed = true;
+                } else {
+                    changed |= p != parameter;
+                    parameters.add(p);
+                }
+            }
+            return changed ? new Node.Call<>(call.function, call.name, parameters) : node;
+        }
+        return node;
+    }
+
+    /**
+     * Collects the operands of a chain of one operator from left to right,
+     * a constant left operand ends the chain.
+     */
+    private void operands(Node<T, C> node, List<Node<T, C>> operands) {
+        Node.Operation<T, C> operation = (Node.Operation<T, C>) node;
+        Node<T, C> left = operation.left;
+        if (left instanceof Node.Operation
+                && ((Node.Operation<T, C>) left).operator == operation.operator
+                && !left.constant) {
+            operands(left, operands);
+        } else {
+            operands.add(chains(left));
+        }
+        operands.add(chains(operation.right));
+    }
+
+    /**
+     * Tells if a literal is a neutral element for the other operand.
+     */
+    private boolean isIdentity(Node<T, C> literal, Node<T, C> operand, int value) {
+        if ((rewrites & IDENTITIES) != 0) {
+            BigDecimal v = value(literal);
+            return v != null && v.compareTo(BigDecimal.valueOf(value)) == 0;
+        }
+        if ((rewrites & VARIABLE_IDENTITIES) != 0 && operand instanceof Node.Variable) {
+            // a literal with decimal places would change the scale
+            BigDecimal v = value(literal);
+            return v != null && v.scale() == 0 && v.compareTo(BigDecimal.valueOf(value)) == 0;
+        }
+        return false;
+    }
+
+    private boolean isZero(Node<T, C> node) {
+        BigDecimal v = value(node);
+        return v != null && v.signum() == 0;
+    }
+
+    /**
+     * Gets the value of a literal.
+     *
+     * @return The value, <code>null</code> if the node is no literal.
+     */
+    private static BigDecimal value(Node<?, ?> node) {
+        if (!(node instanceof Node.Literal)) {
+            return null;
+        }
+        try {
+            return new BigDecimal(((Node.Literal<?, ?>) node).text);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The reciprocal of a literal divisor that is a power of two, the
+     * multiplication with it gives the same result as the division.
+     *
+     * @return The literal, <code>null</code> if the divisor is no power of
+     *         two or the reciprocal is not finite.
+     */
+    private Node<T, C> reciprocal(Node<T, C> divisor) {
+        if ((rewrites & RECIPROCALS) == 0 || value(divisor) == null) {
+            return null;
+        }
+        double d = NumberParser.parseDouble(((Node.Literal<T, C>) divisor).text);
+        double r = 1 / d;
+        if (d == 0 || Double.isInfinite(r) || r == 0
+                || Math.abs(d) != Math.scalb(1.0, Math.getExponent(d))) {
+            return null;
+        }
+        return new Node.Literal<>(Double.toString(r));
+    }
+
+    /**
+     * A small integer power of a variable as a chain of multiplications.
+     *
+     * @return The chain, <code>null</code> if the power is not small.
+     */
+    private Node<T, C> chain(Node<T, C> base, Node<T, C> exponent) {
+        int n = exponent(exponent);
+        if (!(base instanceof Node.Variable) || n < 1 || (n > 1 && multiply == null)) {
+            return null;
+        }
+        Node<T, C> chain = base;
+        for (int i = 1; i < n; i++) {
+            chain = new Node.Operation<>(multiply, chain, base);
+        }
+        return chain;
+    }
+
+    /**
+     * Gets a small integer exponent.
+     *
+     * @return The exponent, <code>0</code> if the node is no small integer
+     *         literal.
+     */
+    private static int exponent(Node<?, ?> node) {
+        BigDecimal v = value(node);
+        if (v == null || v.signum() <= 0 || v.compareTo(BigDecimal.valueOf(MAX_POWER)) > 0
+                || v.remainder(BigDecimal.ONE).signum() != 0) {
+            return 0;
+        }
+        return v.intValue();
+    }
+
+    /**
+     * Rewrites a sum of terms of a polynomial into the Horner form, in the
+     * first variable it is a polynomial of.
+     *
+     * @return The Horner form, <code>null</code> if the sum is no
+     *         polynomial of a degree of at least 2 in one variable.
+     */
+    private Node<T, C> horner(Node<T, C> sum) {
+        List<Term<T, C>> terms = new ArrayList<>();
+        terms(sum, true, terms);
+        Set<String> variables = new LinkedHashSet<>();
+        for (Term<T, C> term : terms) {
+            for (Node<T, C> factor : term.factors) {
+                if (factor instanceof Node.Variable) {
+                    variables.add(((Node.Variable<T, C>) factor).name);
+                }
+            }
+        }
+        for (String variable : variables) {
+            Node<T, C> horner = horner(terms, variable);
+            if (horner != null) {
+                return horner;
+            }
+        }
+        return null;
+    }
+
+    private Node<T, C> horner(List<Term<T, C>> terms, String variable) {
+        // the degree and coefficient of each term
+        int factors = 0;
+        for (Term<T, C> term : terms) {
+            factors += term.factors.size();
+        }
+        Term<T, C>[] byDegree = newTerms(factors * MAX_POWER + 1);
+        int degree = 0;
+        for (Term<T, C> term : terms) {
+            List<Node<T, C>> coefficient = new ArrayList<>();
+            int d = 0;
+            for (Node<T, C> factor : term.factors) {
+                int f = degree(factor, variable);
+                if (f > 0) {
+                    d += f;
+                } else if (uses(factor, variable)) {
+                    return null;
+                } else {
+                    coefficient.add(factor);
+                }
+            }
+            if (byDegree[d] != null) {
+                return null;
+            }
+            byDegree[d] = new Term<>(term.positive, coefficient);
+            degree = Math.max(degree, d);
+        }
+        if (degree < 2 || !byDegree[degree].positive) {
+            return null;
+        }
+        Node.Variable<T, C> x = new Node.Variable<>(variable);
+        Node<T, C> result = product(byDegree[degree].factors);
+        for (int d = degree - 1; d >= 0; d--) {
+            result = result == null ? x : new Node.Operation<>(multiply, result, x);
+            Term<T, C> term = byDegree[d];
+            if (term != null) {
+                Node<T, C> coefficient = product(term.factors);
+                if (coefficient == null) {
+                    coefficient = new Node.Literal<>("1");
+                }
+                result = new Node.Operation<>(term.positive ? add : subtract, result,
+                        coefficient);
+            }
+        }
+        return result;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <T extends Number, C> Term<T, C>[] newTerms(int size) {
+        return new Term[size];
+    }
+
+    /**
+     * Collects the terms of a sum.
+     */
+    private void terms(Node<T, C> node, boolean positive, List<Term<T, C>> terms) {
+        if (node instanceof Node.Operation) {
+            Node.Operation<T, C> operation = (Node.Operation<T, C>) node;
+            if (operation.operator == add || operation.operator == subtract) {
+                terms(operation.left, positive, terms);
+                terms(operation.right, positive == (operation.operator == add), terms);
+                return;
+            }
+        }
+        List<Node<T, C>> factors = new ArrayList<>();
+        factors(node, factors);
+        terms.add(new Term<>(positive, factors));
+    }
+
+    /**
+     * Collects the factors of a product.
+     */
+    private void factors(Node<T, C> node, List<Node<T, C>> factors) {
+        if (node instanceof Node.Operation && ((Node.Operation<T, C>) node).operator == multiply) {
+            factors(((Node.Operation<T, C>) node).left, factors);
+            factors(((Node.Operation<T, C>) node).right, factors);
+        } else {
+            factors.add(node);
+        }
+    }
+
+    /**
+     * Gets the degree of a factor that is a power of a variable.
+     *
+     * @param variable
+     *            The variable.
+     * @return The degree, <code>0</code> if the factor is no such power.
+     */
+    private int degree(Node<T, C> factor, String variable) {
+        if (factor instanceof Node.Variable) {
+            return variable.equals(((Node.Variable<T, C>) factor).name) ? 1 : 0;
+        }
+        if (factor instanceof Node.Operation && power != null) {
+            Node.Operation<T, C> operation = (Node.Operation<T, C>) factor;
+            if (operation.operator == power && degree(operation.left, variable) == 1) {
+                return exponent(operation.right);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Tells if a subtree uses a variable.
+     */
+    private static boolean uses(Node<?, ?> node, String variable) {
+        if (node instanceof Node.Variable) {
+            return ((Node.Variable<?, ?>) node).name.equals(variable);
+        }
+        if (node instanceof Node.Operation) {
+            Node.Operation<?, ?> operation = (Node.Operation<?, ?>) node;
+            return uses(operation.left, variable) || uses(operation.right, variable);
+        }
+        if (node instanceof Node.Unary) {
+            return uses(((Node.Unary<?, ?>) node).operand, variable);
+        }
+        if (node instanceof Node.Call) {
+            for (Node<?, ?> parameter : ((Node.Call<?, ?>) node).parameters) {
+                if (uses(parameter, variable)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The product of factors in their order.
+     *
+     * @return The product, <code>null</code> if there are no factors.
+     */
+    private Node<T, C> product(List<Node<T, C>> factors) {
+        Node<T, C> product = null;
+        for (Node<T, C> factor : factors) {
+            product = product == null ? factor : new Node.Operation<>(multiply, product, factor);
+        }
+        return product;
+    }
+
+    /**
+     * A term of a sum: its sign and factors.
+     */
+    private static final class Term<T extends Number, C> {
+        final boolean positive;
+        final List<Node<T, C>> factors;
+
+        Term(boolean positive, List<Node<T, C>> factors) {
+            this.positive = positive;
+            this.factors = factors;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.udojava.evalex;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A read-only view of a range of an operand stack, the parameters of a
+ * {@link FunctionN}. The view is only valid during the call, the stack is
+ * reused afterwards.
+ */
+final class StackSlice<T> extends AbstractList<T> implements RandomAccess {
+
+    private final Object[] stack;
+    private final int offset;
+    private final int size;
+
+    StackSlice(Object[] stack, int offset, int size) {
+        this.stack = stack;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return (T) stack[offset + index];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
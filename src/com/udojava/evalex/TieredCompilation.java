@@ -0,0 +1,180 @@
+package com.udojava.evalex;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Tiered execution of compiled expressions, see
+ * {@link Expression#setTiering(TieredCompilation)}. An expression that uses
+ * tiering starts in the interpreter and counts its evaluations. When the
+ * count reaches the threshold, the form of its backend is created in the
+ * background and replaces the interpreter atomically, evaluations in the
+ * meantime keep using the interpreter. Expressions that are only evaluated
+ * a few times never pay for the optimized form.
+ * <br>
+ * One instance can be shared by all expressions of a process, it counts how
+ * many expressions are in each tier.
+ */
+public class TieredCompilation {
+
+    private final int threshold;
+
+    private final Executor executor;
+
+    private final LongAdder registered = new LongAdder();
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+    private final LongAdder compiled = new LongAdder();
+
+    /**
+     * Creates a new tiering policy that compiles in the common fork/join
+     * pool.
+     *
+     * @param threshold
+     *            The number of evaluations after which an expression is
+     *            compiled.
+     */
+    public TieredCompilation(int threshold) {
+        this(threshold, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a new tiering policy.
+     *
+     * @param threshold
+     *            The number of evaluations after which an expression is
+     *            compiled.
+     * @param executor
+     *            Runs the compilations.
+     */
+    public TieredCompilation(int threshold, Executor executor) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Negative threshold");
+        }
+        this.threshold = threshold;
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the number of evaluations after which an expression is compiled.
+     *
+     * @return The threshold.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Gets the number of expressions that are interpreted, including those
+     * that are being compiled and those whose form could not be created.
+     * Expressions are counted from their first compilation, see
+     * {@link Expression#compile()}, and are not uncounted when they are
+     * garbage collected.
+     *
+     * @return The number of interpreted expressions.
+     */
+    public long getInterpretedCount() {
+        return registered.sum() - compiled.sum();
+    }
+
+    /**
+     * Gets the number of expressions that are waiting for or in compilation.
+     *
+     * @return The number of expressions being compiled.
+     */
+    public long getCompilingCount() {
+        return scheduled.sum() - finished.sum();
+    }
+
+    /**
+     * Gets the number of expressions that were promoted to their backend.
+     *
+     * @return The number of compiled expressions.
+     */
+    public long getCompiledCount() {
+        return compiled.sum();
+    }
+
+    /**
+     * Creates the tier of a compiled expression.
+     *
+     * @param compiler
+     *            Creates the optimized form, returns <code>null</code> if the
+     *            backend is not supported.
+     * @return The tier.
+     */
+    <F> Tier<F> tier(Supplier<F> compiler) {
+        registered.increment();
+        return new Tier<>(this, compiler);
+    }
+
+    private void schedule(Tier<?> tier) {
+        scheduled.increment();
+        try {
+            executor.execute(tier::compile);
+        } catch (RejectedExecutionException e) {
+            // tried again at the next evaluation
+            finished.increment();
+            tier.scheduled.set(false);
+        }
+    }
+
+    /**
+     * The optimized form of a compiled expression, created after the
+     * threshold was reached. It is shared by the copies of the compiled
+     * expression.
+     */
+    static final class Tier<F> {
+        private final TieredCompilation policy;
+        private final Supplier<F> compiler;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * The number of evaluations until the compilation is scheduled, not
+         * synchronized as only the threshold matters: lost updates only
+         * delay the compilation.
+         */
+        private int invocations;
+
+        /**
+         * The optimized form, <code>null</code> while interpreted.
+         */
+        volatile F optimized;
+
+        private Tier(TieredCompilation policy, Supplier<F> compiler) {
+            this.policy = policy;
+            this.compiler = compiler;
+        }
+
+        /**
+         * Counts an evaluation.
+         *
+         * @return The optimized form, or <code>null</code> if the expression
+         *         is interpreted.
+         */
+        F get() {
+            F f = optimized;
+            if (f == null && !scheduled.get() && ++invocations >= policy.threshold
+                    && scheduled.compareAndSet(false, true)) {
+                policy.schedule(this);
+            }
+            return f;
+        }
+
+        private void compile() {
+            try {
+                F f = compiler.get();
+                if (f != null) {
+                    optimized = f;
+                    policy.compiled.increment();
+                }
+            } finally {
+                policy.finished.increment();
+            }
+        }
+    }
+}
@@ -1,33 +1,100 @@
 package com.udojava.evalex;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
 
 /**
  * Expression tokenizer that allows to iterate over a {@link String}
  * expression token by token. Blank characters will be skipped.
+ * <br>
+ * {@link #advance()} scans the next token without allocating: a token is a
+ * kind and a span of the input, see {@link #kind()}, {@link #start()} and
+ * {@link #length()}. Only {@link #text()} and the {@link Iterator} methods
+ * create strings. A tokenizer can be reused with {@link #reset(CharSequence)}.
  */
 class Tokenizer<T extends Number, C> implements Iterator<String> {
 
+    /**
+     * A numeric literal, possibly negative.
+     */
+    static final byte NUMBER = 1;
+
+    /**
+     * A variable or function name.
+     */
+    static final byte IDENTIFIER = 2;
+
+    /**
+     * An operator.
+     */
+    static final byte OPERATOR = 3;
+
+    /**
+     * An opening parenthesis.
+     */
+    static final byte OPEN = 4;
+
+    /**
+     * A closing parenthesis.
+     */
+    static final byte CLOSE = 5;
+
+    /**
+     * A comma between function parameters.
+     */
+    static final byte COMMA = 6;
+
+    private static final byte DIGIT = 1;
+    private static final byte LETTER = 2;
+    private static final byte SPACE = 4;
+
+    /**
+     * The character classes of the ASCII characters, so that the common case
+     * needs no {@link Character} lookup.
+     */
+    private static final byte[] ASCII = new byte[128];
+
+    static {
+        for (char c = 0; c < ASCII.length; c++) {
+            ASCII[c] = (byte) ((Character.isDigit(c) ? DIGIT : 0)
+                    | (Character.isLetter(c) ? LETTER : 0)
+                    | (Character.isWhitespace(c) ? SPACE : 0));
+        }
+    }
+
     /**
      * Actual position in expression string.
      */
-    private int pos = 0;
+    private int pos;
 
     /**
      * The original input expression.
      */
-    private String input;
+    private CharSequence input;
+
+    /**
+     * The index of the first character after leading blanks.
+     */
+    private int begin;
+
     /**
-     * The previous token or <code>null</code> if none.
+     * The index after the last character before trailing blanks.
      */
-    private String previousToken;
+    private int end;
+
+    /**
+     * The kind of the current token, <code>0</code> if there is none.
+     */
+    private byte kind;
+
+    /**
+     * The index of the first character of the current token.
+     */
+    private int start;
 
     /**
      * All defined operators with name and implementation.
      */
-    private Map<String, Operator<T,C>> operators = new HashMap<>();
+    private final OperatorRegistry<T,C> operators;
 
     /**
      * Creates a new tokenizer for an expression.
@@ -35,86 +102,196 @@ class Tokenizer<T extends Number, C> implements Iterator<String> {
      * @param input
      *            The expression string.
      * @param operators
+     *            The operators of the expression.
      */
-    public Tokenizer(String input, Map<String, Operator<T,C>> operators) {
-        this.input = input.trim();
+    public Tokenizer(CharSequence input, OperatorRegistry<T,C> operators) {
         this.operators = operators;
-    }
-
-    @Override
-    public boolean hasNext() {
-        return (pos < input.length());
+        reset(input);
     }
 
     /**
-     * Peek at the next character, without advancing the iterator.
+     * Starts to tokenize another expression.
      *
-     * @return The next character or character 0, if at end of string.
+     * @param input
+     *            The expression.
+     * @return This tokenizer.
      */
-    private char peekNextChar() {
-        if (pos < (input.length() - 1)) {
-            return input.charAt(pos + 1);
-        } else {
-            return 0;
+    Tokenizer<T,C> reset(CharSequence input) {
+        this.input = input;
+        // the same blanks as String.trim()
+        int b = 0;
+        int e = input.length();
+        while (b < e && input.charAt(b) <= ' ') {
+            b++;
         }
+        while (e > b && input.charAt(e - 1) <= ' ') {
+            e--;
+        }
+        begin = b;
+        end = e;
+        pos = b;
+        kind = 0;
+        start = b;
+        return this;
     }
 
     @Override
-    public String next() {
-        StringBuilder token = new StringBuilder();
-        if (pos >= input.length()) {
-            return previousToken = null;
+    public boolean hasNext() {
+        return (pos < end);
+    }
+
+    /**
+     * Scans the next token.
+     *
+     * @return <code>false</code> if there are no more tokens.
+     * @throws ExpressionException
+     *             If the next token is an unknown operator.
+     */
+    boolean advance() {
+        if (pos >= end) {
+            kind = 0;
+            start = pos;
+            return false;
         }
+        int previousEnd = pos;
         char ch = input.charAt(pos);
-        while (Character.isWhitespace(ch) && pos < input.length()) {
+        while (isWhitespace(ch)) {
             ch = input.charAt(++pos);
         }
-        if (Character.isDigit(ch)) {
-            while ((Character.isDigit(ch) || ch == Constant.decimalSeparator
-                                            || ch == 'e' || ch == 'E'
-                                            || (ch == Constant.minusSign && token.length() > 0
-                                                && ('e'==token.charAt(token.length()-1) || 'E'==token.charAt(token.length()-1)))
-                                            || (ch == '+' && token.length() > 0
-                                                && ('e'==token.charAt(token.length()-1) || 'E'==token.charAt(token.length()-1)))
-                                            ) && (pos < input.length())) {
-                token.append(input.charAt(pos++));
-                ch = pos == input.length() ? 0 : input.charAt(pos);
-            }
-        } else if (ch == Constant.minusSign
-                && Character.isDigit(peekNextChar())
-                && ("(".equals(previousToken) || ",".equals(previousToken)
-                        || previousToken == null || operators
-                            .containsKey(previousToken))) {
-            token.append(Constant.minusSign);
-            pos++;
-            token.append(next());
-        } else if (Character.isLetter(ch) || (ch == '_')) {
-            while ((Character.isLetter(ch) || Character.isDigit(ch) || (ch == '_'))
-                    && (pos < input.length())) {
-                token.append(input.charAt(pos++));
-                ch = pos == input.length() ? 0 : input.charAt(pos);
+        if (isDigit(ch)) {
+            start = pos;
+            scanNumber();
+        } else if (ch == Constant.minusSign && pos + 1 < end
+                && isDigit(input.charAt(pos + 1)) && negativeAllowed(previousEnd)) {
+            start = pos++;
+            scanNumber();
+        } else if (isLetter(ch) || ch == '_') {
+            start = pos;
+            while (pos < end && (isLetter(ch = input.charAt(pos)) || isDigit(ch) || ch == '_')) {
+                pos++;
             }
+            kind = IDENTIFIER;
         } else if (ch == '(' || ch == ')' || ch == ',') {
-            token.append(ch);
-            pos++;
+            start = pos++;
+            kind = ch == '(' ? OPEN : ch == ')' ? CLOSE : COMMA;
         } else {
-            while (!Character.isLetter(ch) && !Character.isDigit(ch)
-                    && ch != '_' && !Character.isWhitespace(ch)
-                    && ch != '(' && ch != ')' && ch != ','
-                    && (pos < input.length())) {
-                token.append(input.charAt(pos));
+            start = pos;
+            do {
                 pos++;
-                ch = pos == input.length() ? 0 : input.charAt(pos);
-                if (ch == Constant.minusSign) {
-                    break;
-                }
+            } while (pos < end && (ch = input.charAt(pos)) != Constant.minusSign
+                    && !isLetter(ch) && !isDigit(ch) && ch != '_' && !isWhitespace(ch)
+                    && ch != '(' && ch != ')' && ch != ',');
+            // the longest operator at the start of the run, so that unary
+            // operators can follow each other without blanks
+            int run = pos;
+            while (pos > start && !operators.contains(input, start, pos)) {
+                pos--;
+            }
+            if (pos == start) {
+                pos = run;
+                throw new ExpressionException("Unknown operator '" + text()
+                        + "' at position " + (start - begin + 1));
             }
-            if (!operators.containsKey(token.toString())) {
-                throw new ExpressionException("Unknown operator '" + token
-                        + "' at position " + (pos - token.length() + 1));
+            kind = OPERATOR;
+        }
+        return true;
+    }
+
+    /**
+     * Scans the digits, decimal separators and exponent of a number.
+     */
+    private void scanNumber() {
+        while (pos < end) {
+            char ch = input.charAt(pos);
+            if (!isDigit(ch) && ch != Constant.decimalSeparator && ch != 'e' && ch != 'E'
+                    && !((ch == Constant.minusSign || ch == '+') && isExponent(pos - 1))) {
+                break;
             }
+            pos++;
+        }
+        kind = NUMBER;
+    }
+
+    private boolean isExponent(int i) {
+        if (i < start) {
+            return false;
+        }
+        char ch = input.charAt(i);
+        return ch == 'e' || ch == 'E';
+    }
+
+    /**
+     * A minus sign starts a negative number at the beginning, after an
+     * opening parenthesis, a comma or an operator.
+     *
+     * @param previousEnd
+     *            The index after the previous token.
+     */
+    private boolean negativeAllowed(int previousEnd) {
+        switch (kind) {
+        case 0:
+        case OPEN:
+        case COMMA:
+        case OPERATOR:
+            return true;
+        case IDENTIFIER:
+            return operators.contains(input, start, previousEnd);
+        default:
+            return false;
         }
-        return previousToken = token.toString();
+    }
+
+    /**
+     * Gets the kind of the current token.
+     *
+     * @return The kind, <code>0</code> at the end of the expression.
+     */
+    byte kind() {
+        return kind;
+    }
+
+    /**
+     * Gets the index of the first character of the current token in the
+     * input.
+     *
+     * @return The start index.
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * Gets the number of characters of the current token.
+     *
+     * @return The length.
+     */
+    int length() {
+        return pos - start;
+    }
+
+    /**
+     * Gets the text of the current token.
+     *
+     * @return The token.
+     */
+    String text() {
+        return input.subSequence(start, pos).toString();
+    }
+
+    /**
+     * Tells if the current token is a single character.
+     *
+     * @param ch
+     *            The character.
+     * @return <code>true</code> if the token is that character.
+     */
+    boolean is(char ch) {
+        return pos - start == 1 && input.charAt(start) == ch;
+    }
+
+    @Override
+    public String next() {
+        return advance() ? text() : null;
     }
 
     @Override
@@ -128,7 +305,18 @@ class Tokenizer<T extends Number, C> implements Iterator<String> {
      * @return The actual character position.
      */
     public int getPos() {
-        return pos;
+        return pos - begin;
+    }
+
+    private static boolean isDigit(char ch) {
+        return ch < 128 ? (ASCII[ch] & DIGIT) != 0 : Character.isDigit(ch);
     }
 
+    private static boolean isLetter(char ch) {
+        return ch < 128 ? (ASCII[ch] & LETTER) != 0 : Character.isLetter(ch);
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch < 128 ? (ASCII[ch] & SPACE) != 0 : Character.isWhitespace(ch);
+    }
 }
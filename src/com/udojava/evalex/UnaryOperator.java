@@ -0,0 +1,95 @@
+package com.udojava.evalex;
+
+/**
+ * Abstract definition of a supported unary operator. A unary operator is
+ * defined by its name (pattern), precedence and if it is written before
+ * (prefix) or after (postfix) its operand.
+ * <br>
+ * A prefix operator applies to the operators of its operand that have a
+ * higher precedence, like a binary operator to its right operand. A postfix
+ * operator applies to the operators before it that have a higher
+ * precedence. The built-in negation <code>-x</code> and logical not
+ * <code>!x</code> have the precedence <code>60</code>, they apply before
+ * every binary operator.
+ */
+public abstract class UnaryOperator<T extends Number, C> {
+
+    static final byte NEGATE = 1;
+    static final byte NOT = 2;
+
+    /**
+     * This operators name (pattern).
+     */
+    private String oper;
+    /**
+     * Operators precedence.
+     */
+    private int precedence;
+    /**
+     * Operator is written before its operand.
+     */
+    private boolean prefix;
+
+    /**
+     * The kind of a built-in operation, that the compiled forms of the
+     * primitive expressions calculate directly, <code>0</code> for other
+     * operators.
+     */
+    final byte kind;
+
+    /**
+     * Creates a new unary operator.
+     *
+     * @param oper
+     *            The operator name (pattern).
+     * @param precedence
+     *            The operators precedence.
+     * @param prefix
+     *            <code>true</code> if the operator is written before its
+     *            operand, <code>false</code> if it is written after it.
+     */
+    public UnaryOperator(String oper, int precedence, boolean prefix) {
+        this(oper, precedence, prefix, (byte) 0);
+    }
+
+    UnaryOperator(String oper, int precedence, boolean prefix, byte kind) {
+        this.oper = oper;
+        this.precedence = precedence;
+        this.prefix = prefix;
+        this.kind = kind;
+    }
+
+    public String getOper() {
+        return oper;
+    }
+
+    public int getPrecedence() {
+        return precedence;
+    }
+
+    public boolean isPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Tells if the operator always returns the same result for the same operand
+     * and context. Applications of a deterministic operator to a constant
+     * operand are folded.
+     *
+     * @return <code>true</code> if the operator is deterministic.
+     */
+    public boolean isDeterministic() {
+        return true;
+    }
+
+    /**
+     * Implementation for this operator.
+     *
+     * @param v
+     *            The operand.
+     * @param ctx
+     *            Context
+     * @return The result of the operation.
+     */
+    public abstract T eval(T v, C ctx);
+}
@@ -0,0 +1,176 @@
+package com.udojava.evalex;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The loops of a {@link DoubleEx} batch evaluation with the Vector API, see
+ * {@link DoubleKernels}. Each instruction processes as many rows as the
+ * preferred vector shape of the CPU has lanes, the rows that do not fill a
+ * vector at the end of a chunk are left to the scalar loops.
+ * <br>
+ * The results are exactly those of the scalar loops. The lane operations
+ * for <code>+ - * /</code> and negation are the IEEE 754 operations Java
+ * uses. The comparisons follow <code>Double.compare()</code>, not the IEEE
+ * comparisons of the lanes: the bits of a value are turned into a long that
+ * sorts like the value, with <code>-0.0</code> before <code>0.0</code> and
+ * all NaNs equal and after everything else. <code>%</code> has no exact
+ * lane operation and stays scalar.
+ */
+final class VectorDoubleKernels extends DoubleKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private static final DoubleVector ZERO = DoubleVector.zero(SPECIES);
+
+    VectorDoubleKernels() {
+        if (SPECIES.length() < 2) {
+            throw new UnsupportedOperationException("No vector registers");
+        }
+    }
+
+    @Override
+    boolean apply(byte kind, double[] a, double[] b, int from, int to) {
+        int bound = from + SPECIES.loopBound(to - from);
+        switch (kind) {
+        case DoubleOperator.ADD:
+        case DoubleOperator.SUBTRACT:
+        case DoubleOperator.MULTIPLY:
+        case DoubleOperator.DIVIDE:
+            arithmetic(kind, a, b, from, bound);
+            break;
+        case DoubleOperator.AND:
+        case DoubleOperator.OR:
+            logical(kind == DoubleOperator.OR, a, b, from, bound);
+            break;
+        case DoubleOperator.GREATER:
+            compare(false, true, false, a, b, from, bound);
+            break;
+        case DoubleOperator.GREATER_EQUAL:
+            compare(false, false, true, a, b, from, bound);
+            break;
+        case DoubleOperator.LESS:
+            compare(false, false, false, a, b, from, bound);
+            break;
+        case DoubleOperator.LESS_EQUAL:
+            compare(false, true, true, a, b, from, bound);
+            break;
+        case DoubleOperator.EQUAL:
+            compare(true, false, false, a, b, from, bound);
+            break;
+        case DoubleOperator.NOT_EQUAL:
+            compare(true, false, true, a, b, from, bound);
+            break;
+        default:
+            return super.apply(kind, a, b, from, to);
+        }
+        return super.apply(kind, a, b, bound, to);
+    }
+
+    private static void arithmetic(byte kind, double[] a, double[] b, int from, int to) {
+        for (int i = from; i < to; i += SPECIES.length()) {
+            DoubleVector x = DoubleVector.fromArray(SPECIES, a, i);
+            DoubleVector y = DoubleVector.fromArray(SPECIES, b, i);
+            switch (kind) {
+            case DoubleOperator.ADD:
+                x = x.add(y);
+                break;
+            case DoubleOperator.SUBTRACT:
+                x = x.sub(y);
+                break;
+            case DoubleOperator.MULTIPLY:
+                x = x.mul(y);
+                break;
+            default:
+                x = x.div(y);
+            }
+            x.intoArray(a, i);
+        }
+    }
+
+    private static void logical(boolean or, double[] a, double[] b, int from, int to) {
+        for (int i = from; i < to; i += SPECIES.length()) {
+            VectorMask<Double> x = truth(DoubleVector.fromArray(SPECIES, a, i));
+            VectorMask<Double> y = truth(DoubleVector.fromArray(SPECIES, b, i));
+            ZERO.blend(1D, or ? x.or(y) : x.and(y)).intoArray(a, i);
+        }
+    }
+
+    /**
+     * Compares two columns like <code>Double.compare()</code>. All
+     * comparisons are a less than or an equality test of the sort keys,
+     * with the operands swapped or the result negated.
+     */
+    private static void compare(boolean equal, boolean swap, boolean negate,
+            double[] a, double[] b, int from, int to) {
+        for (int i = from; i < to; i += SPECIES.length()) {
+            LongVector x = key(DoubleVector.fromArray(SPECIES, a, i));
+            LongVector y = key(DoubleVector.fromArray(SPECIES, b, i));
+            VectorMask<Long> result;
+            if (equal) {
+                result = x.compare(VectorOperators.EQ, y);
+            } else if (swap) {
+                result = y.compare(VectorOperators.LT, x);
+            } else {
+                result = x.compare(VectorOperators.LT, y);
+            }
+            if (negate) {
+                result = result.not();
+            }
+            ZERO.blend(1D, result.cast(SPECIES)).intoArray(a, i);
+        }
+    }
+
+    /**
+     * Gets a long for each lane that sorts like <code>Double.compare()</code>
+     * the values: the bits of a negative value are inverted except the sign,
+     * a NaN has the bits of <code>Double.doubleToLongBits()</code>.
+     */
+    private static LongVector key(DoubleVector x) {
+        LongVector bits = x.blend(Double.NaN, x.test(VectorOperators.IS_NAN))
+                .viewAsIntegralLanes();
+        return bits.lanewise(VectorOperators.XOR,
+                bits.lanewise(VectorOperators.ASHR, 63).lanewise(VectorOperators.AND, Long.MAX_VALUE));
+    }
+
+    /**
+     * Any value but positive zero is true, see {@link DoubleEx#isTrue(double)}.
+     */
+    private static VectorMask<Double> truth(DoubleVector x) {
+        return x.viewAsIntegralLanes().compare(VectorOperators.NE, 0L)
+                .cast(SPECIES);
+    }
+
+    @Override
+    void negate(double[] a, int from, int to) {
+        int bound = from + SPECIES.loopBound(to - from);
+        for (int i = from; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).neg().intoArray(a, i);
+        }
+        super.negate(a, bound, to);
+    }
+
+    @Override
+    void truth(double[] a, boolean[] truth, int from, int to) {
+        int bound = from + SPECIES.loopBound(to - from);
+        for (int i = from; i < bound; i += SPECIES.length()) {
+            truth(DoubleVector.fromArray(SPECIES, a, i)).intoArray(truth, i);
+        }
+        super.truth(a, truth, bound, to);
+    }
+
+    @Override
+    void blend(double[] a, double[] then, boolean[] condition, int from, int to) {
+        int bound = from + SPECIES.loopBound(to - from);
+        for (int i = from; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i)
+                    .blend(DoubleVector.fromArray(SPECIES, then, i),
+                            VectorMask.fromArray(SPECIES, condition, i))
+                    .intoArray(a, i);
+        }
+        super.blend(a, then, condition, bound, to);
+    }
+}
@@ -7,6 +7,12 @@ import org.junit.runners.Suite.SuiteClasses;
 @RunWith(Suite.class)
 @SuiteClasses({ TestTokenizer.class, TestRPN.class, TestEval.class,
 		TestVariables.class, TestBooleans.class, TestCustoms.class,
-		TestNested.class, TestVarArgs.class, TestSciNotation.class })
+		TestNested.class, TestVarArgs.class, TestSciNotation.class,
+		TestCompiled.class, TestDouble.class, TestLong.class, TestDecimal.class,
+		TestOptimizer.class, TestShortCircuit.class, TestRegistry.class, TestCache.class,
+		TestBytecode.class, TestMethodHandles.class,
+		TestSpecializing.class, TestTiering.class, TestUnary.class, TestFunctions.class,
+		TestNumberParser.class, TestSimplifier.class,
+		TestCommonSubexpressions.class, TestChains.class, TestBatch.class })
 public class AllTests {
 }
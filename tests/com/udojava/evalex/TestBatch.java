@@ -0,0 +1,314 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestBatch {
+
+	private static final int ROWS = 2500;
+
+	private static DoubleFunction counting(final AtomicInteger calls) {
+		return new DoubleFunction("F", 1) {
+			@Override
+			public double applyAsDouble(double[] p, int offset, int count) {
+				calls.incrementAndGet();
+				return p[offset] * 3;
+			}
+		};
+	}
+
+	private static void assertRows(CompiledDoubleExpression c, double[][] columns) {
+		double[] result = new double[columns[0].length];
+		c.evalBatch(columns, result);
+		Object[] values = new Object[columns.length];
+		for (int row = 0; row < result.length; row++) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = columns[i][row];
+			}
+			assertEquals("row " + row, c.eval(values), result[row], 0D);
+		}
+	}
+
+	@Test
+	public void testDouble() {
+		Random random = new Random(11);
+		String[] expressions = { "IF(x > y, x * 2 - y, SQRT(ABS(y)) + x % 3) + MAX(x, y)",
+				"x + y + x*y + 1", "-x / (y - 0.5)", "x > 0 && y > 0 || x < -1", "NOT(x >= y) * (x - y)",
+				"IF(x > 0, IF(y > 0, 1, 2), IF(y > 0, 3, 4))",
+				"SQRT(x*x + y*y) + IF(x > 0, SQRT(x*x + y*y), 0)" };
+		double[][] columns = new double[2][ROWS];
+		for (int row = 0; row < ROWS; row++) {
+			columns[0][row] = random.nextGaussian();
+			columns[1][row] = row % 7 == 0 ? 0 : random.nextGaussian();
+		}
+		for (String expression : expressions) {
+			DoubleEx e = new DoubleEx(expression);
+			CompiledDoubleExpression c = e.compile();
+			assertEquals(expression, "x", c.getVariables().get(0));
+			assertRows(c, columns);
+		}
+	}
+
+	@Test
+	public void testCalls() {
+		String expression = "x > 0 && F(x) > 1 || IF(y > 0, F(y), -F(x)) > 2";
+		double[][] columns = new double[2][ROWS];
+		for (int row = 0; row < ROWS; row++) {
+			columns[0][row] = row % 5 - 2;
+			columns[1][row] = row % 3 - 1;
+		}
+		AtomicInteger calls = new AtomicInteger();
+		DoubleEx e = new DoubleEx(expression);
+		e.addFunction(counting(calls));
+		CompiledDoubleExpression c = e.compile();
+		double[] result = new double[ROWS];
+		c.evalBatch(columns, result);
+		int batch = calls.getAndSet(0);
+		for (int row = 0; row < ROWS; row++) {
+			assertEquals(c.eval(new Object[] { columns[0][row], columns[1][row] }), result[row], 0D);
+		}
+		// called for the same rows with the same values
+		assertEquals(calls.get(), batch);
+	}
+
+	@Test
+	public void testMap() {
+		DoubleEx e = new DoubleEx("a * x + b");
+		e.with("a", 2D).and("b", 1D);
+		CompiledDoubleExpression c = e.compile();
+		Map<String, double[]> columns = new HashMap<>();
+		columns.put("x", new double[] { 1, 2, 3 });
+		columns.put("b", new double[] { 0, 10, 20 });
+		double[] result = new double[3];
+		c.evalBatch(columns, result);
+		assertEquals(2D, result[0], 0D);
+		assertEquals(14D, result[1], 0D);
+		assertEquals(26D, result[2], 0D);
+	}
+
+	@Test
+	public void testDecimal() {
+		Random random = new Random(5);
+		String[] expressions = { "IF(x > y, x * 2 - y, x / (y + 3)) + MAX(x, y)", "x + y + x*y + 1",
+				"x > 0 && y > 0 || x < -1", "-x * 0.25 + SQRT(x*x + y*y)" };
+		BigDecimal[][] columns = new BigDecimal[2][ROWS];
+		for (int row = 0; row < ROWS; row++) {
+			columns[0][row] = row % 100 == 0 ? new BigDecimal("123456789012345678901234.5")
+					: BigDecimal.valueOf(random.nextInt(2000000) - 1000000, random.nextInt(4));
+			columns[1][row] = BigDecimal.valueOf(random.nextInt(2000) - 1000, random.nextInt(3));
+		}
+		for (boolean singleRounding : new boolean[] { false, true }) {
+			for (String expression : expressions) {
+				BigDecimalEx e = new BigDecimalEx(expression, MathContext.DECIMAL64);
+				e.setSingleRounding(singleRounding);
+				CompiledExpression<BigDecimal, MathContext> c = e.compile();
+				BigDecimal[] result = new BigDecimal[ROWS];
+				c.evalBatch(columns, result, MathContext.DECIMAL64);
+				for (int row = 0; row < ROWS; row++) {
+					assertEquals(expression + " row " + row,
+							c.eval(new Object[] { columns[0][row], columns[1][row] }), result[row]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDecimalCalls() {
+		final AtomicInteger calls = new AtomicInteger();
+		BigDecimalEx e = new BigDecimalEx("IF(x > 1, 1 / (x - 1), G(x))");
+		e.addFunction(new Function<BigDecimal, MathContext>("G", 1) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				calls.incrementAndGet();
+				return parameters.get(0);
+			}
+		});
+		CompiledExpression<BigDecimal, MathContext> c = e.compile();
+		Map<String, BigDecimal[]> columns = new HashMap<>();
+		columns.put("x", new BigDecimal[] { BigDecimal.ONE, new BigDecimal("3"), BigDecimal.ZERO });
+		BigDecimal[] result = new BigDecimal[3];
+		// the division by zero is not evaluated for the first row
+		c.evalBatch(columns, result);
+		assertEquals("1", result[0].toPlainString());
+		assertEquals("0.5", result[1].toPlainString());
+		assertEquals("0", result[2].toPlainString());
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void testLong() {
+		LongEx e = new LongEx("x * x - y");
+		e.with("y", 1L);
+		CompiledExpression<Long, Void> c = e.compile();
+		Map<String, Long[]> columns = new HashMap<>();
+		columns.put("x", new Long[] { 1L, 2L, 3L });
+		Long[] result = new Long[3];
+		c.evalBatch(columns, result);
+		assertEquals(Long.valueOf(8), result[2]);
+	}
+
+	@Test
+	public void testErrors() {
+		String err = "";
+		CompiledDoubleExpression c = new DoubleEx("x + y").compile();
+		try {
+			c.evalBatch(new double[][] { new double[2], new double[3] }, new double[2]);
+		} catch (ExpressionException e) {
+			err = e.getMessage();
+		}
+		assertEquals("Expected 2 values of y, got 3", err);
+		try {
+			c.evalBatch(new double[][] { new double[2], null }, new double[2]);
+		} catch (ExpressionException e) {
+			err = e.getMessage();
+		}
+		assertEquals("Unknown operator or function: y", err);
+		CompiledExpression<BigDecimal, MathContext> d = new BigDecimalEx("x + y").compile();
+		try {
+			d.evalBatch(new BigDecimal[][] { { BigDecimal.ONE }, { null } }, new BigDecimal[1],
+					MathContext.DECIMAL32);
+		} catch (ExpressionException e) {
+			err = e.getMessage();
+		}
+		assertEquals("Unknown operator or function: y", err);
+	}
+
+	@Test
+	public void testParallel() {
+		int rows = 50000;
+		Random random = new Random(3);
+		double[][] columns = new double[2][rows];
+		BigDecimal[][] decimals = new BigDecimal[2][rows];
+		for (int row = 0; row < rows; row++) {
+			columns[0][row] = random.nextGaussian();
+			columns[1][row] = random.nextGaussian();
+			decimals[0][row] = BigDecimal.valueOf(random.nextInt(100000), 2);
+			decimals[1][row] = BigDecimal.valueOf(random.nextInt(1000) + 1);
+		}
+		String expression = "IF(x > y, x * y - 1, SQRT(ABS(x)) / (y + 0.5))";
+		CompiledDoubleExpression c = new DoubleEx(expression).compile();
+		double[] sequential = new double[rows];
+		c.evalBatch(columns, sequential);
+		CompiledExpression<BigDecimal, MathContext> d = new BigDecimalEx(expression).compile();
+		BigDecimal[] expected = new BigDecimal[rows];
+		d.evalBatch(decimals, expected, MathContext.DECIMAL64);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			double[] parallel = new double[rows];
+			c.evalBatchParallel(columns, parallel, executor);
+			for (int row = 0; row < rows; row++) {
+				assertEquals(sequential[row], parallel[row], 0D);
+			}
+			Map<String, double[]> byName = new HashMap<>();
+			byName.put("x", columns[0]);
+			byName.put("y", columns[1]);
+			parallel = new double[rows];
+			c.evalBatchParallel(byName, parallel);
+			for (int row = 0; row < rows; row++) {
+				assertEquals(sequential[row], parallel[row], 0D);
+			}
+			BigDecimal[] result = new BigDecimal[rows];
+			d.evalBatchParallel(decimals, result, MathContext.DECIMAL64, executor);
+			for (int row = 0; row < rows; row++) {
+				assertEquals(expected[row], result[row]);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelFailure() {
+		int rows = 20000;
+		DoubleEx e = new DoubleEx("F(x)");
+		e.addFunction(new DoubleFunction("F", 1) {
+			@Override
+			public double applyAsDouble(double[] p, int offset, int count) {
+				if (p[offset] % 7000 == 6999) {
+					throw new ExpressionException("Row " + (long) p[offset]);
+				}
+				return p[offset];
+			}
+		});
+		CompiledDoubleExpression c = e.compile();
+		double[][] columns = new double[1][rows];
+		for (int row = 0; row < rows; row++) {
+			columns[0][row] = row;
+		}
+		// the first failing row, as in a sequential evaluation
+		for (int i = 0; i < 5; i++) {
+			String err = "";
+			try {
+				c.evalBatchParallel(columns, new double[rows], command -> new Thread(command).start());
+			} catch (ExpressionException x) {
+				err = x.getMessage();
+			}
+			assertEquals("Row 6999", err);
+		}
+		// the calling thread evaluates all rows if the executor rejects them
+		double[] result = new double[rows];
+		columns[0][6999] = 0;
+		columns[0][13999] = 0;
+		c.evalBatchParallel(columns, result, command -> {
+			throw new java.util.concurrent.RejectedExecutionException();
+		});
+		assertEquals(rows - 1, result[rows - 1], 0D);
+	}
+
+	@Test
+	public void testKernels() {
+		// the kernels in use, vectorized on Java 17 and later, against the
+		// scalar ones
+		DoubleKernels kernels = DoubleKernels.INSTANCE;
+		DoubleKernels scalar = new DoubleKernels();
+		double[] special = { 0D, -0D, 1D, -1D, Double.NaN, Double.longBitsToDouble(0x7ff8000000000001L),
+				Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -Double.MIN_VALUE,
+				Double.MAX_VALUE, 0.1 };
+		Random random = new Random(17);
+		int rows = 1021;
+		double[] a = new double[rows];
+		double[] b = new double[rows];
+		boolean[] condition = new boolean[rows];
+		for (int i = 0; i < rows; i++) {
+			a[i] = i % 3 == 0 ? special[random.nextInt(special.length)] : random.nextInt(5) - 2;
+			b[i] = i % 5 == 0 ? special[random.nextInt(special.length)] : random.nextInt(5) - 2;
+			condition[i] = random.nextBoolean();
+		}
+		for (byte kind = DoubleOperator.ADD; kind <= DoubleOperator.NOT_EQUAL; kind++) {
+			double[] expected = a.clone();
+			double[] actual = a.clone();
+			assertEquals(true, scalar.apply(kind, expected, b, 3, rows));
+			assertEquals(true, kernels.apply(kind, actual, b, 3, rows));
+			for (int i = 0; i < rows; i++) {
+				assertEquals("kind " + kind + " row " + i, Double.doubleToLongBits(expected[i]),
+						Double.doubleToLongBits(actual[i]));
+			}
+		}
+		assertEquals(false, kernels.apply((byte) 0, a.clone(), b, 0, rows));
+		double[] expected = a.clone();
+		double[] actual = a.clone();
+		scalar.negate(expected, 0, rows);
+		kernels.negate(actual, 0, rows);
+		scalar.blend(expected, b, condition, 0, rows);
+		kernels.blend(actual, b, condition, 0, rows);
+		boolean[] expectedTruth = new boolean[rows];
+		boolean[] actualTruth = new boolean[rows];
+		scalar.truth(expected, expectedTruth, 0, rows);
+		kernels.truth(actual, actualTruth, 0, rows);
+		for (int i = 0; i < rows; i++) {
+			assertEquals(expected[i], actual[i], 0D);
+			assertEquals(expectedTruth[i], actualTruth[i]);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+public class TestBytecode {
+
+	static final String[] EXPRESSIONS = {
+		"1 + 2 * x - y / 3",
+		"x % 3 + (x - y) * (x + y)",
+		"x ^ y",
+		"x > y", "x >= y", "x < y", "x <= y", "x = y", "x == y", "x != y", "x <> y",
+		"x && y", "x || y", "(x > 0 && y > 0) || x = y",
+		"IF(x > y, x - y, IF(y > 0, y, 0 - y)) * 2",
+		"NOT(x) + ABS(y) + MAX(x, y, 3) - MIN(x, -1)",
+		"SQRT(x * x + y * y) + ROUND(x / 7, 3)",
+		"x * (3.6 / 1000) + 2 * PI",
+		"1 / 0 + x",
+		"x / 0 - y",
+		"SIN(x) * COS(y) + LOG(ABS(x) + 1)",
+		"-x * y + !(x > y) - -(x - y)",
+	};
+
+	static final double[] VALUES = {
+		0D, -0D, 1D, -1D, 2.5, -7D, 1e300, Double.NaN,
+		Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE
+	};
+
+	/**
+	 * Gets the variable values for a test row. The first rows combine each
+	 * pair of {@link #VALUES} for the first two slots, the later rows have
+	 * small random integers.
+	 */
+	static double[] row(int row, int slots, Random random) {
+		double[] values = new double[slots];
+		for (int slot = 0; slot < slots; slot++) {
+			int index = index(row, slot, VALUES.length);
+			values[slot] = index >= 0 ? VALUES[index] : random.nextInt(21) - 10;
+		}
+		return values;
+	}
+
+	/**
+	 * Gets the variable values for a test row, like
+	 * {@link #row(int, int, Random)} with other values to combine.
+	 */
+	static long[] row(long[] grid, int row, int slots, Random random) {
+		long[] values = new long[slots];
+		for (int slot = 0; slot < slots; slot++) {
+			int index = index(row, slot, grid.length);
+			values[slot] = index >= 0 ? grid[index] : random.nextInt(21) - 10;
+		}
+		return values;
+	}
+
+	private static int index(int row, int slot, int size) {
+		if (row >= size * size) {
+			return -1;
+		}
+		return slot == 0 ? row % size : row / size % size;
+	}
+
+	@Test
+	public void testBackend() {
+		DoubleEx e = new DoubleEx("x * 2");
+		assertEquals(Backend.INTERPRETER, e.compile().getBackend());
+		e.setBackend(Backend.BYTECODE);
+		assertEquals(Backend.BYTECODE, e.compile().getBackend());
+		assertEquals(8D, e.with("x", 4D).eval(), 0D);
+		assertEquals(Backend.INTERPRETER,
+				new BigDecimalEx("x * 2").setBackend(Backend.BYTECODE).compile().getBackend());
+	}
+
+	@Test
+	public void testMatchesInterpreter() {
+		Random random = new Random(5);
+		for (String expression : EXPRESSIONS) {
+			CompiledDoubleExpression interpreted = (CompiledDoubleExpression) new DoubleEx(expression).compile();
+			CompiledDoubleExpression generated = (CompiledDoubleExpression) new DoubleEx(expression)
+					.setBackend(Backend.BYTECODE).compile();
+			assertEquals(expression, Backend.BYTECODE, generated.getBackend());
+			for (int i = 0; i < 200; i++) {
+				double[] values = row(i, interpreted.getSlotCount(), random);
+				assertEquals(expression, Double.doubleToLongBits(interpreted.eval(values)),
+						Double.doubleToLongBits(generated.eval(values)));
+			}
+		}
+	}
+
+	@Test
+	public void testCustom() {
+		DoubleEx e = new DoubleEx("x >> 2 + sum(x, 1, 2, 3)");
+		e.addOperator(new DoubleOperator(">>", 30, true) {
+			@Override
+			public double applyAsDouble(double v1, double v2) {
+				return v1 * Math.pow(10, v2);
+			}
+		});
+		e.addFunction(new DoubleFunction("sum", -1) {
+			@Override
+			public double applyAsDouble(double[] parameters, int offset, int count) {
+				double sum = 0;
+				for (int i = offset; i < offset + count; i++) {
+					sum += parameters[i];
+				}
+				return sum;
+			}
+		});
+		e.addFunction(new Function<Double, Void>("boxed", 2) {
+			@Override
+			public Double eval(List<Double> parameters, Void ctx) {
+				return parameters.get(0) - parameters.get(1);
+			}
+		});
+		e.setBackend(Backend.BYTECODE);
+		assertEquals(Backend.BYTECODE, e.compile().getBackend());
+		assertEquals(1.5 * 100 + 7.5, e.with("x", 1.5).eval(), 1e-12);
+	}
+
+	@Test
+	public void testLarge() {
+		StringBuilder sum = new StringBuilder("MAX(x");
+		StringBuilder nested = new StringBuilder("x");
+		for (int i = 0; i < 300; i++) {
+			sum.append(", ").append(i);
+			nested.insert(0, "IF(x > " + i + ", ").append(", " + i + " + x)");
+		}
+		sum.append(")");
+		DoubleEx max = new DoubleEx(sum.toString());
+		max.setBackend(Backend.BYTECODE);
+		assertEquals(Backend.BYTECODE, max.compile().getBackend());
+		assertEquals(299D, max.with("x", 5D).eval(), 0D);
+		DoubleEx ifs = new DoubleEx(nested.toString());
+		ifs.setBackend(Backend.BYTECODE);
+		assertEquals(Backend.BYTECODE, ifs.compile().getBackend());
+		assertEquals(new DoubleEx(nested.toString()).with("x", 17D).eval(), ifs.with("x", 17D).eval());
+	}
+
+	@Test
+	public void testCache() {
+		ExpressionCache<Double, Void> cache = new ExpressionCache<>(10);
+		new DoubleEx("x + 1").setCache(cache).with("x", 1D).eval();
+		Expression<Double, Void> e = new DoubleEx("x + 1").setCache(cache).setBackend(Backend.BYTECODE).with("x", 2D);
+		assertEquals(3D, e.eval(), 0D);
+		assertEquals(Backend.BYTECODE, e.compile().getBackend());
+		assertEquals(0, cache.getHitCount());
+		e = new DoubleEx("x + 1").setCache(cache).setBackend(Backend.BYTECODE).with("x", 3D);
+		assertEquals(4D, e.eval(), 0D);
+		assertEquals(Backend.BYTECODE, e.compile().getBackend());
+		assertEquals(1, cache.getHitCount());
+	}
+}
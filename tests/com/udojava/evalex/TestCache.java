@@ -0,0 +1,124 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TestCache {
+
+	@Test
+	public void testHit() {
+		ExpressionCache<BigDecimal, MathContext> cache = new ExpressionCache<>(10);
+		BigDecimalEx first = new BigDecimalEx("x / 3");
+		first.setCache(cache).with("x", BigDecimal.ONE);
+		assertEquals("0.3333333", first.eval().toPlainString());
+		BigDecimalEx second = new BigDecimalEx("x / 3", MathContext.DECIMAL64);
+		second.setCache(cache).with("x", new BigDecimal(2));
+		assertEquals("0.6666666666666667", second.eval().toPlainString());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.size());
+		assertNotSame(first.compile(), second.compile());
+		assertEquals("0.3333333", first.eval().toPlainString());
+		assertEquals("4", new BigDecimalEx("x / 3").setCache(cache).with("x", new BigDecimal(12)).eval().toPlainString());
+		assertEquals(2, cache.getHitCount());
+	}
+
+	@Test
+	public void testTypes() {
+		ExpressionCache<Double, Void> cache = new ExpressionCache<>(10);
+		assertEquals(2.5, new DoubleEx("x / 2").setCache(cache).with("x", 5D).eval(), 0D);
+		assertEquals(3.5, new DoubleEx("x / 2").setCache(cache).with("x", 7D).eval(), 0D);
+		assertEquals(1, cache.getHitCount());
+		ExpressionCache<Long, Void> longs = new ExpressionCache<>(10);
+		assertEquals(Long.valueOf(2), new LongEx("x / 2").setCache(longs).with("x", 5L).eval());
+		assertEquals(Long.valueOf(3), new LongEx("x / 2").setCache(longs).with("x", 7L).eval());
+		assertEquals(1, longs.getHitCount());
+	}
+
+	@Test
+	public void testCustomFunction() {
+		ExpressionCache<BigDecimal, MathContext> cache = new ExpressionCache<>(10);
+		Function<BigDecimal, MathContext> twice = new Function<BigDecimal, MathContext>("F", 1) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				return parameters.get(0).add(parameters.get(0));
+			}
+		};
+		Function<BigDecimal, MathContext> square = new Function<BigDecimal, MathContext>("F", 1) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				return parameters.get(0).multiply(parameters.get(0));
+			}
+		};
+		BigDecimalEx e = new BigDecimalEx("F(3)");
+		e.addFunction(twice);
+		assertEquals("6", e.setCache(cache).eval().toPlainString());
+		e = new BigDecimalEx("F(3)");
+		e.addFunction(square);
+		assertEquals("9", e.setCache(cache).eval().toPlainString());
+		e = new BigDecimalEx("F(3)");
+		e.addFunction(twice);
+		assertEquals("6", e.setCache(cache).eval().toPlainString());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void testShadowingVariable() {
+		ExpressionCache<BigDecimal, MathContext> cache = new ExpressionCache<>(10);
+		assertEquals("1", new BigDecimalEx("ABS + 1").setCache(cache).with("ABS", BigDecimal.ZERO).eval().toPlainString());
+		assertEquals("4", new BigDecimalEx("ABS(-3) + 1").setCache(cache).eval().toPlainString());
+		assertEquals("3", new BigDecimalEx("ABS + 1").setCache(cache).with("ABS", new BigDecimal(2)).eval().toPlainString());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void testEviction() {
+		ExpressionCache<Double, Void> cache = new ExpressionCache<>(2);
+		new DoubleEx("1 + x").setCache(cache).with("x", 1D).eval();
+		new DoubleEx("2 + x").setCache(cache).with("x", 1D).eval();
+		new DoubleEx("1 + x").setCache(cache).with("x", 1D).eval();
+		new DoubleEx("3 + x").setCache(cache).with("x", 1D).eval();
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(2, cache.size());
+		new DoubleEx("1 + x").setCache(cache).with("x", 1D).eval();
+		assertEquals(2, cache.getHitCount());
+		new DoubleEx("2 + x").setCache(cache).with("x", 1D).eval();
+		assertEquals(2, cache.getHitCount());
+		assertEquals(4, cache.getMissCount());
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getWeight());
+	}
+
+	@Test
+	public void testWeight() {
+		ExpressionCache<Double, Void> cache = new ExpressionCache<>(10, String::length, 0, TimeUnit.SECONDS);
+		new DoubleEx("1 + 2").setCache(cache).eval();
+		new DoubleEx("3 + 4").setCache(cache).eval();
+		assertEquals(10, cache.getWeight());
+		new DoubleEx("5").setCache(cache).eval();
+		assertEquals(6, cache.getWeight());
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testTimeToLive() throws InterruptedException {
+		ExpressionCache<Double, Void> cache = new ExpressionCache<>(10, text -> 1, 1, TimeUnit.MILLISECONDS);
+		new DoubleEx("1 + 2").setCache(cache).eval();
+		Thread.sleep(5);
+		new DoubleEx("1 + 2").setCache(cache).eval();
+		assertEquals(0, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getWeight());
+	}
+}
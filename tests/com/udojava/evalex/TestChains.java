@@ -0,0 +1,145 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import java.util.Random;
+
+public class TestChains {
+
+	private static String chain(String operator, int count) {
+		StringBuilder expression = new StringBuilder("x0");
+		for (int i = 1; i < count; i++) {
+			expression.append(' ').append(operator).append(" x").append(i);
+		}
+		return expression.toString();
+	}
+
+	@Test
+	public void testRPN() {
+		assertEquals("( a b c d +", new DoubleEx("a + b + c + d").toOptimizedRPN());
+		assertEquals("( a b c *", new DoubleEx("a * b * c").toOptimizedRPN());
+		assertEquals("a b +", new DoubleEx("a + b").toOptimizedRPN());
+		assertEquals("a b c + +", new DoubleEx("a + (b + c)").toOptimizedRPN());
+		assertEquals("( a b c * d e +", new DoubleEx("a + b*c + d + e").toOptimizedRPN());
+		assertEquals("( 3.0 x y +", new DoubleEx("1 + 2 + x + y").toOptimizedRPN());
+		// the decimal chains change the rounding, they are opt-in
+		assertEquals("a b + c +", new BigDecimalEx("a + b + c").toOptimizedRPN());
+		assertEquals("( a b c +",
+				new BigDecimalEx("a + b + c").setSingleRounding(true).toOptimizedRPN());
+		assertEquals("a b + c +", new LongEx("a + b + c").toOptimizedRPN());
+	}
+
+	@Test
+	public void testExtrema() {
+		assertEquals("( a b c ( d e 1 MIN MAX",
+				new LongEx("MAX(a, MAX(b, c), MIN(d, MIN(e, 1)))").toOptimizedRPN());
+		assertEquals("( a ( b c MIN MAX", new DoubleEx("MAX(a, MIN(b, c))").toOptimizedRPN());
+		assertEquals("( a b c MIN", new BigDecimalEx("MIN(MIN(a, b), c)").toOptimizedRPN());
+		// the first of equal values is the result, nested or not
+		BigDecimalEx e = new BigDecimalEx("MAX(a, MAX(b, c))");
+		assertEquals("1.0", e.with("a", "1.0").and("b", "1.00").and("c", "0").eval().toPlainString());
+		LongEx l = new LongEx("MAX(x, MAX(y, 1))");
+		l.addFunction(new Function<Long, Void>("MAX", 2) {
+			@Override
+			public Long eval(List<Long> parameters, Void ctx) {
+				return parameters.get(0) + parameters.get(1);
+			}
+		});
+		assertEquals("( x ( y 1 MAX MAX", l.toOptimizedRPN());
+	}
+
+	@Test
+	public void testDouble() {
+		Random random = new Random(42);
+		String sum = chain("+", 200);
+		String product = chain("*", 20);
+		for (Backend backend : new Backend[] { Backend.INTERPRETER, Backend.BYTECODE,
+				Backend.METHOD_HANDLES }) {
+			DoubleEx s = new DoubleEx(sum);
+			s.setBackend(backend);
+			DoubleEx p = new DoubleEx(product);
+			p.setBackend(backend);
+			double expectedSum = 0;
+			double expectedProduct = 1;
+			for (int i = 0; i < 200; i++) {
+				double value = random.nextGaussian() * 1e6;
+				s.with("x" + i, value);
+				expectedSum = i == 0 ? value : expectedSum + value;
+				if (i < 20) {
+					double factor = 1 + random.nextGaussian() / 10;
+					p.with("x" + i, factor);
+					expectedProduct = i == 0 ? factor : expectedProduct * factor;
+				}
+			}
+			assertEquals(backend.toString(), expectedSum, s.eval(), 0D);
+			assertEquals(backend.toString(), expectedProduct, p.eval(), 0D);
+		}
+	}
+
+	@Test
+	public void testSingleRounding() {
+		for (Backend backend : new Backend[] { Backend.INTERPRETER, Backend.SPECIALIZING }) {
+			BigDecimalEx e = new BigDecimalEx("a + b + c").setPrecision(3);
+			e.setBackend(backend);
+			e.with("a", "1.23").and("b", "0.004").and("c", "0.004");
+			assertEquals("1.23", e.eval().toPlainString());
+			e.setSingleRounding(true);
+			assertEquals("1.24", e.eval().toPlainString());
+			BigDecimalEx p = new BigDecimalEx("a * b * c").setPrecision(3).setSingleRounding(true);
+			p.setBackend(backend);
+			assertEquals("2.12", p.with("a", "1.21").and("b", "1.31").and("c", "1.34")
+					.eval().toPlainString());
+		}
+	}
+
+	@Test
+	public void testLedger() {
+		Random random = new Random(7);
+		MathContext mc = new MathContext(20);
+		String sum = chain("+", 100);
+		for (int round = 0; round < 20; round++) {
+			BigDecimal[] values = new BigDecimal[100];
+			for (int i = 0; i < values.length; i++) {
+				if (round % 4 == 3 && i == 50) {
+					// too wide for a long
+					values[i] = new BigDecimal("12345678901234567890123.45");
+				} else {
+					values[i] = BigDecimal.valueOf(random.nextLong() % 100000000000L,
+							random.nextInt(7) - round % 2);
+				}
+			}
+			BigDecimal expected = values[0].round(mc);
+			for (int i = 1; i < values.length; i++) {
+				expected = expected.add(values[i].round(mc));
+			}
+			expected = expected.round(mc);
+			for (Backend backend : new Backend[] { Backend.INTERPRETER, Backend.SPECIALIZING }) {
+				BigDecimalEx e = new BigDecimalEx(sum, mc).setSingleRounding(true);
+				e.setBackend(backend);
+				for (int i = 0; i < values.length; i++) {
+					e.with("x" + i, values[i]);
+				}
+				// twice, the specializing tree records the shapes first
+				assertEquals(backend.toString(), expected, e.eval());
+				assertEquals(backend.toString(), expected, e.eval());
+			}
+		}
+	}
+
+	@Test
+	public void testCache() {
+		ExpressionCache<BigDecimal, MathContext> cache = new ExpressionCache<>(10);
+		BigDecimalEx binary = new BigDecimalEx("a + b + c").setPrecision(3);
+		binary.setCache(cache).with("a", "1.23").and("b", "0.004").and("c", "0.004");
+		BigDecimalEx single = new BigDecimalEx("a + b + c").setPrecision(3).setSingleRounding(true);
+		single.setCache(cache).with("a", "1.23").and("b", "0.004").and("c", "0.004");
+		assertEquals("1.23", binary.eval().toPlainString());
+		assertEquals("1.24", single.eval().toPlainString());
+		assertEquals(2, cache.size());
+	}
+}
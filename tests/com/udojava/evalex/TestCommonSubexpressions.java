@@ -0,0 +1,118 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestCommonSubexpressions {
+
+	private static Function<BigDecimal, MathContext> counting(final AtomicInteger calls,
+			final boolean deterministic) {
+		return new Function<BigDecimal, MathContext>("F", 1) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				calls.incrementAndGet();
+				return parameters.get(0).add(BigDecimal.ONE);
+			}
+
+			@Override
+			public boolean isDeterministic() {
+				return deterministic;
+			}
+		};
+	}
+
+	private static int calls(String expression, boolean deterministic, Backend backend) {
+		AtomicInteger calls = new AtomicInteger();
+		BigDecimalEx e = new BigDecimalEx(expression);
+		e.addFunction(counting(calls, deterministic));
+		e.setBackend(backend);
+		e.with("x", "2").and("c", "1").eval();
+		return calls.get();
+	}
+
+	@Test
+	public void testShared() {
+		for (Backend backend : new Backend[] { Backend.INTERPRETER, Backend.SPECIALIZING }) {
+			assertEquals(1, calls("F(x) + F(x) * F(x)", true, backend));
+			assertEquals(1, calls("(F(x) - 1) * (F(x) - 1) + (F(x) - 1)", true, backend));
+			assertEquals(3, calls("F(x) + F(x) * F(x)", false, backend));
+			assertEquals(2, calls("F(x) + F(x + 0)", true, backend));
+		}
+	}
+
+	@Test
+	public void testConditional() {
+		// the first occurrence must be evaluated unconditionally
+		assertEquals(1, calls("F(x) + IF(c, F(x), 0)", true, Backend.INTERPRETER));
+		assertEquals(2, calls("IF(c, F(x), 0) + F(x)", true, Backend.INTERPRETER));
+		assertEquals(2, calls("IF(c, F(x), 0) + F(x) + F(x)", true, Backend.INTERPRETER));
+		assertEquals(1, calls("c > 5 && F(x) > 0 || F(x) > 0", true, Backend.INTERPRETER));
+		assertEquals(1, calls("IF(F(x) > 2, F(x), 0)", true, Backend.SPECIALIZING));
+	}
+
+	@Test
+	public void testRPN() {
+		// shared subtrees are shown at every occurrence
+		BigDecimalEx e = new BigDecimalEx("SQRT(a^2 + b^2) * LOG(x/y) - SQRT(a^2 + b^2)");
+		assertEquals(e.toRPN(), e.toOptimizedRPN());
+		assertEquals("x 1 + x 1 + *", new DoubleEx("(x + 1) * (x + 1)").toOptimizedRPN());
+	}
+
+	@Test
+	public void testDecimal() {
+		String expression = "SQRT(a^2 + b^2) * LOG(x/y) - SQRT(a^2 + b^2) / LOG(x/y)";
+		BigDecimal r = new BigDecimalEx("SQRT(a^2 + b^2)").with("a", "3").and("b", "4").eval();
+		BigDecimal l = new BigDecimalEx("LOG(x/y)").with("x", "5").and("y", "2").eval();
+		MathContext mc = MathContext.DECIMAL32;
+		BigDecimal expected = r.multiply(l, mc).subtract(r.divide(l, mc), mc);
+		for (Backend backend : new Backend[] { Backend.INTERPRETER, Backend.SPECIALIZING }) {
+			BigDecimalEx e = new BigDecimalEx(expression);
+			e.setBackend(backend);
+			assertEquals(expected, e.with("a", "3").and("b", "4").and("x", "5").and("y", "2").eval());
+		}
+	}
+
+	@Test
+	public void testSpecializing() {
+		String expression = "(x*y + 1) * (x*y + 1) - (x*y + 1)";
+		BigDecimalEx e = new BigDecimalEx(expression);
+		e.setBackend(Backend.SPECIALIZING);
+		String[][] values = { { "3", "4" }, { "1.5", "2" }, { "0.25", "0.5" },
+				{ "123456789", "98765" }, { "-2", "7" } };
+		for (String[] v : values) {
+			BigDecimal interpreted = new BigDecimalEx(expression)
+					.with("x", v[0]).and("y", v[1]).eval();
+			assertEquals(interpreted, e.with("x", v[0]).and("y", v[1]).eval());
+		}
+	}
+
+	@Test
+	public void testPrimitives() {
+		for (Backend backend : new Backend[] { Backend.INTERPRETER, Backend.BYTECODE,
+				Backend.METHOD_HANDLES }) {
+			DoubleEx d = new DoubleEx("SQRT(a*a + b*b) + IF(a > 0, SQRT(a*a + b*b), 0) * (a*a + b*b)");
+			d.setBackend(backend);
+			assertEquals(backend.toString(), 5D + 5D * 25D,
+					d.with("a", 3D).and("b", 4D).eval(), 0D);
+			assertEquals(backend.toString(), 5D, d.with("a", -3D).and("b", 4D).eval(), 0D);
+
+			LongEx l = new LongEx("(x*x + 1) * (x*x + 1) - IF(x > 0, x*x + 1, 0)");
+			l.setBackend(backend);
+			assertEquals(backend.toString(), Long.valueOf(90), l.with("x", 3L).eval());
+			assertEquals(backend.toString(), Long.valueOf(100), l.with("x", -3L).eval());
+		}
+	}
+
+	@Test
+	public void testLongOverflow() {
+		LongEx e = new LongEx("(x*x) * (x*x) - (x*x)");
+		e.with("x", 100000L);
+		assertEquals(new BigDecimal("99999999990000000000"), e.compile().evalExact(e.bindings()));
+	}
+}
@@ -0,0 +1,127 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestCompiled {
+
+	@Test
+	public void testBindings() {
+		CompiledExpression<BigDecimal, MathContext> c = new BigDecimalEx("a * (1 + rate)").compile();
+
+		assertEquals("119.00", c.eval(c.bindings().set("a", new BigDecimal("100")).set("rate", new BigDecimal("0.19"))).toPlainString());
+		assertEquals("267.50", c.eval(c.bindings().set("a", new BigDecimal("250")).set("rate", new BigDecimal("0.07"))).toPlainString());
+	}
+
+	@Test
+	public void testContext() {
+		CompiledExpression<BigDecimal, MathContext> c = new BigDecimalEx("x/3").compile();
+		Bindings<BigDecimal> b = c.bindings().set("x", BigDecimal.ONE);
+
+		assertEquals("0.3333333", c.eval(b).toPlainString());
+		assertEquals("0.33", c.eval(b, new MathContext(2)).toPlainString());
+		assertEquals("0.3333333333333333", c.eval(b, MathContext.DECIMAL64).toPlainString());
+		assertEquals("0.3333333", c.eval(b).toPlainString());
+	}
+
+	@Test
+	public void testDefaults() {
+		BigDecimalEx e = new BigDecimalEx("PI * r");
+		e.with("r", "2");
+		CompiledExpression<BigDecimal, MathContext> c = e.compile();
+
+		assertEquals("6.283186", c.eval().toPlainString());
+		assertEquals("9.424779", c.eval(c.bindings().set("r", new BigDecimal(3))).toPlainString());
+		e.with("r", "1");
+		assertEquals("6.283186", c.eval().toPlainString());
+		assertEquals("3.141593", e.eval().toPlainString());
+	}
+
+	@Test
+	public void testSlots() {
+		CompiledExpression<BigDecimal, MathContext> c = new BigDecimalEx("price * qty - discount + price").compile();
+		int price = c.slotOf("price");
+		int qty = c.slotOf("qty");
+		int discount = c.slotOf("discount");
+
+		assertEquals(3, c.getSlotCount());
+		assertEquals(-1, c.slotOf("tax"));
+		assertEquals("price", c.getVariables().get(price));
+
+		Bindings<BigDecimal> b = c.bindings().set(price, new BigDecimal("2.50")).set(qty, new BigDecimal(4)).set(discount, BigDecimal.ONE);
+		assertEquals("11.50", c.eval(b).toPlainString());
+
+		Object[] values = new Object[c.getSlotCount()];
+		values[price] = new BigDecimal("1.25");
+		values[qty] = new BigDecimal(8);
+		values[discount] = BigDecimal.ZERO;
+		assertEquals("11.25", c.eval(values).toPlainString());
+		assertEquals("11", c.eval(values, new MathContext(2)).toPlainString());
+	}
+
+	@Test
+	public void testDoubleSlots() {
+		CompiledDoubleExpression c = new DoubleEx("x * y + x").compile();
+		double[] values = new double[c.getSlotCount()];
+		values[c.slotOf("x")] = 1.5;
+		values[c.slotOf("y")] = 4;
+
+		assertEquals(7.5, c.eval(values), 0);
+	}
+
+	@Test(expected = ExpressionException.class)
+	public void testSlotCount() {
+		new BigDecimalEx("x + y").compile().eval(new Object[1]);
+	}
+
+	@Test
+	public void testUnbound() {
+		String err = "";
+		CompiledExpression<BigDecimal, MathContext> c = new BigDecimalEx("x + y").compile();
+		try {
+			c.eval(c.bindings().set("x", BigDecimal.ONE));
+		} catch (ExpressionException e) {
+			err = e.getMessage();
+		}
+		assertEquals("Unknown operator or function: y", err);
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		final CompiledExpression<BigDecimal, MathContext> c = new BigDecimalEx("MAX(x, 10) * 2 + x").compile();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						for (int i = 0; i < 1000; i++) {
+							BigDecimal x = new BigDecimal(i);
+							BigDecimal expected = x.max(BigDecimal.TEN).multiply(new BigDecimal(2)).add(x);
+							if (c.eval(c.bindings().set("x", x)).compareTo(expected) != 0) {
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertEquals(true, result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
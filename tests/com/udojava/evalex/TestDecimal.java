@@ -0,0 +1,104 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Random;
+
+public class TestDecimal {
+
+	private static final String[] EXPRESSIONS = {
+		"a + b", "a - b", "a * b", "a * b + c", "a * (b - c) * 3",
+		"a / b + c", "(a + b) * (a - b) * c", "a > b", "a <= b + c",
+		"a == b", "a <> c", "a && b", "c || 0", "IF(a > b, a * c, b - c)",
+		"MAX(a, b, c) * 2", "ROUND(a * b, 2) + c", "a % b * c",
+		"a * 1.19 - b * 0.05 + 100.00", "1E+3 * a + b",
+		"-a * b + !(a > c) - -(b - c)",
+	};
+
+	private static final MathContext[] CONTEXTS = {
+		MathContext.DECIMAL32, MathContext.DECIMAL64, MathContext.DECIMAL128,
+		MathContext.UNLIMITED, new MathContext(4, RoundingMode.HALF_EVEN),
+		new MathContext(18, RoundingMode.DOWN),
+	};
+
+	@Test
+	public void testScaled() {
+		assertEquals("5.00", new BigDecimalEx("0.00 + 5").eval().toString());
+		assertEquals("0.000", new BigDecimalEx("0 * 0.000").eval().toString());
+		assertEquals("-1.210", new BigDecimalEx("1.10 * -1.1").eval().toString());
+		assertEquals("1002", new BigDecimalEx("1E+3 + 2").eval().toString());
+		assertEquals("123456.8", new BigDecimalEx("123456.7 + 0.05").eval().toString());
+		assertEquals("123456.75", new BigDecimalEx("123456.7 + 0.05",
+				MathContext.DECIMAL64).eval().toString());
+		assertEquals("1", new BigDecimalEx("0.00 && 1").eval().toString());
+		assertEquals("0", new BigDecimalEx("0 || 0").eval().toString());
+		assertEquals("1", new BigDecimalEx("1.0 == 1.00").eval().toString());
+	}
+
+	@Test
+	public void testWiden() {
+		MathContext mc = MathContext.UNLIMITED;
+		assertEquals(new BigDecimal("85070591730234615847396907784232501249"),
+				new BigDecimalEx("x * x", mc).with("x", new BigDecimal("9223372036854775807")).eval());
+		assertEquals(new BigDecimal("18446744073709551614"),
+				new BigDecimalEx("x + x", mc).with("x", new BigDecimal("9223372036854775807")).eval());
+		assertEquals(new BigDecimal("1.00000000000000000001"),
+				new BigDecimalEx("1 + 0.00000000000000000001", mc).eval());
+		assertEquals(BigDecimal.ONE, new BigDecimalEx("1E+30 > 1E-30").eval());
+	}
+
+	@Test
+	public void testMatchesReference() {
+		Random random = new Random(42);
+		for (String expression : EXPRESSIONS) {
+			BigDecimalEx e = new BigDecimalEx(expression);
+			CompiledExpression<BigDecimal, MathContext> c = e.compile();
+			// the generic evaluation on BigDecimal values is the reference
+			CompiledExpression<BigDecimal, MathContext> reference = new CompiledExpression<>(
+					c.program, e.getContext(), new Object[0], e::val, e::round);
+			for (int n = 0; n < 500; n++) {
+				Object[] values = new Object[c.getSlotCount()];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = randomValue(random);
+				}
+				for (MathContext mc : CONTEXTS) {
+					String expected;
+					try {
+						expected = reference.eval(values, mc).toString();
+					} catch (ArithmeticException ex) {
+						expected = ex.getMessage();
+					}
+					String actual;
+					try {
+						actual = c.eval(values, mc).toString();
+					} catch (ArithmeticException ex) {
+						actual = ex.getMessage();
+					}
+					assertEquals(expression + " " + java.util.Arrays.toString(values)
+							+ " " + mc, expected, actual);
+				}
+			}
+		}
+	}
+
+	private static BigDecimal randomValue(Random random) {
+		switch (random.nextInt(5)) {
+		case 0:
+			return BigDecimal.valueOf(random.nextInt(201) - 100, random.nextInt(3));
+		case 1:
+			return BigDecimal.valueOf(random.nextLong() % 100000000L, 2 + random.nextInt(7));
+		case 2:
+			return BigDecimal.valueOf(random.nextLong(), random.nextInt(20) - 5);
+		case 3:
+			return BigDecimal.valueOf(0, random.nextInt(4));
+		default:
+			return new BigDecimal(random.nextDouble() * 1E6).setScale(random.nextInt(10),
+					RoundingMode.HALF_UP);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class TestDouble {
+
+	@Test
+	public void testSimple() {
+		assertEquals(3.0, new DoubleEx("1+2").eval(), 0);
+		assertEquals(3.5, new DoubleEx("(3+4)/2").eval(), 0);
+		assertEquals(2.0, new DoubleEx("8%3").eval(), 0);
+		assertEquals(-0.5, new DoubleEx("(3.4 + -4.4)/2").eval(), 1e-15);
+	}
+
+	@Test
+	public void testBooleans() {
+		assertEquals(1.0, new DoubleEx("2>1 && 1<=1").eval(), 0);
+		assertEquals(0.0, new DoubleEx("2<1 || 1!=1").eval(), 0);
+		assertEquals(1.0, new DoubleEx("NOT(TRUE)==FALSE").eval(), 0);
+		assertEquals(5.0, new DoubleEx("IF(TRUE, 5, 3)").eval(), 0);
+	}
+
+	@Test
+	public void testFunctions() {
+		assertEquals(0.5, new DoubleEx("SIN(30)").eval(), 1e-15);
+		assertEquals(9.6, new DoubleEx("MAX(3,max(MAX(9.6,-4.2),Min(5,9)))").eval(), 0);
+		assertEquals(-4.0, new DoubleEx("MIN(0, 0-MAX(3,4), 10)").eval(), 0);
+		assertEquals(3.79, new DoubleEx("ROUND(3.78787, 2)").eval(), 0);
+		assertEquals(4.0, new DoubleEx("SQRT(x)").with("x", 16D).eval(), 0);
+	}
+
+	@Test
+	public void testPrimitiveOperator() {
+		DoubleEx e = new DoubleEx("2.1234 >> 2");
+		e.addOperator(new DoubleOperator(">>", 30, true) {
+			@Override
+			public double applyAsDouble(double v1, double v2) {
+				return v1 * Math.pow(10, v2);
+			}
+		});
+		assertEquals(212.34, e.eval(), 1e-12);
+	}
+
+	@Test
+	public void testPrimitiveFunction() {
+		DoubleEx e = new DoubleEx("2 * average(x, 4, 8)");
+		e.addFunction(new DoubleFunction("average", -1) {
+			@Override
+			public double applyAsDouble(double[] parameters, int offset, int count) {
+				double sum = 0;
+				for (int i = offset; i < offset + count; i++) {
+					sum += parameters[i];
+				}
+				return sum / count;
+			}
+		});
+		CompiledDoubleExpression c = e.compile();
+		assertEquals(16.0, c.eval(new double[] { 12 }), 0);
+		assertEquals(18.0, c.eval(new double[] { 15 }), 0);
+	}
+
+	@Test
+	public void testGenericOperatorAndFunction() {
+		DoubleEx e = new DoubleEx("3 ** twice(2)");
+		e.addOperator(new PureOperator<Double>("**", 40, false) {
+			@Override
+			public Double eval(Double v1, Double v2) {
+				return Math.pow(v1, v2);
+			}
+		});
+		e.addFunction(new PureFunction<Double>("twice", 1) {
+			@Override
+			public Double eval(List<Double> parameters) {
+				return parameters.get(0) * 2;
+			}
+		});
+		assertEquals(81.0, e.eval(), 0);
+	}
+}
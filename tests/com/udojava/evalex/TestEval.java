@@ -247,5 +247,18 @@ public class TestEval {
 		e = new BigDecimalEx("2.5/3").setRoundingMode(RoundingMode.UP);
 		assertEquals("0.8333334", e.eval().toPlainString());
 	}
+
+	@Test
+	public void testReevaluate() {
+		BigDecimalEx e = new BigDecimalEx("2.5/3 + x");
+		e.with("x", "1");
+		assertEquals("1.833333", e.eval().toPlainString());
+		e.with("x", "2");
+		assertEquals("2.833333", e.eval().toPlainString());
+		e.setPrecision(3);
+		assertEquals("2.83", e.eval().toPlainString());
+		e.setPrecision(10);
+		assertEquals("2.833333333", e.eval().toPlainString());
+	}
 	
 }
@@ -0,0 +1,161 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Collections;
+import java.util.List;
+
+public class TestFunctions {
+
+	private static final Backend[] DECIMAL_BACKENDS = { Backend.INTERPRETER,
+			Backend.SPECIALIZING };
+
+	private static BigDecimalEx withFunctions(String expression) {
+		BigDecimalEx e = new BigDecimalEx(expression);
+		e.addFunction(new Function1<BigDecimal, MathContext>("twice") {
+			@Override
+			public BigDecimal eval(BigDecimal v, MathContext mc) {
+				return v.add(v, mc);
+			}
+		});
+		e.addFunction(new Function2<BigDecimal, MathContext>("diff") {
+			@Override
+			public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
+				return v1.subtract(v2, mc);
+			}
+		});
+		e.addFunction(new Function3<BigDecimal, MathContext>("clamp") {
+			@Override
+			public BigDecimal eval(BigDecimal v, BigDecimal min, BigDecimal max, MathContext mc) {
+				return v.max(min).min(max);
+			}
+		});
+		e.addFunction(new FunctionN<BigDecimal, MathContext>("sum", -1) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				BigDecimal sum = BigDecimal.ZERO;
+				for (BigDecimal parameter : parameters) {
+					sum = sum.add(parameter, mc);
+				}
+				return sum;
+			}
+		});
+		return e;
+	}
+
+	@Test
+	public void testFixedArity() {
+		for (Backend backend : DECIMAL_BACKENDS) {
+			BigDecimalEx e = withFunctions("twice(x) + diff(x, 1) * clamp(x, 0, 2)");
+			e.setBackend(backend);
+			assertEquals(backend.name(), "10", e.with("x", "3").eval().toPlainString());
+			assertEquals(backend.name(), "2", e.with("x", "1").eval().toPlainString());
+		}
+	}
+
+	@Test
+	public void testNestedCalls() {
+		for (Backend backend : DECIMAL_BACKENDS) {
+			BigDecimalEx e = withFunctions("sum(1, diff(twice(x), sum(x, 1, clamp(x, 0, 1))), sum(), x)");
+			e.setBackend(backend);
+			assertEquals(backend.name(), "3", e.with("x", "2").eval().toPlainString());
+			assertEquals(backend.name(), "9", e.with("x", "5").eval().toPlainString());
+		}
+	}
+
+	@Test
+	public void testFolded() {
+		assertEquals("x 7 +", withFunctions("x + sum(twice(2), diff(4, 1))").toOptimizedRPN());
+	}
+
+	@Test
+	public void testReadOnlyView() {
+		BigDecimalEx e = new BigDecimalEx("first(x, 2)");
+		e.addFunction(new FunctionN<BigDecimal, MathContext>("first", 2) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				try {
+					parameters.set(0, BigDecimal.ZERO);
+					fail();
+				} catch (UnsupportedOperationException expected) {
+					// a view of the operand stack
+				}
+				return parameters.get(0);
+			}
+		});
+		assertEquals("1", e.with("x", "1").eval().toPlainString());
+	}
+
+	@Test
+	public void testListFunctions() {
+		// the parameters of other functions are a list of their own
+		BigDecimalEx e = new BigDecimalEx("last(x, 2, 3)");
+		e.addFunction(new Function<BigDecimal, MathContext>("last", -1) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				parameters.add(0, BigDecimal.ONE);
+				return parameters.get(parameters.size() - 1);
+			}
+		});
+		assertEquals("3", e.with("x", "1").eval().toPlainString());
+
+		LongEx l = new LongEx("twice(x)");
+		l.addFunction(new PureFunction<Long>("twice", 1) {
+			@Override
+			public Long eval(List<Long> parameters) {
+				return parameters.get(0) * 2;
+			}
+		});
+		assertEquals(Long.valueOf(6), l.with("x", 3L).eval());
+	}
+
+	@Test
+	public void testPrimitiveExpressions() {
+		for (Backend backend : new Backend[] { Backend.INTERPRETER, Backend.BYTECODE,
+				Backend.METHOD_HANDLES }) {
+			DoubleEx e = new DoubleEx("hypot(x, 4) + half(x)");
+			e.addFunction(new Function2<Double, Void>("hypot") {
+				@Override
+				public Double eval(Double v1, Double v2, Void ctx) {
+					return Math.hypot(v1, v2);
+				}
+			});
+			e.addFunction(new Function1<Double, Void>("half") {
+				@Override
+				public Double eval(Double v, Void ctx) {
+					return v / 2;
+				}
+			});
+			e.setBackend(backend);
+			assertEquals(backend.name(), 6.5, e.with("x", 3D).eval(), 0D);
+		}
+		LongEx l = new LongEx("mid(x, 10, 20)");
+		l.addFunction(new Function3<Long, Void>("mid") {
+			@Override
+			public Long eval(Long v, Long min, Long max, Void ctx) {
+				return Math.max(min, Math.min(max, v));
+			}
+		});
+		assertEquals(Long.valueOf(15), l.with("x", 15L).eval());
+		assertEquals(Long.valueOf(20), l.with("x", 25L).eval());
+	}
+
+	@Test
+	public void testDirectCalls() {
+		Function1<BigDecimal, MathContext> abs = new Function1<BigDecimal, MathContext>("abs") {
+			@Override
+			public BigDecimal eval(BigDecimal v, MathContext mc) {
+				return v.abs(mc);
+			}
+		};
+		assertEquals("ABS", abs.getName());
+		assertEquals(1, abs.getNumParams());
+		assertEquals(BigDecimal.ONE, abs.eval(Collections.singletonList(BigDecimal.ONE.negate()),
+				MathContext.DECIMAL32));
+	}
+}
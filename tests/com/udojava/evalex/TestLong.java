@@ -0,0 +1,87 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+public class TestLong {
+
+	@Test
+	public void testSimple() {
+		assertEquals(Long.valueOf(3), new LongEx("1+2").eval());
+		assertEquals(Long.valueOf(3), new LongEx("(3+4)/2").eval());
+		assertEquals(Long.valueOf(-3), new LongEx("-7/2").eval());
+		assertEquals(Long.valueOf(-1), new LongEx("-7%2").eval());
+		assertEquals(Long.valueOf(1024), new LongEx("2^10").eval());
+		assertEquals(Long.valueOf(0), new LongEx("2^-1").eval());
+		assertEquals(Long.valueOf(-1), new LongEx("-1^-3").eval());
+	}
+
+	@Test
+	public void testBitwise() {
+		assertEquals(Long.valueOf(4), new LongEx("12 & 6").eval());
+		assertEquals(Long.valueOf(14), new LongEx("12 | 6").eval());
+		assertEquals(Long.valueOf(48), new LongEx("3 << 4").eval());
+		assertEquals(Long.valueOf(-4), new LongEx("-16 >> 2").eval());
+		assertEquals(Long.valueOf(Long.MAX_VALUE), new LongEx("-1 >>> 1").eval());
+		assertEquals(Long.valueOf(1), new LongEx("flags & 4 != 0").with("flags", 6L).eval());
+		assertEquals(Long.valueOf(11), new LongEx("1 << 2 + 1 | 3").eval());
+	}
+
+	@Test
+	public void testBooleans() {
+		assertEquals(Long.valueOf(1), new LongEx("2>1 && 1<=1").eval());
+		assertEquals(Long.valueOf(0), new LongEx("2<1 || 1!=1").eval());
+		assertEquals(Long.valueOf(5), new LongEx("IF(NOT(FALSE), MAX(1, 5, 3), 0)").eval());
+		assertEquals(Long.valueOf(-7), new LongEx("MIN(3, ABS(-2), -7)").eval());
+	}
+
+	@Test
+	public void testOverflow() {
+		LongEx e = new LongEx("x * x / x");
+		e.with("x", 4000000000L);
+		assertEquals(Long.valueOf(4000000000L), e.eval());
+		assertEquals(new BigDecimal("4000000000"), e.evalExact());
+
+		e = new LongEx("x * 2 - x");
+		e.with("x", Long.MAX_VALUE);
+		assertEquals(Long.valueOf(Long.MAX_VALUE), e.eval());
+
+		assertEquals(new BigDecimal("18446744073709551616"), new LongEx("2^64").evalExact());
+		assertEquals(new BigDecimal("9223372036854775808"), new LongEx("1 << 63").evalExact());
+		e = new LongEx("ABS(x)");
+		e.with("x", Long.MIN_VALUE);
+		assertEquals(new BigDecimal("9223372036854775808"), e.evalExact());
+		assertEquals(Long.valueOf(1), new LongEx("99999999999999999999 > x").with("x", 1L).eval());
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testOverflowResult() {
+		new LongEx("x + 1").with("x", Long.MAX_VALUE).eval();
+	}
+
+	@Test
+	public void testCompiled() {
+		CompiledLongExpression c = new LongEx("quota - used * 2").compile();
+		long[] values = new long[c.getSlotCount()];
+		values[c.slotOf("quota")] = 100;
+		values[c.slotOf("used")] = 30;
+		assertEquals(40, c.eval(values));
+		values[c.slotOf("quota")] = Long.MIN_VALUE;
+		assertEquals(new BigDecimal("-9223372036854775868"), c.evalExact(values));
+	}
+
+	@Test
+	public void testCustomOperator() {
+		LongEx e = new LongEx("x <=> y");
+		e.addOperator(new LongOperator("<=>", 10, true) {
+			@Override
+			public long applyAsLong(long v1, long v2) {
+				return Long.compare(v1, v2);
+			}
+		});
+		assertEquals(Long.valueOf(-1), e.with("x", 1L).with("y", 2L).eval());
+	}
+}
@@ -0,0 +1,121 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+public class TestMethodHandles {
+
+	private static final String[] LONG_EXPRESSIONS = {
+		"1 + 2 * x - y / 3",
+		"x % 3 + (x - y) * (x + y)",
+		"x ^ 3 + (x & y) - (x | y) + (x << 3) + (y >> 1) + (y >>> 60)",
+		"x > y", "x >= y", "x < y", "x <= y", "x = y", "x != y",
+		"x && y", "x || y", "(x > 0 && y > 0) || x = y",
+		"IF(x > y, x - y, IF(y > 0, y, 0 - y)) * 2",
+		"NOT(x) + ABS(y) + MAX(x, y, 3) - MIN(x, -1)",
+		"x * 4611686018427387904 + y",
+		"IF(y != 0, x / y, 0)",
+		"-x * y + !(x > y) - -(x - y)",
+	};
+
+	@Test
+	public void testBackend() {
+		assertEquals(Backend.METHOD_HANDLES, new DoubleEx("x * 2")
+				.setBackend(Backend.METHOD_HANDLES).compile().getBackend());
+		assertEquals(Backend.METHOD_HANDLES, new LongEx("x * 2")
+				.setBackend(Backend.METHOD_HANDLES).compile().getBackend());
+		assertEquals(Backend.INTERPRETER, new LongEx("x * 2")
+				.setBackend(Backend.BYTECODE).compile().getBackend());
+		assertEquals(Backend.INTERPRETER, new BigDecimalEx("x * 2")
+				.setBackend(Backend.METHOD_HANDLES).compile().getBackend());
+		assertEquals(Backend.INTERPRETER, new LongEx("x * 2 + 9223372036854775808")
+				.setBackend(Backend.METHOD_HANDLES).compile().getBackend());
+	}
+
+	@Test
+	public void testDouble() {
+		Random random = new Random(7);
+		for (String expression : TestBytecode.EXPRESSIONS) {
+			CompiledDoubleExpression interpreted = (CompiledDoubleExpression) new DoubleEx(expression).compile();
+			CompiledDoubleExpression handles = (CompiledDoubleExpression) new DoubleEx(expression)
+					.setBackend(Backend.METHOD_HANDLES).compile();
+			assertEquals(expression, Backend.METHOD_HANDLES, handles.getBackend());
+			for (int i = 0; i < 200; i++) {
+				double[] v = TestBytecode.row(i, interpreted.getSlotCount(), random);
+				assertEquals(expression, Double.doubleToLongBits(interpreted.eval(v)),
+						Double.doubleToLongBits(handles.eval(v)));
+			}
+		}
+	}
+
+	@Test
+	public void testLong() {
+		Random random = new Random(11);
+		long[] values = { 0, 1, -1, 2, -7, 63, Long.MAX_VALUE, Long.MIN_VALUE, 1L << 40 };
+		for (String expression : LONG_EXPRESSIONS) {
+			CompiledLongExpression interpreted = (CompiledLongExpression) new LongEx(expression).compile();
+			CompiledLongExpression handles = (CompiledLongExpression) new LongEx(expression)
+					.setBackend(Backend.METHOD_HANDLES).compile();
+			assertEquals(expression, Backend.METHOD_HANDLES, handles.getBackend());
+			for (int i = 0; i < 200; i++) {
+				long[] v = TestBytecode.row(values, i, interpreted.getSlotCount(), random);
+				assertEquals(expression, result(interpreted, v), result(handles, v));
+			}
+		}
+	}
+
+	private static String result(CompiledLongExpression e, long[] values) {
+		try {
+			BigDecimal exact = e.evalExact(values);
+			return exact.toPlainString() + " " + e.eval(values);
+		} catch (RuntimeException ex) {
+			return ex.getClass().getName() + ": " + ex.getMessage();
+		}
+	}
+
+	@Test
+	public void testCustom() {
+		DoubleEx e = new DoubleEx("x >> 2 + sum(x, 1, 2, 3) + seven()");
+		e.addOperator(new DoubleOperator(">>", 30, true) {
+			@Override
+			public double applyAsDouble(double v1, double v2) {
+				return v1 * Math.pow(10, v2);
+			}
+		});
+		e.addFunction(new DoubleFunction("sum", -1) {
+			@Override
+			public double applyAsDouble(double[] parameters, int offset, int count) {
+				double sum = 0;
+				for (int i = offset; i < offset + count; i++) {
+					sum += parameters[i];
+				}
+				return sum;
+			}
+		});
+		e.addFunction(new DoubleFunction("seven", 0) {
+			@Override
+			public double applyAsDouble(double[] parameters, int offset, int count) {
+				return 7;
+			}
+		});
+		e.setBackend(Backend.METHOD_HANDLES);
+		assertEquals(Backend.METHOD_HANDLES, e.compile().getBackend());
+		assertEquals(1.5 * 100 + 7.5 + 7, e.with("x", 1.5).eval(), 1e-12);
+	}
+
+	@Test
+	public void testTooManyParameters() {
+		StringBuilder max = new StringBuilder("MAX(x");
+		for (int i = 0; i < 300; i++) {
+			max.append(", ").append(i);
+		}
+		DoubleEx e = new DoubleEx(max.append(")").toString());
+		e.setBackend(Backend.METHOD_HANDLES);
+		assertEquals(Backend.INTERPRETER, e.compile().getBackend());
+		assertEquals(299D, e.with("x", 5D).eval(), 0D);
+	}
+}
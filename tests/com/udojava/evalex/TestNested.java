@@ -1,9 +1,14 @@
 package com.udojava.evalex;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import org.junit.Test;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+
 public class TestNested {
 
 	@Test
@@ -43,4 +48,116 @@ public class TestNested {
 
         assertEquals("14", e.eval().toString());
     }
+
+	@Test
+	public void testRebindSubexpressions() {
+		BigDecimalEx e = new BigDecimalEx("net * 2");
+		e.with("gross", "100").with("tax", "19");
+		assertEquals("162", e.with("net", "gross - tax").eval().toPlainString());
+		assertEquals("200", e.with("net", "gross").eval().toPlainString());
+		assertEquals("14", e.with("net", "7").eval().toPlainString());
+		assertEquals("162", e.with("net", "gross - tax").eval().toPlainString());
+		assertEquals("gross tax - 2 *", e.toRPN());
+	}
+
+	@Test
+	public void testRebindKeepsProgram() {
+		DoubleEx e = new DoubleEx("net * 2 + x");
+		e.with("gross", "100").with("tax", "19").with("x", "1");
+		e.with("net", "gross - tax");
+		assertEquals(163.0, e.eval(), 0);
+		CompiledExpression<Double, Void> compiled = e.compile();
+		e.with("net", "gross * x");
+		assertSame(compiled.program, e.compile().program);
+		assertEquals(201.0, e.eval(), 0);
+		CompiledDoubleExpression linked = (CompiledDoubleExpression) e.compile();
+		double[] values = new double[linked.getSlotCount()];
+		values[linked.slotOf("gross")] = 10;
+		values[linked.slotOf("x")] = 3;
+		assertEquals(63.0, linked.eval(values), 0);
+		double[] result = new double[2];
+		double[][] columns = new double[linked.getSlotCount()][];
+		columns[linked.slotOf("gross")] = new double[] { 1, 2 };
+		linked.evalBatch(columns, result);
+		assertEquals(3.0, result[0], 0);
+		assertEquals(5.0, result[1], 0);
+	}
+
+	@Test
+	public void testSubexpressionReferences() {
+		BigDecimalEx e = new BigDecimalEx("a + b");
+		e.with("a", "b + 1").with("b", "2 * c").with("c", "3");
+		assertEquals("13", e.eval().toPlainString());
+
+		// a variable inside its own subexpression keeps its value
+		BigDecimalEx twice = new BigDecimalEx("x + 1");
+		twice.with("x", "4").with("x", "x * 2");
+		assertEquals("x 2 * 1 +", twice.toRPN());
+		assertEquals("9", twice.eval().toPlainString());
+		assertEquals("x y * x * y x * y * +", new BigDecimalEx("x + y").with("x", "y * x")
+				.with("y", "x * y").toRPN());
+	}
+
+	@Test
+	public void testConstantSubexpressions() {
+		BigDecimalEx e = new BigDecimalEx("x * rate");
+		e.with("rate", "0.19 * 2").with("x", "10");
+		// the subexpression is folded in its own program, linked to rate
+		assertEquals("x rate *", e.toOptimizedRPN());
+		CompiledExpression<BigDecimal, MathContext> compiled = e.compile();
+		assertEquals(0, compiled.links[0].target.getSlotCount());
+		assertEquals("0.38", compiled.links[0].target.eval().toPlainString());
+		assertEquals("3.80", e.eval().toPlainString());
+	}
+
+	@Test
+	public void testLazySubexpressions() {
+		final int[] calls = new int[1];
+		BigDecimalEx e = new BigDecimalEx("IF(x > 0, c, 0) + d");
+		e.addFunction(new Function<BigDecimal, MathContext>("costly", 1) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				calls[0]++;
+				return parameters.get(0).multiply(new BigDecimal(2));
+			}
+		});
+		e.with("c", "costly(y)").with("d", "y && costly(y)").with("x", "0").with("y", "0");
+		assertEquals("0", e.eval().toPlainString());
+		assertEquals(0, calls[0]);
+		e.with("x", "1").with("y", "3");
+		assertEquals("7", e.eval().toPlainString());
+		assertEquals(2, calls[0]);
+		// rebinding a subexpression used in a branch compiles the expression again
+		e.with("c", "costly(y) + 1");
+		assertEquals("8", e.eval().toPlainString());
+		assertEquals(4, calls[0]);
+
+		assertEquals("0", new BigDecimalEx("IF(x > 0, a, 0)").with("a", "1/0")
+				.with("x", "0").eval().toPlainString());
+	}
+
+	@Test
+	public void testLinkedValuesNotRounded() {
+		BigDecimalEx e = new BigDecimalEx("a").setPrecision(7);
+		e.addFunction(new Function<BigDecimal, MathContext>("F", 0) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				return new BigDecimal("1.23456789");
+			}
+		});
+		assertEquals("1.23456789", e.with("a", "F()").eval().toPlainString());
+		assertEquals("123456.80", new BigDecimalEx("a").setPrecision(7)
+				.with("a", "ROUND(x,2)").with("x", "123456.8").eval().toPlainString());
+		assertEquals("98765430", new BigDecimalEx("a").setPrecision(7)
+				.with("a", "FLOOR(y)").with("y", "98765432.1").eval().toString());
+	}
+
+	@Test
+	public void testCachedSubexpressions() {
+		ExpressionCache<BigDecimal, MathContext> cache = new ExpressionCache<>(10);
+		assertEquals("6", new BigDecimalEx("2 * f").setCache(cache).with("f", "x + 1")
+				.with("x", "2").eval().toPlainString());
+		assertEquals("2", new BigDecimalEx("2 * f").setCache(cache).with("f", "x - 1")
+				.with("x", "2").eval().toPlainString());
+	}
 }
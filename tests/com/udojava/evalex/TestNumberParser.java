@@ -0,0 +1,94 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Random;
+
+public class TestNumberParser {
+
+	private static final String[] NUMBERS = { "0", "-0", "0.0", "-0.000", "1", "+1", "007",
+			"0.0825", "3.141592653589793", "2.718281828459045", "1e10", "1E-10", "-1.5e+3",
+			"1.", ".5", "123456789012345678", "1234567890123456789", "9999999999999999999",
+			"12345678901234567890", "0.1", "0.2", "0.3", "9007199254740993",
+			"9007199254740992.5", "4.9e-324", "2.4703282292062327e-324",
+			"2.4703282292062328e-324", "2.2250738585072011e-308", "2.2250738585072014e-308",
+			"1.7976931348623157e308", "1.7976931348623158e308", "1.8e308", "1e-400", "1e400",
+			"7.038531e-26", "8.98846567431158e307", "1e23", "8.589973e9", "2.0000000000000004",
+			"1.00000000000000011102230246251565404236316680908203125", "5e-324", "123e-20" };
+
+	@Test
+	public void testDoubles() {
+		for (String number : NUMBERS) {
+			assertEquals(number, Double.doubleToLongBits(Double.parseDouble(number)),
+					Double.doubleToLongBits(NumberParser.parseDouble(number)));
+		}
+	}
+
+	@Test
+	public void testRandomDoubles() {
+		Random random = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			String number;
+			switch (i % 4) {
+			case 0:
+				number = Double.toString(Double.longBitsToDouble(random.nextLong()));
+				break;
+			case 1:
+				number = Double.toString(random.nextDouble() * 1000);
+				break;
+			case 2:
+				number = (random.nextLong() >>> random.nextInt(64)) + "e" + (random.nextInt(700) - 350);
+				break;
+			default:
+				number = random.nextInt(100000) + "." + random.nextInt(100000);
+			}
+			assertEquals(number, Double.doubleToLongBits(Double.parseDouble(number)),
+					Double.doubleToLongBits(NumberParser.parseDouble(number)));
+		}
+	}
+
+	@Test
+	public void testDecimals() {
+		MathContext[] contexts = { MathContext.UNLIMITED, MathContext.DECIMAL32,
+				MathContext.DECIMAL64, new MathContext(3, RoundingMode.HALF_EVEN) };
+		for (MathContext mc : contexts) {
+			for (String number : NUMBERS) {
+				BigDecimal expected = new BigDecimal(number, mc);
+				BigDecimal actual = NumberParser.parseDecimal(number, mc);
+				assertEquals(number, expected, actual);
+				assertEquals(number, expected.scale(), actual.scale());
+			}
+		}
+	}
+
+	@Test
+	public void testInvalid() {
+		for (String number : new String[] { "", "-", ".", "e5", "1e", "1e+", "1.2.3", "1-2", "0x10" }) {
+			try {
+				NumberParser.parseDecimal(number, MathContext.DECIMAL64);
+				fail(number);
+			} catch (NumberFormatException expected) {
+				// the same error as the constructor
+			}
+		}
+		try {
+			NumberParser.parseDouble("1.2.3");
+			fail();
+		} catch (NumberFormatException expected) {
+			// the same error as Double.parseDouble
+		}
+	}
+
+	@Test
+	public void testVariables() {
+		assertEquals(0.0825 * 2, new DoubleEx("x * 2").with("x", "0.0825").eval(), 0D);
+		assertEquals("0.1650", new BigDecimalEx("x * 2").with("x", "0.0825").eval().toPlainString());
+		assertEquals("1.2E+3", new BigDecimalEx("x").with("x", "1.2e3").eval().toString());
+	}
+}
@@ -0,0 +1,95 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestOptimizer {
+
+	@Test
+	public void testFolding() {
+		assertEquals("x 0.0036 * 1024 + PI 1.4142135 / -",
+				new BigDecimalEx("x * (3.6 / 1000) + 2^10 - PI/SQRT(2)").toOptimizedRPN());
+		assertEquals("x 3.6 1000 / * 2 10 ^ + PI ( 2 SQRT / -",
+				new BigDecimalEx("x * (3.6 / 1000) + 2^10 - PI/SQRT(2)").toRPN());
+		assertEquals("0.3333333", new BigDecimalEx("1/3").toOptimizedRPN());
+		assertEquals("x ( 5 y MAX *", new BigDecimalEx("x * MAX(2 + 3, y)").toOptimizedRPN());
+		assertEquals("( RANDOM 2 *", new BigDecimalEx("RANDOM() * 2").toOptimizedRPN());
+		assertEquals("( RANDOM 2 *", new DoubleEx("RANDOM() * 2").toOptimizedRPN());
+		assertEquals("x 1.5 +", new DoubleEx("x + 3/2").toOptimizedRPN());
+		assertEquals("x 14 +", new LongEx("x + 2*7").toOptimizedRPN());
+	}
+
+	@Test
+	public void testContext() {
+		BigDecimalEx e = new BigDecimalEx("x + 1/3");
+		e.setVariable("x", BigDecimal.ONE);
+		CompiledExpression<BigDecimal, MathContext> c = e.compile();
+		assertEquals("1.333333", c.eval().toString());
+		assertEquals("1.333333333333333", c.eval(c.bindings(), MathContext.DECIMAL64).toString());
+		assertEquals("1.333333", c.eval().toString());
+		e.setPrecision(3);
+		assertEquals("1.33", e.eval().toString());
+		assertEquals("x 0.333 +", e.toOptimizedRPN());
+	}
+
+	@Test
+	public void testCustomFunction() {
+		final AtomicInteger calls = new AtomicInteger();
+		BigDecimalEx e = new BigDecimalEx("x * TAX(19)");
+		e.addFunction(new Function<BigDecimal, MathContext>("TAX", 1) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				calls.incrementAndGet();
+				return parameters.get(0).movePointLeft(2).add(BigDecimal.ONE);
+			}
+		});
+		e.setVariable("x", new BigDecimal(100));
+		assertEquals("119.00", e.eval().toPlainString());
+		e.setVariable("x", new BigDecimal(200));
+		assertEquals("238.00", e.eval().toPlainString());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void testNonDeterministic() {
+		final AtomicInteger calls = new AtomicInteger();
+		BigDecimalEx e = new BigDecimalEx("x + NEXT()");
+		e.addFunction(new Function<BigDecimal, MathContext>("NEXT", 0) {
+			@Override
+			public boolean isDeterministic() {
+				return false;
+			}
+
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				return new BigDecimal(calls.incrementAndGet());
+			}
+		});
+		e.setVariable("x", BigDecimal.ZERO);
+		assertEquals("1", e.eval().toPlainString());
+		assertEquals("2", e.eval().toPlainString());
+		assertFalse(new DoubleEx("RANDOM() + 0").eval().equals(new DoubleEx("RANDOM() + 0").eval()));
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testFailingFold() {
+		BigDecimalEx e = new BigDecimalEx("x + 1/0");
+		assertEquals("x 1 0 / +", e.toOptimizedRPN());
+		e.with("x", BigDecimal.ONE).eval();
+	}
+
+	@Test
+	public void testLongOverflow() {
+		LongEx e = new LongEx("x + 2^63");
+		e.with("x", -1L);
+		assertEquals("x 2 63 ^ +", e.toOptimizedRPN());
+		assertEquals(Long.valueOf(Long.MAX_VALUE), e.eval());
+	}
+}
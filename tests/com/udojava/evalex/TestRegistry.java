@@ -0,0 +1,100 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestRegistry {
+
+	@Test
+	public void testOverlay() {
+		Operator<BigDecimal, MathContext> plus = new Operator<BigDecimal, MathContext>("+", 20, true) {
+			@Override
+			public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
+				return v1.multiply(v2, mc);
+			}
+		};
+		Operator<BigDecimal, MathContext> minus = new Operator<BigDecimal, MathContext>("-", 20, true) {
+			@Override
+			public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
+				return v1.subtract(v2, mc);
+			}
+		};
+		OperatorRegistry<BigDecimal, MathContext> base = OperatorRegistry.of(Arrays.asList(plus));
+		OperatorRegistry<BigDecimal, MathContext> added = base.with(minus);
+		assertSame(plus, base.get("+"));
+		assertFalse(base.contains("-"));
+		assertNull(base.get("-"));
+		assertSame(plus, added.get("+"));
+		assertSame(minus, added.get("-"));
+		assertTrue(added.contains("-"));
+	}
+
+	@Test
+	public void testCustomOperatorDoesNotLeak() {
+		BigDecimalEx custom = new BigDecimalEx("2 + 3");
+		Operator<BigDecimal, MathContext> previous = custom.addOperator(
+				new Operator<BigDecimal, MathContext>("+", 20, true) {
+					@Override
+					public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
+						return v1.multiply(v2, mc);
+					}
+				});
+		assertEquals("+", previous.getOper());
+		assertEquals("6", custom.eval().toPlainString());
+		assertEquals("5", new BigDecimalEx("2 + 3").eval().toPlainString());
+	}
+
+	@Test
+	public void testCustomFunctionDoesNotLeak() {
+		DoubleEx custom = new DoubleEx("TWICE(4)");
+		assertNull(custom.addFunction(new DoubleFunction("twice", 1) {
+			@Override
+			public double applyAsDouble(double[] p, int offset, int count) {
+				return p[offset] * 2;
+			}
+		}));
+		assertEquals(8D, custom.eval(), 0D);
+		try {
+			new DoubleEx("TWICE(4)").eval();
+		} catch (ExpressionException e) {
+			assertEquals("Unknown operator or function: TWICE", e.getMessage());
+			return;
+		}
+		throw new AssertionError("TWICE must not be defined");
+	}
+
+	@Test
+	public void testVariablesDoNotLeak() {
+		LongEx custom = new LongEx("TRUE + x");
+		custom.setVariable("TRUE", 7L).setVariable("x", 1L);
+		assertEquals(Long.valueOf(8), custom.eval());
+		assertEquals(Long.valueOf(2), new LongEx("TRUE + x").with("x", 1L).eval());
+		assertEquals(new BigDecimal(2), new BigDecimalEx("TRUE + TRUE").eval());
+	}
+
+	@Test
+	public void testFunctionRegistry() {
+		Function<BigDecimal, MathContext> first = new Function<BigDecimal, MathContext>("first", -1) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				return parameters.get(0);
+			}
+		};
+		FunctionRegistry<BigDecimal, MathContext> registry = FunctionRegistry.of(
+				Arrays.<Function<BigDecimal, MathContext>>asList(first));
+		assertSame(first, registry.get("FIRST"));
+		assertNull(registry.get("first"));
+		assertSame(first, FunctionRegistry.<BigDecimal, MathContext>of(
+				Arrays.<Function<BigDecimal, MathContext>>asList()).with(first).get("FIRST"));
+	}
+}
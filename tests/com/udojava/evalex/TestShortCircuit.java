@@ -0,0 +1,108 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestShortCircuit {
+
+	private static BigDecimalEx counting(String expression, final AtomicInteger calls) {
+		BigDecimalEx e = new BigDecimalEx(expression);
+		e.addFunction(new Function<BigDecimal, MathContext>("COSTLY", 1) {
+			@Override
+			public BigDecimal eval(List<BigDecimal> parameters, MathContext mc) {
+				calls.incrementAndGet();
+				return parameters.get(0).multiply(BigDecimal.TEN);
+			}
+		});
+		return e;
+	}
+
+	@Test
+	public void testIf() {
+		AtomicInteger calls = new AtomicInteger();
+		BigDecimalEx e = counting("IF(enabled, COSTLY(x), COSTLY(x + 1))", calls);
+		e.with("x", new BigDecimal(2));
+		assertEquals("20", e.with("enabled", BigDecimal.ONE).eval().toPlainString());
+		assertEquals(1, calls.get());
+		assertEquals("30", e.with("enabled", BigDecimal.ZERO).eval().toPlainString());
+		assertEquals(2, calls.get());
+		assertEquals("20", e.with("enabled", new BigDecimal("0.0")).eval().toPlainString());
+		assertEquals(3, calls.get());
+	}
+
+	@Test
+	public void testNestedIf() {
+		BigDecimalEx e = new BigDecimalEx("IF(a > 0, IF(b > 0, 1, 2), IF(b > 0, 3, 4)) * 10 + IF(a = b, 5, 6)");
+		assertEquals("15", e.with("a", BigDecimal.ONE).with("b", BigDecimal.ONE).eval().toPlainString());
+		assertEquals("26", e.with("a", BigDecimal.ONE).with("b", BigDecimal.ZERO).eval().toPlainString());
+		assertEquals("36", e.with("a", BigDecimal.ZERO).with("b", BigDecimal.ONE).eval().toPlainString());
+		assertEquals("45", e.with("a", BigDecimal.ZERO).with("b", BigDecimal.ZERO).eval().toPlainString());
+		assertEquals("( a 0 > ( b 0 > 1 2 IF ( b 0 > 3 4 IF IF 10 * ( a b = 5 6 IF +",
+				e.toOptimizedRPN());
+	}
+
+	@Test
+	public void testUntakenBranch() {
+		BigDecimalEx e = new BigDecimalEx("IF(x != 0, 1 / x, 0)");
+		assertEquals("0", e.with("x", BigDecimal.ZERO).eval().toPlainString());
+		assertEquals("0.5", e.with("x", new BigDecimal(2)).eval().toPlainString());
+		assertEquals("0", new BigDecimalEx("IF(0, 1/0, 0)").eval().toPlainString());
+		assertEquals("0", new BigDecimalEx("x != 0 && 1/x > 1").with("x", BigDecimal.ZERO).eval().toPlainString());
+		assertEquals("1", new BigDecimalEx("x = 0 || 1/x > 1").with("x", BigDecimal.ZERO).eval().toPlainString());
+	}
+
+	@Test
+	public void testAndOr() {
+		AtomicInteger calls = new AtomicInteger();
+		BigDecimalEx e = counting("a && COSTLY(b) || COSTLY(c)", calls);
+		e.with("b", BigDecimal.ONE).with("c", BigDecimal.ZERO);
+		assertEquals("1", e.with("a", BigDecimal.ONE).eval().toPlainString());
+		assertEquals(1, calls.get());
+		assertEquals("0", e.with("a", BigDecimal.ZERO).eval().toPlainString());
+		assertEquals(2, calls.get());
+		assertEquals("1", e.with("a", new BigDecimal("0.00")).eval().toPlainString());
+		assertEquals(3, calls.get());
+		assertEquals("a ( b COSTLY && ( c COSTLY ||", e.toOptimizedRPN());
+	}
+
+	@Test
+	public void testCustomOperator() {
+		final AtomicInteger calls = new AtomicInteger();
+		BigDecimalEx e = new BigDecimalEx("0 && x");
+		e.addOperator(new Operator<BigDecimal, MathContext>("&&", 4, false) {
+			@Override
+			public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
+				calls.incrementAndGet();
+				return v2;
+			}
+		});
+		assertEquals("7", e.with("x", new BigDecimal(7)).eval().toPlainString());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void testDouble() {
+		DoubleEx e = new DoubleEx("IF(x, 10 / x, -1) + (x && y) + (x || y)");
+		e.with("y", 0D);
+		assertEquals(6D, e.with("x", 2D).eval(), 0D);
+		assertEquals(-1D, e.with("x", 0D).eval(), 0D);
+		assertEquals(1D, new DoubleEx("IF(x, 1, 2)").with("x", -0D).eval(), 0D);
+		assertEquals(1D, new DoubleEx("0 || NOT(0)").eval(), 0D);
+	}
+
+	@Test
+	public void testLong() {
+		LongEx e = new LongEx("IF(x != 0, 100 / x, -1) + (x && y) + (x || y)");
+		e.with("y", 3L);
+		assertEquals(Long.valueOf(52), e.with("x", 2L).eval());
+		assertEquals(Long.valueOf(0), e.with("x", 0L).eval());
+		assertEquals(Long.valueOf(1), new LongEx("x = 0 || 2^64 > x").with("x", 0L).eval());
+		assertEquals(Long.valueOf(1), new LongEx("x > 0 && 2^64 > x").with("x", 1L).eval());
+	}
+}
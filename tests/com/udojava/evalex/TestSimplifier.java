@@ -0,0 +1,136 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+public class TestSimplifier {
+
+	@Test
+	public void testIdentities() {
+		assertEquals("x", new DoubleEx("x * 1 - 0").toOptimizedRPN());
+		assertEquals("x y +", new LongEx("1 * x + (0 + y) / 1").toOptimizedRPN());
+		assertEquals("x", new LongEx("(x - 0) * 1 + 0").toOptimizedRPN());
+		assertEquals("( RANDOM", new DoubleEx("RANDOM() * 1").toOptimizedRPN());
+	}
+
+	@Test
+	public void testNegativeZero() {
+		// -0.0 + 0 is 0.0, the addition of zero is kept for doubles
+		assertEquals("x 0 +", new DoubleEx("x + 0").toOptimizedRPN());
+		assertEquals("0 x +", new DoubleEx("0 + x").toOptimizedRPN());
+		assertEquals(Double.doubleToLongBits(0D),
+				Double.doubleToLongBits(new DoubleEx("x + 0").with("x", -0D).eval()));
+		assertEquals(2D, new DoubleEx("IF(x + 0, 1, 2)").with("x", -0D).eval(), 0D);
+		assertEquals(1D, new DoubleEx("NOT(x + 0)").with("x", -0D).eval(), 0D);
+		assertEquals(Double.doubleToLongBits(-0D),
+				Double.doubleToLongBits(new DoubleEx("x - 0").with("x", -0D).eval()));
+	}
+
+	@Test
+	public void testPowers() {
+		assertEquals("x x * x *", new LongEx("x^3").toOptimizedRPN());
+		assertEquals("x", new LongEx("x^1").toOptimizedRPN());
+		assertEquals("x 5 ^", new LongEx("x^5").toOptimizedRPN());
+		assertEquals(Long.valueOf(-27), new LongEx("x^3").with("x", -3L).eval());
+		// ^ is no power for doubles
+		assertEquals("x 2 ^", new DoubleEx("x^2").toOptimizedRPN());
+	}
+
+	@Test
+	public void testReciprocals() {
+		assertEquals("x 0.25 *", new DoubleEx("x / 4").toOptimizedRPN());
+		assertEquals(0.75, new DoubleEx("x / 4").with("x", 3D).eval(), 0D);
+		assertEquals("x 0 /", new DoubleEx("x / 0").toOptimizedRPN());
+		// only powers of two have an exact reciprocal
+		assertEquals("x 3 /", new DoubleEx("x / 3").toOptimizedRPN());
+		assertEquals("x -0.125 *", new DoubleEx("x / -8").toOptimizedRPN());
+		// constant divisions are folded as they are
+		assertEquals(7D / 3, new DoubleEx("7/3").eval(), 0D);
+		assertEquals(-0.6, new DoubleEx("(1+2)*(3-4)/5").eval(), 0D);
+		assertEquals(0.75, new DoubleEx("3/4").eval(), 0D);
+		assertEquals("x 4 /", new LongEx("x / 4").toOptimizedRPN());
+		assertEquals("x 4 /", new BigDecimalEx("x / 4").toOptimizedRPN());
+	}
+
+	@Test
+	public void testHorner() {
+		assertEquals("a x * b + x * c + x * d +",
+				new LongEx("a*x^3 + b*x^2 + c*x + d").toOptimizedRPN());
+		assertEquals("2 x * 3 - x * 1 +", new LongEx("2*x*x - 3*x + 1").toOptimizedRPN());
+		assertEquals("x 1 - x *", new LongEx("x*x - x").toOptimizedRPN());
+		assertEquals("y x * x * y +", new LongEx("x*y*x + y").toOptimizedRPN());
+		assertEquals("x 3 - x * x * 4 -", new LongEx("x^3 - 4 - 3*x^2").toOptimizedRPN());
+		assertEquals("a x * b + x * c + x * d +",
+				new DoubleEx("a*x*x*x + b*x*x + c*x + d").toOptimizedRPN());
+		LongEx e = new LongEx("a*x^3 + b*x^2 + c*x + d");
+		e.with("a", 2L).and("b", -3L).and("c", 5L).and("d", 7L);
+		for (long x = -5; x <= 5; x++) {
+			assertEquals(Long.valueOf(2 * x * x * x - 3 * x * x + 5 * x + 7), e.with("x", x).eval());
+		}
+		DoubleEx d = new DoubleEx("0.5*x*x - 2*x + 1");
+		assertEquals(0.5 * 1.5 * 1.5 - 2 * 1.5 + 1, d.with("x", 1.5).eval(), 1e-15);
+	}
+
+	@Test
+	public void testNoPolynomial() {
+		// a linear sum, a leading negative term, two terms of the same degree
+		assertEquals("x 2 * 1 +", new LongEx("x*2 + 1").toOptimizedRPN());
+		assertEquals("1 x x * -", new LongEx("1 - x*x").toOptimizedRPN());
+		assertEquals("x x * x x * +", new LongEx("x^2 + x*x").toOptimizedRPN());
+	}
+
+	@Test
+	public void testLongOverflow() {
+		LongEx e = new LongEx("x^2 + x");
+		e.with("x", 4000000000L);
+		assertEquals(new BigDecimal("16000000004000000000"), e.compile().evalExact(e.bindings()));
+	}
+
+	@Test
+	public void testDecimal() {
+		assertEquals("x", new BigDecimalEx("x * 1").toOptimizedRPN());
+		assertEquals("x", new BigDecimalEx("1 * x / 1").toOptimizedRPN());
+		assertEquals("x 1.0 *", new BigDecimalEx("x * 1.0").toOptimizedRPN());
+		assertEquals("x 0 +", new BigDecimalEx("x + 0").toOptimizedRPN());
+		assertEquals("x 2 ^", new BigDecimalEx("x^2").toOptimizedRPN());
+		assertEquals("a x 3 ^ * b x 2 ^ * + c x * + d +",
+				new BigDecimalEx("a*x^3 + b*x^2 + c*x + d").toOptimizedRPN());
+		assertEquals("1.50", new BigDecimalEx("x * 1").with("x", "1.50").eval().toPlainString());
+		assertEquals("1.235", new BigDecimalEx("x * 1").setPrecision(4)
+				.with("x", new BigDecimal("1.23456")).eval().toPlainString());
+	}
+
+	@Test
+	public void testDecimalPower() {
+		String[] bases = { "1.1", "-2.5", "3", "0.000123", "12345.6789", "0" };
+		String[] exponents = { "0", "1", "2", "3", "7", "2.0", "10" };
+		MathContext mc = new MathContext(7);
+		for (String base : bases) {
+			for (String exponent : exponents) {
+				BigDecimal v1 = new BigDecimal(base).round(mc);
+				BigDecimal v2 = new BigDecimal(exponent);
+				BigDecimal expected = v1.pow(v2.intValueExact(), mc).multiply(
+						new BigDecimal(Math.pow(v1.doubleValue(), 0D)), mc);
+				assertEquals(base + "^" + exponent, expected,
+						new BigDecimalEx("x^y").setPrecision(7).with("x", v1).and("y", v2).eval());
+			}
+		}
+	}
+
+	@Test
+	public void testCustomOperators() {
+		LongEx e = new LongEx("x * 1 + x^2");
+		e.addOperator(new Operator<Long, Void>("*", 30, true) {
+			@Override
+			public Long eval(Long v1, Long v2, Void ctx) {
+				return v1 * v2 + 1;
+			}
+		});
+		assertEquals("x 1 * x 2 ^ +", e.toOptimizedRPN());
+		assertEquals(Long.valueOf(13), e.with("x", 3L).eval());
+	}
+}
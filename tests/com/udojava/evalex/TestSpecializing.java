@@ -0,0 +1,134 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Random;
+
+public class TestSpecializing {
+
+	private static final String[] EXPRESSIONS = {
+		"x + y", "x - y", "x * y", "x / y", "x * y + x - y * 2.5",
+		"(x + 1.25) * (y - 0.5) - 100", "x * x * x * y * y",
+		"x > y", "x >= y", "x < y", "x <= y", "x = y", "x != y",
+		"x && y", "x || y", "(x > 0 && y > 0) || x = y",
+		"IF(x > y, x - y, IF(y > 0, y, 0 - y)) * 2",
+		"IF(y != 0, x / y, 0) + MAX(x, y, 3) - ABS(y)",
+		"ROUND(x * y, 1) + 1 * (2 + 3)",
+		"-x * y + !(x > y) - -(x - y)",
+	};
+
+	private static final String[] VALUES = {
+		"0", "1", "-1", "2", "0.00", "12.34", "-0.5", "1.2345", "0.00001",
+		"9223372036854775807", "-9223372036854775808", "99999999999999999999",
+		"123456789012345678", "1E+3", "4.2", "100",
+	};
+
+	private static final MathContext[] CONTEXTS = {
+		MathContext.DECIMAL32, MathContext.DECIMAL128, MathContext.UNLIMITED,
+		new MathContext(3, RoundingMode.HALF_EVEN),
+	};
+
+	@Test
+	public void testBackend() {
+		assertEquals(Backend.SPECIALIZING, new BigDecimalEx("x * 2")
+				.setBackend(Backend.SPECIALIZING).compile().getBackend());
+		assertEquals(Backend.INTERPRETER, new DoubleEx("x * 2")
+				.setBackend(Backend.SPECIALIZING).compile().getBackend());
+		assertEquals(Backend.INTERPRETER, new LongEx("x * 2")
+				.setBackend(Backend.SPECIALIZING).compile().getBackend());
+	}
+
+	@Test
+	public void testSameResults() {
+		Random random = new Random(13);
+		for (String expression : EXPRESSIONS) {
+			for (MathContext mc : CONTEXTS) {
+				CompiledExpression<BigDecimal, MathContext> interpreted = new BigDecimalEx(expression, mc).compile();
+				CompiledExpression<BigDecimal, MathContext> specializing = new BigDecimalEx(expression, mc)
+						.setBackend(Backend.SPECIALIZING).compile();
+				for (int i = 0; i < 400; i++) {
+					Object[] v = new Object[interpreted.getSlotCount()];
+					for (int s = 0; s < v.length; s++) {
+						// small integers first, then amounts, then all values
+						String value = i < 100 ? Integer.toString(random.nextInt(21) - 10)
+								: i < 200 ? BigDecimal.valueOf(random.nextInt(20001) - 10000, 2).toPlainString()
+										: VALUES[random.nextInt(VALUES.length)];
+						v[s] = new BigDecimal(value);
+					}
+					assertEquals(expression, result(interpreted, v, mc), result(specializing, v, mc));
+				}
+			}
+		}
+	}
+
+	private static String result(CompiledExpression<BigDecimal, MathContext> e,
+			Object[] values, MathContext mc) {
+		try {
+			BigDecimal result = e.eval(values, mc);
+			// the scale must be the same, too
+			return result.unscaledValue() + "E" + result.scale();
+		} catch (RuntimeException ex) {
+			return ex.getClass().getName() + ": " + ex.getMessage();
+		}
+	}
+
+	@Test
+	public void testSpecialization() {
+		CompiledDecimalExpression e = (CompiledDecimalExpression) new BigDecimalEx("x * y + 1")
+				.setBackend(Backend.SPECIALIZING).compile();
+		DecimalNode.Specializing add = (DecimalNode.Specializing) e.tree;
+		DecimalNode.Specializing multiply = (DecimalNode.Specializing) add.left;
+		assertEquals(DecimalNode.UNINITIALIZED, add.state);
+
+		assertEquals(new BigDecimal("7"), eval(e, "2", "3"));
+		assertEquals(DecimalNode.INTEGER, add.state);
+		assertEquals(DecimalNode.INTEGER, multiply.state);
+		assertEquals(new BigDecimal("13"), eval(e, "3", "4"));
+		assertEquals(DecimalNode.INTEGER, add.state);
+
+		assertEquals(new BigDecimal("3.50"), eval(e, "1.25", "2"));
+		assertEquals(DecimalNode.SCALED, add.state);
+		assertEquals(DecimalNode.SCALED, multiply.state);
+		assertEquals(new BigDecimal("7"), eval(e, "2", "3"));
+		assertEquals(DecimalNode.SCALED, add.state);
+
+		// the product has a scale of 6
+		assertEquals(new BigDecimal("1.015625"), eval(e, "0.125", "0.125"));
+		assertEquals(DecimalNode.GENERIC, multiply.state);
+		assertEquals(DecimalNode.GENERIC, add.state);
+		assertEquals(new BigDecimal("7"), eval(e, "2", "3"));
+	}
+
+	@Test
+	public void testDeoptimizeOnOverflow() {
+		CompiledDecimalExpression e = (CompiledDecimalExpression) new BigDecimalEx("x + y", MathContext.UNLIMITED)
+				.setBackend(Backend.SPECIALIZING).compile();
+		assertEquals(new BigDecimal("3"), eval(e, "1", "2"));
+		assertEquals(DecimalNode.INTEGER, ((DecimalNode.Specializing) e.tree).state);
+		assertEquals(new BigDecimal("18446744073709551614"),
+				eval(e, "9223372036854775807", "9223372036854775807"));
+		assertEquals(DecimalNode.GENERIC, ((DecimalNode.Specializing) e.tree).state);
+	}
+
+	@Test
+	public void testCache() {
+		ExpressionCache<BigDecimal, MathContext> cache = new ExpressionCache<>(10);
+		BigDecimalEx e1 = new BigDecimalEx("x * 2");
+		e1.setCache(cache);
+		e1.setBackend(Backend.SPECIALIZING);
+		BigDecimalEx e2 = new BigDecimalEx("x * 2");
+		e2.setCache(cache);
+		assertEquals(Backend.SPECIALIZING, e1.compile().getBackend());
+		assertEquals(Backend.INTERPRETER, e2.compile().getBackend());
+		assertEquals(new BigDecimal("5.0"), e1.with("x", new BigDecimal("2.5")).eval());
+	}
+
+	private static BigDecimal eval(CompiledExpression<BigDecimal, MathContext> e, String x, String y) {
+		return e.eval(new Object[] { new BigDecimal(x), new BigDecimal(y) });
+	}
+}
@@ -0,0 +1,154 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestTiering {
+
+	@Test
+	public void testPromotion() {
+		TieredCompilation tiering = new TieredCompilation(3, Runnable::run);
+		DoubleEx e = new DoubleEx("x * 2 + 1");
+		e.setBackend(Backend.BYTECODE).setTiering(tiering);
+		CompiledExpression<Double, Void> compiled = e.compile();
+		assertEquals(Backend.INTERPRETER, compiled.getBackend());
+		assertEquals(1, tiering.getInterpretedCount());
+		assertEquals(0, tiering.getCompiledCount());
+		for (int i = 0; i < 2; i++) {
+			assertEquals(7D, e.with("x", 3D).eval(), 0D);
+		}
+		assertEquals(Backend.INTERPRETER, compiled.getBackend());
+		// the third evaluation reaches the threshold
+		assertEquals(9D, e.with("x", 4D).eval(), 0D);
+		assertEquals(Backend.BYTECODE, compiled.getBackend());
+		assertEquals(9D, e.with("x", 4D).eval(), 0D);
+		assertEquals(0, tiering.getInterpretedCount());
+		assertEquals(0, tiering.getCompilingCount());
+		assertEquals(1, tiering.getCompiledCount());
+	}
+
+	@Test
+	public void testTypes() {
+		TieredCompilation tiering = new TieredCompilation(1, Runnable::run);
+		LongEx l = new LongEx("x * 3");
+		l.setBackend(Backend.METHOD_HANDLES).setTiering(tiering);
+		BigDecimalEx d = new BigDecimalEx("x * 3");
+		d.setBackend(Backend.SPECIALIZING).setTiering(tiering);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(Long.valueOf(6), l.with("x", 2L).eval());
+			assertEquals(new BigDecimal("7.5"), d.with("x", new BigDecimal("2.5")).eval());
+		}
+		assertEquals(Backend.METHOD_HANDLES, l.compile().getBackend());
+		assertEquals(Backend.SPECIALIZING, d.compile().getBackend());
+		assertEquals(2, tiering.getCompiledCount());
+
+		// the backend is not supported, the expression is not tiered
+		DoubleEx unsupported = new DoubleEx("x * 3");
+		unsupported.setBackend(Backend.SPECIALIZING).setTiering(tiering);
+		assertEquals(6D, unsupported.with("x", 2D).eval(), 0D);
+		assertEquals(Backend.INTERPRETER, unsupported.compile().getBackend());
+		assertEquals(0, tiering.getInterpretedCount());
+	}
+
+	@Test
+	public void testRejected() {
+		AtomicInteger calls = new AtomicInteger();
+		TieredCompilation tiering = new TieredCompilation(2, task -> {
+			if (calls.incrementAndGet() == 1) {
+				throw new RejectedExecutionException();
+			}
+			task.run();
+		});
+		DoubleEx e = new DoubleEx("x + 1");
+		e.setBackend(Backend.METHOD_HANDLES).setTiering(tiering);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(3D, e.with("x", 2D).eval(), 0D);
+		}
+		assertEquals(2, calls.get());
+		assertEquals(Backend.METHOD_HANDLES, e.compile().getBackend());
+		assertEquals(0, tiering.getCompilingCount());
+	}
+
+	@Test
+	public void testCacheSharesTier() {
+		TieredCompilation tiering = new TieredCompilation(5, Runnable::run);
+		ExpressionCache<Double, Void> cache = new ExpressionCache<>(10);
+		DoubleEx first = new DoubleEx("x - 1");
+		first.setBackend(Backend.BYTECODE).setTiering(tiering).setCache(cache);
+		DoubleEx second = new DoubleEx("x - 1");
+		second.setBackend(Backend.BYTECODE).setTiering(tiering).setCache(cache);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(1D, first.with("x", 2D).eval(), 0D);
+			assertEquals(2D, second.with("x", 3D).eval(), 0D);
+		}
+		assertEquals(Backend.BYTECODE, first.compile().getBackend());
+		assertEquals(Backend.BYTECODE, second.compile().getBackend());
+		assertEquals(1, tiering.getCompiledCount());
+		// another tiering is another cache entry
+		DoubleEx eager = new DoubleEx("x - 1");
+		eager.setBackend(Backend.BYTECODE).setCache(cache);
+		assertEquals(Backend.BYTECODE, eager.compile().getBackend());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testBackground() throws Exception {
+		ExecutorService compiler = Executors.newSingleThreadExecutor();
+		ExecutorService callers = Executors.newFixedThreadPool(4);
+		try {
+			TieredCompilation tiering = new TieredCompilation(100, compiler);
+			CompiledDoubleExpression e = (CompiledDoubleExpression) new DoubleEx("IF(x > 0, x * x, 0 - x)")
+					.setBackend(Backend.METHOD_HANDLES).setTiering(tiering).compile();
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				results.add(callers.submit(() -> {
+					for (int i = -500; i < 500; i++) {
+						if (e.eval(new double[] { i }) != (i > 0 ? (double) i * i : -i)) {
+							return false;
+						}
+					}
+					return true;
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+			compiler.shutdown();
+			assertTrue(compiler.awaitTermination(10, TimeUnit.SECONDS));
+			assertEquals(Backend.METHOD_HANDLES, e.getBackend());
+			assertEquals(1, tiering.getCompiledCount());
+			assertEquals(0, tiering.getCompilingCount());
+			assertEquals(16D, e.eval(new double[] { 4 }), 0D);
+		} finally {
+			compiler.shutdownNow();
+			callers.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testDefaultExecutor() throws Exception {
+		TieredCompilation tiering = new TieredCompilation(0);
+		BigDecimalEx e = new BigDecimalEx("x + 0.5", MathContext.DECIMAL64);
+		e.setBackend(Backend.SPECIALIZING).setTiering(tiering);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (e.compile().getBackend() != Backend.SPECIALIZING && System.nanoTime() < deadline) {
+			assertEquals(new BigDecimal("1.5"), e.with("x", BigDecimal.ONE).eval());
+			Thread.sleep(1);
+		}
+		assertEquals(Backend.SPECIALIZING, e.compile().getBackend());
+		assertEquals(new BigDecimal("1.5"), e.with("x", BigDecimal.ONE).eval());
+	}
+}
@@ -4,10 +4,15 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 
 public class TestTokenizer {
@@ -268,4 +273,72 @@ public class TestTokenizer {
 		assertEquals("/", i.next());
 		assertEquals("9", i.next());
 	}
+
+	@Test
+	public void testSpans() {
+		StringBuilder input = new StringBuilder("  x1 >= -2.5e-3*(y, -4) - 7 ");
+		Tokenizer<BigDecimal, MathContext> t = tokenizer(input);
+		String[] texts = { "x1", ">=", "-2.5e-3", "*", "(", "y", ",", "-4", ")", "-", "7" };
+		byte[] kinds = { Tokenizer.IDENTIFIER, Tokenizer.OPERATOR, Tokenizer.NUMBER,
+				Tokenizer.OPERATOR, Tokenizer.OPEN, Tokenizer.IDENTIFIER, Tokenizer.COMMA,
+				Tokenizer.NUMBER, Tokenizer.CLOSE, Tokenizer.OPERATOR, Tokenizer.NUMBER };
+		int from = 0;
+		for (int i = 0; i < texts.length; i++) {
+			assertTrue(t.advance());
+			assertEquals(texts[i], kinds[i], t.kind());
+			assertEquals(texts[i], input.indexOf(texts[i], from), t.start());
+			assertEquals(texts[i].length(), t.length());
+			assertEquals(texts[i], t.text());
+			from = t.start() + t.length();
+		}
+		assertFalse(t.advance());
+		assertEquals(0, t.kind());
+
+		// a tokenizer can be reused
+		t.reset("1-2");
+		assertTrue(t.advance());
+		assertEquals("1", t.text());
+		assertTrue(t.advance());
+		assertTrue(t.is('-'));
+		assertTrue(t.advance());
+		assertEquals(Tokenizer.NUMBER, t.kind());
+		assertEquals("2", t.text());
+		assertFalse(t.advance());
+	}
+
+	@Test
+	public void testNonAscii() {
+		Tokenizer<BigDecimal, MathContext> t = tokenizer("\u00e4\u00f6 + \u0663");
+		assertTrue(t.advance());
+		assertEquals(Tokenizer.IDENTIFIER, t.kind());
+		assertEquals(2, t.length());
+		assertTrue(t.advance());
+		assertEquals(Tokenizer.OPERATOR, t.kind());
+		assertTrue(t.advance());
+		assertEquals(Tokenizer.NUMBER, t.kind());
+		assertFalse(t.advance());
+	}
+
+	@Test
+	public void testUnknownOperator() {
+		try {
+			new BigDecimalEx("  1 ?? 2").eval();
+			fail();
+		} catch (ExpressionException e) {
+			assertEquals("Unknown operator '??' at position 3", e.getMessage());
+		}
+	}
+
+	private static Tokenizer<BigDecimal, MathContext> tokenizer(CharSequence input) {
+		List<Operator<BigDecimal, MathContext>> operators = new ArrayList<>();
+		for (String oper : new String[] { "+", "-", "*", ">=" }) {
+			operators.add(new Operator<BigDecimal, MathContext>(oper, 20, true) {
+				@Override
+				public BigDecimal eval(BigDecimal v1, BigDecimal v2, MathContext mc) {
+					return v1;
+				}
+			});
+		}
+		return new Tokenizer<>(input, OperatorRegistry.of(operators));
+	}
 }
@@ -0,0 +1,130 @@
+package com.udojava.evalex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+public class TestUnary {
+
+	@Test
+	public void testNegation() {
+		assertEquals("-3", new BigDecimalEx("-x").with("x", "3").eval().toPlainString());
+		assertEquals("5", new BigDecimalEx("2 - -x").with("x", "3").eval().toPlainString());
+		assertEquals("-5", new BigDecimalEx("-(2 + 3)").eval().toPlainString());
+		assertEquals("1", new BigDecimalEx("--1").eval().toPlainString());
+		assertEquals(-2.5, new DoubleEx("-x").with("x", 2.5).eval(), 0D);
+		assertEquals(Long.valueOf(-7), new LongEx("-(x + 4)").with("x", 3L).eval());
+	}
+
+	@Test
+	public void testPrecedence() {
+		// the negation of a variable binds like the sign of a literal
+		assertEquals("4", new BigDecimalEx("-2^2").eval().toPlainString());
+		assertEquals("4", new BigDecimalEx("-x^2").with("x", "2").eval().toPlainString());
+		assertEquals("-4", new BigDecimalEx("-(x^2)").with("x", "2").eval().toPlainString());
+		assertEquals("-6", new BigDecimalEx("-x * 3").with("x", "2").eval().toPlainString());
+		assertEquals("0.125", new BigDecimalEx("2^-x").with("x", "3").eval().stripTrailingZeros().toPlainString());
+	}
+
+	@Test
+	public void testNot() {
+		assertEquals("0", new BigDecimalEx("!x").with("x", "3").eval().toPlainString());
+		assertEquals("1", new BigDecimalEx("!x").with("x", "0.00").eval().toPlainString());
+		assertEquals("1", new BigDecimalEx("!(x > 3) && x != 0").with("x", "2").eval().toPlainString());
+		assertEquals("1", new BigDecimalEx("!x != 1").with("x", "1").eval().toPlainString());
+		assertEquals(1D, new DoubleEx("!x").with("x", 0D).eval(), 0D);
+		assertEquals(Long.valueOf(0), new LongEx("!x").with("x", 5L).eval());
+	}
+
+	@Test
+	public void testRPN() {
+		assertEquals("x - 1 +", new BigDecimalEx("-x + 1").toRPN());
+		assertEquals("x y + ! 2 *", new BigDecimalEx("!(x + y) * 2").toRPN());
+		assertEquals("-5 x +", new BigDecimalEx("-(2 + 3) + x").toOptimizedRPN());
+	}
+
+	@Test
+	public void testLongOverflow() {
+		LongEx e = new LongEx("-x");
+		e.with("x", Long.MIN_VALUE);
+		assertEquals(new BigDecimal("9223372036854775808"), e.compile().evalExact(e.bindings()));
+		try {
+			e.eval();
+			fail();
+		} catch (ArithmeticException expected) {
+			// does not fit into a long
+		}
+	}
+
+	@Test
+	public void testCustomOperators() {
+		LongEx e = new LongEx("-x! + 2!!");
+		assertNull(e.addOperator(new UnaryOperator<Long, Void>("!", 70, false) {
+			@Override
+			public Long eval(Long v, Void ctx) {
+				long result = 1;
+				for (long i = 2; i <= v; i++) {
+					result *= i;
+				}
+				return result;
+			}
+		}));
+		assertEquals(Long.valueOf(-4), e.with("x", 3L).eval());
+		assertEquals(Long.valueOf(0), new LongEx("!3").eval());
+
+		DoubleEx twice = new DoubleEx("~x + 1");
+		twice.addOperator(new UnaryOperator<Double, Void>("~", 60, true) {
+			@Override
+			public Double eval(Double v, Void ctx) {
+				return v * 2;
+			}
+		});
+		for (Backend backend : new Backend[] { Backend.INTERPRETER, Backend.BYTECODE,
+				Backend.METHOD_HANDLES }) {
+			twice.setBackend(backend);
+			assertEquals(backend, twice.compile().getBackend());
+			assertEquals(7D, twice.with("x", 3D).eval(), 0D);
+		}
+	}
+
+	@Test
+	public void testLowPrecedencePrefix() {
+		BigDecimalEx e = new BigDecimalEx("neg 2 + 3 * x");
+		e.addOperator(new UnaryOperator<BigDecimal, MathContext>("neg", 5, true) {
+			@Override
+			public BigDecimal eval(BigDecimal v, MathContext mc) {
+				return v.negate();
+			}
+		});
+		assertEquals("-8", e.with("x", "2").eval().toPlainString());
+	}
+
+	@Test
+	public void testErrors() {
+		assertError("Too many operators or functions at: -", "2 * -");
+		assertError("Too many operators or functions at: MAX", "MAX(1, )");
+		assertError("Mismatched parentheses", "SIN(1");
+		assertError("Mismatched parentheses", "(1 + 2))");
+		assertError("Mismatched parentheses", "(");
+		assertError("Mismatched parentheses", ")");
+		assertError("Mismatched parentheses", "2 * (");
+		assertError("Unknown operator or function: f", "f(2)");
+		assertError("Function SIN expected 1 parameters, got 0", "SIN()");
+		assertError("Missing operator at character position 3", "2 !3");
+	}
+
+	private static void assertError(String message, String expression) {
+		try {
+			new BigDecimalEx(expression).eval();
+		} catch (ExpressionException e) {
+			assertEquals(expression, message, e.getMessage());
+			return;
+		}
+		fail(expression);
+	}
+}